@@ -1,5 +1,6 @@
 package aidhkm.dhkm16a1hn.config;
 
+import aidhkm.dhkm16a1hn.embedding.Embedding;
 import aidhkm.dhkm16a1hn.model.Document;
 import aidhkm.dhkm16a1hn.model.EmbeddingVector;
 import aidhkm.dhkm16a1hn.repository.DocumentRepository;
@@ -11,6 +12,7 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.context.ApplicationListener;
 import org.springframework.context.event.ContextRefreshedEvent;
 import org.springframework.stereotype.Component;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Set;
 import java.util.stream.Collectors;
@@ -36,6 +38,16 @@ public class DataInitializer implements ApplicationListener<ContextRefreshedEven
     @PostConstruct
     public void init() {
         try {
+            // Bổ sung segment_hash cho các vector cũ trước khi tạo vector mới
+            int backfilled = vectorService.backfillSegmentHashes();
+            if (backfilled > 0) {
+                logger.info("Backfilled segment hash for " + backfilled + " embedding vectors");
+            }
+            int tagged = vectorService.backfillModelTags();
+            if (tagged > 0) {
+                logger.info("Tagged " + tagged + " embedding vectors with model id and dimension");
+            }
+            
             // Kiểm tra xem có tài liệu nào trong database không
             List<Document> existingDocuments = documentRepository.findAll();
             logger.info("Found " + existingDocuments.size() + " documents in database");
@@ -49,14 +61,17 @@ public class DataInitializer implements ApplicationListener<ContextRefreshedEven
                         // Nếu tài liệu chưa có vector, tạo vector mới
                         logger.info("Creating embedding vectors for document: " + doc.getName() + " (ID: " + doc.getId() + ")");
                         List<String> segments = nlpService.segmentText(doc.getContent());
-                        for (String segment : segments) {
-                            float[] vector = vectorService.createEmbedding(segment);
+                        List<Embedding> embeddings = vectorService.createEmbeddings(segments);
+                        List<EmbeddingVector> newVectors = new ArrayList<>();
+                        for (int i = 0; i < segments.size(); i++) {
                             EmbeddingVector embeddingVector = new EmbeddingVector();
                             embeddingVector.setDocumentId(doc.getId());
-                            embeddingVector.setSegment(segment);
-                            embeddingVector.setVectorData(vector);
-                            embeddingRepository.save(embeddingVector);
+                            embeddingVector.setSegment(segments.get(i));
+                            embeddingVector.setVectorData(embeddings.get(i).getVector());
+                            embeddingVector.setModelId(embeddings.get(i).getModelId());
+                            newVectors.add(embeddingVector);
                         }
+                        vectorService.saveEmbeddingVectors(newVectors);
                         logger.info("Created " + segments.size() + " embedding vectors for document: " + doc.getName());
                     } else {
                         logger.info("Document " + doc.getName() + " already has " + vectors.size() + " embedding vectors");
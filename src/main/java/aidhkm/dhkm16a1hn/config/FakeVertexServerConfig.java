@@ -0,0 +1,62 @@
+package aidhkm.dhkm16a1hn.config;
+
+import aidhkm.dhkm16a1hn.fake.FakeVertexServer;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import java.util.Arrays;
+
+/**
+ * Khởi động máy chủ giả lập Vertex AI cùng ứng dụng (chỉ khi fake-vertex.enabled=true)
+ * Kết hợp với vertexai.base-url=http://localhost:<cổng> và vertexai.auth.enabled=false để chạy hoàn toàn offline
+ */
+@Configuration
+@ConditionalOnProperty(name = "fake-vertex.enabled", havingValue = "true")
+public class FakeVertexServerConfig {
+
+    @Value("${fake-vertex.port:8089}")
+    private int port;
+
+    @Value("${fake-vertex.threads:256}")
+    private int threads;
+
+    @Value("${fake-vertex.embedding-dimension:768}")
+    private int embeddingDimension;
+
+    @Value("${fake-vertex.latency.median-ms:200}")
+    private double latencyMedianMs;
+
+    @Value("${fake-vertex.latency.sigma:0.5}")
+    private double latencySigma;
+
+    @Value("${fake-vertex.latency.max-ms:30000}")
+    private long maxLatencyMs;
+
+    @Value("${fake-vertex.stream.chunk-delay-ms:30}")
+    private long streamChunkDelayMs;
+
+    @Value("${fake-vertex.error.rate-429:0}")
+    private double throttleRate;
+
+    @Value("${fake-vertex.error.rate-503:0}")
+    private double unavailableRate;
+
+    @Value("${fake-vertex.error.retry-after-seconds:1}")
+    private int retryAfterSeconds;
+
+    @Value("${fake-vertex.max-requests-per-second:0}")
+    private double maxRequestsPerSecond;
+
+    // Các câu trả lời có sẵn, phân tách bằng '|'; để trống dùng danh sách mặc định
+    @Value("${fake-vertex.answers:}")
+    private String answers;
+
+    @Bean(initMethod = "start", destroyMethod = "stop")
+    public FakeVertexServer fakeVertexServer() {
+        return new FakeVertexServer(port, threads, embeddingDimension, latencyMedianMs, latencySigma, maxLatencyMs,
+                streamChunkDelayMs, throttleRate, unavailableRate, retryAfterSeconds, maxRequestsPerSecond,
+                answers.isBlank() ? null : Arrays.asList(answers.split("\\|")));
+    }
+}
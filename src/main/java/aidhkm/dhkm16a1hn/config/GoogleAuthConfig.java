@@ -1,5 +1,6 @@
 package aidhkm.dhkm16a1hn.config;
 
+import com.google.auth.oauth2.AccessToken;
 import com.google.auth.oauth2.GoogleCredentials;
 import com.google.auth.oauth2.ServiceAccountCredentials;
 import org.springframework.beans.factory.annotation.Value;
@@ -36,6 +37,9 @@ public class GoogleAuthConfig {
     
     @Value("${vertexai.project.id:future-footing-456806-q4}")
     private String configuredProjectId;
+
+    @Value("${vertexai.auth.enabled:true}")
+    private boolean authEnabled;
     
     /**
      * Cung cấp GoogleCredentials để sử dụng cho xác thực với Google API
@@ -43,6 +47,11 @@ public class GoogleAuthConfig {
      */
     @Bean
     public GoogleCredentials googleCredentials() {
+        if (!authEnabled) {
+            // Chạy offline với máy chủ giả lập: không cần service account, token không bao giờ được làm mới
+            logger.warning("Xác thực OAuth2 đã tắt (vertexai.auth.enabled=false), dùng credentials giả");
+            return GoogleCredentials.create(new AccessToken("offline", null));
+        }
         try {
             // Kiểm tra biến môi trường GOOGLE_CREDENTIALS_JSON
             String googleCredentialsJson = System.getenv("GOOGLE_CREDENTIALS_JSON");
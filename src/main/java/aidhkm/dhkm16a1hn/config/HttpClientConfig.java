@@ -0,0 +1,135 @@
+package aidhkm.dhkm16a1hn.config;
+
+import io.netty.channel.ChannelOption;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+import org.springframework.http.client.reactive.ReactorClientHttpConnector;
+import org.springframework.web.reactive.function.client.WebClient;
+import reactor.netty.http.HttpProtocol;
+import reactor.netty.http.client.HttpClient;
+import reactor.netty.resources.ConnectionProvider;
+
+import java.time.Duration;
+import java.util.logging.Logger;
+
+/**
+ * Cấu hình HTTP client dùng chung cho mọi lời gọi mô hình (Vertex AI)
+ * Một connection pool duy nhất giữ kết nối keep-alive, ưu tiên HTTP/2 (ALPN) để ghép nhiều yêu cầu
+ * trên cùng kết nối TLS, tự động nén gzip và có timeout được cấu hình tập trung
+ */
+@Configuration
+public class HttpClientConfig {
+    private static final Logger logger = Logger.getLogger(HttpClientConfig.class.getName());
+
+    // Bộ đệm tối đa khi đọc phản hồi (một lô 250 vector 768 chiều dạng JSON khoảng vài MB)
+    private static final int MAX_RESPONSE_BUFFER_BYTES = 16 * 1024 * 1024;
+
+    @Value("${vertexai.http.max-connections:50}")
+    private int maxConnections;
+
+    @Value("${vertexai.http.pending-acquire-max:1000}")
+    private int pendingAcquireMaxCount;
+
+    @Value("${vertexai.http.connect-timeout-ms:5000}")
+    private int connectTimeoutMs;
+
+    @Value("${vertexai.http.response-timeout-ms:60000}")
+    private long responseTimeoutMs;
+
+    @Value("${vertexai.http.max-idle-ms:60000}")
+    private long maxIdleMs;
+
+    @Value("${vertexai.http.max-life-ms:600000}")
+    private long maxLifeMs;
+
+    @Value("${vertexai.base-url:}")
+    private String baseUrl;
+
+    @Value("${ollama.http.max-connections:16}")
+    private int ollamaMaxConnections;
+
+    @Value("${ollama.http.connect-timeout-ms:2000}")
+    private int ollamaConnectTimeoutMs;
+
+    /**
+     * Connection pool cho các kết nối tới Vertex AI
+     * Kết nối nhàn rỗi quá lâu được dọn dẹp nền để tránh dùng lại kết nối đã bị máy chủ đóng
+     */
+    @Bean(destroyMethod = "dispose")
+    public ConnectionProvider vertexConnectionProvider() {
+        return ConnectionProvider.builder("vertex-ai")
+                .maxConnections(maxConnections)
+                .pendingAcquireMaxCount(pendingAcquireMaxCount)
+                .maxIdleTime(Duration.ofMillis(maxIdleMs))
+                .maxLifeTime(Duration.ofMillis(maxLifeMs))
+                .evictInBackground(Duration.ofSeconds(30))
+                .build();
+    }
+
+    /**
+     * HTTP client dùng chung: HTTP/2 khi máy chủ hỗ trợ (HTTP/1.1 keep-alive nếu không), gzip, timeout
+     */
+    @Bean
+    public HttpClient vertexHttpClient(ConnectionProvider vertexConnectionProvider) {
+        logger.info("Khởi tạo HTTP client dùng chung cho Vertex AI (tối đa " + maxConnections + " kết nối)");
+        HttpClient httpClient = HttpClient.create(vertexConnectionProvider);
+        if (baseUrl != null && baseUrl.startsWith("http://")) {
+            // Máy chủ giả lập dùng HTTP thường: không có TLS nên không thương lượng được HTTP/2, dùng HTTP/1.1 keep-alive
+            logger.info("Vertex AI base URL không dùng TLS (" + baseUrl + "), chuyển sang HTTP/1.1");
+            httpClient = httpClient.protocol(HttpProtocol.HTTP11);
+        } else {
+            httpClient = httpClient.protocol(HttpProtocol.H2, HttpProtocol.HTTP11).secure();
+        }
+        return httpClient
+                .compress(true)
+                .keepAlive(true)
+                .option(ChannelOption.CONNECT_TIMEOUT_MILLIS, connectTimeoutMs)
+                .responseTimeout(Duration.ofMillis(responseTimeoutMs));
+    }
+
+    /**
+     * WebClient dùng cho mọi lời gọi API mô hình, chạy trên HTTP client dùng chung
+     */
+    @Bean
+    public WebClient vertexWebClient(HttpClient vertexHttpClient) {
+        return WebClient.builder()
+                .clientConnector(new ReactorClientHttpConnector(vertexHttpClient))
+                .defaultHeader(HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_JSON_VALUE)
+                .defaultHeader(HttpHeaders.ACCEPT, MediaType.APPLICATION_JSON_VALUE)
+                .codecs(configurer -> configurer.defaultCodecs().maxInMemorySize(MAX_RESPONSE_BUFFER_BYTES))
+                .build();
+    }
+
+    /**
+     * Connection pool riêng cho Ollama cục bộ, để một mô hình cục bộ chậm không chiếm kết nối tới Vertex AI
+     */
+    @Bean(destroyMethod = "dispose")
+    public ConnectionProvider ollamaConnectionProvider() {
+        return ConnectionProvider.builder("ollama")
+                .maxConnections(ollamaMaxConnections)
+                .pendingAcquireMaxCount(pendingAcquireMaxCount)
+                .maxIdleTime(Duration.ofMillis(maxIdleMs))
+                .evictInBackground(Duration.ofSeconds(30))
+                .build();
+    }
+
+    /**
+     * WebClient cho Ollama: HTTP/1.1 keep-alive không TLS (máy chủ cục bộ), không đặt responseTimeout chung
+     * vì thời gian tới token đầu tiên phụ thuộc việc nạp mô hình; timeout được đặt theo từng lời gọi
+     */
+    @Bean
+    public WebClient ollamaWebClient(ConnectionProvider ollamaConnectionProvider) {
+        HttpClient httpClient = HttpClient.create(ollamaConnectionProvider)
+                .protocol(HttpProtocol.HTTP11)
+                .keepAlive(true)
+                .option(ChannelOption.CONNECT_TIMEOUT_MILLIS, ollamaConnectTimeoutMs);
+        return WebClient.builder()
+                .clientConnector(new ReactorClientHttpConnector(httpClient))
+                .defaultHeader(HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_JSON_VALUE)
+                .codecs(configurer -> configurer.defaultCodecs().maxInMemorySize(MAX_RESPONSE_BUFFER_BYTES))
+                .build();
+    }
+}
@@ -0,0 +1,135 @@
+package aidhkm.dhkm16a1hn.config;
+
+import aidhkm.dhkm16a1hn.resilience.Bulkhead;
+import aidhkm.dhkm16a1hn.resilience.BulkheadFullException;
+import aidhkm.dhkm16a1hn.resilience.CircuitBreaker;
+import aidhkm.dhkm16a1hn.resilience.HedgingPolicy;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.web.reactive.function.client.WebClientResponseException;
+
+import java.time.Duration;
+
+/**
+ * Cấu hình cô lập lỗi cho các lời gọi mô hình: mỗi dịch vụ phía sau (embedding, tạo văn bản)
+ * có bulkhead và circuit breaker riêng, để sự cố của một dịch vụ không kéo theo dịch vụ còn lại
+ */
+@Configuration
+public class ResilienceConfig {
+
+    @Value("${vertexai.bulkhead.embedding.max-concurrent:8}")
+    private int embeddingMaxConcurrent;
+
+    @Value("${vertexai.bulkhead.embedding.max-queue:200}")
+    private int embeddingMaxQueue;
+
+    @Value("${vertexai.bulkhead.embedding.max-wait-ms:5000}")
+    private long embeddingMaxWaitMs;
+
+    @Value("${vertexai.bulkhead.generation.max-concurrent:16}")
+    private int generationMaxConcurrent;
+
+    @Value("${vertexai.bulkhead.generation.max-queue:50}")
+    private int generationMaxQueue;
+
+    @Value("${vertexai.bulkhead.generation.max-wait-ms:2000}")
+    private long generationMaxWaitMs;
+
+    @Value("${vertexai.circuit-breaker.window-size:20}")
+    private int windowSize;
+
+    @Value("${vertexai.circuit-breaker.minimum-calls:10}")
+    private int minimumCalls;
+
+    @Value("${vertexai.circuit-breaker.failure-rate-threshold:50}")
+    private double failureRateThreshold;
+
+    @Value("${vertexai.circuit-breaker.slow-call-ms:15000}")
+    private long slowCallMs;
+
+    @Value("${vertexai.circuit-breaker.open-duration-ms:30000}")
+    private long openDurationMs;
+
+    @Value("${vertexai.circuit-breaker.half-open-calls:3}")
+    private int halfOpenCalls;
+
+    @Value("${vertexai.hedging.enabled:false}")
+    private boolean hedgingEnabled;
+
+    @Value("${vertexai.hedging.percentile:0.95}")
+    private double hedgingPercentile;
+
+    @Value("${vertexai.hedging.budget-ratio:0.05}")
+    private double hedgingBudgetRatio;
+
+    @Value("${vertexai.hedging.min-samples:20}")
+    private int hedgingMinSamples;
+
+    @Value("${vertexai.hedging.min-delay-ms:200}")
+    private long hedgingMinDelayMs;
+
+    @Value("${vertexai.hedging.window-size:1000}")
+    private int hedgingWindowSize;
+
+    @Bean
+    public Bulkhead embeddingBulkhead() {
+        return new Bulkhead("embedding", embeddingMaxConcurrent, embeddingMaxQueue, Duration.ofMillis(embeddingMaxWaitMs));
+    }
+
+    @Bean
+    public Bulkhead generationBulkhead() {
+        return new Bulkhead("generation", generationMaxConcurrent, generationMaxQueue, Duration.ofMillis(generationMaxWaitMs));
+    }
+
+    @Bean
+    public CircuitBreaker embeddingCircuitBreaker() {
+        return createCircuitBreaker("embedding");
+    }
+
+    @Bean
+    public CircuitBreaker generationCircuitBreaker() {
+        return createCircuitBreaker("generation");
+    }
+
+    @Bean
+    public CircuitBreaker ollamaCircuitBreaker() {
+        return createCircuitBreaker("ollama");
+    }
+
+    /**
+     * Hedging cho lời gọi generateContent: đo độ trễ và gửi yêu cầu dự phòng tại phân vị đã quan sát
+     */
+    @Bean
+    public HedgingPolicy generationHedgingPolicy() {
+        return new HedgingPolicy("generation", hedgingEnabled, hedgingPercentile, hedgingBudgetRatio,
+                hedgingMinSamples, Duration.ofMillis(hedgingMinDelayMs), hedgingWindowSize);
+    }
+
+    private CircuitBreaker createCircuitBreaker(String name) {
+        return new CircuitBreaker(name, windowSize, minimumCalls, failureRateThreshold,
+                Duration.ofMillis(slowCallMs), Duration.ofMillis(openDurationMs), halfOpenCalls,
+                ResilienceConfig::isDependencyFailure);
+    }
+
+    /**
+     * Xác định lỗi có phản ánh tình trạng của dịch vụ phía sau hay không
+     * Timeout, lỗi kết nối, 5xx và 429 được tính; lỗi do yêu cầu (4xx khác) và bulkhead đầy thì không
+     */
+    public static boolean isDependencyFailure(Throwable error) {
+        Throwable current = error;
+        // Lỗi sau khi hết lượt thử lại được bọc trong RuntimeException, xét nguyên nhân gốc
+        while (current.getCause() != null && current.getCause() != current &&
+               !(current instanceof WebClientResponseException)) {
+            current = current.getCause();
+        }
+        if (current instanceof BulkheadFullException || error instanceof BulkheadFullException) {
+            return false;
+        }
+        if (current instanceof WebClientResponseException) {
+            int status = ((WebClientResponseException) current).getStatusCode().value();
+            return status >= 500 || status == 429;
+        }
+        return true;
+    }
+}
@@ -1,19 +1,32 @@
 package aidhkm.dhkm16a1hn.controller;
 
+import aidhkm.dhkm16a1hn.embedding.EmbeddingProviderRegistry;
+import aidhkm.dhkm16a1hn.generation.ContextPacker;
+import aidhkm.dhkm16a1hn.generation.GenerationRouter;
 import aidhkm.dhkm16a1hn.model.Document;
 import aidhkm.dhkm16a1hn.model.Question;
 import aidhkm.dhkm16a1hn.repository.DocumentRepository;
 import aidhkm.dhkm16a1hn.repository.EmbeddingRepository;
 import aidhkm.dhkm16a1hn.repository.QuestionRepository;
+import aidhkm.dhkm16a1hn.resilience.AdaptiveRateLimiter;
+import aidhkm.dhkm16a1hn.service.ChatService;
 import aidhkm.dhkm16a1hn.service.DataCleanupService;
+import aidhkm.dhkm16a1hn.service.IndexCompactionService;
+import aidhkm.dhkm16a1hn.service.OllamaService;
+import aidhkm.dhkm16a1hn.service.EmbeddingCacheService;
+import aidhkm.dhkm16a1hn.service.RetrievalEvaluationService;
+import aidhkm.dhkm16a1hn.service.SemanticAnswerCacheService;
 import aidhkm.dhkm16a1hn.service.VectorService;
+import aidhkm.dhkm16a1hn.service.VertexAIService;
 
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.ResponseEntity;
 import org.springframework.stereotype.Controller;
 import org.springframework.ui.Model;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.ResponseBody;
 
 import java.time.LocalDateTime;
@@ -42,6 +55,39 @@ public class AnalyticsController {
     
     @Autowired
     private DataCleanupService dataCleanupService;
+    
+    @Autowired
+    private IndexCompactionService indexCompactionService;
+    
+    @Autowired
+    private RetrievalEvaluationService retrievalEvaluationService;
+    
+    @Autowired
+    private EmbeddingCacheService embeddingCacheService;
+    
+    @Autowired
+    private ChatService chatService;
+    
+    @Autowired
+    private VertexAIService vertexAIService;
+    
+    @Autowired
+    private AdaptiveRateLimiter rateLimiter;
+    
+    @Autowired
+    private EmbeddingProviderRegistry embeddingProviders;
+    
+    @Autowired
+    private OllamaService ollamaService;
+
+    @Autowired
+    private GenerationRouter generationRouter;
+
+    @Autowired
+    private ContextPacker contextPacker;
+
+    @Autowired
+    private SemanticAnswerCacheService semanticAnswerCache;
 
     /**
      * Hiển thị trang dashboard
@@ -175,4 +221,155 @@ public class AnalyticsController {
     public Map<String, Object> getEmbeddingStatistics() {
         return vectorService.getEmbeddingStatistics();
     }
-} 
\ No newline at end of file
+    
+    /**
+     * API lấy thông tin về các phân vùng chỉ mục vector và tác vụ nén chỉ mục
+     */
+    @GetMapping("/index/stats")
+    @ResponseBody
+    public Map<String, Object> getIndexStatistics() {
+        return indexCompactionService.getStatistics();
+    }
+    
+    /**
+     * API lấy thống kê cache vector nhúng (tầng bộ nhớ và tầng cơ sở dữ liệu)
+     */
+    @GetMapping("/embedding-cache/stats")
+    @ResponseBody
+    public Map<String, Object> getEmbeddingCacheStatistics() {
+        return embeddingCacheService.getStatistics();
+    }
+    
+    /**
+     * API lấy thống kê cache câu trả lời theo ngữ nghĩa (số mục, tỉ lệ trúng, số lần xóa do tài liệu thay đổi)
+     */
+    @GetMapping("/semantic-cache/stats")
+    @ResponseBody
+    public Map<String, Object> getSemanticCacheStatistics() {
+        return semanticAnswerCache.getStatistics();
+    }
+    
+    /**
+     * API lấy thống kê gộp yêu cầu đồng thời (câu hỏi, embedding, tạo văn bản)
+     */
+    @GetMapping("/single-flight/stats")
+    @ResponseBody
+    public Map<String, Object> getSingleFlightStatistics() {
+        Map<String, Object> stats = new HashMap<>();
+        stats.put("questions", chatService.getSingleFlightStatistics());
+        stats.putAll(vertexAIService.getSingleFlightStatistics());
+        return stats;
+    }
+    
+    /**
+     * API lấy thống kê hạn chót của yêu cầu chat (p50/p95/p99 từng bước, số lần hết hạn và trả lời trích xuất)
+     */
+    @GetMapping("/chat/deadline")
+    @ResponseBody
+    public Map<String, Object> getChatDeadlineStatistics() {
+        return chatService.getDeadlineStatistics();
+    }
+    
+    /**
+     * API lấy thống kê trả lời không qua mô hình (tỉ lệ câu hỏi được trả lời trực tiếp, độ trễ so với gọi mô hình)
+     */
+    @GetMapping("/chat/bypass")
+    @ResponseBody
+    public Map<String, Object> getChatBypassStatistics() {
+        return chatService.getBypassStatistics();
+    }
+    
+    /**
+     * API lấy trạng thái bộ giới hạn tốc độ Vertex AI (độ sâu hàng đợi, giới hạn đồng thời hiện tại)
+     */
+    @GetMapping("/rate-limiter/stats")
+    @ResponseBody
+    public Map<String, Object> getRateLimiterStatistics() {
+        return rateLimiter.getStatistics();
+    }
+    
+    /**
+     * API lấy trạng thái circuit breaker và bulkhead của từng dịch vụ mô hình (embedding, tạo văn bản)
+     */
+    @GetMapping("/resilience/stats")
+    @ResponseBody
+    public Map<String, Object> getResilienceStatistics() {
+        return vertexAIService.getResilienceStatistics();
+    }
+    
+    /**
+     * API lấy nguồn vector nhúng đang dùng (mã mô hình, kích thước) và các nguồn có sẵn
+     */
+    @GetMapping("/embedding-provider")
+    @ResponseBody
+    public Map<String, Object> getEmbeddingProvider() {
+        return embeddingProviders.getStatistics();
+    }
+    
+    /**
+     * API lấy độ trễ tạo văn bản (p50/p95/p99) và thống kê gửi yêu cầu dự phòng (hedging)
+     */
+    @GetMapping("/generation/stats")
+    @ResponseBody
+    public Map<String, Object> getGenerationStatistics() {
+        return vertexAIService.getGenerationStatistics();
+    }
+    
+    /**
+     * API lấy thống kê mô hình cục bộ Ollama (số yêu cầu, lỗi, token đã sinh, trạng thái mạch)
+     */
+    @GetMapping("/ollama/stats")
+    @ResponseBody
+    public Map<String, Object> getOllamaStatistics() {
+        return ollamaService.getStatistics();
+    }
+    
+    /**
+     * API lấy thống kê bộ định tuyến sinh văn bản (độ trễ, tỉ lệ lỗi, số lần chuyển nguồn của từng nguồn)
+     */
+    @GetMapping("/generation/router")
+    @ResponseBody
+    public Map<String, Object> getGenerationRouterStatistics() {
+        return generationRouter.getStatistics();
+    }
+    
+    /**
+     * API lấy thống kê ghép ngữ cảnh (số token trước và sau khi ghép, số câu trùng đã loại)
+     */
+    @GetMapping("/generation/context")
+    @ResponseBody
+    public Map<String, Object> getContextPackerStatistics() {
+        return contextPacker.getStatistics();
+    }
+    
+    /**
+     * API chạy đánh giá recall@k và độ trễ của các cấu hình chỉ mục trên câu hỏi lịch sử
+     * k và limit phải lớn hơn 0, nếu không trả về 400
+     */
+    @PostMapping("/retrieval-eval")
+    @ResponseBody
+    public ResponseEntity<Map<String, Object>> runRetrievalEvaluation(@RequestParam(defaultValue = "5") int k,
+                                                                      @RequestParam(defaultValue = "100") int limit) {
+        if (k < 1 || limit < 1) {
+            Map<String, Object> error = new HashMap<>();
+            error.put("error", "k và limit phải lớn hơn 0");
+            return ResponseEntity.badRequest().body(error);
+        }
+        return ResponseEntity.ok(retrievalEvaluationService.evaluate(k, limit));
+    }
+    
+    /**
+     * API lấy báo cáo đánh giá truy xuất gần nhất
+     */
+    @GetMapping("/retrieval-eval")
+    @ResponseBody
+    public Map<String, Object> getRetrievalEvaluationReport() {
+        Map<String, Object> report = retrievalEvaluationService.getLastReport();
+        if (report == null) {
+            Map<String, Object> result = new HashMap<>();
+            result.put("message", "Chưa có báo cáo, gọi POST /analytics/retrieval-eval để chạy đánh giá");
+            return result;
+        }
+        return report;
+    }
+}
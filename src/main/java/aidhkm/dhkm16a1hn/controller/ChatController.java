@@ -4,10 +4,13 @@ import aidhkm.dhkm16a1hn.service.ChatService;
 import aidhkm.dhkm16a1hn.service.TextService;
 import aidhkm.dhkm16a1hn.service.PDFService;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
+import org.springframework.http.codec.ServerSentEvent;
 import org.springframework.stereotype.Controller;
 import org.springframework.web.bind.annotation.*;
 import org.springframework.web.multipart.MultipartFile;
+import reactor.core.publisher.Flux;
 
 import java.util.Map;
 import java.util.HashMap;
@@ -53,6 +56,22 @@ public class ChatController {
         }
     }
     
+    /**
+     * Trả lời câu hỏi theo luồng Server-Sent Events
+     * Mỗi sự kiện mặc định chứa một đoạn văn bản {"text": "..."}; sự kiện "done" đánh dấu kết thúc câu trả lời
+     */
+    @GetMapping(value = "/chat/stream", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    @ResponseBody
+    public Flux<ServerSentEvent<Map<String, String>>> streamQuestion(@RequestParam("question") String question) {
+        Flux<String> chunks = question == null || question.trim().isEmpty()
+                ? Flux.just("Câu hỏi không được để trống")
+                : chatService.streamQuestion(question, null);
+        
+        return chunks
+                .map(chunk -> ServerSentEvent.<Map<String, String>>builder(Map.of("text", chunk)).build())
+                .concatWith(Flux.just(ServerSentEvent.<Map<String, String>>builder(Map.of("text", "")).event("done").build()));
+    }
+    
     @PostMapping("/chat/upload")
     @ResponseBody
     public ResponseEntity<?> uploadFile(@RequestParam("file") MultipartFile file) {
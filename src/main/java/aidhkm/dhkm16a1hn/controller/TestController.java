@@ -3,20 +3,18 @@ package aidhkm.dhkm16a1hn.controller;
 import aidhkm.dhkm16a1hn.service.VertexAIService;
 import aidhkm.dhkm16a1hn.service.VectorService;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.reactive.function.client.WebClient;
 
+import java.time.Duration;
+import java.util.AbstractMap;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Arrays;
 import java.util.logging.Logger;
-import java.net.HttpURLConnection;
-import java.net.URL;
-import java.io.OutputStream;
-import java.io.BufferedReader;
-import java.io.InputStreamReader;
-import java.nio.charset.StandardCharsets;
-import java.io.ByteArrayInputStream;
 
 /**
  * Test Controller - Chỉ sử dụng trong môi trường phát triển
@@ -32,6 +30,10 @@ public class TestController {
     @Autowired
     private VectorService vectorService;
 
+    @Autowired
+    @Qualifier("vertexWebClient")
+    private WebClient webClient;
+
     /**
      * Test tạo embedding từ text
      */
@@ -44,12 +46,12 @@ public class TestController {
             
             // Test embedding từ VertexAIService trước
             long startTime1 = System.currentTimeMillis();
-            float[] vertexEmbedding = vertexAIService.createEmbedding(text);
+            float[] vertexEmbedding = vertexAIService.createEmbedding(text).getVector();
             long endTime1 = System.currentTimeMillis();
             
             // Test qua VectorService sau
             long startTime2 = System.currentTimeMillis();
-            float[] vectorEmbedding = vectorService.createEmbedding(text);
+            float[] vectorEmbedding = vectorService.createEmbedding(text).getVector();
             long endTime2 = System.currentTimeMillis();
             
             response.put("text", text);
@@ -91,7 +93,7 @@ public class TestController {
             
             // Test embedding từ VertexAIService
             long startTime = System.currentTimeMillis();
-            float[] embedding = vertexAIService.createEmbedding(text);
+            float[] embedding = vertexAIService.createEmbedding(text).getVector();
             long endTime = System.currentTimeMillis();
             
             response.put("text", text);
@@ -159,53 +161,20 @@ public class TestController {
      */
     private String callEmbeddingApiDirectly(String jsonRequestBody) throws Exception {
         // Lấy các tham số từ VertexAIService
-        String projectId = vertexAIService.getProjectId();
-        String location = vertexAIService.getLocation();
         String embeddingModel = vertexAIService.getEmbeddingModelName();
         String accessToken = vertexAIService.getCurrentAccessToken();
         
         // Xây dựng URL endpoint
-        String apiUrl = String.format(
-            "https://%s-aiplatform.googleapis.com/v1/projects/%s/locations/%s/publishers/google/models/%s:predict",
-            location, projectId, location, embeddingModel);
+        String apiUrl = vertexAIService.buildModelEndpoint(embeddingModel, "predict");
         
         logger.info("Direct API call to: " + apiUrl);
         
-        // Setup HTTP connection
-        URL url = new URL(apiUrl);
-        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
-        connection.setRequestMethod("POST");
-        connection.setRequestProperty("Content-Type", "application/json; charset=UTF-8");
-        connection.setRequestProperty("Accept", "application/json");
-        connection.setRequestProperty("Authorization", "Bearer " + accessToken);
-        connection.setDoOutput(true);
-        connection.setConnectTimeout(20000);
-        connection.setReadTimeout(20000);
-        
-        // Ghi JSON request
-        try (OutputStream os = connection.getOutputStream()) {
-            byte[] input = jsonRequestBody.getBytes(StandardCharsets.UTF_8);
-            os.write(input, 0, input.length);
-            os.flush();
-        }
-        
-        // Đọc response
-        int statusCode = connection.getResponseCode();
+        // Gửi yêu cầu qua HTTP client dùng chung
+        Map.Entry<Integer, String> result = postJson(apiUrl, accessToken, jsonRequestBody);
+        int statusCode = result.getKey();
         logger.info("Direct API call status: " + statusCode);
         
-        StringBuilder response = new StringBuilder();
-        try (BufferedReader br = statusCode >= 400 
-                ? new BufferedReader(new InputStreamReader(
-                    connection.getErrorStream() != null ? connection.getErrorStream() : new ByteArrayInputStream(new byte[0]), 
-                    StandardCharsets.UTF_8))
-                : new BufferedReader(new InputStreamReader(connection.getInputStream(), StandardCharsets.UTF_8))) {
-            String line;
-            while ((line = br.readLine()) != null) {
-                response.append(line);
-            }
-        }
-        
-        String responseBody = response.toString();
+        String responseBody = result.getValue();
         logger.info("Direct API response: " + responseBody);
         
         if (statusCode >= 400) {
@@ -224,14 +193,10 @@ public class TestController {
             logger.info("Testing direct Gemini API with prompt: " + prompt);
             
             // Lấy các tham số từ VertexAIService
-            String projectId = vertexAIService.getProjectId();
-            String location = vertexAIService.getLocation();
             String accessToken = vertexAIService.getCurrentAccessToken();
             
             // Xây dựng URL endpoint cho Gemini 1.5 Pro, sử dụng định dạng chính xác với publishers/google/models
-            String apiUrl = String.format(
-                "https://%s-aiplatform.googleapis.com/v1/projects/%s/locations/%s/publishers/google/models/gemini-1.5-pro:generateContent",
-                location, projectId, location);
+            String apiUrl = vertexAIService.buildModelEndpoint("gemini-1.5-pro", "generateContent");
             
             logger.info("Direct Gemini API call to: " + apiUrl);
             
@@ -240,41 +205,12 @@ public class TestController {
                 "{\"contents\":[{\"role\":\"user\",\"parts\":[{\"text\":\"%s\"}]}],\"generationConfig\":{\"temperature\":0.1,\"maxOutputTokens\":500,\"topP\":0.95,\"topK\":40}}",
                 prompt.replace("\\", "\\\\").replace("\"", "\\\""));
             
-            // Setup HTTP connection
-            URL url = new URL(apiUrl);
-            HttpURLConnection connection = (HttpURLConnection) url.openConnection();
-            connection.setRequestMethod("POST");
-            connection.setRequestProperty("Content-Type", "application/json; charset=UTF-8");
-            connection.setRequestProperty("Accept", "application/json");
-            connection.setRequestProperty("Authorization", "Bearer " + accessToken);
-            connection.setDoOutput(true);
-            connection.setConnectTimeout(20000);
-            connection.setReadTimeout(20000);
-            
-            // Ghi JSON request
-            try (OutputStream os = connection.getOutputStream()) {
-                byte[] input = requestBody.getBytes(StandardCharsets.UTF_8);
-                os.write(input, 0, input.length);
-                os.flush();
-            }
-            
-            // Đọc response
-            int statusCode = connection.getResponseCode();
+            // Gửi yêu cầu qua HTTP client dùng chung
+            Map.Entry<Integer, String> result = postJson(apiUrl, accessToken, requestBody);
+            int statusCode = result.getKey();
             logger.info("Direct Gemini API call status: " + statusCode);
             
-            StringBuilder response = new StringBuilder();
-            try (BufferedReader br = statusCode >= 400 
-                    ? new BufferedReader(new InputStreamReader(
-                        connection.getErrorStream() != null ? connection.getErrorStream() : new ByteArrayInputStream(new byte[0]), 
-                        StandardCharsets.UTF_8))
-                    : new BufferedReader(new InputStreamReader(connection.getInputStream(), StandardCharsets.UTF_8))) {
-                String line;
-                while ((line = br.readLine()) != null) {
-                    response.append(line);
-                }
-            }
-            
-            String responseBody = response.toString();
+            String responseBody = result.getValue();
             
             Map<String, Object> responseMap = new HashMap<>();
             responseMap.put("prompt", prompt);
@@ -297,4 +233,18 @@ public class TestController {
             return ResponseEntity.status(500).body(error);
         }
     }
+
+    /**
+     * Gửi yêu cầu POST JSON qua WebClient dùng chung và trả về cặp (mã trạng thái, nội dung phản hồi)
+     */
+    private Map.Entry<Integer, String> postJson(String apiUrl, String accessToken, String jsonBody) {
+        return webClient.post()
+                .uri(apiUrl)
+                .header(HttpHeaders.AUTHORIZATION, "Bearer " + accessToken)
+                .bodyValue(jsonBody)
+                .exchangeToMono(response -> response.bodyToMono(String.class)
+                        .defaultIfEmpty("")
+                        .map(body -> (Map.Entry<Integer, String>) new AbstractMap.SimpleEntry<>(response.statusCode().value(), body)))
+                .block(Duration.ofSeconds(20));
+    }
 } 
\ No newline at end of file
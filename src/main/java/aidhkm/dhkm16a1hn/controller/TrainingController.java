@@ -315,8 +315,7 @@ public class TrainingController {
         try {
             trainingService.deleteDocument(id);
             
-            // Xóa cache để đảm bảo không còn câu trả lời cũ
-            vectorService.clearAllCaches();
+            // Xóa cache để đảm bảo không còn câu trả lời cũ (chỉ mục vector đã được cập nhật tăng dần khi xóa)
             chatService.clearResponseCache();
             
             response.put("success", true);
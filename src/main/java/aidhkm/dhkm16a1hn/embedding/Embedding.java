@@ -0,0 +1,51 @@
+package aidhkm.dhkm16a1hn.embedding;
+
+import aidhkm.dhkm16a1hn.service.VertexAIService;
+
+/**
+ * Vector nhúng kèm mã mô hình đã tạo ra nó
+ * Mã mô hình do nguồn tạo vector gắn vào ngay lúc tạo (kể cả vector dự phòng), không suy ra từ kích thước,
+ * nên hai mô hình cùng kích thước vẫn được phân biệt khi lưu, phân vùng chỉ mục và tra cứu cache
+ */
+public final class Embedding {
+
+    private static final Embedding EMPTY = new Embedding(new float[0], null);
+
+    private final float[] vector;
+    private final String modelId;
+
+    public Embedding(float[] vector, String modelId) {
+        this.vector = vector != null ? vector : new float[0];
+        this.modelId = modelId;
+    }
+
+    /**
+     * Kết quả cho văn bản rỗng hoặc khi không tạo được vector (không có mô hình)
+     */
+    public static Embedding empty() {
+        return EMPTY;
+    }
+
+    public float[] getVector() {
+        return vector;
+    }
+
+    public String getModelId() {
+        return modelId;
+    }
+
+    public int getDimension() {
+        return vector.length;
+    }
+
+    public boolean isEmpty() {
+        return vector.length == 0;
+    }
+
+    /**
+     * Vector dự phòng dựa trên hash (Vertex AI lỗi hoặc bị ngắt mạch), không mang ngữ nghĩa của mô hình thật
+     */
+    public boolean isFallback() {
+        return VertexAIService.FALLBACK_EMBEDDING_MODEL_ID.equals(modelId);
+    }
+}
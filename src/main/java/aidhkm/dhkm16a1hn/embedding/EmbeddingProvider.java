@@ -0,0 +1,52 @@
+package aidhkm.dhkm16a1hn.embedding;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Nguồn tạo vector nhúng cho văn bản (Vertex AI, bộ chiếu n-gram cục bộ, bộ kiểm thử...)
+ * Mỗi nguồn có mã mô hình và kích thước cố định; mỗi vector trả về mang sẵn mã mô hình (Embedding),
+ * được ghi vào EmbeddingVector.modelId để chỉ mục tìm kiếm không bao giờ so sánh vector của hai nguồn khác nhau
+ */
+public interface EmbeddingProvider {
+
+    /**
+     * Tên dùng để chọn nguồn qua app.embedding.provider (ví dụ "vertex", "local", "test")
+     */
+    String getName();
+
+    /**
+     * Mã mô hình gắn cho các vector do nguồn này tạo ra
+     */
+    String getModelId();
+
+    /**
+     * Kích thước vector do nguồn này tạo ra
+     */
+    int getDimension();
+
+    /**
+     * Tạo vector nhúng cho một văn bản (văn bản đã được kiểm tra không rỗng)
+     * Vector dự phòng (nếu nguồn có) được gắn mã mô hình dự phòng, không phải mã của nguồn
+     */
+    Embedding embed(String text);
+
+    /**
+     * Tạo vector nhúng cho một lô văn bản, kết quả giữ đúng thứ tự đầu vào
+     * Mặc định gọi embed cho từng văn bản; nguồn gọi mạng nên ghi đè để gửi nhiều văn bản mỗi yêu cầu
+     */
+    default List<Embedding> embedBatch(List<String> texts) {
+        List<Embedding> embeddings = new ArrayList<>(texts.size());
+        for (String text : texts) {
+            embeddings.add(embed(text));
+        }
+        return embeddings;
+    }
+
+    /**
+     * Số văn bản tối đa trong một lần gọi embedBatch; registry chia lô lớn hơn thành nhiều lần gọi
+     */
+    default int getMaxBatchSize() {
+        return Integer.MAX_VALUE;
+    }
+}
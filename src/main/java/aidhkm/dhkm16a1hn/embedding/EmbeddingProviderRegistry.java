@@ -0,0 +1,106 @@
+package aidhkm.dhkm16a1hn.embedding;
+
+import aidhkm.dhkm16a1hn.service.VertexAIService;
+import jakarta.annotation.PostConstruct;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * Danh sách các nguồn vector nhúng và nguồn đang được dùng (app.embedding.provider)
+ * Mọi thao tác tạo vector của ứng dụng đi qua registry, nên đổi nguồn chỉ cần đổi cấu hình
+ */
+@Component
+public class EmbeddingProviderRegistry {
+
+    private static final Logger logger = Logger.getLogger(EmbeddingProviderRegistry.class.getName());
+
+    @Autowired
+    private List<EmbeddingProvider> providers;
+
+    @Value("${app.embedding.provider:vertex}")
+    private String activeProviderName;
+
+    private final Map<String, EmbeddingProvider> providersByName = new LinkedHashMap<>();
+    private EmbeddingProvider activeProvider;
+
+    @PostConstruct
+    public void init() {
+        for (EmbeddingProvider provider : providers) {
+            providersByName.put(provider.getName(), provider);
+        }
+        activeProvider = providersByName.get(activeProviderName);
+        if (activeProvider == null) {
+            throw new IllegalStateException("Không có nguồn vector nhúng '" + activeProviderName +
+                    "', các nguồn hợp lệ: " + providersByName.keySet());
+        }
+        logger.info("Nguồn vector nhúng: " + activeProvider.getName() + " (" + activeProvider.getModelId() +
+                   ", " + activeProvider.getDimension() + " chiều)");
+    }
+
+    public EmbeddingProvider getActiveProvider() {
+        return activeProvider;
+    }
+
+    /**
+     * @return Nguồn theo tên, hoặc null nếu không tồn tại
+     */
+    public EmbeddingProvider getProvider(String name) {
+        return providersByName.get(name);
+    }
+
+    public Embedding embed(String text) {
+        return activeProvider.embed(text);
+    }
+
+    /**
+     * Tạo vector cho cả lô bằng nguồn đang dùng, chia theo kích thước lô tối đa của nguồn
+     */
+    public List<Embedding> embedBatch(List<String> texts) {
+        int maxBatchSize = Math.max(1, activeProvider.getMaxBatchSize());
+        if (texts.size() <= maxBatchSize) {
+            return activeProvider.embedBatch(texts);
+        }
+        List<Embedding> embeddings = new ArrayList<>(texts.size());
+        for (int start = 0; start < texts.size(); start += maxBatchSize) {
+            embeddings.addAll(activeProvider.embedBatch(texts.subList(start, Math.min(texts.size(), start + maxBatchSize))));
+        }
+        return embeddings;
+    }
+
+    /**
+     * Đoán mã mô hình của vector được lưu trước khi có cột model_id, chỉ dựa trên kích thước
+     * Chỉ dùng để gắn nhãn dữ liệu cũ (backfill); vector mới luôn mang mã mô hình do nguồn tạo ra gắn vào.
+     * Ưu tiên nguồn đang dùng, sau đó các nguồn khác theo thứ tự đăng ký; không khớp nguồn nào thì coi là vector dự phòng
+     */
+    public String guessLegacyModelId(float[] vector) {
+        int length = vector != null ? vector.length : 0;
+        if (length == activeProvider.getDimension()) {
+            return activeProvider.getModelId();
+        }
+        for (EmbeddingProvider provider : providersByName.values()) {
+            if (length == provider.getDimension()) {
+                return provider.getModelId();
+            }
+        }
+        return VertexAIService.FALLBACK_EMBEDDING_MODEL_ID;
+    }
+
+    /**
+     * Nguồn đang dùng và các nguồn có sẵn
+     */
+    public Map<String, Object> getStatistics() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("active", activeProvider.getName());
+        stats.put("modelId", activeProvider.getModelId());
+        stats.put("dimension", activeProvider.getDimension());
+        stats.put("available", new ArrayList<>(providersByName.keySet()));
+        return stats;
+    }
+}
@@ -0,0 +1,142 @@
+package aidhkm.dhkm16a1hn.embedding;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.text.Normalizer;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+/**
+ * Vector nhúng tính hoàn toàn trong tiến trình, không cần mạng (triển khai cách ly, tái lập chỉ mục hàng loạt)
+ * Đặc trưng gồm từ đơn, cặp từ liền kề, từ đã bỏ dấu tiếng Việt và n-gram ký tự trong từ; mỗi đặc trưng được
+ * băm có dấu (feature hashing) vào vector kích thước cố định với trọng số TF tuyến tính con (1 + log tf)
+ * nhân trọng số loại đặc trưng, sau đó chuẩn hóa L2. Không dùng IDF theo kho dữ liệu để vector của cùng
+ * một văn bản không thay đổi khi kho dữ liệu thay đổi (vector đã lưu vẫn so sánh được với vector mới)
+ */
+@Component
+public class LocalEmbeddingProvider implements EmbeddingProvider {
+
+    private static final Pattern TOKEN_SPLIT = Pattern.compile("[^\\p{L}\\p{N}]+");
+    private static final Pattern COMBINING_MARKS = Pattern.compile("\\p{M}+");
+
+    // Trọng số theo loại đặc trưng
+    private static final float UNIGRAM_WEIGHT = 1.0f;
+    private static final float BIGRAM_WEIGHT = 0.8f;
+    private static final float UNACCENTED_WEIGHT = 0.5f;
+    private static final float CHAR_NGRAM_WEIGHT = 0.3f;
+    private static final int CHAR_NGRAM_SIZE = 3;
+
+    // Lô lớn hơn ngưỡng này được xử lý song song trên các lõi CPU
+    private static final int PARALLEL_BATCH_THRESHOLD = 64;
+
+    @Value("${app.embedding.local.dimension:512}")
+    private int dimension;
+
+    @Override
+    public String getName() {
+        return "local";
+    }
+
+    @Override
+    public String getModelId() {
+        return "local-ngram-" + dimension;
+    }
+
+    @Override
+    public int getDimension() {
+        return dimension;
+    }
+
+    @Override
+    public Embedding embed(String text) {
+        String normalized = Normalizer.normalize(text, Normalizer.Form.NFC).toLowerCase();
+        String[] tokens = TOKEN_SPLIT.split(normalized);
+
+        // Đếm tần suất đặc trưng (mã băm 64 bit -> số lần xuất hiện, trọng số loại)
+        Map<Long, float[]> features = new HashMap<>(tokens.length * 4);
+        String previous = null;
+        for (String token : tokens) {
+            if (token.isEmpty()) {
+                continue;
+            }
+            addFeature(features, hash("w:", token), UNIGRAM_WEIGHT);
+            if (previous != null) {
+                addFeature(features, hash("b:", previous + " " + token), BIGRAM_WEIGHT);
+            }
+            String unaccented = removeAccents(token);
+            if (!unaccented.equals(token)) {
+                addFeature(features, hash("u:", unaccented), UNACCENTED_WEIGHT);
+            }
+            String padded = "<" + unaccented + ">";
+            for (int i = 0; i + CHAR_NGRAM_SIZE <= padded.length(); i++) {
+                addFeature(features, hash("c:", padded.substring(i, i + CHAR_NGRAM_SIZE)), CHAR_NGRAM_WEIGHT);
+            }
+            previous = token;
+        }
+
+        float[] vector = new float[dimension];
+        for (Map.Entry<Long, float[]> feature : features.entrySet()) {
+            long h = feature.getKey();
+            int index = (int) Math.floorMod(h >>> 1, (long) dimension);
+            float sign = (h & 1L) == 0 ? 1f : -1f;
+            float count = feature.getValue()[0];
+            float weight = feature.getValue()[1];
+            vector[index] += sign * weight * (float) (1 + Math.log(count));
+        }
+        return new Embedding(normalize(vector), getModelId());
+    }
+
+    @Override
+    public List<Embedding> embedBatch(List<String> texts) {
+        if (texts.size() < PARALLEL_BATCH_THRESHOLD) {
+            return EmbeddingProvider.super.embedBatch(texts);
+        }
+        // parallelStream().map().collect() giữ đúng thứ tự đầu vào
+        return texts.parallelStream().map(this::embed).collect(Collectors.toList());
+    }
+
+    private static void addFeature(Map<Long, float[]> features, long hash, float weight) {
+        float[] entry = features.computeIfAbsent(hash, key -> new float[]{0f, weight});
+        entry[0]++;
+    }
+
+    /**
+     * FNV-1a 64 bit trên tiền tố loại đặc trưng và nội dung đặc trưng
+     */
+    private static long hash(String prefix, String value) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < prefix.length(); i++) {
+            h ^= prefix.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        for (int i = 0; i < value.length(); i++) {
+            h ^= value.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        return h;
+    }
+
+    private static String removeAccents(String token) {
+        String decomposed = Normalizer.normalize(token, Normalizer.Form.NFD);
+        return COMBINING_MARKS.matcher(decomposed).replaceAll("").replace('đ', 'd');
+    }
+
+    private static float[] normalize(float[] vector) {
+        double norm = 0;
+        for (float value : vector) {
+            norm += value * value;
+        }
+        if (norm == 0) {
+            return vector;
+        }
+        float inverse = (float) (1.0 / Math.sqrt(norm));
+        for (int i = 0; i < vector.length; i++) {
+            vector[i] *= inverse;
+        }
+        return vector;
+    }
+}
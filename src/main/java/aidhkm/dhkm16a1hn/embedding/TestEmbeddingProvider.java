@@ -0,0 +1,48 @@
+package aidhkm.dhkm16a1hn.embedding;
+
+import aidhkm.dhkm16a1hn.fake.FakeVertexServer;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Nguồn vector tất định, kích thước nhỏ, dùng cho kiểm thử và đo hiệu năng các tầng phía trên
+ * Cùng thuật toán với FakeVertexServer (vector gieo theo từng từ), nên kết quả giống khi chạy qua máy chủ giả lập
+ */
+@Component
+public class TestEmbeddingProvider implements EmbeddingProvider {
+
+    @Value("${app.embedding.test.dimension:64}")
+    private int dimension;
+
+    private final AtomicLong calls = new AtomicLong();
+
+    @Override
+    public String getName() {
+        return "test";
+    }
+
+    @Override
+    public String getModelId() {
+        return "test-" + dimension;
+    }
+
+    @Override
+    public int getDimension() {
+        return dimension;
+    }
+
+    @Override
+    public Embedding embed(String text) {
+        calls.incrementAndGet();
+        return new Embedding(FakeVertexServer.deterministicEmbedding(text, dimension), getModelId());
+    }
+
+    /**
+     * Số văn bản đã tạo vector (để kiểm tra cache và gộp lời gọi ở các tầng phía trên)
+     */
+    public long getCallCount() {
+        return calls.get();
+    }
+}
@@ -0,0 +1,46 @@
+package aidhkm.dhkm16a1hn.embedding;
+
+import aidhkm.dhkm16a1hn.service.VertexAIService;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.util.List;
+
+/**
+ * Vector nhúng từ Vertex AI (text-embedding-005); cache bền vững, gộp lô và xử lý lỗi do VertexAIService đảm nhận
+ * Vector dự phòng khi API lỗi được VertexAIService gắn mã FALLBACK_EMBEDDING_MODEL_ID
+ */
+@Component
+public class VertexEmbeddingProvider implements EmbeddingProvider {
+
+    @Autowired
+    private VertexAIService vertexAIService;
+
+    @Override
+    public String getName() {
+        return "vertex";
+    }
+
+    @Override
+    public String getModelId() {
+        return vertexAIService.getEmbeddingModelName();
+    }
+
+    @Override
+    public int getDimension() {
+        return VertexAIService.EMBEDDING_DIMENSION;
+    }
+
+    @Override
+    public Embedding embed(String text) {
+        return vertexAIService.createEmbedding(text);
+    }
+
+    /**
+     * VertexAIService tự chia lô theo giới hạn instance/token của API, nên registry không cần chia thêm
+     */
+    @Override
+    public List<Embedding> embedBatch(List<String> texts) {
+        return vertexAIService.createEmbeddings(texts);
+    }
+}
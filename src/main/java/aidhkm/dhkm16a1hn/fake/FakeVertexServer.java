@@ -0,0 +1,464 @@
+package aidhkm.dhkm16a1hn.fake;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * Máy chủ giả lập Vertex AI chạy trong tiến trình (JDK HttpServer), dùng để đo hiệu năng và kiểm thử tải
+ * mà không gọi tới Vertex AI thật. Hỗ trợ :predict (embedding), :generateContent và
+ * :streamGenerateContent?alt=sse với cùng định dạng JSON như API thật, cùng /api/generate của Ollama
+ * (JSON hoặc NDJSON streaming) để thay cho mô hình cục bộ khi kiểm thử.
+ * Embedding là tất định (cùng văn bản luôn cho cùng vector, văn bản có chung từ cho vector gần nhau),
+ * câu trả lời được chọn tất định từ danh sách có sẵn. Độ trễ theo phân phối log-normal, lỗi 429/503
+ * được chèn theo xác suất và thông lượng có thể bị giới hạn (vượt giới hạn trả về 429 kèm Retry-After)
+ */
+public class FakeVertexServer {
+
+    private static final Logger logger = Logger.getLogger(FakeVertexServer.class.getName());
+
+    public static final List<String> DEFAULT_ANSWERS = Arrays.asList(
+            "Theo tài liệu, nội dung này được quy định rõ trong phần hướng dẫn chung của văn bản.",
+            "Dựa trên thông tin được cung cấp, câu trả lời nằm ở mục quy định về thủ tục và thời hạn thực hiện.",
+            "Tài liệu cho biết việc này cần được thực hiện theo đúng trình tự và có xác nhận của đơn vị phụ trách.");
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    private final int port;
+    private final int threads;
+    private final int embeddingDimension;
+    private final double latencyMedianMs;
+    private final double latencySigma;
+    private final long maxLatencyMs;
+    private final long streamChunkDelayMs;
+    private final double throttleRate;
+    private final double unavailableRate;
+    private final int retryAfterSeconds;
+    private final double maxRequestsPerSecond;
+    private final List<String> answers;
+
+    private HttpServer server;
+    private ExecutorService executor;
+
+    // Token bucket giới hạn thông lượng
+    private double availableTokens;
+    private long lastRefillNanos = System.nanoTime();
+
+    private final AtomicLong predictRequests = new AtomicLong();
+    private final AtomicLong generateRequests = new AtomicLong();
+    private final AtomicLong streamRequests = new AtomicLong();
+    private final AtomicLong ollamaRequests = new AtomicLong();
+    private final AtomicLong injectedThrottles = new AtomicLong();
+    private final AtomicLong injectedUnavailable = new AtomicLong();
+    private final AtomicLong rateLimited = new AtomicLong();
+    private final AtomicInteger inFlight = new AtomicInteger();
+
+    /**
+     * @param port Cổng lắng nghe (0: chọn cổng trống bất kỳ)
+     * @param threads Số luồng xử lý yêu cầu (độ trễ giả lập giữ luồng, nên cần đủ cho mức đồng thời cần đo)
+     * @param embeddingDimension Kích thước vector mặc định khi yêu cầu không có tham số dimension
+     * @param latencyMedianMs Độ trễ trung vị (ms) của phân phối log-normal, 0 để tắt độ trễ
+     * @param latencySigma Độ lệch chuẩn của log độ trễ (0.5 cho p99 khoảng 3.2 lần trung vị)
+     * @param maxLatencyMs Độ trễ tối đa sau khi lấy mẫu
+     * @param streamChunkDelayMs Khoảng cách giữa các phần của phản hồi streaming
+     * @param throttleRate Xác suất trả về 429 RESOURCE_EXHAUSTED
+     * @param unavailableRate Xác suất trả về 503 UNAVAILABLE
+     * @param retryAfterSeconds Giá trị Retry-After gửi kèm lỗi 429/503 (0: không gửi)
+     * @param maxRequestsPerSecond Giới hạn thông lượng (0: không giới hạn)
+     * @param answers Danh sách câu trả lời có sẵn cho generateContent
+     */
+    public FakeVertexServer(int port, int threads, int embeddingDimension, double latencyMedianMs, double latencySigma,
+                            long maxLatencyMs, long streamChunkDelayMs, double throttleRate, double unavailableRate,
+                            int retryAfterSeconds, double maxRequestsPerSecond, List<String> answers) {
+        this.port = port;
+        this.threads = Math.max(1, threads);
+        this.embeddingDimension = embeddingDimension;
+        this.latencyMedianMs = latencyMedianMs;
+        this.latencySigma = latencySigma;
+        this.maxLatencyMs = maxLatencyMs;
+        this.streamChunkDelayMs = streamChunkDelayMs;
+        this.throttleRate = throttleRate;
+        this.unavailableRate = unavailableRate;
+        this.retryAfterSeconds = retryAfterSeconds;
+        this.maxRequestsPerSecond = maxRequestsPerSecond;
+        this.answers = answers == null || answers.isEmpty() ? DEFAULT_ANSWERS : new ArrayList<>(answers);
+        this.availableTokens = Math.max(1, maxRequestsPerSecond);
+    }
+
+    public synchronized void start() throws IOException {
+        if (server != null) {
+            return;
+        }
+        server = HttpServer.create(new InetSocketAddress(port), 1024);
+        AtomicInteger threadCounter = new AtomicInteger();
+        executor = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "fake-vertex-" + threadCounter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        server.setExecutor(executor);
+        server.createContext("/", this::handle);
+        server.start();
+        logger.info("Máy chủ giả lập Vertex AI đang chạy tại http://localhost:" + getPort() +
+                   " (độ trễ trung vị " + latencyMedianMs + "ms, 429: " + throttleRate + ", 503: " + unavailableRate +
+                   ", giới hạn " + (maxRequestsPerSecond > 0 ? maxRequestsPerSecond + " yêu cầu/giây" : "không") + ")");
+    }
+
+    public synchronized void stop() {
+        if (server != null) {
+            server.stop(0);
+            executor.shutdownNow();
+            server = null;
+            logger.info("Đã dừng máy chủ giả lập Vertex AI");
+        }
+    }
+
+    public int getPort() {
+        return server != null ? server.getAddress().getPort() : port;
+    }
+
+    /**
+     * URL gốc để cấu hình vertexai.base-url trỏ tới máy chủ giả lập
+     */
+    public String getBaseUrl() {
+        return "http://localhost:" + getPort();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        inFlight.incrementAndGet();
+        try {
+            String path = exchange.getRequestURI().getPath();
+            if (!"POST".equalsIgnoreCase(exchange.getRequestMethod())) {
+                sendError(exchange, 405, "METHOD_NOT_ALLOWED", "Chỉ hỗ trợ POST");
+                return;
+            }
+            JsonNode request = objectMapper.readTree(exchange.getRequestBody().readAllBytes());
+
+            if (path.endsWith(":predict")) {
+                predictRequests.incrementAndGet();
+                if (injectFailure(exchange)) {
+                    return;
+                }
+                sleep(sampleLatency());
+                sendJson(exchange, buildPredictResponse(request));
+            } else if (path.endsWith(":generateContent")) {
+                generateRequests.incrementAndGet();
+                if (injectFailure(exchange)) {
+                    return;
+                }
+                sleep(sampleLatency());
+                sendJson(exchange, buildGenerateResponse(pickAnswer(request), true));
+            } else if (path.endsWith(":streamGenerateContent")) {
+                streamRequests.incrementAndGet();
+                if (injectFailure(exchange)) {
+                    return;
+                }
+                streamAnswer(exchange, pickAnswer(request));
+            } else if (path.equals("/api/generate")) {
+                ollamaRequests.incrementAndGet();
+                if (injectFailure(exchange)) {
+                    return;
+                }
+                handleOllamaGenerate(exchange, request);
+            } else {
+                sendError(exchange, 404, "NOT_FOUND", "Không hỗ trợ đường dẫn " + path);
+            }
+        } catch (Exception e) {
+            logger.warning("Máy chủ giả lập gặp lỗi khi xử lý yêu cầu: " + e.getMessage());
+            try {
+                sendError(exchange, 400, "INVALID_ARGUMENT", String.valueOf(e.getMessage()));
+            } catch (IOException ignored) {
+                // Phản hồi có thể đã được gửi một phần
+            }
+        } finally {
+            inFlight.decrementAndGet();
+            exchange.close();
+        }
+    }
+
+    /**
+     * Chèn lỗi: vượt giới hạn thông lượng hoặc lỗi ngẫu nhiên theo xác suất cấu hình
+     * @return true nếu đã trả về lỗi
+     */
+    private boolean injectFailure(HttpExchange exchange) throws IOException {
+        if (!tryAcquireThroughput()) {
+            rateLimited.incrementAndGet();
+            sendError(exchange, 429, "RESOURCE_EXHAUSTED", "Quota exceeded (giới hạn thông lượng của máy chủ giả lập)");
+            return true;
+        }
+        double roll = ThreadLocalRandom.current().nextDouble();
+        if (roll < throttleRate) {
+            injectedThrottles.incrementAndGet();
+            sendError(exchange, 429, "RESOURCE_EXHAUSTED", "Resource exhausted (lỗi được chèn)");
+            return true;
+        }
+        if (roll < throttleRate + unavailableRate) {
+            injectedUnavailable.incrementAndGet();
+            sleep(sampleLatency());
+            sendError(exchange, 503, "UNAVAILABLE", "Service unavailable (lỗi được chèn)");
+            return true;
+        }
+        return false;
+    }
+
+    private synchronized boolean tryAcquireThroughput() {
+        if (maxRequestsPerSecond <= 0) {
+            return true;
+        }
+        long now = System.nanoTime();
+        availableTokens = Math.min(Math.max(1, maxRequestsPerSecond),
+                availableTokens + (now - lastRefillNanos) / 1_000_000_000.0 * maxRequestsPerSecond);
+        lastRefillNanos = now;
+        if (availableTokens < 1) {
+            return false;
+        }
+        availableTokens -= 1;
+        return true;
+    }
+
+    /**
+     * Lấy mẫu độ trễ log-normal: trung vị * e^(sigma * N(0,1))
+     */
+    private long sampleLatency() {
+        if (latencyMedianMs <= 0) {
+            return 0;
+        }
+        double sample = latencyMedianMs * Math.exp(latencySigma * ThreadLocalRandom.current().nextGaussian());
+        return Math.min(maxLatencyMs, Math.round(sample));
+    }
+
+    private ObjectNode buildPredictResponse(JsonNode request) {
+        int dimension = request.path("parameters").path("dimension").asInt(embeddingDimension);
+        ObjectNode response = objectMapper.createObjectNode();
+        ArrayNode predictions = response.putArray("predictions");
+        for (JsonNode instance : request.path("instances")) {
+            String content = instance.path("content").asText("");
+            ObjectNode embeddings = predictions.addObject().putObject("embeddings");
+            ArrayNode values = embeddings.putArray("values");
+            for (float value : deterministicEmbedding(content, dimension)) {
+                values.add(value);
+            }
+            embeddings.putObject("statistics")
+                    .put("token_count", content.length() / 2 + 1)
+                    .put("truncated", false);
+        }
+        response.putObject("metadata").put("billableCharacterCount", request.path("instances").size());
+        return response;
+    }
+
+    /**
+     * Vector tất định: tổng các vector ngẫu nhiên gieo theo từng từ (chữ thường), rồi chuẩn hóa
+     * Văn bản có nhiều từ chung cho vector có độ tương đồng cosine cao, đủ để đo truy xuất gần đúng
+     */
+    public static float[] deterministicEmbedding(String content, int dimension) {
+        float[] vector = new float[dimension];
+        String[] words = content.toLowerCase().split("[^\\p{L}\\p{N}]+");
+        for (String word : words) {
+            if (word.isEmpty()) {
+                continue;
+            }
+            Random random = new Random(word.hashCode() * 0x9E3779B97F4A7C15L);
+            for (int i = 0; i < dimension; i++) {
+                vector[i] += (float) random.nextGaussian();
+            }
+        }
+        double norm = 0;
+        for (float value : vector) {
+            norm += value * value;
+        }
+        if (norm == 0) {
+            vector[0] = 1;
+            return vector;
+        }
+        float inverse = (float) (1.0 / Math.sqrt(norm));
+        for (int i = 0; i < dimension; i++) {
+            vector[i] *= inverse;
+        }
+        return vector;
+    }
+
+    private String pickAnswer(JsonNode request) {
+        StringBuilder prompt = new StringBuilder();
+        for (JsonNode content : request.path("contents")) {
+            for (JsonNode part : content.path("parts")) {
+                prompt.append(part.path("text").asText(""));
+            }
+        }
+        return pickAnswer(prompt.toString());
+    }
+
+    private String pickAnswer(String prompt) {
+        return answers.get(Math.floorMod(prompt.hashCode(), answers.size()));
+    }
+
+    /**
+     * Giả lập Ollama /api/generate: stream=false trả về một đối tượng JSON, mặc định (stream=true)
+     * trả về NDJSON, mỗi dòng vài từ và dòng cuối có done=true kèm eval_count/eval_duration
+     */
+    private void handleOllamaGenerate(HttpExchange exchange, JsonNode request) throws IOException {
+        String model = request.path("model").asText("fake");
+        String answer = pickAnswer(request.path("prompt").asText(""));
+        String[] words = answer.split(" ");
+        long startNanos = System.nanoTime();
+        sleep(sampleLatency());
+
+        if (!request.path("stream").asBoolean(true)) {
+            ObjectNode response = ollamaLine(model, answer, true);
+            response.put("eval_count", words.length);
+            response.put("eval_duration", System.nanoTime() - startNanos);
+            sendJson(exchange, response);
+            return;
+        }
+
+        exchange.getResponseHeaders().set("Content-Type", "application/x-ndjson");
+        exchange.sendResponseHeaders(200, 0);
+        try (OutputStream out = exchange.getResponseBody()) {
+            for (int start = 0; start < words.length; start += 3) {
+                int end = Math.min(words.length, start + 3);
+                String chunk = String.join(" ", Arrays.copyOfRange(words, start, end)) + (end < words.length ? " " : "");
+                out.write((objectMapper.writeValueAsString(ollamaLine(model, chunk, false)) + "\n").getBytes(StandardCharsets.UTF_8));
+                out.flush();
+                sleep(streamChunkDelayMs);
+            }
+            ObjectNode last = ollamaLine(model, "", true);
+            last.put("eval_count", words.length);
+            last.put("eval_duration", System.nanoTime() - startNanos);
+            out.write((objectMapper.writeValueAsString(last) + "\n").getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    private ObjectNode ollamaLine(String model, String text, boolean done) {
+        ObjectNode line = objectMapper.createObjectNode();
+        line.put("model", model);
+        line.put("created_at", java.time.Instant.now().toString());
+        line.put("response", text);
+        line.put("done", done);
+        return line;
+    }
+
+    private ObjectNode buildGenerateResponse(String text, boolean finished) {
+        ObjectNode response = objectMapper.createObjectNode();
+        ObjectNode candidate = response.putArray("candidates").addObject();
+        ObjectNode content = candidate.putObject("content");
+        content.put("role", "model");
+        content.putArray("parts").addObject().put("text", text);
+        if (finished) {
+            candidate.put("finishReason", "STOP");
+            response.putObject("usageMetadata")
+                    .put("candidatesTokenCount", text.length() / 4 + 1);
+        }
+        return response;
+    }
+
+    /**
+     * Gửi câu trả lời dạng Server-Sent Events: độ trễ tới phần đầu tiên theo phân phối cấu hình,
+     * sau đó mỗi vài từ một sự kiện cách nhau streamChunkDelayMs
+     */
+    private void streamAnswer(HttpExchange exchange, String answer) throws IOException {
+        sleep(sampleLatency());
+        exchange.getResponseHeaders().set("Content-Type", "text/event-stream");
+        exchange.sendResponseHeaders(200, 0);
+        String[] words = answer.split(" ");
+        try (OutputStream out = exchange.getResponseBody()) {
+            for (int start = 0; start < words.length; start += 3) {
+                int end = Math.min(words.length, start + 3);
+                String chunk = String.join(" ", Arrays.copyOfRange(words, start, end)) + (end < words.length ? " " : "");
+                ObjectNode event = buildGenerateResponse(chunk, end == words.length);
+                out.write(("data: " + objectMapper.writeValueAsString(event) + "\r\n\r\n").getBytes(StandardCharsets.UTF_8));
+                out.flush();
+                if (end < words.length) {
+                    sleep(streamChunkDelayMs);
+                }
+            }
+        }
+    }
+
+    private void sendJson(HttpExchange exchange, ObjectNode body) throws IOException {
+        byte[] bytes = objectMapper.writeValueAsBytes(body);
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=UTF-8");
+        exchange.sendResponseHeaders(200, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    private void sendError(HttpExchange exchange, int status, String statusName, String message) throws IOException {
+        ObjectNode body = objectMapper.createObjectNode();
+        body.putObject("error")
+                .put("code", status)
+                .put("message", message)
+                .put("status", statusName);
+        byte[] bytes = objectMapper.writeValueAsBytes(body);
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=UTF-8");
+        if ((status == 429 || status == 503) && retryAfterSeconds > 0) {
+            exchange.getResponseHeaders().set("Retry-After", String.valueOf(retryAfterSeconds));
+        }
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    private static void sleep(long millis) {
+        if (millis <= 0) {
+            return;
+        }
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Thống kê số yêu cầu theo endpoint và số lỗi đã chèn
+     */
+    public Map<String, Object> getStatistics() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("baseUrl", getBaseUrl());
+        stats.put("predictRequests", predictRequests.get());
+        stats.put("generateRequests", generateRequests.get());
+        stats.put("streamRequests", streamRequests.get());
+        stats.put("ollamaRequests", ollamaRequests.get());
+        stats.put("inFlight", inFlight.get());
+        stats.put("injected429", injectedThrottles.get());
+        stats.put("injected503", injectedUnavailable.get());
+        stats.put("rateLimited", rateLimited.get());
+        return stats;
+    }
+
+    /**
+     * Chạy độc lập: java -cp app.jar aidhkm.dhkm16a1hn.fake.FakeVertexServer [port] [latencyMedianMs] [rate429] [rate503] [maxRps]
+     */
+    public static void main(String[] args) throws IOException {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : 8089;
+        double median = args.length > 1 ? Double.parseDouble(args[1]) : 200;
+        double rate429 = args.length > 2 ? Double.parseDouble(args[2]) : 0;
+        double rate503 = args.length > 3 ? Double.parseDouble(args[3]) : 0;
+        double maxRps = args.length > 4 ? Double.parseDouble(args[4]) : 0;
+        FakeVertexServer fakeServer = new FakeVertexServer(port, 256, 768, median, 0.5, 30000, 30,
+                rate429, rate503, 1, maxRps, DEFAULT_ANSWERS);
+        fakeServer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(fakeServer::stop));
+    }
+}
@@ -0,0 +1,341 @@
+package aidhkm.dhkm16a1hn.generation;
+
+import aidhkm.dhkm16a1hn.util.SentenceIndex;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Ghép ngữ cảnh cho prompt trong một ngân sách token
+ * Các đoạn tìm được được chia thành câu theo chỉ mục câu tính sẵn khi nạp tài liệu; câu trùng hoặc gần trùng (do các đoạn cắt chồng lên nhau) bị loại,
+ * các câu còn lại được chấm điểm theo độ tương đồng của đoạn chứa nó và số từ khóa của câu hỏi xuất hiện trong câu,
+ * rồi được chọn lần lượt theo điểm cho tới khi hết ngân sách. Câu được chọn giữ nguyên thứ tự trong tài liệu.
+ * Số token được ước lượng cục bộ, không gọi API đếm token
+ */
+@Component
+public class ContextPacker {
+
+    // Tiền tố điểm tương đồng do VectorService.searchSimilarSentences gắn vào mỗi đoạn
+    private static final Pattern SCORE_PREFIX = Pattern.compile("^\\s*score=(\\d+(?:\\.\\d+)?(?:E-?\\d+)?)\\s*\\|\\s*");
+    private static final Pattern NON_WORD = Pattern.compile("[^\\p{L}\\p{N}]+");
+
+    // Tỉ lệ shingle của câu đã có trong ngữ cảnh để coi câu là gần trùng
+    private static final double NEAR_DUPLICATE_RATIO = 0.8;
+    // Điểm cộng cho mỗi từ khóa của câu hỏi xuất hiện trong câu
+    private static final double KEYWORD_WEIGHT = 0.1;
+    private static final int SHINGLE_SIZE = 3;
+
+    private static final Set<String> STOP_WORDS = new HashSet<>(Arrays.asList(
+            "là", "gì", "của", "và", "có", "không", "nào", "như", "thế", "cho", "các", "những", "được",
+            "trong", "với", "về", "ở", "một", "này", "đó", "thì", "mà", "hãy", "bạn", "tôi",
+            "the", "and", "what", "how", "why", "is", "are", "of", "to", "in"));
+
+    private final AtomicLong packs = new AtomicLong();
+    private final AtomicLong candidateTokens = new AtomicLong();
+    private final AtomicLong packedTokens = new AtomicLong();
+    private final AtomicLong duplicatesRemoved = new AtomicLong();
+    private final AtomicLong sentencesDropped = new AtomicLong();
+
+    /**
+     * Ghép ngữ cảnh cho câu hỏi từ các đoạn tìm được, không vượt quá ngân sách token
+     *
+     * @param question Câu hỏi đã chuẩn hóa
+     * @param passages Các đoạn theo thứ tự độ tương đồng giảm dần (có thể có tiền tố "score=... | ")
+     * @param tokenBudget Số token tối đa của ngữ cảnh
+     * @return Ngữ cảnh đã ghép; rỗng nếu không có đoạn nào có nội dung
+     */
+    public PackedContext pack(String question, List<String> passages, int tokenBudget) {
+        return pack(question, passages, tokenBudget, SentenceIndex::build);
+    }
+
+    /**
+     * Ghép ngữ cảnh, lấy các câu của mỗi đoạn từ chỉ mục câu đã tính sẵn thay vì tách lại
+     *
+     * @param sentenceIndexOf Tra cứu chỉ mục câu theo nội dung đoạn (không có tiền tố điểm số)
+     */
+    public PackedContext pack(String question, List<String> passages, int tokenBudget,
+                              Function<String, SentenceIndex> sentenceIndexOf) {
+        Set<String> keywords = keywordsOf(question);
+        List<Candidate> candidates = new ArrayList<>();
+        Set<String> seenSentences = new HashSet<>();
+        Set<String> seenShingles = new HashSet<>();
+        int duplicates = 0;
+        int totalTokens = 0;
+
+        for (int p = 0; p < passages.size(); p++) {
+            String passage = passages.get(p);
+            if (passage == null) {
+                continue;
+            }
+            double passageScore = 1.0 - 0.05 * p; // Không có điểm: dùng thứ hạng
+            Matcher matcher = SCORE_PREFIX.matcher(passage);
+            if (matcher.find()) {
+                passageScore = Double.parseDouble(matcher.group(1));
+                passage = passage.substring(matcher.end());
+            }
+
+            SentenceIndex sentences = sentenceIndexOf.apply(passage);
+            for (int s = 0; s < sentences.size(); s++) {
+                String sentence = sentences.sentence(s);
+                if (sentence.length() < 3) {
+                    continue;
+                }
+                List<String> words = sentences.words(s);
+                if (words.isEmpty()) {
+                    continue;
+                }
+                int tokens = estimateTokens(sentence);
+                totalTokens += tokens;
+
+                // Câu trùng hoàn toàn hoặc phần lớn đã nằm trong các câu trước (đoạn chồng lấn)
+                String key = String.join(" ", words);
+                List<String> shingles = shinglesOf(words);
+                if (!seenSentences.add(key) || overlapRatio(shingles, seenShingles) >= NEAR_DUPLICATE_RATIO) {
+                    duplicates++;
+                    continue;
+                }
+                seenShingles.addAll(shingles);
+
+                int hits = 0;
+                for (String word : new HashSet<>(words)) {
+                    if (keywords.contains(word)) {
+                        hits++;
+                    }
+                }
+                candidates.add(new Candidate(sentence, sentences.normalizedSentence(s), p, passageScore + KEYWORD_WEIGHT * hits, tokens));
+            }
+        }
+
+        // Chọn câu theo điểm giảm dần cho tới khi hết ngân sách; câu quá dài được bỏ qua để thử câu ngắn hơn
+        List<Candidate> ranked = new ArrayList<>(candidates);
+        ranked.sort((a, b) -> Double.compare(b.score, a.score));
+        Set<Candidate> selected = new HashSet<>();
+        int used = 0;
+        for (Candidate candidate : ranked) {
+            if (used + candidate.tokens <= tokenBudget) {
+                selected.add(candidate);
+                used += candidate.tokens;
+            }
+        }
+
+        StringBuilder text = new StringBuilder();
+        List<String> packedSentences = new ArrayList<>();
+        List<String> packedNormalized = new ArrayList<>();
+        int lastPassage = -1;
+        int kept = selected.size();
+        if (selected.isEmpty() && !ranked.isEmpty()) {
+            // Câu tốt nhất dài hơn cả ngân sách: cắt bớt theo số ký tự tương ứng
+            String truncated = truncateToTokens(ranked.get(0).sentence, tokenBudget);
+            text.append(truncated);
+            packedSentences.add(truncated);
+            packedNormalized.add(truncated.toLowerCase());
+            used = estimateTokens(truncated);
+            kept = 1;
+        } else {
+            for (Candidate candidate : candidates) {
+                if (!selected.contains(candidate)) {
+                    continue;
+                }
+                if (lastPassage >= 0) {
+                    text.append(candidate.passage == lastPassage ? " " : "\n\n");
+                }
+                text.append(candidate.sentence);
+                packedSentences.add(candidate.sentence);
+                packedNormalized.add(candidate.normalized);
+                lastPassage = candidate.passage;
+            }
+        }
+
+        int dropped = candidates.size() - kept;
+        packs.incrementAndGet();
+        candidateTokens.addAndGet(totalTokens);
+        packedTokens.addAndGet(used);
+        duplicatesRemoved.addAndGet(duplicates);
+        sentencesDropped.addAndGet(dropped);
+        String packedText = text.toString();
+        return new PackedContext(packedText, SentenceIndex.ofSentences(packedText, packedSentences, packedNormalized),
+                used, totalTokens, duplicates, dropped);
+    }
+
+    /**
+     * Ước lượng số token của văn bản theo cách bảo thủ: mỗi từ khoảng 4 ký tự một token,
+     * âm tiết có dấu (tiếng Việt) tính thêm một token, mỗi dấu câu một token
+     */
+    public static int estimateTokens(String text) {
+        if (text == null || text.isEmpty()) {
+            return 0;
+        }
+        int tokens = 0;
+        int wordLength = 0;
+        boolean nonAscii = false;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (Character.isLetterOrDigit(c)) {
+                wordLength++;
+                nonAscii |= c > 127;
+                continue;
+            }
+            if (wordLength > 0) {
+                tokens += (wordLength + 3) / 4 + (nonAscii ? 1 : 0);
+                wordLength = 0;
+                nonAscii = false;
+            }
+            if (!Character.isWhitespace(c)) {
+                tokens++;
+            }
+        }
+        if (wordLength > 0) {
+            tokens += (wordLength + 3) / 4 + (nonAscii ? 1 : 0);
+        }
+        return tokens;
+    }
+
+    private static String truncateToTokens(String text, int tokenBudget) {
+        int end = Math.min(text.length(), Math.max(0, tokenBudget) * 2);
+        while (end > 0 && estimateTokens(text.substring(0, end)) > tokenBudget) {
+            end = end * 3 / 4;
+        }
+        return text.substring(0, end).trim();
+    }
+
+    private static Set<String> keywordsOf(String question) {
+        Set<String> keywords = new HashSet<>();
+        for (String word : wordsOf(question)) {
+            if (word.length() >= 2 && !STOP_WORDS.contains(word)) {
+                keywords.add(word);
+            }
+        }
+        return keywords;
+    }
+
+    private static List<String> wordsOf(String text) {
+        List<String> words = new ArrayList<>();
+        for (String word : NON_WORD.split(text.toLowerCase())) {
+            if (!word.isEmpty()) {
+                words.add(word);
+            }
+        }
+        return words;
+    }
+
+    private static List<String> shinglesOf(List<String> words) {
+        List<String> shingles = new ArrayList<>();
+        if (words.size() < SHINGLE_SIZE) {
+            shingles.add(String.join(" ", words));
+            return shingles;
+        }
+        for (int i = 0; i + SHINGLE_SIZE <= words.size(); i++) {
+            shingles.add(String.join(" ", words.subList(i, i + SHINGLE_SIZE)));
+        }
+        return shingles;
+    }
+
+    private static double overlapRatio(List<String> shingles, Set<String> seen) {
+        if (shingles.isEmpty() || seen.isEmpty()) {
+            return 0.0;
+        }
+        int overlap = 0;
+        for (String shingle : shingles) {
+            if (seen.contains(shingle)) {
+                overlap++;
+            }
+        }
+        return (double) overlap / shingles.size();
+    }
+
+    /**
+     * Thống kê ghép ngữ cảnh: số token trung bình trước và sau khi ghép, số câu trùng đã loại
+     */
+    public Map<String, Object> getStatistics() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        long count = packs.get();
+        stats.put("packs", count);
+        stats.put("avgCandidateTokens", count == 0 ? 0 : candidateTokens.get() / count);
+        stats.put("avgPackedTokens", count == 0 ? 0 : packedTokens.get() / count);
+        stats.put("duplicatesRemoved", duplicatesRemoved.get());
+        stats.put("sentencesDropped", sentencesDropped.get());
+        return stats;
+    }
+
+    /**
+     * Một câu ứng viên: dạng chữ thường, đoạn chứa câu (để giữ thứ tự gốc), điểm và số token ước lượng
+     */
+    private static final class Candidate {
+        private final String sentence;
+        private final String normalized;
+        private final int passage;
+        private final double score;
+        private final int tokens;
+
+        Candidate(String sentence, String normalized, int passage, double score, int tokens) {
+            this.sentence = sentence;
+            this.normalized = normalized;
+            this.passage = passage;
+            this.score = score;
+            this.tokens = tokens;
+        }
+    }
+
+    /**
+     * Kết quả ghép ngữ cảnh
+     */
+    public static final class PackedContext {
+        private final String text;
+        private final SentenceIndex sentences;
+        private final int tokens;
+        private final int candidateTokens;
+        private final int duplicatesRemoved;
+        private final int sentencesDropped;
+
+        PackedContext(String text, SentenceIndex sentences, int tokens, int candidateTokens, int duplicatesRemoved,
+                      int sentencesDropped) {
+            this.text = text;
+            this.sentences = sentences;
+            this.tokens = tokens;
+            this.candidateTokens = candidateTokens;
+            this.duplicatesRemoved = duplicatesRemoved;
+            this.sentencesDropped = sentencesDropped;
+        }
+
+        public String getText() {
+            return text;
+        }
+
+        /**
+         * Các câu đã chọn theo thứ tự trong ngữ cảnh, kèm dạng chữ thường (cho câu trả lời trích xuất)
+         */
+        public SentenceIndex getSentences() {
+            return sentences;
+        }
+
+        public int getTokens() {
+            return tokens;
+        }
+
+        public int getCandidateTokens() {
+            return candidateTokens;
+        }
+
+        public int getDuplicatesRemoved() {
+            return duplicatesRemoved;
+        }
+
+        public int getSentencesDropped() {
+            return sentencesDropped;
+        }
+
+        public boolean isEmpty() {
+            return text.isEmpty();
+        }
+    }
+}
@@ -0,0 +1,386 @@
+package aidhkm.dhkm16a1hn.generation;
+
+import aidhkm.dhkm16a1hn.util.Deadline;
+import aidhkm.dhkm16a1hn.util.LatencyTracker;
+import jakarta.annotation.PostConstruct;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.env.Environment;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+/**
+ * Bộ định tuyến đứng trước các nguồn sinh văn bản (Vertex AI, Ollama...)
+ * Mỗi nguồn có thống kê độ trễ và tỉ lệ lỗi cuốn chiếu; mỗi yêu cầu được gửi tới nguồn dự kiến trả lời xong sớm nhất
+ * (độ trễ trung bình / tỉ lệ thành công, nhân với mức tải hiện tại so với sức chứa). Nguồn lỗi, vượt SLA hoặc
+ * mạch đang mở được chuyển xuống cuối danh sách, và yêu cầu tự động chuyển sang nguồn kế tiếp khi nguồn trước
+ * báo lỗi, không có văn bản hoặc chưa trả lời trong SLA. Một phần nhỏ yêu cầu được gửi thăm dò tới nguồn khác
+ * để thống kê của các nguồn không được chọn không bị cũ.
+ * Khi phía gọi có hạn chót, SLA của mỗi lần thử không vượt quá thời gian còn lại; lần thử bị cắt vì hạn chót
+ * của phía gọi (hoặc bị phía gọi hủy) không bị tính là lỗi của nguồn
+ */
+@Component
+public class GenerationRouter implements TextGenerator {
+
+    private static final Logger logger = Logger.getLogger(GenerationRouter.class.getName());
+
+    // Hệ số làm mượt trung bình trượt theo hàm mũ cho độ trễ và tỉ lệ lỗi
+    private static final double LATENCY_ALPHA = 0.2;
+    private static final double ERROR_ALPHA = 0.1;
+    // Tỉ lệ lỗi cuốn chiếu vượt ngưỡng này thì nguồn bị coi là suy giảm
+    private static final double DEGRADED_ERROR_RATE = 0.5;
+
+    @Autowired
+    private List<TextGenerator> generators;
+
+    @Autowired
+    private Environment environment;
+
+    // Các nguồn được bật, theo thứ tự ưu tiên khi chưa có thống kê
+    @Value("${app.generation.backends:vertex}")
+    private List<String> backendNames;
+
+    // Thời gian tối đa chờ một nguồn trước khi chuyển sang nguồn kế tiếp
+    @Value("${app.generation.sla-ms:4000}")
+    private long slaMs;
+
+    // Tỉ lệ yêu cầu gửi thăm dò tới nguồn không phải tốt nhất
+    @Value("${app.generation.probe-ratio:0.05}")
+    private double probeRatio;
+
+    private final List<Backend> backends = new ArrayList<>();
+
+    @PostConstruct
+    public void init() {
+        for (String name : backendNames) {
+            String trimmed = name.trim();
+            TextGenerator generator = generators.stream()
+                    .filter(candidate -> candidate != this && candidate.getName().equals(trimmed))
+                    .findFirst()
+                    .orElseThrow(() -> new IllegalStateException("Không có nguồn sinh văn bản '" + trimmed + "'"));
+            int capacity = environment.getProperty("app.generation.capacity." + trimmed, Integer.class, 8);
+            backends.add(new Backend(generator, capacity));
+        }
+        if (backends.isEmpty()) {
+            throw new IllegalStateException("app.generation.backends phải có ít nhất một nguồn sinh văn bản");
+        }
+        logger.info("Bộ định tuyến sinh văn bản: " + backendNames + ", SLA " + slaMs + "ms");
+    }
+
+    @Override
+    public String getName() {
+        return "router";
+    }
+
+    @Override
+    public String generateText(String prompt, int maxOutputTokens) {
+        try {
+            String generatedText = generateTextAsync(prompt, maxOutputTokens).block();
+            return generatedText != null ? generatedText : GENERATION_FAILED_MESSAGE;
+        } catch (Exception e) {
+            logger.warning("Không nguồn sinh văn bản nào trả lời được: " + e.getMessage());
+            return GENERATION_FAILED_MESSAGE;
+        }
+    }
+
+    /**
+     * Gửi tới nguồn tốt nhất; nguồn lỗi, rỗng hoặc quá SLA thì thử nguồn kế tiếp
+     */
+    @Override
+    public Mono<String> generateTextAsync(String prompt, int maxOutputTokens) {
+        return generateTextAsync(prompt, maxOutputTokens, null);
+    }
+
+    /**
+     * Như generateTextAsync nhưng trong hạn chót của phía gọi: SLA của mỗi lần thử là min(SLA, thời gian còn lại),
+     * hết hạn thì báo TimeoutException mà không chuyển nguồn
+     *
+     * @param deadline Hạn chót của phía gọi, null nếu không có
+     */
+    public Mono<String> generateTextAsync(String prompt, int maxOutputTokens, Deadline deadline) {
+        return Mono.defer(() -> attemptAsync(prompt, maxOutputTokens, rankBackends(), 0, deadline));
+    }
+
+    private Mono<String> attemptAsync(String prompt, int maxOutputTokens, List<Backend> candidates, int index, Deadline deadline) {
+        Backend backend = candidates.get(index);
+        boolean last = index == candidates.size() - 1;
+        return Mono.defer(() -> {
+            AttemptLimit limit = attemptLimit(last, deadline);
+            AtomicBoolean failed = new AtomicBoolean();
+            long startTime = System.currentTimeMillis();
+            backend.inFlight.incrementAndGet();
+            Mono<String> call = backend.generator.generateTextAsync(prompt, maxOutputTokens)
+                    .switchIfEmpty(Mono.error(new NoSuchElementException("Nguồn " + backend.getName() + " không trả về văn bản")))
+                    .doOnSuccess(text -> backend.onSuccess(System.currentTimeMillis() - startTime))
+                    .doOnError(error -> {
+                        failed.set(true);
+                        backend.onFailure(System.currentTimeMillis() - startTime);
+                    })
+                    // Bị phía gọi hủy hoặc bị cắt vì hạn chót không phải lỗi của nguồn (quá SLA được tính bên dưới)
+                    .doFinally(signal -> backend.inFlight.decrementAndGet());
+            if (limit == null) {
+                return call;
+            }
+            return call.timeout(Duration.ofMillis(limit.timeoutMs))
+                    .onErrorResume(error -> {
+                        if (last || !shouldFailOver(failed.get(), limit, backend, startTime)) {
+                            return Mono.error(error);
+                        }
+                        Backend next = candidates.get(index + 1);
+                        logger.warning("Nguồn " + backend.getName() + " lỗi (" + error.getMessage() + "), chuyển sang " + next.getName());
+                        backend.failovers.incrementAndGet();
+                        return attemptAsync(prompt, maxOutputTokens, candidates, index + 1, deadline);
+                    });
+        });
+    }
+
+    /**
+     * Stream từ nguồn tốt nhất; chỉ chuyển nguồn khi chưa phát đoạn văn bản nào (người dùng không thấy văn bản lặp)
+     */
+    @Override
+    public Flux<String> streamGenerateText(String prompt, int maxOutputTokens) {
+        return streamGenerateText(prompt, maxOutputTokens, null);
+    }
+
+    /**
+     * Như streamGenerateText nhưng đoạn đầu tiên phải tới trong hạn chót của phía gọi
+     *
+     * @param deadline Hạn chót cho đoạn văn bản đầu tiên, null nếu không có
+     */
+    public Flux<String> streamGenerateText(String prompt, int maxOutputTokens, Deadline deadline) {
+        return Flux.defer(() -> attemptStream(prompt, maxOutputTokens, rankBackends(), 0, deadline));
+    }
+
+    private Flux<String> attemptStream(String prompt, int maxOutputTokens, List<Backend> candidates, int index, Deadline deadline) {
+        Backend backend = candidates.get(index);
+        boolean last = index == candidates.size() - 1;
+        return Flux.defer(() -> {
+            AttemptLimit limit = attemptLimit(last, deadline);
+            AtomicBoolean emitted = new AtomicBoolean();
+            AtomicBoolean failed = new AtomicBoolean();
+            long startTime = System.currentTimeMillis();
+            backend.inFlight.incrementAndGet();
+            Flux<String> call = backend.generator.streamGenerateText(prompt, maxOutputTokens)
+                    .switchIfEmpty(Flux.error(new NoSuchElementException("Nguồn " + backend.getName() + " không trả về văn bản")))
+                    .doOnNext(chunk -> emitted.set(true))
+                    .doOnComplete(() -> backend.onSuccess(System.currentTimeMillis() - startTime))
+                    .doOnError(error -> {
+                        failed.set(true);
+                        backend.onFailure(System.currentTimeMillis() - startTime);
+                    })
+                    .doFinally(signal -> backend.inFlight.decrementAndGet());
+            if (limit == null) {
+                return call;
+            }
+            // Chỉ giới hạn thời gian tới đoạn đầu tiên; sau đó luồng được phép chạy tới hết
+            return call.timeout(Mono.delay(Duration.ofMillis(limit.timeoutMs)), chunk -> Mono.never())
+                    .onErrorResume(error -> {
+                        if (emitted.get() || last || !shouldFailOver(failed.get(), limit, backend, startTime)) {
+                            return Flux.error(error);
+                        }
+                        Backend next = candidates.get(index + 1);
+                        logger.warning("Nguồn " + backend.getName() + " lỗi trước đoạn đầu tiên (" + error.getMessage() +
+                                       "), chuyển sang " + next.getName());
+                        backend.failovers.incrementAndGet();
+                        return attemptStream(prompt, maxOutputTokens, candidates, index + 1, deadline);
+                    });
+        });
+    }
+
+    /**
+     * Thời gian chờ của một lần thử: SLA cho các nguồn còn nguồn dự phòng phía sau, thời gian còn lại của hạn chót
+     * nếu ngắn hơn. Nguồn cuối cùng không có hạn chót thì không bị giới hạn (null)
+     */
+    private AttemptLimit attemptLimit(boolean last, Deadline deadline) {
+        long remaining = deadline != null ? deadline.remainingMillis() : Long.MAX_VALUE;
+        if (!last && slaMs <= remaining) {
+            return new AttemptLimit(slaMs, true);
+        }
+        if (deadline != null) {
+            return new AttemptLimit(remaining, false);
+        }
+        return null;
+    }
+
+    /**
+     * Lần thử lỗi có nên chuyển sang nguồn kế tiếp hay không
+     * Nguồn tự báo lỗi (đã được tính trong doOnError) hoặc quá SLA (tính là lỗi của nguồn) thì chuyển nguồn;
+     * bị cắt vì hạn chót của phía gọi thì không tính và không chuyển nguồn (không còn thời gian cho nguồn khác)
+     *
+     * @param backendFailed Nguồn đã tự báo lỗi; false nghĩa là lần thử bị cắt bởi giới hạn thời gian của bộ định tuyến
+     */
+    private boolean shouldFailOver(boolean backendFailed, AttemptLimit limit, Backend backend, long startTime) {
+        if (backendFailed) {
+            return true;
+        }
+        if (limit.slaBound) {
+            backend.onFailure(System.currentTimeMillis() - startTime);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Có ít nhất một nguồn đang hoạt động bình thường
+     */
+    @Override
+    public boolean isGenerationHealthy() {
+        for (Backend backend : backends) {
+            if (!backend.isDegraded()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Sắp xếp các nguồn: nguồn khỏe trước nguồn suy giảm, trong mỗi nhóm theo thời gian dự kiến tăng dần
+     * Thỉnh thoảng đưa một nguồn khỏe khác lên đầu để thăm dò
+     */
+    private List<Backend> rankBackends() {
+        if (backends.size() == 1) {
+            return backends;
+        }
+        // Chụp điểm số trước khi sắp xếp, vì thống kê có thể thay đổi trong lúc sắp xếp
+        List<RankedBackend> snapshot = new ArrayList<>(backends.size());
+        for (Backend backend : backends) {
+            snapshot.add(new RankedBackend(backend, backend.isDegraded(), backend.expectedCompletionMs()));
+        }
+        snapshot.sort(Comparator.comparing((RankedBackend candidate) -> candidate.degraded)
+                .thenComparingDouble(candidate -> candidate.expectedMs));
+        List<Backend> ranked = new ArrayList<>(snapshot.size());
+        for (RankedBackend candidate : snapshot) {
+            ranked.add(candidate.backend);
+        }
+        if (ThreadLocalRandom.current().nextDouble() < probeRatio && !ranked.get(1).isDegraded()) {
+            Backend probe = ranked.remove(1);
+            ranked.add(0, probe);
+            probe.probes.incrementAndGet();
+        }
+        return ranked;
+    }
+
+    /**
+     * Thống kê từng nguồn: độ trễ (p50/p95), tỉ lệ lỗi cuốn chiếu, thời gian dự kiến, số lần chuyển nguồn
+     */
+    public Map<String, Object> getStatistics() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("slaMs", slaMs);
+        List<Map<String, Object>> ranking = new ArrayList<>();
+        for (Backend backend : backends) {
+            ranking.add(backend.getStatistics());
+        }
+        stats.put("backends", ranking);
+        return stats;
+    }
+
+    private static final class AttemptLimit {
+        private final long timeoutMs;
+        // true: giới hạn là SLA của nguồn; false: giới hạn là thời gian còn lại của hạn chót phía gọi
+        private final boolean slaBound;
+
+        AttemptLimit(long timeoutMs, boolean slaBound) {
+            this.timeoutMs = timeoutMs;
+            this.slaBound = slaBound;
+        }
+    }
+
+    private static final class RankedBackend {
+        private final Backend backend;
+        private final boolean degraded;
+        private final double expectedMs;
+
+        RankedBackend(Backend backend, boolean degraded, double expectedMs) {
+            this.backend = backend;
+            this.degraded = degraded;
+            this.expectedMs = expectedMs;
+        }
+    }
+
+    /**
+     * Một nguồn sinh văn bản kèm thống kê cuốn chiếu
+     */
+    private class Backend {
+        private final TextGenerator generator;
+        private final int capacity;
+        private final LatencyTracker latencyTracker = new LatencyTracker(200);
+        private final AtomicInteger inFlight = new AtomicInteger();
+        private final AtomicInteger failovers = new AtomicInteger();
+        private final AtomicInteger probes = new AtomicInteger();
+
+        // Chưa có mẫu: -1, nguồn được xếp theo thứ tự cấu hình nhờ sắp xếp ổn định
+        private double ewmaLatencyMs = -1;
+        private double ewmaErrorRate;
+        private long successes;
+        private long failures;
+
+        Backend(TextGenerator generator, int capacity) {
+            this.generator = generator;
+            this.capacity = Math.max(1, capacity);
+        }
+
+        String getName() {
+            return generator.getName();
+        }
+
+        synchronized void onSuccess(long latencyMs) {
+            successes++;
+            latencyTracker.record(latencyMs);
+            ewmaLatencyMs = ewmaLatencyMs < 0 ? latencyMs : ewmaLatencyMs + LATENCY_ALPHA * (latencyMs - ewmaLatencyMs);
+            ewmaErrorRate = ewmaErrorRate * (1 - ERROR_ALPHA);
+        }
+
+        synchronized void onFailure(long latencyMs) {
+            failures++;
+            ewmaErrorRate = ewmaErrorRate * (1 - ERROR_ALPHA) + ERROR_ALPHA;
+        }
+
+        /**
+         * Thời gian dự kiến tới khi có câu trả lời thành công: độ trễ trung bình chia tỉ lệ thành công,
+         * nhân với mức hàng đợi nếu số yêu cầu đang chạy vượt sức chứa của nguồn
+         */
+        synchronized double expectedCompletionMs() {
+            if (ewmaLatencyMs < 0) {
+                return 0;
+            }
+            double successRate = Math.max(0.05, 1 - ewmaErrorRate);
+            double queueFactor = 1 + (double) inFlight.get() / capacity;
+            return ewmaLatencyMs / successRate * queueFactor;
+        }
+
+        synchronized boolean isDegraded() {
+            return !generator.isGenerationHealthy() || ewmaErrorRate > DEGRADED_ERROR_RATE ||
+                   (ewmaLatencyMs >= 0 && ewmaLatencyMs > slaMs);
+        }
+
+        synchronized Map<String, Object> getStatistics() {
+            Map<String, Object> stats = new LinkedHashMap<>();
+            stats.put("name", getName());
+            stats.put("degraded", isDegraded());
+            stats.put("expectedMs", Math.round(expectedCompletionMs()));
+            stats.put("ewmaLatencyMs", Math.round(ewmaLatencyMs));
+            stats.put("errorRate", Math.round(ewmaErrorRate * 1000) / 1000.0);
+            stats.put("inFlight", inFlight.get());
+            stats.put("capacity", capacity);
+            stats.put("successes", successes);
+            stats.put("failures", failures);
+            stats.put("failovers", failovers.get());
+            stats.put("probes", probes.get());
+            stats.put("latency", latencyTracker.getStatistics());
+            return stats;
+        }
+    }
+}
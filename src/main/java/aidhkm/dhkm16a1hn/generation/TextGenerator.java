@@ -0,0 +1,57 @@
+package aidhkm.dhkm16a1hn.generation;
+
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+/**
+ * Dịch vụ sinh văn bản từ mô hình ngôn ngữ (Vertex AI Gemini, Ollama cục bộ...)
+ * generateText không bao giờ ném ngoại lệ mà trả về GENERATION_FAILED_MESSAGE khi lỗi;
+ * generateTextAsync và streamGenerateText phát lỗi dưới dạng tín hiệu lỗi để phía gọi có thể chuyển sang nguồn khác
+ */
+public interface TextGenerator {
+
+    // Phản hồi khi không thể tạo văn bản; phía gọi dùng để chuyển sang phương án trích xuất
+    String GENERATION_FAILED_MESSAGE = "Xin lỗi, tôi không thể tạo phản hồi lúc này.";
+
+    /**
+     * Tên nguồn sinh văn bản (dùng trong cấu hình, log và thống kê)
+     */
+    String getName();
+
+    // Số token đầu ra tối đa khi phía gọi không chỉ định
+    int DEFAULT_MAX_OUTPUT_TOKENS = 500;
+
+    /**
+     * Tạo văn bản và chờ kết quả
+     * @param maxOutputTokens Số token đầu ra tối đa mô hình được sinh
+     * @return Văn bản được tạo, hoặc GENERATION_FAILED_MESSAGE nếu lỗi
+     */
+    String generateText(String prompt, int maxOutputTokens);
+
+    /**
+     * Tạo văn bản không chặn luồng; lỗi được phát ra dưới dạng tín hiệu lỗi, phản hồi không có văn bản cho kết quả rỗng
+     */
+    Mono<String> generateTextAsync(String prompt, int maxOutputTokens);
+
+    /**
+     * Tạo văn bản theo luồng, mỗi phần tử là một đoạn văn bản mới
+     */
+    Flux<String> streamGenerateText(String prompt, int maxOutputTokens);
+
+    default String generateText(String prompt) {
+        return generateText(prompt, DEFAULT_MAX_OUTPUT_TOKENS);
+    }
+
+    default Mono<String> generateTextAsync(String prompt) {
+        return generateTextAsync(prompt, DEFAULT_MAX_OUTPUT_TOKENS);
+    }
+
+    default Flux<String> streamGenerateText(String prompt) {
+        return streamGenerateText(prompt, DEFAULT_MAX_OUTPUT_TOKENS);
+    }
+
+    /**
+     * Nguồn có đang hoạt động bình thường hay không (mạch đang đóng)
+     */
+    boolean isGenerationHealthy();
+}
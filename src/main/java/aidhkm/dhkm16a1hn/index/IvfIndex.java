@@ -0,0 +1,219 @@
+package aidhkm.dhkm16a1hn.index;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Random;
+
+/**
+ * Chỉ mục xấp xỉ IVF (inverted file) đơn giản trên các vector đã chuẩn hóa
+ * Các vector được gom thành nlist cụm bằng k-means (theo cosine); truy vấn chỉ quét
+ * nprobe cụm có tâm gần nhất thay vì toàn bộ dữ liệu
+ */
+public final class IvfIndex {
+
+    private final int dimension;
+    private final float[][] vectors;   // vector đã chuẩn hóa, chỉ số trong mảng chính là id
+    private final float[][] centroids; // tâm cụm đã chuẩn hóa
+    private final int[][] lists;       // danh sách id thuộc từng cụm
+
+    private IvfIndex(int dimension, float[][] vectors, float[][] centroids, int[][] lists) {
+        this.dimension = dimension;
+        this.vectors = vectors;
+        this.centroids = centroids;
+        this.lists = lists;
+    }
+
+    /**
+     * Xây dựng chỉ mục IVF
+     * 
+     * @param vectors Các vector đã chuẩn hóa, cùng kích thước
+     * @param nlist Số cụm mong muốn
+     * @param iterations Số vòng lặp k-means
+     * @param seed Hạt giống ngẫu nhiên để kết quả có thể lặp lại
+     */
+    public static IvfIndex build(float[][] vectors, int nlist, int iterations, long seed) {
+        int n = vectors.length;
+        int dimension = n == 0 ? 0 : vectors[0].length;
+        int clusters = Math.max(1, Math.min(nlist, n));
+        if (n == 0) {
+            return new IvfIndex(0, vectors, new float[0][], new int[0][]);
+        }
+
+        // Khởi tạo tâm cụm bằng các vector được chọn ngẫu nhiên
+        Random random = new Random(seed);
+        int[] order = new int[n];
+        for (int i = 0; i < n; i++) {
+            order[i] = i;
+        }
+        for (int i = n - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            int tmp = order[i];
+            order[i] = order[j];
+            order[j] = tmp;
+        }
+        float[][] centroids = new float[clusters][];
+        for (int c = 0; c < clusters; c++) {
+            centroids[c] = Arrays.copyOf(vectors[order[c]], dimension);
+        }
+
+        int[] assignment = new int[n];
+        for (int iter = 0; iter < Math.max(1, iterations); iter++) {
+            for (int i = 0; i < n; i++) {
+                assignment[i] = nearestCentroid(centroids, vectors[i]);
+            }
+            float[][] sums = new float[clusters][dimension];
+            int[] counts = new int[clusters];
+            for (int i = 0; i < n; i++) {
+                float[] sum = sums[assignment[i]];
+                for (int d = 0; d < dimension; d++) {
+                    sum[d] += vectors[i][d];
+                }
+                counts[assignment[i]]++;
+            }
+            for (int c = 0; c < clusters; c++) {
+                if (counts[c] > 0) {
+                    centroids[c] = normalize(sums[c]);
+                }
+            }
+        }
+
+        // Lập danh sách id cho từng cụm theo lần gán cuối cùng
+        for (int i = 0; i < n; i++) {
+            assignment[i] = nearestCentroid(centroids, vectors[i]);
+        }
+        int[] sizes = new int[clusters];
+        for (int a : assignment) {
+            sizes[a]++;
+        }
+        int[][] lists = new int[clusters][];
+        for (int c = 0; c < clusters; c++) {
+            lists[c] = new int[sizes[c]];
+        }
+        int[] fill = new int[clusters];
+        for (int i = 0; i < n; i++) {
+            lists[assignment[i]][fill[assignment[i]]++] = i;
+        }
+        return new IvfIndex(dimension, vectors, centroids, lists);
+    }
+
+    /**
+     * Tìm top-k vector gần nhất bằng cách quét nprobe cụm gần nhất
+     * 
+     * @param query Vector truy vấn đã chuẩn hóa
+     * @param k Số kết quả tối đa
+     * @param nprobe Số cụm được quét
+     * @return Danh sách kết quả sắp xếp theo điểm giảm dần
+     */
+    public List<Neighbor> search(float[] query, int k, int nprobe) {
+        if (centroids.length == 0 || k <= 0) {
+            return new ArrayList<>();
+        }
+        int probes = Math.max(1, Math.min(nprobe, centroids.length));
+
+        // Chọn các cụm có tâm gần truy vấn nhất
+        PriorityQueue<Neighbor> nearest = new PriorityQueue<>(probes + 1, (a, b) -> Float.compare(a.score, b.score));
+        for (int c = 0; c < centroids.length; c++) {
+            float score = dot(centroids[c], query);
+            if (nearest.size() < probes) {
+                nearest.add(new Neighbor(c, score));
+            } else if (score > nearest.peek().score) {
+                nearest.poll();
+                nearest.add(new Neighbor(c, score));
+            }
+        }
+
+        PriorityQueue<Neighbor> heap = new PriorityQueue<>(k + 1, (a, b) -> Float.compare(a.score, b.score));
+        for (Neighbor cluster : nearest) {
+            for (int id : lists[cluster.id]) {
+                float score = dot(vectors[id], query);
+                if (heap.size() < k) {
+                    heap.add(new Neighbor(id, score));
+                } else if (score > heap.peek().score) {
+                    heap.poll();
+                    heap.add(new Neighbor(id, score));
+                }
+            }
+        }
+
+        List<Neighbor> result = new ArrayList<>(heap);
+        result.sort((a, b) -> Float.compare(b.score, a.score));
+        return result;
+    }
+
+    private static int nearestCentroid(float[][] centroids, float[] vector) {
+        int best = 0;
+        float bestScore = Float.NEGATIVE_INFINITY;
+        for (int c = 0; c < centroids.length; c++) {
+            float score = dot(centroids[c], vector);
+            if (score > bestScore) {
+                bestScore = score;
+                best = c;
+            }
+        }
+        return best;
+    }
+
+    private static float dot(float[] a, float[] b) {
+        float sum = 0.0f;
+        for (int i = 0; i < a.length; i++) {
+            sum += a[i] * b[i];
+        }
+        return sum;
+    }
+
+    private static float[] normalize(float[] vector) {
+        float length = 0.0f;
+        for (float v : vector) {
+            length += v * v;
+        }
+        length = (float) Math.sqrt(length);
+        if (length > 0) {
+            for (int i = 0; i < vector.length; i++) {
+                vector[i] /= length;
+            }
+        }
+        return vector;
+    }
+
+    public int getClusterCount() {
+        return centroids.length;
+    }
+
+    public int size() {
+        return vectors.length;
+    }
+
+    /**
+     * Ước lượng bộ nhớ dùng cho tâm cụm và danh sách id (byte), không tính mảng vector dùng chung
+     */
+    public long estimateMemoryBytes() {
+        long bytes = (long) centroids.length * dimension * Float.BYTES;
+        for (int[] list : lists) {
+            bytes += (long) list.length * Integer.BYTES;
+        }
+        return bytes;
+    }
+
+    /**
+     * Kết quả tìm kiếm: id của vector (hoặc của cụm) và điểm tương đồng
+     */
+    public static final class Neighbor {
+        private final int id;
+        private final float score;
+
+        public Neighbor(int id, float score) {
+            this.id = id;
+            this.score = score;
+        }
+
+        public int getId() {
+            return id;
+        }
+
+        public float getScore() {
+            return score;
+        }
+    }
+}
@@ -0,0 +1,170 @@
+package aidhkm.dhkm16a1hn.index;
+
+import aidhkm.dhkm16a1hn.model.EmbeddingVector;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+
+/**
+ * Ảnh chụp bất biến của chỉ mục vector, chia thành các phân vùng theo (mô hình, kích thước)
+ * Truy vấn chỉ quét phân vùng trùng với mô hình đã tạo vector truy vấn.
+ * Đối tượng không bao giờ bị sửa sau khi tạo nên có thể chia sẻ giữa các luồng mà không cần khóa
+ */
+public final class VectorIndexSnapshot {
+
+    private final Map<String, VectorPartition> partitions;
+    private final List<EmbeddingVector> vectors;
+    // Tra cứu vector theo nội dung đoạn văn (để dùng lại chỉ mục câu đã tính của đoạn văn trả về từ tìm kiếm)
+    private final Map<String, EmbeddingVector> bySegment;
+    private final long version;
+    private final long createdAtMillis;
+
+    private VectorIndexSnapshot(Map<String, VectorPartition> partitions, List<EmbeddingVector> vectors, long version,
+                                long createdAtMillis) {
+        this(partitions, vectors, indexBySegment(vectors), version, createdAtMillis);
+    }
+
+    private VectorIndexSnapshot(Map<String, VectorPartition> partitions, List<EmbeddingVector> vectors,
+                                Map<String, EmbeddingVector> bySegment, long version, long createdAtMillis) {
+        this.partitions = Collections.unmodifiableMap(partitions);
+        this.vectors = Collections.unmodifiableList(vectors);
+        this.bySegment = bySegment;
+        this.version = version;
+        this.createdAtMillis = createdAtMillis;
+    }
+
+    /**
+     * Xây dựng ảnh chụp từ danh sách vector
+     * 
+     * @param vectors Danh sách vector nhúng
+     * @param modelIdResolver Hàm xác định mã mô hình cho vector chưa được gắn mô hình
+     * @param version Phiên bản dữ liệu tại thời điểm bắt đầu đọc danh sách vector
+     */
+    public static VectorIndexSnapshot build(List<EmbeddingVector> vectors, Function<EmbeddingVector, String> modelIdResolver,
+                                            long version) {
+        Map<String, List<EmbeddingVector>> grouped = new LinkedHashMap<>();
+        Map<String, String> modelIds = new HashMap<>();
+        Map<String, Integer> dimensions = new HashMap<>();
+
+        for (EmbeddingVector vector : vectors) {
+            float[] data = vector.getVectorData();
+            if (data == null || data.length == 0) {
+                continue;
+            }
+            String modelId = vector.getModelId() != null ? vector.getModelId() : modelIdResolver.apply(vector);
+            String key = keyOf(modelId, data.length);
+            grouped.computeIfAbsent(key, k -> new ArrayList<>()).add(vector);
+            modelIds.put(key, modelId);
+            dimensions.put(key, data.length);
+        }
+
+        Map<String, VectorPartition> partitions = new LinkedHashMap<>();
+        for (Map.Entry<String, List<EmbeddingVector>> entry : grouped.entrySet()) {
+            String key = entry.getKey();
+            partitions.put(key, new VectorPartition(modelIds.get(key), dimensions.get(key), entry.getValue()));
+        }
+        return new VectorIndexSnapshot(partitions, new ArrayList<>(vectors), version, System.currentTimeMillis());
+    }
+
+    public static VectorIndexSnapshot empty(long version) {
+        return new VectorIndexSnapshot(new LinkedHashMap<>(), new ArrayList<>(), version, System.currentTimeMillis());
+    }
+
+    /**
+     * Tạo ảnh chụp mới trong đó các vector thỏa điều kiện bị đánh dấu đã xóa (tombstone)
+     * Các phân vùng không bị ảnh hưởng được dùng lại nguyên vẹn
+     */
+    public VectorIndexSnapshot withDeleted(Predicate<EmbeddingVector> deleted) {
+        Map<String, VectorPartition> updated = new LinkedHashMap<>();
+        boolean changed = false;
+        for (Map.Entry<String, VectorPartition> entry : partitions.entrySet()) {
+            VectorPartition partition = entry.getValue().withTombstones(deleted);
+            changed |= partition != entry.getValue();
+            updated.put(entry.getKey(), partition);
+        }
+        if (!changed) {
+            return this;
+        }
+        List<EmbeddingVector> remaining = vectors.stream()
+                .filter(deleted.negate())
+                .collect(Collectors.toList());
+        return new VectorIndexSnapshot(updated, remaining, version, createdAtMillis);
+    }
+
+    /**
+     * Tạo ảnh chụp mới với một phân vùng được thay thế (dùng khi nén phân vùng)
+     * 
+     * @return null nếu phân vùng hiện tại không còn là expected (đã bị thay đổi bởi luồng khác)
+     */
+    public VectorIndexSnapshot withPartitionReplaced(String key, VectorPartition expected, VectorPartition replacement) {
+        if (partitions.get(key) != expected) {
+            return null;
+        }
+        Map<String, VectorPartition> updated = new LinkedHashMap<>(partitions);
+        if (replacement.size() == 0) {
+            updated.remove(key);
+        } else {
+            updated.put(key, replacement);
+        }
+        return new VectorIndexSnapshot(updated, vectors, bySegment, version, createdAtMillis);
+    }
+
+    private static Map<String, EmbeddingVector> indexBySegment(List<EmbeddingVector> vectors) {
+        Map<String, EmbeddingVector> bySegment = new HashMap<>(vectors.size() * 2);
+        for (EmbeddingVector vector : vectors) {
+            if (vector.getSegment() != null) {
+                bySegment.putIfAbsent(vector.getSegment(), vector);
+            }
+        }
+        return bySegment;
+    }
+
+    public static String keyOf(String modelId, int dimension) {
+        return modelId + "#" + dimension;
+    }
+
+    /**
+     * Lấy phân vùng khớp với mô hình và kích thước, null nếu không tồn tại
+     */
+    public VectorPartition partition(String modelId, int dimension) {
+        return partitions.get(keyOf(modelId, dimension));
+    }
+
+    public Map<String, VectorPartition> getPartitions() {
+        return partitions;
+    }
+
+    /**
+     * Vector có nội dung đoạn văn đã cho, null nếu không có trong ảnh chụp
+     */
+    public EmbeddingVector findBySegment(String segment) {
+        return segment != null ? bySegment.get(segment) : null;
+    }
+
+    public List<EmbeddingVector> getVectors() {
+        return vectors;
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    public long getCreatedAtMillis() {
+        return createdAtMillis;
+    }
+
+    public int size() {
+        return vectors.size();
+    }
+
+    public boolean isEmpty() {
+        return vectors.isEmpty();
+    }
+}
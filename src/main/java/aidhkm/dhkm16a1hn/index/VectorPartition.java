@@ -0,0 +1,229 @@
+package aidhkm.dhkm16a1hn.index;
+
+import aidhkm.dhkm16a1hn.model.EmbeddingVector;
+import aidhkm.dhkm16a1hn.util.VectorUtil;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.function.Predicate;
+
+/**
+ * Phân vùng chỉ mục chứa các vector của cùng một mô hình và cùng kích thước
+ * Các vector được chuẩn hóa sẵn và lưu liên tiếp trong một mảng phẳng,
+ * nên cosine similarity chỉ còn là tích vô hướng với kích thước cố định.
+ * Xóa vector chỉ đánh dấu tombstone (tạo phân vùng mới dùng chung mảng dữ liệu),
+ * các ô chết được thu hồi khi phân vùng được nén lại bằng compact()
+ */
+public final class VectorPartition {
+
+    private final String modelId;
+    private final int dimension;
+    private final EmbeddingVector[] entries;
+    private final float[] matrix; // entries.length * dimension phần tử, mỗi hàng là một vector đã chuẩn hóa
+    private final BitSet tombstones; // Các ô đã bị xóa, không bao giờ bị sửa sau khi tạo
+    private final int tombstoneCount;
+
+    private VectorPartition(String modelId, int dimension, EmbeddingVector[] entries, float[] matrix, BitSet tombstones) {
+        this.modelId = modelId;
+        this.dimension = dimension;
+        this.entries = entries;
+        this.matrix = matrix;
+        this.tombstones = tombstones;
+        this.tombstoneCount = tombstones.cardinality();
+    }
+
+    public VectorPartition(String modelId, int dimension, List<EmbeddingVector> vectors) {
+        this.modelId = modelId;
+        this.dimension = dimension;
+
+        List<EmbeddingVector> accepted = new ArrayList<>(vectors.size());
+        for (EmbeddingVector vector : vectors) {
+            float[] data = vector.getVectorData();
+            if (data != null && data.length == dimension) {
+                accepted.add(vector);
+            }
+        }
+
+        this.entries = accepted.toArray(new EmbeddingVector[0]);
+        this.matrix = new float[entries.length * dimension];
+        for (int i = 0; i < entries.length; i++) {
+            float[] normalized = VectorUtil.normalize(entries[i].getVectorData());
+            System.arraycopy(normalized, 0, matrix, i * dimension, dimension);
+        }
+        this.tombstones = new BitSet(entries.length);
+        this.tombstoneCount = 0;
+    }
+
+    /**
+     * Tạo phân vùng mới với các vector thỏa điều kiện được đánh dấu đã xóa
+     * Mảng vector được dùng chung nên thao tác chỉ tốn O(n) để kiểm tra, không sao chép dữ liệu
+     * 
+     * @param deleted Điều kiện xác định vector đã bị xóa
+     * @return Chính phân vùng này nếu không có vector nào bị xóa thêm
+     */
+    public VectorPartition withTombstones(Predicate<EmbeddingVector> deleted) {
+        BitSet updated = null;
+        for (int i = 0; i < entries.length; i++) {
+            if (!tombstones.get(i) && deleted.test(entries[i])) {
+                if (updated == null) {
+                    updated = (BitSet) tombstones.clone();
+                }
+                updated.set(i);
+            }
+        }
+        return updated == null ? this : new VectorPartition(modelId, dimension, entries, matrix, updated);
+    }
+
+    /**
+     * Xây dựng lại phân vùng chỉ với các ô còn sống, giải phóng bộ nhớ của các ô đã xóa
+     */
+    public VectorPartition compact() {
+        int live = liveSize();
+        EmbeddingVector[] liveEntries = new EmbeddingVector[live];
+        float[] liveMatrix = new float[live * dimension];
+        int next = 0;
+        for (int i = 0; i < entries.length; i++) {
+            if (tombstones.get(i)) {
+                continue;
+            }
+            liveEntries[next] = entries[i];
+            System.arraycopy(matrix, i * dimension, liveMatrix, next * dimension, dimension);
+            next++;
+        }
+        return new VectorPartition(modelId, dimension, liveEntries, liveMatrix, new BitSet(live));
+    }
+
+    /**
+     * Tìm top-k vector có độ tương đồng cao nhất với vector truy vấn
+     * 
+     * @param query Vector truy vấn, phải có cùng kích thước với phân vùng
+     * @param k Số kết quả tối đa
+     * @param minScore Ngưỡng độ tương đồng tối thiểu
+     * @return Danh sách kết quả sắp xếp theo điểm giảm dần
+     */
+    public List<Hit> search(float[] query, int k, float minScore) {
+        if (query == null || query.length != dimension) {
+            throw new IllegalArgumentException("Kích thước vector truy vấn không khớp với phân vùng " + modelId +
+                    " (" + (query == null ? 0 : query.length) + " != " + dimension + ")");
+        }
+        if (k <= 0 || entries.length == 0) {
+            return Collections.emptyList();
+        }
+
+        float[] q = VectorUtil.normalize(query);
+        PriorityQueue<Hit> heap = new PriorityQueue<>(k + 1, (a, b) -> Float.compare(a.score, b.score));
+
+        for (int i = 0; i < entries.length; i++) {
+            if (tombstoneCount > 0 && tombstones.get(i)) {
+                continue;
+            }
+            float score = dot(q, i);
+            if (score < minScore) {
+                continue;
+            }
+            if (heap.size() < k) {
+                heap.add(new Hit(entries[i], score, i));
+            } else if (score > heap.peek().score) {
+                heap.poll();
+                heap.add(new Hit(entries[i], score, i));
+            }
+        }
+
+        List<Hit> hits = new ArrayList<>(heap);
+        hits.sort((a, b) -> Float.compare(b.score, a.score));
+        return hits;
+    }
+
+    private float dot(float[] q, int row) {
+        int offset = row * dimension;
+        float sum = 0.0f;
+        for (int j = 0; j < dimension; j++) {
+            sum += matrix[offset + j] * q[j];
+        }
+        return sum;
+    }
+
+    public String getModelId() {
+        return modelId;
+    }
+
+    public int getDimension() {
+        return dimension;
+    }
+
+    /**
+     * Tổng số ô, bao gồm cả ô đã bị xóa
+     */
+    public int size() {
+        return entries.length;
+    }
+
+    public int liveSize() {
+        return entries.length - tombstoneCount;
+    }
+
+    public int getTombstoneCount() {
+        return tombstoneCount;
+    }
+
+    /**
+     * Tỉ lệ ô đã bị xóa trên tổng số ô của phân vùng
+     */
+    public double tombstoneRatio() {
+        return entries.length == 0 ? 0.0 : (double) tombstoneCount / entries.length;
+    }
+
+    /**
+     * Bản sao vector đã chuẩn hóa tại ô cho trước
+     */
+    public float[] normalizedVector(int slot) {
+        float[] copy = new float[dimension];
+        System.arraycopy(matrix, slot * dimension, copy, 0, dimension);
+        return copy;
+    }
+
+    public boolean isDeleted(int slot) {
+        return tombstones.get(slot);
+    }
+
+    public EmbeddingVector get(int slot) {
+        return entries[slot];
+    }
+
+    /**
+     * Ước lượng bộ nhớ dùng cho mảng vector của phân vùng (byte)
+     */
+    public long estimateMemoryBytes() {
+        return (long) matrix.length * Float.BYTES + (long) entries.length * 8L;
+    }
+
+    /**
+     * Kết quả tìm kiếm trong một phân vùng
+     */
+    public static final class Hit {
+        private final EmbeddingVector vector;
+        private final float score;
+        private final int slot;
+
+        public Hit(EmbeddingVector vector, float score, int slot) {
+            this.vector = vector;
+            this.score = score;
+            this.slot = slot;
+        }
+
+        public EmbeddingVector getVector() {
+            return vector;
+        }
+
+        public float getScore() {
+            return score;
+        }
+
+        public int getSlot() {
+            return slot;
+        }
+    }
+}
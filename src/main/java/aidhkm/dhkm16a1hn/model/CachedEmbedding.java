@@ -0,0 +1,35 @@
+package aidhkm.dhkm16a1hn.model;
+
+import jakarta.persistence.*;
+import lombok.Data;
+import java.time.LocalDateTime;
+
+/**
+ * Vector nhúng đã tính, lưu theo địa chỉ nội dung để dùng lại sau khi khởi động lại
+ * Khóa là SHA-256 của (mô hình, kích thước, văn bản đã chuẩn hóa)
+ */
+@Entity
+@Data
+@Table(name = "embedding_cache")
+public class CachedEmbedding {
+    @Id
+    @Column(name = "cache_key", length = 64)
+    private String cacheKey;
+    
+    @Column(name = "model_id", length = 100)
+    private String modelId;
+    
+    @Column(name = "dimension")
+    private Integer dimension;
+    
+    @Column(name = "vector_data", columnDefinition = "float[]")
+    private float[] vectorData;
+    
+    @Column(name = "created_at")
+    private LocalDateTime createdAt;
+    
+    @PrePersist
+    protected void onCreate() {
+        createdAt = LocalDateTime.now();
+    }
+}
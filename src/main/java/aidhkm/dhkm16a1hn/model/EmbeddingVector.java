@@ -1,14 +1,21 @@
 package aidhkm.dhkm16a1hn.model;
 
+import aidhkm.dhkm16a1hn.util.HashUtil;
+import aidhkm.dhkm16a1hn.util.SentenceIndex;
 import jakarta.persistence.*;
 import lombok.Data;
+import lombok.EqualsAndHashCode;
+import lombok.ToString;
 import org.hibernate.annotations.Type;
 import org.hibernate.usertype.UserType;
 import java.time.LocalDateTime;
 
 @Entity
 @Data
-@Table(name = "embedding_vectors")
+@Table(name = "embedding_vectors", indexes = {
+    @Index(name = "ux_embedding_vectors_segment_hash", columnList = "segment_hash", unique = true),
+    @Index(name = "ix_embedding_vectors_model_dimension", columnList = "model_id, dimension")
+})
 public class EmbeddingVector {
     @Id
     @GeneratedValue(strategy = GenerationType.IDENTITY)
@@ -24,14 +31,56 @@ public class EmbeddingVector {
     @Column(columnDefinition = "TEXT")
     private String segment;
     
+    // SHA-256 của nội dung đoạn văn, dùng để chống trùng lặp ở mức cơ sở dữ liệu
+    @Column(name = "segment_hash", length = 64)
+    private String segmentHash;
+    
     @Column(name = "vector_data", columnDefinition = "float[]")
     private float[] vectorData;
     
+    // Mô hình đã tạo vector và kích thước vector, dùng để phân vùng chỉ mục tìm kiếm
+    @Column(name = "model_id", length = 100)
+    private String modelId;
+    
+    @Column(name = "dimension")
+    private Integer dimension;
+    
+    // Ranh giới câu của đoạn văn [đầu0, cuối0, đầu1, cuối1, ...], tính một lần khi nạp tài liệu
+    @Column(name = "sentence_bounds", columnDefinition = "int[]")
+    private int[] sentenceBounds;
+    
+    // Chỉ mục câu tạo từ ranh giới đã lưu khi đoạn văn được dùng lần đầu, không lưu vào database
+    @Transient
+    @EqualsAndHashCode.Exclude
+    @ToString.Exclude
+    private volatile SentenceIndex sentenceIndex;
+    
     @Column(name = "created_at")
     private LocalDateTime createdAt;
     
     @PrePersist
     protected void onCreate() {
         createdAt = LocalDateTime.now();
+        if (segmentHash == null && segment != null) {
+            segmentHash = HashUtil.sha256Hex(segment);
+        }
+        if (dimension == null && vectorData != null) {
+            dimension = vectorData.length;
+        }
+        if (sentenceBounds == null && segment != null) {
+            sentenceBounds = SentenceIndex.computeBounds(segment);
+        }
+    }
+    
+    /**
+     * Các câu của đoạn văn (cắt theo ranh giới đã lưu, đoạn cũ chưa có ranh giới thì tính lại)
+     */
+    public SentenceIndex getSentenceIndex() {
+        SentenceIndex index = sentenceIndex;
+        if (index == null) {
+            index = SentenceIndex.fromBounds(segment, sentenceBounds);
+            sentenceIndex = index;
+        }
+        return index;
     }
 } 
\ No newline at end of file
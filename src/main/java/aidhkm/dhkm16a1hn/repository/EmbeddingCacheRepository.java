@@ -0,0 +1,27 @@
+package aidhkm.dhkm16a1hn.repository;
+
+import aidhkm.dhkm16a1hn.model.CachedEmbedding;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Transactional;
+
+@Repository
+public interface EmbeddingCacheRepository extends JpaRepository<CachedEmbedding, String> {
+    
+    /**
+     * Lưu vector vào cache bền vững, bỏ qua nếu khóa đã tồn tại
+     * @return 1 nếu đã chèn, 0 nếu khóa đã có
+     */
+    @Modifying
+    @Transactional
+    @Query(value = "INSERT INTO embedding_cache (cache_key, model_id, dimension, vector_data, created_at) " +
+            "VALUES (:cacheKey, :modelId, :dimension, CAST(:vectorData AS float[]), now()) " +
+            "ON CONFLICT (cache_key) DO NOTHING", nativeQuery = true)
+    int insertIfAbsent(@Param("cacheKey") String cacheKey,
+                       @Param("modelId") String modelId,
+                       @Param("dimension") Integer dimension,
+                       @Param("vectorData") String vectorData);
+}
@@ -14,7 +14,32 @@ import java.util.List;
 public interface EmbeddingRepository extends JpaRepository<EmbeddingVector, Long> {
     List<EmbeddingVector> findByDocumentId(Long documentId);
     
-    List<EmbeddingVector> findBySegment(String segment);
+    boolean existsBySegmentHash(String segmentHash);
+    
+    List<EmbeddingVector> findBySegmentHashIsNull();
+    
+    @Query("SELECT e.segmentHash FROM EmbeddingVector e WHERE e.segmentHash IS NOT NULL")
+    List<String> findAllSegmentHashes();
+    
+    /**
+     * Chèn vector mới, bỏ qua nếu đã tồn tại đoạn văn có cùng segment_hash.
+     * Dựa vào unique index trên segment_hash nên an toàn khi nhiều luồng ghi cùng lúc.
+     * @return 1 nếu đã chèn, 0 nếu bị bỏ qua do trùng lặp
+     */
+    @Modifying
+    @Transactional
+    @Query(value = "INSERT INTO embedding_vectors (document_id, segment, segment_hash, vector_data, model_id, dimension, sentence_bounds, created_at) " +
+            "VALUES (:documentId, :segment, :segmentHash, CAST(:vectorData AS float[]), :modelId, :dimension, CAST(:sentenceBounds AS int[]), now()) " +
+            "ON CONFLICT (segment_hash) DO NOTHING", nativeQuery = true)
+    int insertIfAbsent(@Param("documentId") Long documentId,
+                       @Param("segment") String segment,
+                       @Param("segmentHash") String segmentHash,
+                       @Param("vectorData") String vectorData,
+                       @Param("modelId") String modelId,
+                       @Param("dimension") Integer dimension,
+                       @Param("sentenceBounds") String sentenceBounds);
+    
+    List<EmbeddingVector> findByModelIdIsNull();
     
     @Modifying
     @Transactional
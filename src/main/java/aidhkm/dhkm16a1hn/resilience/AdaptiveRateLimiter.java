@@ -0,0 +1,290 @@
+package aidhkm.dhkm16a1hn.resilience;
+
+import jakarta.annotation.PostConstruct;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.MonoSink;
+import reactor.core.scheduler.Schedulers;
+
+import java.time.Duration;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+/**
+ * Bộ giới hạn tốc độ dùng chung cho mọi lời gọi Vertex AI
+ * Kết hợp token bucket (giới hạn số yêu cầu mỗi phút theo quota) với giới hạn số lời gọi đồng thời
+ * điều chỉnh theo AIMD: tăng dần khi thành công, giảm một nửa khi gặp 429. Header Retry-After
+ * được tôn trọng bằng cách tạm dừng cấp quyền cho tới thời điểm máy chủ yêu cầu.
+ * Yêu cầu chờ trong hàng đợi không chặn luồng nào (cấp quyền qua MonoSink).
+ */
+@Component
+public class AdaptiveRateLimiter {
+
+    private static final Logger logger = Logger.getLogger(AdaptiveRateLimiter.class.getName());
+
+    // Khoảng thời gian tối thiểu giữa hai lần giảm giới hạn, để một loạt 429 từ cùng một đợt chỉ giảm một lần
+    private static final long DECREASE_INTERVAL_MS = 1000;
+
+    private static final int WAITING = 0;
+    private static final int GRANTED = 1;
+    private static final int CANCELLED = 2;
+
+    @Value("${vertexai.rate-limit.requests-per-minute:300}")
+    private double requestsPerMinute;
+
+    @Value("${vertexai.rate-limit.burst:20}")
+    private int burst;
+
+    @Value("${vertexai.rate-limit.min-concurrency:1}")
+    private int minConcurrency;
+
+    @Value("${vertexai.rate-limit.max-concurrency:32}")
+    private int maxConcurrency;
+
+    @Value("${vertexai.rate-limit.max-queue:10000}")
+    private int maxQueue;
+
+    private final Deque<Waiter> waiting = new ArrayDeque<>();
+    private double tokens;
+    private long lastRefillNanos;
+    private double concurrencyLimit;
+    private int inFlight;
+    private long pausedUntilMillis;
+    private long lastDecreaseMillis;
+    private boolean drainScheduled;
+
+    private long admitted;
+    private long throttled;
+    private long rejected;
+
+    @PostConstruct
+    public void init() {
+        tokens = burst;
+        lastRefillNanos = System.nanoTime();
+        concurrencyLimit = Math.max(minConcurrency, maxConcurrency / 2.0);
+        logger.info("Bộ giới hạn tốc độ Vertex AI: " + requestsPerMinute + " yêu cầu/phút, burst " + burst +
+                   ", đồng thời " + minConcurrency + ".." + maxConcurrency);
+    }
+
+    /**
+     * Chạy lời gọi khi được cấp quyền (còn token, chưa vượt giới hạn đồng thời, không bị tạm dừng)
+     * Mỗi lần đăng ký (kể cả lần thử lại) đều phải xin quyền mới; quyền được trả lại khi lời gọi kết thúc, lỗi hoặc bị hủy
+     *
+     * @param call Lời gọi cần giới hạn
+     * @return Mono của lời gọi, báo lỗi RejectedExecutionException nếu hàng đợi đầy
+     */
+    public <T> Mono<T> execute(Mono<T> call) {
+        return Mono.usingWhen(acquire(),
+                permit -> call.doOnSuccess(value -> onSuccess()),
+                permit -> Mono.fromRunnable(permit::release),
+                (permit, error) -> Mono.fromRunnable(permit::release),
+                permit -> Mono.fromRunnable(permit::release));
+    }
+
+    /**
+     * Như execute nhưng cho lời gọi trả về luồng (streaming); quyền được giữ cho tới khi luồng kết thúc
+     */
+    public <T> Flux<T> executeMany(Flux<T> call) {
+        return Flux.usingWhen(acquire(),
+                permit -> call.doOnComplete(this::onSuccess),
+                permit -> Mono.fromRunnable(permit::release),
+                (permit, error) -> Mono.fromRunnable(permit::release),
+                permit -> Mono.fromRunnable(permit::release));
+    }
+
+    /**
+     * Ghi nhận phản hồi 429 (hoặc 503 có Retry-After): giảm một nửa giới hạn đồng thời và tạm dừng cấp quyền
+     *
+     * @param retryAfter Thời gian chờ máy chủ yêu cầu, null nếu không có header Retry-After
+     */
+    public void onThrottled(Duration retryAfter) {
+        synchronized (this) {
+            throttled++;
+            long now = System.currentTimeMillis();
+            if (now - lastDecreaseMillis >= DECREASE_INTERVAL_MS) {
+                concurrencyLimit = Math.max(minConcurrency, concurrencyLimit / 2);
+                lastDecreaseMillis = now;
+                logger.warning("Vertex AI trả về 429, giảm giới hạn đồng thời còn " + (int) concurrencyLimit);
+            }
+            if (retryAfter != null && !retryAfter.isNegative()) {
+                pausedUntilMillis = Math.max(pausedUntilMillis, now + retryAfter.toMillis());
+            }
+            // Bỏ token tích lũy để không bắn một loạt yêu cầu ngay sau khi bị giới hạn
+            tokens = Math.min(tokens, 0);
+        }
+    }
+
+    /**
+     * Đọc giá trị header Retry-After (số giây hoặc ngày giờ HTTP)
+     * @return Thời gian chờ hoặc null nếu không có/không hợp lệ
+     */
+    public static Duration parseRetryAfter(String value) {
+        if (value == null || value.trim().isEmpty()) {
+            return null;
+        }
+        String trimmed = value.trim();
+        try {
+            return Duration.ofSeconds(Long.parseLong(trimmed));
+        } catch (NumberFormatException e) {
+            try {
+                ZonedDateTime retryAt = ZonedDateTime.parse(trimmed, DateTimeFormatter.RFC_1123_DATE_TIME);
+                long millis = retryAt.toInstant().toEpochMilli() - System.currentTimeMillis();
+                return Duration.ofMillis(Math.max(0, millis));
+            } catch (Exception ignored) {
+                return null;
+            }
+        }
+    }
+
+    private Mono<Permit> acquire() {
+        return Mono.create(sink -> {
+            Waiter waiter = new Waiter(sink);
+            // Đăng ký trước khi vào hàng đợi để không lỡ tín hiệu hủy đến trong lúc drain đang cấp quyền
+            sink.onCancel(() -> {
+                if (waiter.state.compareAndSet(WAITING, CANCELLED)) {
+                    synchronized (this) {
+                        waiting.remove(waiter);
+                    }
+                } else if (waiter.state.get() == GRANTED) {
+                    // Bị hủy đúng lúc được cấp quyền (sink.success bị bỏ qua): trả lại chỗ, release chỉ có tác dụng một lần
+                    waiter.permit.release();
+                }
+            });
+            synchronized (this) {
+                if (waiting.size() >= maxQueue) {
+                    rejected++;
+                    sink.error(new RejectedExecutionException("Hàng đợi giới hạn tốc độ Vertex AI đã đầy (" + maxQueue + ")"));
+                    return;
+                }
+                waiting.addLast(waiter);
+            }
+            drain();
+        });
+    }
+
+    private void releaseSlot() {
+        synchronized (this) {
+            inFlight--;
+        }
+        drain();
+    }
+
+    private void onSuccess() {
+        synchronized (this) {
+            // Tăng cộng: khoảng +1 sau mỗi "cửa sổ" gồm concurrencyLimit lời gọi thành công
+            concurrencyLimit = Math.min(maxConcurrency, concurrencyLimit + 1.0 / concurrencyLimit);
+        }
+    }
+
+    /**
+     * Cấp quyền cho các yêu cầu đang chờ theo thứ tự đến, trong giới hạn token và đồng thời.
+     * Nếu phải chờ token hoặc chờ hết thời gian tạm dừng thì hẹn lần cấp tiếp theo trên scheduler
+     */
+    private void drain() {
+        List<Waiter> granted = new ArrayList<>();
+        synchronized (this) {
+            refill();
+            long now = System.currentTimeMillis();
+            long delayMillis = -1;
+            while (!waiting.isEmpty()) {
+                Waiter waiter = waiting.peekFirst();
+                if (waiter.state.get() != WAITING) {
+                    waiting.pollFirst();
+                    continue;
+                }
+                if (inFlight >= (int) concurrencyLimit) {
+                    break; // Lần release tiếp theo sẽ gọi lại drain
+                }
+                if (now < pausedUntilMillis) {
+                    delayMillis = pausedUntilMillis - now;
+                    break;
+                }
+                if (tokens < 1) {
+                    delayMillis = (long) Math.ceil((1 - tokens) / tokensPerMilli());
+                    break;
+                }
+                waiting.pollFirst();
+                if (waiter.state.compareAndSet(WAITING, GRANTED)) {
+                    tokens -= 1;
+                    inFlight++;
+                    admitted++;
+                    granted.add(waiter);
+                }
+            }
+            if (delayMillis >= 0 && !drainScheduled) {
+                drainScheduled = true;
+                Schedulers.parallel().schedule(() -> {
+                    synchronized (this) {
+                        drainScheduled = false;
+                    }
+                    drain();
+                }, Math.max(1, delayMillis), TimeUnit.MILLISECONDS);
+            }
+        }
+        for (Waiter waiter : granted) {
+            waiter.sink.success(waiter.permit);
+        }
+    }
+
+    private void refill() {
+        long now = System.nanoTime();
+        double elapsedMillis = (now - lastRefillNanos) / 1_000_000.0;
+        lastRefillNanos = now;
+        tokens = Math.min(burst, tokens + elapsedMillis * tokensPerMilli());
+    }
+
+    private double tokensPerMilli() {
+        return requestsPerMinute / 60_000.0;
+    }
+
+    /**
+     * Thống kê trạng thái bộ giới hạn (độ sâu hàng đợi, số lời gọi đang chạy, giới hạn hiện tại)
+     */
+    public synchronized Map<String, Object> getStatistics() {
+        refill();
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("queueDepth", waiting.size());
+        stats.put("inFlight", inFlight);
+        stats.put("concurrencyLimit", Math.round(concurrencyLimit * 100) / 100.0);
+        stats.put("availableTokens", Math.round(tokens * 100) / 100.0);
+        stats.put("requestsPerMinute", requestsPerMinute);
+        stats.put("pausedForMs", Math.max(0, pausedUntilMillis - System.currentTimeMillis()));
+        stats.put("admitted", admitted);
+        stats.put("throttledResponses", throttled);
+        stats.put("rejected", rejected);
+        return stats;
+    }
+
+    private class Permit {
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        void release() {
+            if (released.compareAndSet(false, true)) {
+                releaseSlot();
+            }
+        }
+    }
+
+    private class Waiter {
+        private final MonoSink<Permit> sink;
+        private final Permit permit = new Permit();
+        private final AtomicInteger state = new AtomicInteger(WAITING);
+
+        Waiter(MonoSink<Permit> sink) {
+            this.sink = sink;
+        }
+    }
+}
@@ -0,0 +1,209 @@
+package aidhkm.dhkm16a1hn.resilience;
+
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.MonoSink;
+import reactor.core.scheduler.Schedulers;
+
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+/**
+ * Bulkhead cho một dịch vụ phía sau: giới hạn số lời gọi đồng thời và số lời gọi được xếp hàng
+ * Lời gọi vượt quá hàng đợi, hoặc chờ lâu hơn maxWait, bị từ chối ngay bằng BulkheadFullException,
+ * nhờ vậy một dịch vụ chậm không thể giữ hết luồng xử lý yêu cầu của ứng dụng.
+ * Việc chờ trong hàng đợi không chặn luồng nào (cấp quyền qua MonoSink)
+ */
+public class Bulkhead {
+
+    private static final Logger logger = Logger.getLogger(Bulkhead.class.getName());
+
+    private static final int WAITING = 0;
+    private static final int GRANTED = 1;
+    private static final int CANCELLED = 2;
+
+    private final String name;
+    private final int maxConcurrent;
+    private final int maxQueue;
+    private final Duration maxWait;
+
+    private final Deque<Waiter> waiting = new ArrayDeque<>();
+    private int inFlight;
+
+    private long admitted;
+    private long rejected;
+    private long timedOut;
+
+    /**
+     * @param name Tên dịch vụ phía sau (dùng trong log và thống kê)
+     * @param maxConcurrent Số lời gọi chạy đồng thời tối đa
+     * @param maxQueue Số lời gọi được xếp hàng tối đa
+     * @param maxWait Thời gian chờ tối đa trong hàng đợi (0 hoặc âm: không giới hạn)
+     */
+    public Bulkhead(String name, int maxConcurrent, int maxQueue, Duration maxWait) {
+        this.name = name;
+        this.maxConcurrent = Math.max(1, maxConcurrent);
+        this.maxQueue = Math.max(0, maxQueue);
+        this.maxWait = maxWait;
+        logger.info("Bulkhead '" + name + "': tối đa " + this.maxConcurrent + " lời gọi đồng thời, hàng đợi " +
+                   this.maxQueue + ", chờ tối đa " + maxWait.toMillis() + "ms");
+    }
+
+    /**
+     * Chạy lời gọi khi còn chỗ trong bulkhead; chỗ được trả lại khi lời gọi kết thúc, lỗi hoặc bị hủy
+     *
+     * @param call Lời gọi cần cô lập
+     * @return Mono của lời gọi, báo lỗi BulkheadFullException nếu không được nhận
+     */
+    public <T> Mono<T> execute(Mono<T> call) {
+        return Mono.usingWhen(acquire(),
+                permit -> call,
+                permit -> Mono.fromRunnable(permit::release),
+                (permit, error) -> Mono.fromRunnable(permit::release),
+                permit -> Mono.fromRunnable(permit::release));
+    }
+
+    /**
+     * Như execute nhưng cho lời gọi trả về luồng (streaming); chỗ được giữ cho tới khi luồng kết thúc
+     */
+    public <T> Flux<T> executeMany(Flux<T> call) {
+        return Flux.usingWhen(acquire(),
+                permit -> call,
+                permit -> Mono.fromRunnable(permit::release),
+                (permit, error) -> Mono.fromRunnable(permit::release),
+                permit -> Mono.fromRunnable(permit::release));
+    }
+
+    private Mono<Permit> acquire() {
+        return Mono.create(sink -> {
+            Waiter waiter = new Waiter(sink);
+            // Đăng ký trước khi vào hàng đợi để không lỡ tín hiệu hủy đến trong lúc releaseSlot đang cấp quyền
+            sink.onCancel(() -> {
+                if (waiter.state.compareAndSet(WAITING, CANCELLED)) {
+                    synchronized (this) {
+                        waiting.remove(waiter);
+                    }
+                    waiter.disposeTimer();
+                } else if (waiter.state.get() == GRANTED) {
+                    // Bị hủy đúng lúc được cấp quyền (sink.success bị bỏ qua): trả lại chỗ, release chỉ có tác dụng một lần
+                    waiter.permit.release();
+                }
+            });
+            boolean immediate = false;
+            synchronized (this) {
+                if (inFlight < maxConcurrent && waiting.isEmpty()) {
+                    waiter.state.set(GRANTED);
+                    inFlight++;
+                    admitted++;
+                    immediate = true;
+                } else if (waiting.size() >= maxQueue) {
+                    rejected++;
+                    sink.error(new BulkheadFullException(name, "Bulkhead '" + name + "' đã đầy (" +
+                            maxConcurrent + " đang chạy, " + maxQueue + " đang chờ)"));
+                    return;
+                } else {
+                    waiting.addLast(waiter);
+                }
+            }
+            if (immediate) {
+                sink.success(waiter.permit);
+                return;
+            }
+
+            if (!maxWait.isZero() && !maxWait.isNegative()) {
+                waiter.timer = Schedulers.parallel().schedule(() -> {
+                    if (waiter.state.compareAndSet(WAITING, CANCELLED)) {
+                        synchronized (this) {
+                            waiting.remove(waiter);
+                            timedOut++;
+                        }
+                        sink.error(new BulkheadFullException(name, "Chờ bulkhead '" + name + "' quá " +
+                                maxWait.toMillis() + "ms"));
+                    }
+                }, maxWait.toMillis(), TimeUnit.MILLISECONDS);
+                if (waiter.state.get() != WAITING) {
+                    // Đã được cấp quyền hoặc bị hủy trước khi hẹn giờ xong: không giữ hẹn giờ thừa
+                    waiter.disposeTimer();
+                }
+            }
+        });
+    }
+
+    /**
+     * Trả lại một chỗ và cấp quyền cho lời gọi đang chờ tiếp theo (nếu có)
+     */
+    private void releaseSlot() {
+        Waiter next = null;
+        synchronized (this) {
+            inFlight--;
+            while (!waiting.isEmpty()) {
+                Waiter waiter = waiting.pollFirst();
+                if (waiter.state.compareAndSet(WAITING, GRANTED)) {
+                    inFlight++;
+                    admitted++;
+                    next = waiter;
+                    break;
+                }
+            }
+        }
+        if (next != null) {
+            next.disposeTimer();
+            next.sink.success(next.permit);
+        }
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Thống kê trạng thái bulkhead (số lời gọi đang chạy, độ sâu hàng đợi, số lời gọi bị từ chối)
+     */
+    public synchronized Map<String, Object> getStatistics() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("maxConcurrent", maxConcurrent);
+        stats.put("inFlight", inFlight);
+        stats.put("maxQueue", maxQueue);
+        stats.put("queueDepth", waiting.size());
+        stats.put("admitted", admitted);
+        stats.put("rejected", rejected);
+        stats.put("timedOut", timedOut);
+        return stats;
+    }
+
+    private class Permit {
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        void release() {
+            if (released.compareAndSet(false, true)) {
+                releaseSlot();
+            }
+        }
+    }
+
+    private class Waiter {
+        private final MonoSink<Permit> sink;
+        private final Permit permit = new Permit();
+        private final AtomicInteger state = new AtomicInteger(WAITING);
+        private volatile Disposable timer;
+
+        Waiter(MonoSink<Permit> sink) {
+            this.sink = sink;
+        }
+
+        void disposeTimer() {
+            Disposable current = timer;
+            if (current != null) {
+                current.dispose();
+            }
+        }
+    }
+}
@@ -0,0 +1,21 @@
+package aidhkm.dhkm16a1hn.resilience;
+
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Lời gọi bị từ chối vì bulkhead đã đầy (hàng đợi đầy hoặc chờ quá thời gian cho phép)
+ * Đây không phải lỗi của dịch vụ phía sau nên không được tính vào circuit breaker
+ */
+public class BulkheadFullException extends RejectedExecutionException {
+
+    private final String bulkheadName;
+
+    public BulkheadFullException(String bulkheadName, String message) {
+        super(message);
+        this.bulkheadName = bulkheadName;
+    }
+
+    public String getBulkheadName() {
+        return bulkheadName;
+    }
+}
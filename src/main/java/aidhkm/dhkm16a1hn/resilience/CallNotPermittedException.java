@@ -0,0 +1,18 @@
+package aidhkm.dhkm16a1hn.resilience;
+
+/**
+ * Lời gọi bị chặn ngay vì circuit breaker đang mở (dịch vụ phía sau được coi là không khỏe)
+ */
+public class CallNotPermittedException extends RuntimeException {
+
+    private final String circuitBreakerName;
+
+    public CallNotPermittedException(String circuitBreakerName, CircuitBreaker.State state) {
+        super("Circuit breaker '" + circuitBreakerName + "' đang ở trạng thái " + state + ", không cho phép gọi");
+        this.circuitBreakerName = circuitBreakerName;
+    }
+
+    public String getCircuitBreakerName() {
+        return circuitBreakerName;
+    }
+}
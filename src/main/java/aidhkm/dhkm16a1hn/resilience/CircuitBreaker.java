@@ -0,0 +1,255 @@
+package aidhkm.dhkm16a1hn.resilience;
+
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+import java.util.logging.Logger;
+
+/**
+ * Circuit breaker cho một dịch vụ phía sau, dùng cửa sổ trượt theo số lời gọi
+ * CLOSED: ghi nhận kết quả từng lời gọi; khi tỉ lệ lỗi (kể cả lời gọi quá chậm) vượt ngưỡng thì chuyển sang OPEN.
+ * OPEN: từ chối ngay mọi lời gọi bằng CallNotPermittedException để phía gọi chuyển sang phương án dự phòng.
+ * HALF_OPEN: sau openDuration, cho một số lời gọi thăm dò đi qua; tất cả thành công thì đóng lại, một lỗi thì mở lại
+ */
+public class CircuitBreaker {
+
+    private static final Logger logger = Logger.getLogger(CircuitBreaker.class.getName());
+
+    public enum State { CLOSED, OPEN, HALF_OPEN }
+
+    private final String name;
+    private final int windowSize;
+    private final int minimumCalls;
+    private final double failureRateThreshold;
+    private final long slowCallNanos;
+    private final Duration openDuration;
+    private final int halfOpenCalls;
+    private final Predicate<Throwable> recordFailure;
+
+    private State state = State.CLOSED;
+    // Mỗi lần chuyển trạng thái tăng epoch, kết quả của lời gọi thuộc epoch cũ bị bỏ qua
+    private long epoch;
+    private final boolean[] outcomes;
+    private int nextIndex;
+    private int recordedCalls;
+    private int failedCalls;
+    private long openedAtMillis;
+    private int halfOpenPermits;
+    private int halfOpenSuccesses;
+
+    private long successful;
+    private long failed;
+    private long slow;
+    private long notPermitted;
+    private long openedCount;
+
+    /**
+     * @param name Tên dịch vụ phía sau
+     * @param windowSize Số lời gọi gần nhất dùng để tính tỉ lệ lỗi
+     * @param minimumCalls Số lời gọi tối thiểu trong cửa sổ trước khi được phép mở mạch
+     * @param failureRateThreshold Ngưỡng tỉ lệ lỗi (phần trăm)
+     * @param slowCallThreshold Lời gọi lâu hơn ngưỡng này được tính là lỗi
+     * @param openDuration Thời gian giữ mạch mở trước khi thăm dò lại
+     * @param halfOpenCalls Số lời gọi thăm dò ở trạng thái HALF_OPEN
+     * @param recordFailure Điều kiện để một lỗi được tính là lỗi của dịch vụ phía sau
+     */
+    public CircuitBreaker(String name, int windowSize, int minimumCalls, double failureRateThreshold,
+                          Duration slowCallThreshold, Duration openDuration, int halfOpenCalls,
+                          Predicate<Throwable> recordFailure) {
+        this.name = name;
+        this.windowSize = Math.max(1, windowSize);
+        this.minimumCalls = Math.max(1, Math.min(minimumCalls, this.windowSize));
+        this.failureRateThreshold = failureRateThreshold;
+        this.slowCallNanos = slowCallThreshold.toNanos();
+        this.openDuration = openDuration;
+        this.halfOpenCalls = Math.max(1, halfOpenCalls);
+        this.recordFailure = recordFailure;
+        this.outcomes = new boolean[this.windowSize];
+    }
+
+    /**
+     * Chạy lời gọi nếu mạch cho phép và ghi nhận kết quả
+     *
+     * @param call Lời gọi tới dịch vụ phía sau
+     * @return Mono của lời gọi, báo lỗi CallNotPermittedException nếu mạch đang mở
+     */
+    public <T> Mono<T> execute(Mono<T> call) {
+        return Mono.defer(() -> {
+            long permitEpoch = tryAcquirePermission();
+            if (permitEpoch < 0) {
+                return Mono.error(new CallNotPermittedException(name, getState()));
+            }
+            long startNanos = System.nanoTime();
+            return call
+                    .doOnSuccess(value -> onResult(permitEpoch, System.nanoTime() - startNanos, null))
+                    .doOnError(error -> onResult(permitEpoch, System.nanoTime() - startNanos, error))
+                    .doOnCancel(() -> onCancel(permitEpoch));
+        });
+    }
+
+    /**
+     * Như execute nhưng cho lời gọi trả về luồng (streaming)
+     * Với luồng, lời gọi chậm được xét theo thời gian tới phần tử đầu tiên thay vì toàn bộ luồng
+     */
+    public <T> Flux<T> executeMany(Flux<T> call) {
+        return Flux.defer(() -> {
+            long permitEpoch = tryAcquirePermission();
+            if (permitEpoch < 0) {
+                return Flux.error(new CallNotPermittedException(name, getState()));
+            }
+            long startNanos = System.nanoTime();
+            AtomicLong firstElementNanos = new AtomicLong(-1);
+            return call
+                    .doOnNext(value -> firstElementNanos.compareAndSet(-1, System.nanoTime() - startNanos))
+                    .doOnComplete(() -> onResult(permitEpoch, elapsedToFirst(firstElementNanos, startNanos), null))
+                    .doOnError(error -> onResult(permitEpoch, elapsedToFirst(firstElementNanos, startNanos), error))
+                    .doOnCancel(() -> onCancel(permitEpoch));
+        });
+    }
+
+    private static long elapsedToFirst(AtomicLong firstElementNanos, long startNanos) {
+        long first = firstElementNanos.get();
+        return first >= 0 ? first : System.nanoTime() - startNanos;
+    }
+
+    /**
+     * Kiểm tra nhanh mạch có đang cho phép gọi hay không (không tiêu thụ lượt thăm dò)
+     */
+    public synchronized boolean isCallPermitted() {
+        return state == State.CLOSED || state == State.HALF_OPEN ||
+               System.currentTimeMillis() - openedAtMillis >= openDuration.toMillis();
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return Epoch của lượt được cấp, hoặc -1 nếu không được phép gọi
+     */
+    private synchronized long tryAcquirePermission() {
+        if (state == State.OPEN && System.currentTimeMillis() - openedAtMillis >= openDuration.toMillis()) {
+            transitionTo(State.HALF_OPEN);
+        }
+        switch (state) {
+            case CLOSED:
+                return epoch;
+            case HALF_OPEN:
+                if (halfOpenPermits < halfOpenCalls) {
+                    halfOpenPermits++;
+                    return epoch;
+                }
+                notPermitted++;
+                return -1;
+            default:
+                notPermitted++;
+                return -1;
+        }
+    }
+
+    private synchronized void onResult(long permitEpoch, long durationNanos, Throwable error) {
+        boolean isSlow = durationNanos > slowCallNanos;
+        boolean isFailure = (error != null && recordFailure.test(error)) || isSlow;
+        if (isSlow) {
+            slow++;
+        }
+        if (isFailure) {
+            failed++;
+        } else {
+            successful++;
+        }
+        if (permitEpoch != epoch) {
+            return;
+        }
+
+        if (state == State.HALF_OPEN) {
+            if (isFailure) {
+                logger.warning("Circuit breaker '" + name + "': lời gọi thăm dò thất bại, mở lại mạch");
+                transitionTo(State.OPEN);
+            } else if (++halfOpenSuccesses >= halfOpenCalls) {
+                transitionTo(State.CLOSED);
+            }
+            return;
+        }
+
+        if (state == State.CLOSED) {
+            if (recordedCalls == windowSize) {
+                if (outcomes[nextIndex]) {
+                    failedCalls--;
+                }
+            } else {
+                recordedCalls++;
+            }
+            outcomes[nextIndex] = isFailure;
+            if (isFailure) {
+                failedCalls++;
+            }
+            nextIndex = (nextIndex + 1) % windowSize;
+
+            if (recordedCalls >= minimumCalls && failureRate() >= failureRateThreshold) {
+                logger.warning("Circuit breaker '" + name + "': tỉ lệ lỗi " + Math.round(failureRate()) +
+                               "% trên " + recordedCalls + " lời gọi gần nhất, mở mạch trong " +
+                               openDuration.toMillis() + "ms");
+                transitionTo(State.OPEN);
+            }
+        }
+    }
+
+    private synchronized void onCancel(long permitEpoch) {
+        // Lời gọi thăm dò bị hủy không cho kết quả, trả lại lượt để lời gọi khác thăm dò
+        if (permitEpoch == epoch && state == State.HALF_OPEN && halfOpenPermits > 0) {
+            halfOpenPermits--;
+        }
+    }
+
+    private void transitionTo(State newState) {
+        State previous = state;
+        state = newState;
+        epoch++;
+        halfOpenPermits = 0;
+        halfOpenSuccesses = 0;
+        if (newState == State.OPEN) {
+            openedAtMillis = System.currentTimeMillis();
+            openedCount++;
+        }
+        if (newState == State.CLOSED) {
+            recordedCalls = 0;
+            failedCalls = 0;
+            nextIndex = 0;
+        }
+        logger.info("Circuit breaker '" + name + "': " + previous + " -> " + newState);
+    }
+
+    private double failureRate() {
+        return recordedCalls == 0 ? 0 : failedCalls * 100.0 / recordedCalls;
+    }
+
+    /**
+     * Thống kê trạng thái mạch và tỉ lệ lỗi trong cửa sổ hiện tại
+     */
+    public synchronized Map<String, Object> getStatistics() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("state", state.name());
+        stats.put("failureRate", Math.round(failureRate() * 100) / 100.0);
+        stats.put("bufferedCalls", recordedCalls);
+        stats.put("failureRateThreshold", failureRateThreshold);
+        if (state == State.OPEN) {
+            stats.put("retryInMs", Math.max(0, openDuration.toMillis() - (System.currentTimeMillis() - openedAtMillis)));
+        }
+        stats.put("successfulCalls", successful);
+        stats.put("failedCalls", failed);
+        stats.put("slowCalls", slow);
+        stats.put("notPermittedCalls", notPermitted);
+        stats.put("timesOpened", openedCount);
+        return stats;
+    }
+}
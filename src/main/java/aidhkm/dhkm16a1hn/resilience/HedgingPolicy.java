@@ -0,0 +1,185 @@
+package aidhkm.dhkm16a1hn.resilience;
+
+import aidhkm.dhkm16a1hn.util.LatencyTracker;
+import reactor.core.Exceptions;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
+
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Supplier;
+import java.util.logging.Logger;
+
+/**
+ * Chính sách gửi yêu cầu dự phòng (hedging) để cắt đuôi độ trễ
+ * Nếu lời gọi đầu tiên chưa trả về sau độ trễ phân vị đã quan sát (mặc định p95), một lời gọi trùng lặp
+ * được gửi đi; kết quả nào về trước được dùng và lời gọi còn lại bị hủy.
+ * Số lời gọi dự phòng bị giới hạn bởi ngân sách: mỗi yêu cầu nạp budgetRatio token, mỗi lần hedge tiêu 1 token
+ */
+public class HedgingPolicy {
+
+    private static final Logger logger = Logger.getLogger(HedgingPolicy.class.getName());
+
+    // Ngân sách tích lũy tối đa, tránh một loạt hedge dồn dập sau thời gian dài không cần hedge
+    private static final double MAX_BUDGET_TOKENS = 10;
+
+    private final String name;
+    private final boolean enabled;
+    private final double quantile;
+    private final double budgetRatio;
+    private final int minSamples;
+    private final long minDelayMillis;
+    private final LatencyTracker latencyTracker;
+
+    private double budgetTokens;
+    private long requests;
+    private long hedgedRequests;
+    private long hedgeWins;
+    private long budgetDenied;
+
+    /**
+     * @param name Tên dịch vụ phía sau
+     * @param enabled Bật gửi yêu cầu dự phòng (độ trễ vẫn được đo khi tắt)
+     * @param quantile Phân vị độ trễ dùng làm mốc gửi yêu cầu dự phòng
+     * @param budgetRatio Tỉ lệ lời gọi dự phòng tối đa so với số yêu cầu (ví dụ 0.05)
+     * @param minSamples Số mẫu độ trễ tối thiểu trước khi bắt đầu hedge
+     * @param minDelay Độ trễ tối thiểu trước khi hedge
+     * @param windowSize Số mẫu độ trễ gần nhất được giữ lại
+     */
+    public HedgingPolicy(String name, boolean enabled, double quantile, double budgetRatio,
+                         int minSamples, Duration minDelay, int windowSize) {
+        this.name = name;
+        this.enabled = enabled;
+        this.quantile = quantile;
+        this.budgetRatio = budgetRatio;
+        this.minSamples = minSamples;
+        this.minDelayMillis = minDelay.toMillis();
+        this.latencyTracker = new LatencyTracker(windowSize);
+        logger.info("Hedging '" + name + "': " + (enabled ? "bật" : "tắt") + ", phân vị p" + Math.round(quantile * 100) +
+                   ", ngân sách " + Math.round(budgetRatio * 100) + "% yêu cầu");
+    }
+
+    /**
+     * Chạy lời gọi với chính sách hedging
+     *
+     * @param attempt Hàm tạo một lần gọi mới (được gọi lần thứ hai khi hedge)
+     * @return Mono chứa kết quả về trước; lỗi chỉ được phát ra khi mọi lần gọi đều thất bại
+     */
+    public <T> Mono<T> execute(Supplier<Mono<T>> attempt) {
+        return Mono.defer(() -> {
+            long delayMillis = onRequest();
+            Mono<T> primary = measured(attempt.get(), true);
+            if (delayMillis < 0) {
+                return primary;
+            }
+
+            // Lời gọi đầu tiên lỗi trước mốc hedge thì không gửi yêu cầu dự phòng (không biến hedge thành retry)
+            Sinks.One<Boolean> primaryFailed = Sinks.one();
+            Mono<T> hedge = Mono.delay(Duration.ofMillis(delayMillis))
+                    .takeUntilOther(primaryFailed.asMono())
+                    .flatMap(tick -> {
+                        if (!tryAcquireBudget()) {
+                            return Mono.<T>empty();
+                        }
+                        logger.fine("Hedging '" + name + "': lời gọi đầu chưa trả về sau " + delayMillis + "ms, gửi yêu cầu dự phòng");
+                        return measured(attempt.get(), false).doOnNext(value -> onHedgeWin());
+                    });
+
+            return Mono.firstWithValue(primary.doOnError(error -> primaryFailed.tryEmitValue(Boolean.TRUE)), hedge)
+                    .onErrorMap(NoSuchElementException.class, this::unwrapFirstError);
+        });
+    }
+
+    /**
+     * Ghi nhận một yêu cầu mới, nạp ngân sách và tính mốc hedge
+     * @return Độ trễ trước khi hedge (ms), hoặc -1 nếu không hedge yêu cầu này
+     */
+    private synchronized long onRequest() {
+        requests++;
+        budgetTokens = Math.min(MAX_BUDGET_TOKENS, budgetTokens + budgetRatio);
+        if (!enabled || latencyTracker.getSampleCount() < minSamples) {
+            return -1;
+        }
+        return Math.max(minDelayMillis, latencyTracker.percentile(quantile));
+    }
+
+    private synchronized boolean tryAcquireBudget() {
+        if (budgetTokens < 1) {
+            budgetDenied++;
+            return false;
+        }
+        budgetTokens -= 1;
+        hedgedRequests++;
+        return true;
+    }
+
+    private synchronized void onHedgeWin() {
+        hedgeWins++;
+    }
+
+    /**
+     * Đo độ trễ của một lần gọi. Lần gọi đầu bị hủy (vì hedge thắng hoặc phía gọi hết thời gian chờ) vẫn được
+     * ghi nhận thời gian đã chạy như một cận dưới, để phân vị không bị kéo xuống bởi chính việc hedge
+     */
+    private <T> Mono<T> measured(Mono<T> call, boolean recordOnCancel) {
+        return Mono.defer(() -> {
+            long startTime = System.currentTimeMillis();
+            AtomicBoolean recorded = new AtomicBoolean();
+            Mono<T> timed = call.doOnNext(value -> {
+                if (recorded.compareAndSet(false, true)) {
+                    latencyTracker.record(System.currentTimeMillis() - startTime);
+                }
+            });
+            if (recordOnCancel) {
+                timed = timed.doOnCancel(() -> {
+                    if (recorded.compareAndSet(false, true)) {
+                        latencyTracker.record(System.currentTimeMillis() - startTime);
+                    }
+                });
+            }
+            return timed;
+        });
+    }
+
+    /**
+     * Mono.firstWithValue báo NoSuchElementException khi mọi nguồn đều lỗi hoặc rỗng; trả lại lỗi gốc đầu tiên
+     * để phía gọi (circuit breaker, bắt ngoại lệ theo kiểu) vẫn nhận đúng loại lỗi
+     */
+    private Throwable unwrapFirstError(NoSuchElementException error) {
+        if (error.getCause() != null) {
+            List<Throwable> causes = Exceptions.unwrapMultiple(error.getCause());
+            for (Throwable cause : causes) {
+                if (cause != null) {
+                    return cause;
+                }
+            }
+        }
+        return error;
+    }
+
+    public LatencyTracker getLatencyTracker() {
+        return latencyTracker;
+    }
+
+    /**
+     * Thống kê hedging: số yêu cầu, số lời gọi dự phòng, số lần dự phòng thắng và mốc hedge hiện tại
+     */
+    public synchronized Map<String, Object> getStatistics() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("enabled", enabled);
+        stats.put("requests", requests);
+        stats.put("hedgedRequests", hedgedRequests);
+        stats.put("hedgeRate", requests == 0 ? 0.0 : Math.round(hedgedRequests * 10000.0 / requests) / 10000.0);
+        stats.put("hedgeWins", hedgeWins);
+        stats.put("budgetDenied", budgetDenied);
+        stats.put("budgetRatio", budgetRatio);
+        stats.put("availableBudget", Math.round(budgetTokens * 100) / 100.0);
+        stats.put("hedgeDelayMs", latencyTracker.getSampleCount() < minSamples ? -1
+                : Math.max(minDelayMillis, latencyTracker.percentile(quantile)));
+        return stats;
+    }
+}
@@ -1,19 +1,33 @@
 package aidhkm.dhkm16a1hn.service; // Khai báo package cho lớp dịch vụ
 
+import aidhkm.dhkm16a1hn.embedding.Embedding; // Import vector nhúng kèm mã mô hình
+import aidhkm.dhkm16a1hn.generation.ContextPacker; // Import bộ ghép ngữ cảnh theo ngân sách token
+import aidhkm.dhkm16a1hn.generation.GenerationRouter; // Import bộ định tuyến giữa các nguồn sinh văn bản
 import aidhkm.dhkm16a1hn.model.*; // Import tất cả các model
 import aidhkm.dhkm16a1hn.repository.ChatHistoryRepository; // Import repository lưu trữ lịch sử chat
 import aidhkm.dhkm16a1hn.repository.EmbeddingRepository; // Import repository lưu trữ các vector nhúng
 import aidhkm.dhkm16a1hn.repository.QuestionRepository; // Import repository lưu trữ câu hỏi
+import aidhkm.dhkm16a1hn.util.Deadline; // Import hạn chót của yêu cầu
+import aidhkm.dhkm16a1hn.util.LatencyTracker; // Import bộ đo phân vị độ trễ
+import aidhkm.dhkm16a1hn.util.SentenceIndex; // Import chỉ mục câu tính sẵn khi nạp tài liệu
+import aidhkm.dhkm16a1hn.util.SingleFlight; // Import tiện ích gộp các lời gọi đồng thời giống nhau
 import aidhkm.dhkm16a1hn.util.VectorUtil; // Import tiện ích xử lý vector
 import jakarta.annotation.PostConstruct; // Import annotation để đánh dấu phương thức khởi tạo sau khi bean được tạo
 import lombok.extern.slf4j.Slf4j; // Import annotation để tạo logger
 import org.springframework.beans.factory.annotation.Autowired; // Import annotation để tiêm phụ thuộc tự động
+import org.springframework.beans.factory.annotation.Value; // Import annotation để đọc giá trị từ file cấu hình
 import org.springframework.scheduling.annotation.Async; // Import annotation để đánh dấu phương thức bất đồng bộ
+import org.springframework.scheduling.annotation.Scheduled; // Import annotation để chạy tác vụ định kỳ
 import org.springframework.stereotype.Service; // Import annotation để đánh dấu lớp dịch vụ
+import reactor.core.publisher.Flux; // Import luồng phản ứng nhiều phần tử (streaming)
+import reactor.core.publisher.Mono; // Import luồng phản ứng một phần tử
+import reactor.core.scheduler.Schedulers; // Import bộ lập lịch cho tác vụ chặn
 
+import java.time.Duration; // Import lớp đại diện cho khoảng thời gian
 import java.time.LocalDateTime; // Import lớp đại diện cho ngày giờ
 import java.util.*; // Import tất cả các lớp tiện ích
 import java.util.concurrent.*; // Import tất cả các lớp xử lý đồng thời
+import java.util.concurrent.atomic.AtomicLong; // Import bộ đếm nguyên tử cho thống kê
 import java.util.regex.Pattern; // Import lớp mẫu biểu thức chính quy
 import java.util.stream.Collectors; // Import lớp tiện ích xử lý luồng dữ liệu
 
@@ -31,14 +45,51 @@ public class ChatService { // Khai báo lớp dịch vụ xử lý chat - lớp
     private ChatHistoryRepository chatHistoryRepository; // Repository để truy vấn và lưu trữ lịch sử chat
 
     @Autowired // Tiêm phụ thuộc tự động từ Spring container
-    private VertexAIService vertexAIService; // Dịch vụ tích hợp với Vertex AI để sử dụng mô hình ngôn ngữ
+    private GenerationRouter generationRouter; // Bộ định tuyến gửi yêu cầu sinh văn bản tới nguồn nhanh nhất (Vertex AI, Ollama...)
 
     @Autowired // Tiêm phụ thuộc tự động từ Spring container
     private VectorService vectorService; // Dịch vụ xử lý vector, tạo nhúng và tìm kiếm tương tự
 
+    @Autowired // Tiêm phụ thuộc tự động từ Spring container
+    private ContextPacker contextPacker; // Ghép ngữ cảnh cho prompt: loại câu trùng, chọn câu điểm cao trong ngân sách token
+
+    @Autowired // Tiêm phụ thuộc tự động từ Spring container
+    private SemanticAnswerCacheService semanticAnswerCache; // Cache câu trả lời theo ngữ nghĩa, dùng lại câu trả lời cho câu hỏi gần nghĩa
+
+    @Autowired // Tiêm phụ thuộc tự động từ Spring container
+    private NLPService nlpService; // Dịch vụ NLP, dùng các quy tắc trích xuất câu trả lời theo loại câu hỏi khi mô hình không kịp trả lời
+
+    // Hạn chót của mỗi yêu cầu chat: mỗi bước lấy thời gian chờ từ phần còn lại, hết hạn thì trả câu trả lời trích xuất
+    @Value("${app.chat.deadline-ms:8000}") // Tổng thời gian tối đa của một yêu cầu
+    private long deadlineMs;
+
+    @Value("${app.chat.embedding-budget-ms:2000}") // Thời gian tối đa cho bước tạo vector câu hỏi
+    private long embeddingBudgetMs;
+
+    @Value("${app.chat.retrieval-budget-ms:3000}") // Thời gian tối đa cho bước tìm kiếm ngữ cảnh
+    private long retrievalBudgetMs;
+
+    @Value("${app.chat.min-generation-ms:500}") // Không gọi mô hình nếu thời gian còn lại ít hơn mức này
+    private long minGenerationMs;
+
+    @Value("${app.chat.extractive-reserve-ms:100}") // Thời gian giữ lại để tạo câu trả lời trích xuất sau khi hủy lời gọi mô hình
+    private long extractiveReserveMs;
+
+    // Trả lời trích xuất không qua mô hình khi ngữ cảnh khớp rõ ràng với câu hỏi đơn giản
+    @Value("${app.chat.bypass.enabled:true}") // Bật/tắt đường trả lời không qua mô hình
+    private boolean bypassEnabled;
+
+    @Value("${app.chat.bypass.min-score:0.75}") // Điểm tương đồng tối thiểu của đoạn tốt nhất
+    private float bypassMinScore;
+
+    @Value("${app.chat.bypass.max-chars:600}") // Câu trả lời trích xuất dài hơn mức này được coi là không đủ rõ ràng
+    private int bypassMaxChars;
+
     private static final int MAX_ANSWER_LENGTH = 4000; // Độ dài tối đa của câu trả lời, giới hạn để tránh trả lời quá dài
     private static final int MAX_SIMILAR_SENTENCES = 10; // Số lượng câu tương tự tối đa để truy vấn, tối ưu hóa hiệu suất
     private static final int MAX_CACHE_SIZE = 100; // Kích thước tối đa của bộ nhớ đệm, giới hạn để tránh dùng quá nhiều bộ nhớ
+    // Loại câu hỏi có câu trả lời nằm sẵn trong một vài câu của ngữ cảnh (không cần mô hình tổng hợp)
+    private static final Set<QuestionType> BYPASS_QUESTION_TYPES = EnumSet.of(QuestionType.DEFINITION, QuestionType.WHO_WHAT, QuestionType.HISTORICAL, QuestionType.LISTING);
     public static final String NO_INFORMATION_MESSAGE = "Không tìm thấy thông tin liên quan trong cơ sở dữ liệu."; // Thông báo khi không tìm thấy thông tin, hằng số có thể được sử dụng từ bên ngoài lớp
 
     // Bộ nhớ đệm cho việc tối ưu hóa câu trả lời - sử dụng LinkedHashMap với cơ chế LRU (Least Recently Used)
@@ -49,8 +100,28 @@ public class ChatService { // Khai báo lớp dịch vụ xử lý chat - lớp
         }
     });
 
-    // Pool luồng cho xử lý bất đồng bộ để cải thiện hiệu suất xử lý câu hỏi
-    private final ExecutorService threadPool = Executors.newFixedThreadPool(5); // Tạo pool với 5 luồng cố định để thực hiện các tác vụ bất đồng bộ
+    // Gộp các yêu cầu đồng thời cho cùng một câu hỏi thành một lần xử lý (single-flight)
+    private final SingleFlight<String, String> questionFlights = new SingleFlight<>(); // Bảng các câu hỏi đang được xử lý
+
+    // Thống kê hạn chót: độ trễ từng bước và số lần phải trả câu trả lời trích xuất vì hết thời gian
+    private final LatencyTracker totalLatency = new LatencyTracker(1000); // Độ trễ toàn bộ yêu cầu
+    private final LatencyTracker embeddingLatency = new LatencyTracker(1000); // Độ trễ tạo vector câu hỏi
+    private final LatencyTracker retrievalLatency = new LatencyTracker(1000); // Độ trễ tìm kiếm ngữ cảnh
+    private final LatencyTracker generationLatency = new LatencyTracker(1000); // Độ trễ gọi mô hình (kể cả khi bị hủy)
+    private final AtomicLong embeddingTimeouts = new AtomicLong(); // Số lần tạo vector câu hỏi quá hạn (chuyển sang tìm theo từ khóa)
+    private final AtomicLong retrievalTimeouts = new AtomicLong(); // Số lần tìm kiếm ngữ cảnh quá hạn
+    private final AtomicLong generationTimeouts = new AtomicLong(); // Số lần lời gọi mô hình bị hủy vì hết hạn
+    private final AtomicLong generationSkipped = new AtomicLong(); // Số lần không gọi mô hình vì không còn đủ thời gian
+    private final AtomicLong extractiveFallbacks = new AtomicLong(); // Số câu trả lời trích xuất thay cho câu trả lời của mô hình
+
+    // Thống kê trả lời không qua mô hình: tỉ lệ câu hỏi được trả lời trực tiếp và độ trễ của chúng
+    private final AtomicLong bypassCandidates = new AtomicLong(); // Số câu hỏi cần tạo câu trả lời từ ngữ cảnh
+    private final AtomicLong bypassAnswers = new AtomicLong(); // Số câu hỏi được trả lời trích xuất không qua mô hình
+    private final LatencyTracker bypassLatency = new LatencyTracker(1000); // Độ trễ toàn bộ yêu cầu được trả lời không qua mô hình
+
+    // Vector của các câu hỏi đã lưu, tính sẵn ngoài luồng xử lý yêu cầu: tìm câu hỏi tương tự không gọi mô hình nhúng
+    private volatile List<StoredQuestion> storedQuestions = Collections.emptyList(); // Ảnh chụp bất biến, luồng đọc không cần khóa
+    private final Object storedQuestionsLock = new Object(); // Khóa khi thay ảnh chụp câu hỏi đã lưu
 
     // Các câu trả lời hội thoại cho các cụm từ đơn giản - phân loại theo ngôn ngữ
     private final Map<String, List<String>> conversationalResponsesVi = new HashMap<>(); // Danh sách câu trả lời tiếng Việt cho các câu hỏi/cụm từ đơn giản
@@ -106,35 +177,39 @@ public class ChatService { // Khai báo lớp dịch vụ xử lý chat - lớp
             return cachedResponse; // Trả về câu trả lời từ bộ nhớ đệm mà không cần xử lý lại
         }
 
+        // Gộp các yêu cầu đồng thời cho cùng một câu hỏi: chỉ một luồng tìm kiếm và gọi mô hình, các luồng khác dùng chung kết quả
+        String flightKey = normalizedQuestion + "#" + documentId; // Khóa gộp gồm câu hỏi đã chuẩn hóa và tài liệu
+        return questionFlights.execute(flightKey, () -> answerQuestion(normalizedQuestion, documentId, startTime)); // Thực hiện hoặc chờ lời gọi đang chạy
+    }
+
+    /**
+     * Tìm kiếm và tạo câu trả lời cho câu hỏi chưa có trong bộ nhớ đệm
+     * Chỉ được gọi bởi một luồng cho mỗi câu hỏi tại một thời điểm (xem questionFlights)
+     *
+     * @param normalizedQuestion Câu hỏi đã chuẩn hóa
+     * @param documentId ID của tài liệu liên quan (có thể null)
+     * @param startTime Thời điểm bắt đầu xử lý yêu cầu
+     * @return Câu trả lời cho câu hỏi
+     */
+    private String answerQuestion(String normalizedQuestion, Long documentId, long startTime) { // Phương thức tìm kiếm và tạo câu trả lời
+        Deadline deadline = Deadline.startingAt(startTime, deadlineMs); // Hạn chót của yêu cầu, tính từ lúc nhận câu hỏi
         try {
-            // Tìm kiếm các câu hỏi tương tự trong cơ sở dữ liệu sử dụng CompletableFuture để xử lý bất đồng bộ
-            CompletableFuture<List<QuestionMatch>> similarQuestionsFuture = CompletableFuture.supplyAsync(() -> { // Tạo future để tìm kiếm câu hỏi tương tự bất đồng bộ
-                try {
-                    return findSimilarQuestions(normalizedQuestion); // Tìm các câu hỏi tương tự từ cơ sở dữ liệu
-                } catch (Exception e) { // Bắt ngoại lệ nếu có
-                    log.error("Error finding similar questions: {}", e.getMessage()); // Ghi log lỗi
-                    return Collections.emptyList(); // Trả về danh sách rỗng nếu lỗi để tiếp tục xử lý
-                }
-            }, threadPool); // Sử dụng thread pool đã định nghĩa để thực hiện công việc
-
-            // Tìm kiếm các câu tương tự trong cơ sở dữ liệu vector bất đồng bộ - phương pháp thứ hai
-            CompletableFuture<List<String>> similarSentencesFuture = CompletableFuture.supplyAsync(() -> { // Tạo future để tìm các câu tương tự bất đồng bộ
-                try {
-                    List<String> sentences = vectorService.searchSimilarSentences(normalizedQuestion, MAX_SIMILAR_SENTENCES); // Tìm câu tương tự từ vector DB
-                    log.debug("Found {} similar sentences for question: {}", sentences.size(), normalizedQuestion); // Ghi log số câu tìm được
-                    return sentences; // Trả về các câu tương tự
-                } catch (Exception e) { // Bắt ngoại lệ nếu có
-                    log.error("Error searching similar sentences: {}", e.getMessage()); // Ghi log lỗi
-                    return Collections.emptyList(); // Trả về danh sách rỗng nếu lỗi để tiếp tục xử lý
-                }
-            }, threadPool); // Sử dụng thread pool đã định nghĩa để thực hiện công việc
+            // Kiểm tra cache ngữ nghĩa: câu hỏi diễn đạt khác nhưng cùng nghĩa với câu hỏi đã trả lời
+            Embedding questionVector = embedQuestion(normalizedQuestion, deadline); // Vector câu hỏi trong ngân sách của bước (được cache nên bước tìm kiếm phía sau không phải tạo lại)
+            String semanticAnswer = semanticAnswerCache.lookup(questionVector); // Tìm câu hỏi gần nghĩa trong cùng thế hệ tài liệu
+            if (semanticAnswer != null) { // Trúng cache ngữ nghĩa, không cần tìm kiếm và gọi mô hình
+                log.debug("Semantic cache hit for question: {}", normalizedQuestion); // Ghi log trúng cache ngữ nghĩa
+                return semanticAnswer;
+            }
 
-            // Chờ cả hai future hoàn thành với timeout để tránh chờ đợi quá lâu
-            List<QuestionMatch> similarQuestions = similarQuestionsFuture.get(5, TimeUnit.SECONDS); // Đợi kết quả tìm câu hỏi với timeout 5 giây
-            List<String> similarSentences = similarSentencesFuture.get(10, TimeUnit.SECONDS); // Đợi kết quả tìm câu với timeout 10 giây
+            // Tìm kiếm song song câu hỏi tương tự và câu tương tự trong cơ sở dữ liệu vector
+            RetrievedContext retrieved = retrieveContext(normalizedQuestion, questionVector, deadline); // Kết quả tìm kiếm ngữ cảnh trong ngân sách của bước
+            List<QuestionMatch> similarQuestions = retrieved.similarQuestions; // Các câu hỏi tương tự đã sắp xếp
+            List<String> similarSentences = retrieved.similarSentences; // Các câu tương tự từ vector search
 
             // Xử lý kết quả và tạo câu trả lời
             String answer = ""; // Khởi tạo biến câu trả lời
+            boolean fallback = false; // Câu trả lời trích xuất thay cho mô hình (hết hạn hoặc mô hình lỗi)
             if (!similarQuestions.isEmpty()) { // Nếu tìm thấy câu hỏi tương tự
                 // Sử dụng câu trả lời của câu hỏi tương tự nhất - ưu tiên câu trả lời có sẵn
                 QuestionMatch bestMatch = similarQuestions.get(0); // Lấy câu hỏi có độ tương tự cao nhất (đầu tiên trong danh sách đã sắp xếp)
@@ -143,29 +218,24 @@ public class ChatService { // Khai báo lớp dịch vụ xử lý chat - lớp
             } else if (!similarSentences.isEmpty()) { // Nếu không có câu hỏi tương tự nhưng có câu tương tự từ vector search
                 // Sử dụng kết quả tìm kiếm vector để tạo câu trả lời mới
                 log.debug("Found {} similar sentences, generating answer", similarSentences.size()); // Ghi log số câu tương tự
-                answer = generateAnswerFromSimilarSentences(normalizedQuestion, similarSentences); // Tạo câu trả lời mới từ các câu tương tự
+                GeneratedAnswer generated = generateAnswerFromSimilarSentences(normalizedQuestion, similarSentences, deadline); // Tạo câu trả lời mới từ các câu tương tự
+                answer = generated.text;
+                fallback = generated.extractive;
 
                 // Lưu câu hỏi và câu trả lời cho sử dụng sau này để cải thiện hệ thống
-                if (!answer.equals(NO_INFORMATION_MESSAGE) && documentId != null) { // Nếu có câu trả lời hợp lệ và có documentId
-                    saveQuestionAnswer(normalizedQuestion, answer, documentId); // Lưu câu hỏi và trả lời vào DB để tái sử dụng sau này
+                if (!answer.equals(NO_INFORMATION_MESSAGE) && documentId != null && !fallback && generationRouter.isGenerationHealthy()) { // Nếu có câu trả lời hợp lệ của mô hình, có documentId và không phải câu trả lời dự phòng
+                    saveQuestionAnswer(normalizedQuestion, questionVector, answer, documentId); // Lưu câu hỏi và trả lời vào DB để tái sử dụng sau này
                 }
             } else { // Nếu không tìm thấy câu hoặc câu hỏi tương tự
                 answer = NO_INFORMATION_MESSAGE; // Trả về thông báo không tìm thấy thông tin
             }
 
             // Lưu trữ câu trả lời vào bộ nhớ đệm nếu không phải là thông báo "không có thông tin" mặc định
-            if (!answer.equals(NO_INFORMATION_MESSAGE) && responseCache.size() < MAX_CACHE_SIZE) { // Nếu câu trả lời hợp lệ và bộ đệm chưa đầy
-                responseCache.put(normalizedQuestion, answer); // Thêm vào bộ nhớ đệm để sử dụng lần sau
-            }
-
-            // Duy trì kích thước bộ nhớ đệm - đoạn này có vẻ thừa vì đã có cơ chế tự loại bỏ phần tử cũ trong LinkedHashMap
-            if (responseCache.size() > MAX_CACHE_SIZE) { // Nếu bộ nhớ đệm vượt quá kích thước tối đa
-                // Xóa một mục ngẫu nhiên - chính sách loại bỏ đơn giản
-                String keyToRemove = responseCache.keySet().iterator().next(); // Lấy phần tử đầu tiên
-                responseCache.remove(keyToRemove); // Xóa phần tử đó
-            }
+            boolean degraded = fallback || (similarQuestions.isEmpty() && !generationRouter.isGenerationHealthy()); // Câu trả lời trích xuất (hết hạn, mạch tạo văn bản không đóng) chỉ là tạm thời
+            cacheAnswer(normalizedQuestion, questionVector, answer, degraded); // Lưu vào bộ nhớ đệm
 
             long processingTime = System.currentTimeMillis() - startTime; // Tính thời gian xử lý từ lúc bắt đầu đến khi hoàn thành
+            totalLatency.record(processingTime); // Ghi nhận độ trễ toàn bộ yêu cầu
             log.debug("Question processed in {}ms: {}", processingTime, normalizedQuestion); // Ghi log thời gian xử lý
 
             return answer; // Trả về câu trả lời cuối cùng
@@ -175,6 +245,243 @@ public class ChatService { // Khai báo lớp dịch vụ xử lý chat - lớp
         }
     }
 
+    /**
+     * Tìm kiếm song song các câu hỏi tương tự và các câu tương tự cho câu hỏi
+     * Thời gian chờ lấy từ ngân sách của bước tìm kiếm; tìm kiếm quá hạn bị hủy và coi như không có kết quả.
+     * Khi không có vector câu hỏi (tạo vector quá hạn hoặc lỗi), chỉ tìm theo từ khóa để không gọi lại mô hình nhúng
+     * @param normalizedQuestion Câu hỏi đã chuẩn hóa
+     * @param questionVector Vector câu hỏi, rỗng nếu không tạo được
+     * @param deadline Hạn chót của yêu cầu
+     * @return Kết quả tìm kiếm ngữ cảnh
+     */
+    private RetrievedContext retrieveContext(String normalizedQuestion, Embedding questionVector, Deadline deadline) { // Phương thức tìm kiếm ngữ cảnh cho câu hỏi
+        long retrievalStart = System.currentTimeMillis(); // Thời điểm bắt đầu tìm kiếm
+        if (questionVector.isEmpty()) { // Không có vector: tìm câu hỏi tương tự cần vector nên bỏ qua, tìm câu theo từ khóa
+            List<String> keywordSentences = vectorService.keywordBasedSearch(normalizedQuestion, MAX_SIMILAR_SENTENCES); // Tìm kiếm trong chỉ mục đã nạp, không gọi API
+            retrievalLatency.record(System.currentTimeMillis() - retrievalStart); // Ghi nhận độ trễ tìm kiếm
+            return new RetrievedContext(Collections.emptyList(), keywordSentences);
+        }
+        // Hai tìm kiếm chạy song song trên boundedElastic với vector đã có (không gọi lại mô hình nhúng) và chung một ngân sách
+        long retrievalBudget = deadline.budgetFor(retrievalBudgetMs, minGenerationMs); // Giữ lại thời gian cho bước tạo câu trả lời
+        Mono<List<QuestionMatch>> similarQuestions = searchWithinBudget(
+                Mono.fromCallable(() -> findSimilarQuestions(questionVector)), retrievalBudget, "similar questions"); // Tìm trong vector câu hỏi đã tính sẵn
+        Mono<List<String>> similarSentences = searchWithinBudget(Mono.fromCallable(() -> {
+            List<String> sentences = vectorService.searchSimilarSentences(normalizedQuestion, questionVector, MAX_SIMILAR_SENTENCES); // Tìm câu tương tự từ chỉ mục vector
+            log.debug("Found {} similar sentences for question: {}", sentences.size(), normalizedQuestion); // Ghi log số câu tìm được
+            return sentences;
+        }), retrievalBudget, "similar sentences");
+
+        RetrievedContext retrieved = Mono.zip(similarQuestions, similarSentences)
+                .map(results -> new RetrievedContext(results.getT1(), results.getT2()))
+                .block(); // Cả hai tìm kiếm đã có kết quả dự phòng nên luôn có giá trị
+        retrievalLatency.record(System.currentTimeMillis() - retrievalStart); // Ghi nhận độ trễ tìm kiếm
+        return retrieved; // Trả về kết quả tìm kiếm
+    }
+
+    /**
+     * Chạy một tìm kiếm trên boundedElastic trong ngân sách của bước tìm kiếm
+     * Quá ngân sách thì đăng ký bị hủy (luồng đang chạy tìm kiếm được ngắt, không giữ chỗ của pool nào) và tìm kiếm coi như
+     * không có kết quả; tìm kiếm lỗi cũng trả về danh sách rỗng để tiếp tục xử lý
+     */
+    private <T> Mono<List<T>> searchWithinBudget(Mono<List<T>> search, long budgetMs, String stage) { // Phương thức giới hạn thời gian của một tìm kiếm
+        return search
+                .subscribeOn(Schedulers.boundedElastic()) // Tìm kiếm chặn luồng (đọc chỉ mục, cơ sở dữ liệu) chạy ngoài luồng xử lý yêu cầu
+                .timeout(Duration.ofMillis(Math.max(1, budgetMs)))
+                .onErrorResume(e -> {
+                    if (e instanceof TimeoutException) { // Hết ngân sách của bước tìm kiếm
+                        retrievalTimeouts.incrementAndGet();
+                        log.warn("Retrieval of {} exceeded its budget, continuing without it", stage); // Ghi log cảnh báo
+                    } else {
+                        log.error("Error retrieving {}: {}", stage, e.getMessage()); // Ghi log lỗi
+                    }
+                    return Mono.just(Collections.<T>emptyList());
+                });
+    }
+
+    /**
+     * Tạo vector nhúng cho câu hỏi đã chuẩn hóa trong ngân sách của bước tạo vector
+     * Lời gọi mô hình nhúng (có thử lại và chờ bulkhead) có thể lâu hơn cả hạn chót, nên quá ngân sách thì không chờ nữa:
+     * cache ngữ nghĩa bị bỏ qua và ngữ cảnh được tìm theo từ khóa
+     * @param normalizedQuestion Câu hỏi đã chuẩn hóa
+     * @param deadline Hạn chót của yêu cầu
+     * @return Vector nhúng kèm mã mô hình, hoặc vector rỗng nếu không tạo được hoặc quá hạn
+     */
+    private Embedding embedQuestion(String normalizedQuestion, Deadline deadline) { // Phương thức tạo vector cho câu hỏi
+        long embeddingStart = System.currentTimeMillis(); // Thời điểm bắt đầu tạo vector
+        long embeddingBudget = deadline.budgetFor(embeddingBudgetMs, minGenerationMs); // Giữ lại thời gian cho tìm kiếm và tạo câu trả lời
+        try {
+            return Mono.fromCallable(() -> vectorService.createEmbedding(normalizedQuestion)) // Vector được lưu trong cache vector nhúng
+                    .subscribeOn(Schedulers.boundedElastic()) // Lời gọi chặn chạy ngoài thread pool tìm kiếm, quá hạn không giữ luồng của pool
+                    .timeout(Duration.ofMillis(embeddingBudget))
+                    .onErrorResume(TimeoutException.class, e -> { // Mô hình nhúng chậm hơn ngân sách của bước
+                        embeddingTimeouts.incrementAndGet();
+                        log.warn("Embedding the question exceeded its {}ms budget, falling back to keyword retrieval", embeddingBudget); // Ghi log cảnh báo
+                        return Mono.just(Embedding.empty());
+                    })
+                    .block();
+        } catch (Exception e) { // Không tạo được vector (ví dụ mô hình nhúng lỗi)
+            log.warn("Could not embed question for semantic cache: {}", e.getMessage()); // Ghi log cảnh báo
+            return Embedding.empty();
+        } finally {
+            embeddingLatency.record(System.currentTimeMillis() - embeddingStart); // Ghi nhận độ trễ tạo vector
+        }
+    }
+
+    /**
+     * Lưu câu trả lời vào bộ nhớ đệm (theo câu hỏi chính xác và theo ngữ nghĩa)
+     * @param normalizedQuestion Câu hỏi đã chuẩn hóa
+     * @param questionVector Vector nhúng của câu hỏi (rỗng nếu không có)
+     * @param answer Câu trả lời
+     * @param degraded true nếu là câu trả lời dự phòng khi mô hình gặp sự cố (không lưu)
+     */
+    private void cacheAnswer(String normalizedQuestion, Embedding questionVector, String answer, boolean degraded) { // Phương thức lưu câu trả lời vào bộ nhớ đệm
+        if (!answer.equals(NO_INFORMATION_MESSAGE) && !degraded && responseCache.size() < MAX_CACHE_SIZE) { // Nếu câu trả lời hợp lệ, không phải dự phòng và bộ đệm chưa đầy
+            responseCache.put(normalizedQuestion, answer); // Thêm vào bộ nhớ đệm để sử dụng lần sau
+        }
+        if (!answer.equals(NO_INFORMATION_MESSAGE) && !degraded) { // Chỉ câu trả lời hợp lệ mới được dùng lại cho câu hỏi gần nghĩa
+            semanticAnswerCache.put(normalizedQuestion, questionVector, answer); // Lưu kèm thế hệ tài liệu hiện tại
+        }
+
+        // Duy trì kích thước bộ nhớ đệm - đoạn này có vẻ thừa vì đã có cơ chế tự loại bỏ phần tử cũ trong LinkedHashMap
+        if (responseCache.size() > MAX_CACHE_SIZE) { // Nếu bộ nhớ đệm vượt quá kích thước tối đa
+            // Xóa một mục ngẫu nhiên - chính sách loại bỏ đơn giản
+            String keyToRemove = responseCache.keySet().iterator().next(); // Lấy phần tử đầu tiên
+            responseCache.remove(keyToRemove); // Xóa phần tử đó
+        }
+    }
+
+    /**
+     * Xử lý câu hỏi và trả về câu trả lời theo luồng (dùng cho endpoint SSE)
+     * Ngữ cảnh được tìm kiếm trên boundedElastic, sau đó văn bản từ mô hình được chuyển tiếp ngay khi sinh ra.
+     * Không có luồng nào bị giữ trong lúc chờ mô hình. Nếu mô hình lỗi hoặc chưa có token đầu tiên khi hết hạn chót,
+     * lời gọi bị hủy và câu trả lời trích xuất trực tiếp được trả về thay thế
+     *
+     * @param question Câu hỏi của người dùng
+     * @param documentId ID của tài liệu liên quan (có thể null)
+     * @return Flux các đoạn câu trả lời
+     */
+    public Flux<String> streamQuestion(String question, Long documentId) { // Phương thức xử lý câu hỏi theo luồng
+        String normalizedQuestion = normalizeQuestion(question); // Chuẩn hóa câu hỏi đầu vào
+        if (normalizedQuestion.isEmpty()) { // Nếu câu hỏi rỗng sau khi chuẩn hóa
+            return Flux.just("Vui lòng nhập câu hỏi."); // Trả về thông báo yêu cầu nhập câu hỏi
+        }
+
+        String conversationalResponse = getConversationalResponse(normalizedQuestion); // Thử lấy câu trả lời hội thoại đơn giản
+        if (conversationalResponse != null) { // Nếu có câu trả lời hội thoại
+            return Flux.just(conversationalResponse); // Trả về ngay
+        }
+
+        String cachedResponse = responseCache.get(normalizedQuestion); // Thử lấy câu trả lời từ bộ nhớ đệm
+        if (cachedResponse != null) { // Nếu có trong bộ nhớ đệm
+            return Flux.just(cachedResponse); // Trả về ngay
+        }
+
+        Deadline deadline = Deadline.after(deadlineMs); // Hạn chót cho token đầu tiên của câu trả lời
+        return Mono.fromCallable(() -> {
+                    Embedding questionVector = embedQuestion(normalizedQuestion, deadline); // Vector câu hỏi cho cache ngữ nghĩa, trong ngân sách của bước
+                    String semanticAnswer = semanticAnswerCache.lookup(questionVector); // Câu hỏi gần nghĩa đã được trả lời
+                    if (semanticAnswer != null) { // Trúng cache ngữ nghĩa, bỏ qua tìm kiếm ngữ cảnh
+                        return RetrievedContext.cached(semanticAnswer, questionVector);
+                    }
+                    return retrieveContext(normalizedQuestion, questionVector, deadline).withQuestionVector(questionVector); // Tìm kiếm ngữ cảnh (truy cập cơ sở dữ liệu)
+                })
+                .subscribeOn(Schedulers.boundedElastic()) // Chạy ngoài luồng xử lý yêu cầu
+                .flatMapMany(retrieved -> {
+                    if (retrieved.cachedAnswer != null) { // Câu trả lời lấy từ cache ngữ nghĩa
+                        return Flux.just(retrieved.cachedAnswer);
+                    }
+                    if (!retrieved.similarQuestions.isEmpty()) { // Ưu tiên câu trả lời có sẵn của câu hỏi tương tự
+                        String answer = retrieved.similarQuestions.get(0).getAnswerText(); // Câu trả lời của câu hỏi tương tự nhất
+                        cacheAnswer(normalizedQuestion, retrieved.questionVector, answer, false); // Lưu vào bộ nhớ đệm
+                        return Flux.just(answer);
+                    }
+                    AnswerPlan plan = planAnswer(normalizedQuestion, retrieved.similarSentences, deadline); // Kiểm tra ngữ cảnh và tạo prompt
+                    if (plan.immediateAnswer != null) { // Không cần gọi mô hình
+                        return Flux.just(plan.immediateAnswer);
+                    }
+
+                    long firstTokenBudget = deadline.budgetFor(Long.MAX_VALUE, extractiveReserveMs); // Thời gian còn lại cho token đầu tiên
+                    if (firstTokenBudget < minGenerationMs) { // Không còn đủ thời gian để gọi mô hình
+                        generationSkipped.incrementAndGet();
+                        return Flux.just(extractiveAnswer(plan));
+                    }
+
+                    StringBuilder streamed = new StringBuilder(); // Văn bản đã chuyển tiếp cho người dùng
+                    // Chuyển tiếp token từ mô hình; bộ định tuyến chỉ giới hạn thời gian tới token đầu tiên
+                    return generationRouter.streamGenerateText(plan.prompt, plan.maxOutputTokens, Deadline.after(firstTokenBudget))
+                            .doOnNext(streamed::append)
+                            // Đặt trước onErrorResume: chỉ chạy khi mô hình kết thúc luồng bình thường, không chạy khi luồng bị cắt giữa chừng
+                            .doOnComplete(() -> {
+                                if (streamed.length() > 0 && !isInvalidAnswer(streamed.toString())) { // Chỉ lưu câu trả lời hoàn chỉnh từ mô hình
+                                    String answer = finalizeGeneratedAnswer(streamed.toString()); // Chuẩn hóa trước khi lưu
+                                    cacheAnswer(normalizedQuestion, retrieved.questionVector, answer, !generationRouter.isGenerationHealthy());
+                                    if (documentId != null) { // Lưu câu hỏi và câu trả lời để tái sử dụng (ghi cơ sở dữ liệu ngoài luồng event loop)
+                                        Schedulers.boundedElastic().schedule(() -> saveQuestionAnswer(normalizedQuestion, retrieved.questionVector, answer, documentId));
+                                    }
+                                }
+                            })
+                            .onErrorResume(e -> { // Lỗi giữa chừng: giữ phần đã gửi, không lưu vào cache; lỗi hoặc hết hạn trước token đầu tiên: dùng câu trả lời trích xuất
+                                if (e instanceof TimeoutException) { // Hết hạn chót: lời gọi mô hình đã bị hủy
+                                    generationTimeouts.incrementAndGet();
+                                }
+                                log.warn("Streaming answer failed after {} chars: {}", streamed.length(), e.getMessage());
+                                return streamed.length() == 0 ? Flux.just(extractiveAnswer(plan)) : Flux.empty();
+                            })
+                            .switchIfEmpty(Flux.defer(() -> Flux.just(extractiveAnswer(plan)))); // Mô hình không trả về văn bản
+                })
+                .onErrorResume(e -> { // Lỗi khi tìm kiếm ngữ cảnh
+                    log.error("Error streaming answer: {}", e.getMessage(), e);
+                    return Flux.just("Đã xảy ra lỗi khi xử lý câu hỏi. Vui lòng thử lại.");
+                });
+    }
+
+    /**
+     * Thống kê gộp câu hỏi đồng thời (single-flight)
+     * @return Map chứa số lần xử lý thực tế và số yêu cầu đã được gộp
+     */
+    public Map<String, Object> getSingleFlightStatistics() { // Phương thức lấy thống kê gộp câu hỏi
+        return questionFlights.getStatistics(); // Trả về thống kê từ bảng gộp
+    }
+
+    /**
+     * Thống kê hạn chót của yêu cầu chat
+     * @return Map chứa phân vị độ trễ của toàn bộ yêu cầu và từng bước, số lần quá hạn và số câu trả lời trích xuất
+     */
+    public Map<String, Object> getDeadlineStatistics() { // Phương thức lấy thống kê hạn chót
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("deadlineMs", deadlineMs);
+        stats.put("embeddingBudgetMs", embeddingBudgetMs);
+        stats.put("retrievalBudgetMs", retrievalBudgetMs);
+        stats.put("total", totalLatency.getStatistics());
+        stats.put("embedding", embeddingLatency.getStatistics());
+        stats.put("retrieval", retrievalLatency.getStatistics());
+        stats.put("generation", generationLatency.getStatistics());
+        stats.put("embeddingTimeouts", embeddingTimeouts.get());
+        stats.put("retrievalTimeouts", retrievalTimeouts.get());
+        stats.put("generationTimeouts", generationTimeouts.get());
+        stats.put("generationSkipped", generationSkipped.get());
+        stats.put("extractiveFallbacks", extractiveFallbacks.get());
+        return stats;
+    }
+
+    /**
+     * Thống kê trả lời không qua mô hình
+     * @return Map chứa số câu hỏi xét, số câu hỏi được trả lời trực tiếp, tỉ lệ và độ trễ so với toàn bộ yêu cầu
+     */
+    public Map<String, Object> getBypassStatistics() { // Phương thức lấy thống kê trả lời không qua mô hình
+        Map<String, Object> stats = new LinkedHashMap<>();
+        long candidates = bypassCandidates.get();
+        long answers = bypassAnswers.get();
+        stats.put("enabled", bypassEnabled);
+        stats.put("minScore", bypassMinScore);
+        stats.put("candidates", candidates);
+        stats.put("bypassed", answers);
+        stats.put("bypassRate", candidates == 0 ? 0.0 : (double) answers / candidates);
+        stats.put("bypassLatency", bypassLatency.getStatistics());
+        stats.put("generationLatency", generationLatency.getStatistics());
+        return stats;
+    }
+
     /**
      * Lấy câu trả lời hội thoại cho các cụm từ đơn giản
      * @param question Câu hỏi của người dùng
@@ -242,55 +549,6 @@ public class ChatService { // Khai báo lớp dịch vụ xử lý chat - lớp
         return responses[randomIndex]; // Trả về câu trả lời ngẫu nhiên
     }
 
-    /**
-     * Trích xuất các câu liên quan trực tiếp đến câu hỏi
-     * Phương thức này tìm các câu trong ngữ cảnh có chứa từ khóa từ câu hỏi
-     * 
-     * @param question Câu hỏi cần tìm câu liên quan
-     * @param context Ngữ cảnh chứa các câu
-     * @return Các câu liên quan đến câu hỏi
-     */
-    private String extractRelevantSentences(String question, String context) { // Phương thức trích xuất các câu liên quan đến câu hỏi
-        try {
-            if (context.length() <= MAX_ANSWER_LENGTH) { // Nếu ngữ cảnh đã ngắn hơn độ dài tối đa
-                return context; // Trả về toàn bộ ngữ cảnh
-            }
-
-            // Tách ngữ cảnh thành các câu riêng biệt
-            String[] sentences = context.split("\\. |\\? |\\! |\\n"); // Tách ngữ cảnh bằng các dấu câu và xuống dòng
-
-            // Lấy các câu liên quan nhất dựa trên sự khớp từ khóa
-            List<String> relevantSentences = new ArrayList<>(); // Danh sách chứa các câu liên quan
-            String[] questionWords = question.toLowerCase().split("\\s+"); // Tách câu hỏi thành các từ riêng biệt
-
-            for (String sentence : sentences) {
-                String lowercaseSentence = sentence.toLowerCase();
-                int matchCount = 0;
-
-                for (String word : questionWords) {
-                    if (word.length() > 3 && lowercaseSentence.contains(word)) {
-                        matchCount++;
-                    }
-                }
-
-                if (matchCount > 0) {
-                    relevantSentences.add(sentence);
-                }
-            }
-
-            // If we found relevant sentences, join them
-            if (!relevantSentences.isEmpty()) {
-                return String.join(". ", relevantSentences);
-            }
-
-            // Otherwise return a truncated context
-            return context.substring(0, Math.min(context.length(), MAX_ANSWER_LENGTH));
-        } catch (Exception e) {
-            log.error("Error extracting relevant sentences: {}", e.getMessage());
-            return context;
-        }
-    }
-
     /**
      * Kiểm tra câu trả lời không hợp lệ
      * Phương thức này kiểm tra xem câu trả lời có hợp lệ không dựa trên nhiều tiêu chí
@@ -303,6 +561,10 @@ public class ChatService { // Khai báo lớp dịch vụ xử lý chat - lớp
             return true; // Trả về true (không hợp lệ) nếu câu trả lời rỗng
         }
 
+        if (answer.equals(VertexAIService.GENERATION_FAILED_MESSAGE)) { // Mô hình không tạo được phản hồi (lỗi API, mạch đang mở, bulkhead đầy)
+            return true; // Chuyển sang phương án trích xuất trực tiếp thay vì trả lời xin lỗi
+        }
+
         String lowercaseAnswer = answer.toLowerCase(); // Chuyển câu trả lời thành chữ thường để tìm kiếm
         return lowercaseAnswer.contains("no relevant information") || // Kiểm tra nếu chứa cụm từ tiếng Anh "no relevant information"
                lowercaseAnswer.contains("không tìm thấy thông tin") || // Kiểm tra nếu chứa cụm từ "không tìm thấy thông tin"
@@ -384,15 +646,23 @@ public class ChatService { // Khai báo lớp dịch vụ xử lý chat - lớp
 
     /**
      * Lưu câu hỏi và câu trả lời
+     * Vector của câu hỏi (đã tạo khi trả lời) được thêm ngay vào ảnh chụp câu hỏi đã lưu, không cần tạo lại
      */
-    private void saveQuestionAnswer(String question, String answer, Long documentId) {
+    private void saveQuestionAnswer(String question, Embedding questionVector, String answer, Long documentId) {
         try {
             Question q = new Question();
             q.setQuestionText(question);
             q.setAnswerText(answer);
             q.setDocumentId(documentId);
             q.setCreatedAt(LocalDateTime.now());
-            questionRepository.save(q);
+            q = questionRepository.save(q);
+            if (!questionVector.isEmpty() && !questionVector.isFallback()) {
+                synchronized (storedQuestionsLock) {
+                    List<StoredQuestion> updated = new ArrayList<>(storedQuestions);
+                    updated.add(new StoredQuestion(q, questionVector));
+                    storedQuestions = Collections.unmodifiableList(updated);
+                }
+            }
 
             if (chatHistoryRepository != null) {
                 ChatHistory chat = new ChatHistory();
@@ -492,45 +762,92 @@ public class ChatService { // Khai báo lớp dịch vụ xử lý chat - lớp
     }
 
     /**
-     * Tìm các câu hỏi tương tự trong cơ sở dữ liệu
-     * Sử dụng vector embedding và tính toán độ tương đồng cosine
+     * Tìm các câu hỏi tương tự trong các câu hỏi đã lưu
+     * So sánh vector của câu hỏi với vector đã tính sẵn của các câu hỏi đã lưu (xem refreshStoredQuestions),
+     * nên không truy cập cơ sở dữ liệu và không gọi mô hình nhúng trong lúc xử lý yêu cầu
      * 
-     * @param question Câu hỏi cần tìm kiếm tương đồng
+     * @param questionVector Vector nhúng của câu hỏi cần tìm kiếm tương đồng
      * @return Danh sách các câu hỏi tương tự đã được sắp xếp theo độ tương đồng
      */
-    private List<QuestionMatch> findSimilarQuestions(String question) { // Phương thức tìm kiếm câu hỏi tương tự dựa trên độ tương đồng ngữ nghĩa
-        try {
-            log.debug("Finding similar questions for: {}", question); // Ghi log câu hỏi đang tìm kiếm để theo dõi
-            List<Question> allQuestions = questionRepository.findAll(); // Lấy tất cả câu hỏi từ cơ sở dữ liệu
-            if (allQuestions.isEmpty()) { // Kiểm tra nếu không có câu hỏi nào trong cơ sở dữ liệu
-                return Collections.emptyList(); // Trả về danh sách rỗng nếu không có dữ liệu
+    private List<QuestionMatch> findSimilarQuestions(Embedding questionVector) { // Phương thức tìm kiếm câu hỏi tương tự dựa trên độ tương đồng ngữ nghĩa
+        List<StoredQuestion> snapshot = storedQuestions; // Ảnh chụp hiện tại, đọc không khóa
+        if (snapshot.isEmpty() || questionVector.isFallback()) { // Chưa có vector câu hỏi nào, hoặc vector dự phòng không mang ngữ nghĩa
+            return Collections.emptyList();
+        }
+
+        // Tính độ tương đồng với các câu hỏi đã lưu cùng mô hình nhúng
+        List<QuestionMatch> scoredQuestions = new ArrayList<>(); // Tạo danh sách chứa các câu hỏi có điểm tương đồng
+        for (StoredQuestion stored : snapshot) { // Duyệt qua từng câu hỏi đã lưu
+            if (!Objects.equals(stored.vector.getModelId(), questionVector.getModelId())
+                    || stored.vector.getDimension() != questionVector.getDimension()) { // Bỏ qua vector của mô hình khác
+                continue;
             }
+            float similarity = VectorUtil.cosineSimilarity(questionVector.getVector(), stored.vector.getVector()); // Tính độ tương đồng cosine giữa hai vector
 
-            // Tạo vector nhúng cho câu hỏi đầu vào
-            float[] questionVector = vectorService.createEmbedding(question); // Tạo vector nhúng cho câu hỏi đầu vào
-            if (questionVector.length == 0) { // Kiểm tra nếu không thể tạo vector nhúng
-                log.warn("Could not create embedding for question: {}", question); // Ghi log cảnh báo
-                return Collections.emptyList(); // Trả về danh sách rỗng nếu không thể tạo vector
+            if (similarity > 0.6) { // Điểm ngưỡng 0.6 cho độ tương đồng đủ cao
+                scoredQuestions.add(new QuestionMatch(stored.question, similarity)); // Thêm vào danh sách nếu độ tương đồng vượt ngưỡng
             }
+        }
 
-            // Tính độ tương đồng với tất cả câu hỏi trong cơ sở dữ liệu
-            List<QuestionMatch> scoredQuestions = new ArrayList<>(); // Tạo danh sách chứa các câu hỏi có điểm tương đồng
-            for (Question q : allQuestions) { // Duyệt qua từng câu hỏi trong cơ sở dữ liệu
-                float[] storedVector = vectorService.createEmbedding(q.getQuestionText()); // Tạo vector nhúng cho câu hỏi trong DB
-                float similarity = VectorUtil.cosineSimilarity(questionVector, storedVector); // Tính độ tương đồng cosine giữa hai vector
+        // Sắp xếp theo điểm tương đồng giảm dần
+        scoredQuestions.sort((q1, q2) -> Float.compare(q2.getScore(), q1.getScore())); // Sắp xếp để câu hỏi tương đồng nhất lên đầu
 
-                if (similarity > 0.6) { // Điểm ngưỡng 0.6 cho độ tương đồng đủ cao
-                    scoredQuestions.add(new QuestionMatch(q, similarity)); // Thêm vào danh sách nếu độ tương đồng vượt ngưỡng
+        return scoredQuestions; // Trả về danh sách câu hỏi đã sắp xếp
+    }
+
+    /**
+     * Đọc lại các câu hỏi đã lưu và công bố ảnh chụp vector mới (chạy định kỳ, ngoài luồng xử lý yêu cầu)
+     * Vector đã có được dùng lại theo ID; chỉ câu hỏi chưa có vector (hoặc chỉ có vector dự phòng) được tạo vector theo lô.
+     * Câu hỏi đã bị xóa khỏi cơ sở dữ liệu biến mất khỏi ảnh chụp ở lần làm mới tiếp theo
+     */
+    @Scheduled(fixedDelayString = "${app.chat.stored-questions-refresh-ms:60000}")
+    public void refreshStoredQuestions() { // Phương thức làm mới vector của các câu hỏi đã lưu
+        try {
+            Map<Long, Embedding> known = new HashMap<>(); // Vector đã tính theo ID câu hỏi
+            for (StoredQuestion stored : storedQuestions) {
+                known.put(stored.question.getId(), stored.vector);
+            }
+
+            List<Question> questions = questionRepository.findAll(); // Đọc câu hỏi đã lưu
+            Set<Long> readIds = new HashSet<>(); // ID các câu hỏi có trong kết quả đọc
+            List<Question> missing = new ArrayList<>(); // Câu hỏi cần tạo vector
+            List<StoredQuestion> refreshed = new ArrayList<>(questions.size());
+            for (Question question : questions) {
+                readIds.add(question.getId());
+                if (question.getQuestionText() == null || question.getQuestionText().trim().isEmpty()) {
+                    continue;
+                }
+                Embedding vector = known.get(question.getId());
+                if (vector != null) {
+                    refreshed.add(new StoredQuestion(question, vector));
+                } else {
+                    missing.add(question);
                 }
             }
 
-            // Sắp xếp theo điểm tương đồng giảm dần
-            scoredQuestions.sort((q1, q2) -> Float.compare(q2.getScore(), q1.getScore())); // Sắp xếp để câu hỏi tương đồng nhất lên đầu
+            if (!missing.isEmpty()) { // Tạo vector theo lô (lấy từ cache vector nhúng nếu đã tính trước đó)
+                List<String> texts = missing.stream().map(Question::getQuestionText).collect(Collectors.toList());
+                List<Embedding> vectors = vectorService.createEmbeddings(texts);
+                for (int i = 0; i < missing.size(); i++) {
+                    Embedding vector = vectors.get(i);
+                    if (!vector.isEmpty() && !vector.isFallback()) { // Vector dự phòng được thử tạo lại ở lần làm mới sau
+                        refreshed.add(new StoredQuestion(missing.get(i), vector));
+                    }
+                }
+                log.info("Computed vectors for {} stored questions ({} reused)", missing.size(), refreshed.size() - missing.size());
+            }
 
-            return scoredQuestions; // Trả về danh sách câu hỏi đã sắp xếp
-        } catch (Exception e) { // Bắt ngoại lệ nếu có lỗi
-            log.error("Error finding similar questions: {}", e.getMessage()); // Ghi log lỗi
-            return Collections.emptyList(); // Trả về danh sách rỗng nếu có lỗi
+            synchronized (storedQuestionsLock) {
+                for (StoredQuestion stored : storedQuestions) { // Giữ câu hỏi được lưu trong lúc làm mới (chưa có trong kết quả đọc)
+                    Long id = stored.question.getId();
+                    if (!known.containsKey(id) && !readIds.contains(id)) {
+                        refreshed.add(stored);
+                    }
+                }
+                storedQuestions = Collections.unmodifiableList(refreshed);
+            }
+        } catch (Exception e) { // Giữ ảnh chụp cũ nếu không đọc được câu hỏi
+            log.warn("Could not refresh stored question vectors: {}", e.getMessage());
         }
     }
 
@@ -538,141 +855,279 @@ public class ChatService { // Khai báo lớp dịch vụ xử lý chat - lớp
      * Tạo câu trả lời từ các câu tương tự bằng cách sử dụng Vertex AI
      * Phương thức này kết hợp các câu tương tự và sử dụng mô hình ngôn ngữ để tạo câu trả lời mạch lạc
      * 
+     * Lời gọi mô hình chỉ được chờ trong thời gian còn lại của hạn chót; quá hạn thì lời gọi bị hủy
+     * (khi không còn yêu cầu nào khác chờ cùng prompt, yêu cầu HTTP đang chạy và các lần thử lại cũng bị hủy)
+     * và câu trả lời trích xuất được trả về thay thế
+     *
      * @param question Câu hỏi của người dùng
      * @param similarSentences Danh sách các câu tương tự được tìm thấy
+     * @param deadline Hạn chót của yêu cầu
      * @return Câu trả lời được tạo ra hoặc thông báo không tìm thấy thông tin
      */
-    private String generateAnswerFromSimilarSentences(String question, List<String> similarSentences) {
+    private GeneratedAnswer generateAnswerFromSimilarSentences(String question, List<String> similarSentences, Deadline deadline) {
         try {
-            // BƯỚC 1: KIỂM TRA DỮ LIỆU ĐẦU VÀO
-            // Nếu không có câu tương tự nào, trả về thông báo không tìm thấy thông tin ngay lập tức
-            if (similarSentences.isEmpty()) {
-                log.debug("Không tìm thấy câu tương tự nào cho câu hỏi: {}", question);
-                return NO_INFORMATION_MESSAGE;
+            // BƯỚC 1-7: KIỂM TRA NGỮ CẢNH VÀ TẠO PROMPT
+            AnswerPlan plan = planAnswer(question, similarSentences, deadline);
+            if (plan.immediateAnswer != null) {
+                return GeneratedAnswer.generated(plan.immediateAnswer);
             }
 
-            // BƯỚC 2: TẠO NGỮ CẢNH TỪ CÁC CÂU TƯƠNG TỰ
-            // Kết hợp tất cả các câu tương tự tìm được thành một văn bản duy nhất với mỗi câu cách nhau 2 dòng mới
-            String context = String.join("\n\n", similarSentences);
-            log.debug("Đã tạo ngữ cảnh từ {} câu tương tự, độ dài: {} ký tự", similarSentences.size(), context.length());
-
-            // BƯỚC 3: TRÍCH XUẤT CÁC CÂU LIÊN QUAN NHẤT TỪ NGỮ CẢNH
-            // Lọc ra chỉ những câu có liên quan trực tiếp đến câu hỏi để tối ưu hóa ngữ cảnh
-            String relevantText = extractRelevantSentences(question, context);
-            if (relevantText.isEmpty()) {
-                log.debug("Không tìm được câu liên quan, sử dụng toàn bộ ngữ cảnh");
-                relevantText = context; // Nếu không tìm được câu liên quan, sử dụng toàn bộ ngữ cảnh
-            } else {
-                log.debug("Đã trích xuất văn bản liên quan, độ dài: {} ký tự", relevantText.length());
+            // BƯỚC 8: YÊU CẦU MÔ HÌNH NGÔN NGỮ TẠO CÂU TRẢ LỜI TRONG THỜI GIAN CÒN LẠI
+            long generationBudget = deadline.budgetFor(Long.MAX_VALUE, extractiveReserveMs);
+            if (generationBudget < minGenerationMs) {
+                // Không còn đủ thời gian để mô hình trả lời, không gửi yêu cầu
+                log.debug("Chỉ còn {}ms, bỏ qua mô hình và trả lời bằng trích xuất", generationBudget);
+                generationSkipped.incrementAndGet();
+                return GeneratedAnswer.extractive(extractiveAnswer(plan));
             }
 
-            // BƯỚC 4: XÁC ĐỊNH LOẠI CÂU HỎI
-            // Phân tích câu hỏi để xác định loại (định nghĩa, so sánh, quy trình, ...)
-            QuestionType questionType = detectQuestionType(question);
-            log.debug("Đã phát hiện loại câu hỏi: {}", questionType);
+            long generationStart = System.currentTimeMillis();
+            // Bộ định tuyến giới hạn mỗi lần thử theo min(SLA, thời gian còn lại); hết hạn thì hủy lời gọi mô hình
+            String generatedText = generationRouter.generateTextAsync(plan.prompt, plan.maxOutputTokens, Deadline.after(generationBudget))
+                    .onErrorResume(e -> {
+                        if (e instanceof TimeoutException) {
+                            generationTimeouts.incrementAndGet();
+                            log.warn("Mô hình không trả lời trong {}ms, hủy lời gọi và dùng câu trả lời trích xuất", generationBudget);
+                        } else {
+                            log.warn("Lỗi khi gọi mô hình: {}", e.getMessage());
+                        }
+                        return Mono.empty();
+                    })
+                    .defaultIfEmpty(VertexAIService.GENERATION_FAILED_MESSAGE)
+                    .block();
+            generationLatency.record(System.currentTimeMillis() - generationStart);
+            log.debug("Đã nhận câu trả lời từ mô hình, độ dài: {} ký tự", generatedText.length());
 
-            // Biến cờ để đánh dấu câu hỏi định nghĩa - cần xử lý đặc biệt
-            boolean isDefinitionQuestion = (questionType == QuestionType.DEFINITION);
+            // BƯỚC 9: XÁC THỰC VÀ XỬ LÝ CÂU TRẢ LỜI
+            // Kiểm tra xem câu trả lời có hợp lệ không
+            if (isInvalidAnswer(generatedText)) {
+                log.debug("Câu trả lời không hợp lệ, áp dụng phương pháp trích xuất trực tiếp");
+                return GeneratedAnswer.extractive(extractiveAnswer(plan));
+            }
 
-            // BƯỚC 5: XỬ LÝ ĐẶC BIỆT CHO CÂU HỎI ĐỊNH NGHĨA
-            if (isDefinitionQuestion) {
-                log.debug("Xử lý đặc biệt cho câu hỏi định nghĩa");
-                
-                // 5.1: Trích xuất chủ đề từ câu hỏi định nghĩa (ví dụ: "cháo" từ "cháo là gì")
-                String subject = extractSubjectFromDefinitionQuestion(question);
-
-                // 5.2: Nếu trích xuất được chủ đề, thực hiện kiểm tra thêm
-                if (subject != null && !subject.isEmpty()) {
-                    log.debug("Đã trích xuất chủ đề từ câu hỏi định nghĩa: '{}'", subject);
-                    
-                    // 5.3: Kiểm tra xem ngữ cảnh có thực sự chứa chủ đề không
-                    // Đây là kiểm tra đầu tiên để đảm bảo chất lượng trả lời
-                    boolean contextContainsSubject = relevantText.toLowerCase().contains(subject.toLowerCase());
-                    
-                    // 5.4: Nếu ngữ cảnh không chứa chủ đề, không nên tạo câu trả lời
-                    if (!contextContainsSubject) {
-                        log.warn("Chủ đề '{}' không được tìm thấy trong ngữ cảnh - câu hỏi: '{}'", subject, question);
-                        return NO_INFORMATION_MESSAGE;
-                    }
+            // BƯỚC 10-11: CHUẨN HÓA VÀ GIỚI HẠN ĐỘ DÀI
+            return GeneratedAnswer.generated(finalizeGeneratedAnswer(generatedText));
+        } catch (Exception e) {
+            // XỬ LÝ NGOẠI LỆ
+            // Ghi log lỗi và trả về thông báo không tìm thấy thông tin để tránh lỗi cho người dùng
+            log.error("Lỗi khi tạo câu trả lời từ các câu tương tự: {}", e.getMessage());
+            return GeneratedAnswer.generated(NO_INFORMATION_MESSAGE);
+        }
+    }
 
-                    // 5.5: Kiểm tra ngưỡng tương đồng cho câu hỏi định nghĩa
-                    // Câu hỏi định nghĩa cần ngưỡng tương đồng cao hơn để đảm bảo chất lượng
-                    float highestSimilarity = getHighestSimilarityFromSentences(similarSentences);
-                    final float DEFINITION_SIMILARITY_THRESHOLD = 0.5f; // Ngưỡng cao hơn cho câu hỏi định nghĩa
+    /**
+     * Chuẩn bị tạo câu trả lời: kiểm tra ngữ cảnh, ngưỡng tương đồng và tạo prompt theo loại câu hỏi
+     * Dùng chung cho cả đường trả lời thường và đường streaming
+     *
+     * @param question Câu hỏi của người dùng
+     * @param similarSentences Danh sách các câu tương tự được tìm thấy
+     * @param deadline Hạn chót của yêu cầu
+     * @return Kế hoạch trả lời: câu trả lời có ngay (không cần mô hình) hoặc prompt cần gửi đến mô hình
+     */
+    private AnswerPlan planAnswer(String question, List<String> similarSentences, Deadline deadline) {
+        // BƯỚC 1: KIỂM TRA DỮ LIỆU ĐẦU VÀO
+        // Nếu không có câu tương tự nào, trả về thông báo không tìm thấy thông tin ngay lập tức
+        if (similarSentences.isEmpty()) {
+            log.debug("Không tìm thấy câu tương tự nào cho câu hỏi: {}", question);
+            return AnswerPlan.immediate(NO_INFORMATION_MESSAGE);
+        }
 
-                    // 5.6: Nếu điểm tương đồng thấp hơn ngưỡng, không nên tạo câu trả lời
-                    if (highestSimilarity < DEFINITION_SIMILARITY_THRESHOLD) {
-                        log.warn("Câu hỏi định nghĩa '{}' có điểm tương đồng {} thấp hơn ngưỡng {} - trả về không có thông tin", 
-                                question, highestSimilarity, DEFINITION_SIMILARITY_THRESHOLD);
-                        return NO_INFORMATION_MESSAGE;
-                    }
+        // BƯỚC 2: XÁC ĐỊNH LOẠI CÂU HỎI
+        // Phân tích câu hỏi để xác định loại (định nghĩa, so sánh, quy trình, ...), loại câu hỏi quyết định ngân sách token
+        QuestionType questionType = detectQuestionType(question);
+        log.debug("Đã phát hiện loại câu hỏi: {}", questionType);
+
+        // BƯỚC 3-4: GHÉP NGỮ CẢNH TRONG NGÂN SÁCH TOKEN
+        // Loại các câu trùng lặp giữa các đoạn chồng lấn, chọn các câu điểm cao nhất cho tới khi hết ngân sách của loại câu hỏi
+        // Các câu của mỗi đoạn lấy từ chỉ mục câu đã tính khi nạp tài liệu, không tách lại cho mỗi câu hỏi
+        ContextPacker.PackedContext packed = contextPacker.pack(question, similarSentences, inputTokenBudget(questionType),
+                vectorService::sentenceIndexOf);
+        if (packed.isEmpty()) {
+            log.debug("Các đoạn tìm được không có nội dung cho câu hỏi: {}", question);
+            return AnswerPlan.immediate(NO_INFORMATION_MESSAGE);
+        }
+        String relevantText = packed.getText();
+        log.debug("Đã ghép ngữ cảnh ~{} token (từ ~{} token, loại {} câu trùng, bỏ {} câu ngoài ngân sách)",
+                packed.getTokens(), packed.getCandidateTokens(), packed.getDuplicatesRemoved(), packed.getSentencesDropped());
+
+        // Biến cờ để đánh dấu câu hỏi định nghĩa - cần xử lý đặc biệt
+        boolean isDefinitionQuestion = (questionType == QuestionType.DEFINITION);
+        float highestSimilarity = getHighestSimilarityFromSentences(similarSentences); // Điểm tương đồng của đoạn tốt nhất
+
+        // BƯỚC 5: XỬ LÝ ĐẶC BIỆT CHO CÂU HỎI ĐỊNH NGHĨA
+        if (isDefinitionQuestion) {
+            log.debug("Xử lý đặc biệt cho câu hỏi định nghĩa");
+            
+            // 5.1: Trích xuất chủ đề từ câu hỏi định nghĩa (ví dụ: "cháo" từ "cháo là gì")
+            String subject = extractSubjectFromDefinitionQuestion(question);
 
-                    log.info("Câu hỏi định nghĩa '{}' với chủ đề '{}' đã vượt qua kiểm tra - điểm tương đồng: {}", 
-                            question, subject, highestSimilarity);
+            // 5.2: Nếu trích xuất được chủ đề, thực hiện kiểm tra thêm
+            if (subject != null && !subject.isEmpty()) {
+                log.debug("Đã trích xuất chủ đề từ câu hỏi định nghĩa: '{}'", subject);
+                
+                // 5.3: Kiểm tra xem ngữ cảnh có thực sự chứa chủ đề không
+                // Đây là kiểm tra đầu tiên để đảm bảo chất lượng trả lời
+                boolean contextContainsSubject = relevantText.toLowerCase().contains(subject.toLowerCase());
+                
+                // 5.4: Nếu ngữ cảnh không chứa chủ đề, không nên tạo câu trả lời
+                if (!contextContainsSubject) {
+                    log.warn("Chủ đề '{}' không được tìm thấy trong ngữ cảnh - câu hỏi: '{}'", subject, question);
+                    return AnswerPlan.immediate(NO_INFORMATION_MESSAGE);
                 }
-            } else {
-                // BƯỚC 6: XỬ LÝ CHO CÁC LOẠI CÂU HỎI KHÁC
-                // Đối với các câu hỏi không phải định nghĩa, áp dụng ngưỡng tương đồng thấp hơn
-                float highestSimilarity = getHighestSimilarityFromSentences(similarSentences);
-                final float GENERAL_SIMILARITY_THRESHOLD = 0.25f; // Ngưỡng thấp hơn cho câu hỏi thông thường
-
-                // 6.1: Kiểm tra ngưỡng tương đồng cho câu hỏi thông thường
-                if (highestSimilarity < GENERAL_SIMILARITY_THRESHOLD) {
-                    log.warn("Câu hỏi '{}' có điểm tương đồng {} thấp hơn ngưỡng {} - trả về không có thông tin", 
-                            question, highestSimilarity, GENERAL_SIMILARITY_THRESHOLD);
-                    return NO_INFORMATION_MESSAGE;
+
+                // 5.5: Kiểm tra ngưỡng tương đồng cho câu hỏi định nghĩa
+                // Câu hỏi định nghĩa cần ngưỡng tương đồng cao hơn để đảm bảo chất lượng
+                final float DEFINITION_SIMILARITY_THRESHOLD = 0.5f; // Ngưỡng cao hơn cho câu hỏi định nghĩa
+
+                // 5.6: Nếu điểm tương đồng thấp hơn ngưỡng, không nên tạo câu trả lời
+                if (highestSimilarity < DEFINITION_SIMILARITY_THRESHOLD) {
+                    log.warn("Câu hỏi định nghĩa '{}' có điểm tương đồng {} thấp hơn ngưỡng {} - trả về không có thông tin", 
+                            question, highestSimilarity, DEFINITION_SIMILARITY_THRESHOLD);
+                    return AnswerPlan.immediate(NO_INFORMATION_MESSAGE);
                 }
 
-                log.info("Câu hỏi '{}' đã vượt qua kiểm tra điểm tương đồng: {}", question, highestSimilarity);
+                log.info("Câu hỏi định nghĩa '{}' với chủ đề '{}' đã vượt qua kiểm tra - điểm tương đồng: {}", 
+                        question, subject, highestSimilarity);
+            }
+        } else {
+            // BƯỚC 6: XỬ LÝ CHO CÁC LOẠI CÂU HỎI KHÁC
+            // Đối với các câu hỏi không phải định nghĩa, áp dụng ngưỡng tương đồng thấp hơn
+            final float GENERAL_SIMILARITY_THRESHOLD = 0.25f; // Ngưỡng thấp hơn cho câu hỏi thông thường
+
+            // 6.1: Kiểm tra ngưỡng tương đồng cho câu hỏi thông thường
+            if (highestSimilarity < GENERAL_SIMILARITY_THRESHOLD) {
+                log.warn("Câu hỏi '{}' có điểm tương đồng {} thấp hơn ngưỡng {} - trả về không có thông tin", 
+                        question, highestSimilarity, GENERAL_SIMILARITY_THRESHOLD);
+                return AnswerPlan.immediate(NO_INFORMATION_MESSAGE);
             }
 
-            // BƯỚC 7: TẠO PROMPT THEO LOẠI CÂU HỎI
-            // Tạo prompt phù hợp với loại câu hỏi để gửi cho mô hình ngôn ngữ
-            String prompt = generatePromptByQuestionType(question, questionType);
-            log.debug("Đã tạo prompt cho loại câu hỏi {}, độ dài: {} ký tự", questionType, prompt.length());
+            log.info("Câu hỏi '{}' đã vượt qua kiểm tra điểm tương đồng: {}", question, highestSimilarity);
+        }
 
-            // BƯỚC 8: YÊU CẦU MÔ HÌNH NGÔN NGỮ TẠO CÂU TRẢ LỜI
-            // Gửi prompt đến Vertex AI để tạo câu trả lời
-            String generatedText = vertexAIService.generateText(prompt);
-            log.debug("Đã nhận câu trả lời từ mô hình, độ dài: {} ký tự", generatedText.length());
+        // BƯỚC 7: TRẢ LỜI KHÔNG QUA MÔ HÌNH KHI CÂU TRẢ LỜI TRÍCH XUẤT ĐỦ TIN CẬY
+        String bypassAnswer = tryBypassGeneration(question, questionType, packed.getSentences(), highestSimilarity, deadline);
+        if (bypassAnswer != null) {
+            return AnswerPlan.immediate(bypassAnswer);
+        }
 
-            // BƯỚC 9: XÁC THỰC VÀ XỬ LÝ CÂU TRẢ LỜI
-            // Kiểm tra xem câu trả lời có hợp lệ không
-            if (isInvalidAnswer(generatedText)) {
-                log.debug("Câu trả lời không hợp lệ, áp dụng phương pháp trích xuất trực tiếp");
-                
-                // 9.1: Nếu là câu hỏi định nghĩa và văn bản đủ ngắn, chỉ lấy câu đầu tiên
-                if (isDefinitionQuestion && relevantText.length() <= 300) {
-                    String[] sentences = relevantText.split("(?<=[.!?])\\s+");
-                    if (sentences.length > 0) {
-                        log.debug("Trả về câu đầu tiên cho câu hỏi định nghĩa");
-                        return sentences[0];
-                    }
-                }
-                
-                // 9.2: Trường hợp khác, trích xuất 2 câu đầu tiên từ văn bản liên quan
-                log.debug("Trích xuất 2 câu đầu tiên từ văn bản");
-                return extractFirstFewSentences(relevantText, 2);
-            }
+        // BƯỚC 8: TẠO PROMPT THEO LOẠI CÂU HỎI
+        // Tạo prompt phù hợp với loại câu hỏi để gửi cho mô hình ngôn ngữ
+        String prompt = generatePromptByQuestionType(question, questionType, relevantText);
+        log.debug("Đã tạo prompt cho loại câu hỏi {}, độ dài: {} ký tự", questionType, prompt.length());
 
-            // BƯỚC 10: CHUẨN HÓA CÂU TRẢ LỜI
-            // Chuẩn hóa câu trả lời bằng cách loại bỏ các phần thừa và điều chỉnh định dạng
-            String normalizedAnswer = normalizeAnswer(generatedText);
-            log.debug("Đã chuẩn hóa câu trả lời, độ dài ban đầu: {}, độ dài sau chuẩn hóa: {}", 
-                    generatedText.length(), normalizedAnswer.length());
+        return new AnswerPlan(question, prompt, packed.getSentences(), isDefinitionQuestion, maxOutputTokens(questionType));
+    }
 
-            // BƯỚC 11: GIỚI HẠN ĐỘ DÀI VÀ TRẢ VỀ KẾT QUẢ CUỐI CÙNG
-            // Giới hạn độ dài câu trả lời nếu quá dài và trả về kết quả cuối cùng
-            String finalAnswer = limitAnswerLength(normalizedAnswer);
-            log.debug("Câu trả lời cuối cùng, độ dài: {} ký tự", finalAnswer.length());
-            
-            return finalAnswer;
-        } catch (Exception e) {
-            // XỬ LÝ NGOẠI LỆ
-            // Ghi log lỗi và trả về thông báo không tìm thấy thông tin để tránh lỗi cho người dùng
-            log.error("Lỗi khi tạo câu trả lời từ các câu tương tự: {}", e.getMessage());
-            return NO_INFORMATION_MESSAGE;
+    /**
+     * Cổng tin cậy cho đường trả lời không qua mô hình
+     * Chỉ áp dụng khi đoạn tốt nhất khớp rất sát câu hỏi, loại câu hỏi có câu trả lời nằm sẵn trong ngữ cảnh
+     * và quy tắc trích xuất của NLPService tìm được một câu trả lời ngắn gọn
+     *
+     * @return Câu trả lời trích xuất, hoặc null nếu cần gọi mô hình
+     */
+    private String tryBypassGeneration(String question, QuestionType questionType, SentenceIndex context, float topScore, Deadline deadline) {
+        if (!bypassEnabled) {
+            return null;
+        }
+        bypassCandidates.incrementAndGet();
+        if (topScore < bypassMinScore || !BYPASS_QUESTION_TYPES.contains(questionType)) {
+            return null;
+        }
+
+        String answer = nlpService.extractAnswer(question, context);
+        if (answer == null || answer.length() > bypassMaxChars) {
+            return null;
+        }
+
+        bypassAnswers.incrementAndGet();
+        bypassLatency.record(deadline.elapsedMillis());
+        log.debug("Trả lời không qua mô hình cho câu hỏi '{}' (loại {}, điểm tương đồng {})", question, questionType, topScore);
+        return answer;
+    }
+
+    /**
+     * Ngân sách token cho ngữ cảnh theo loại câu hỏi
+     * Câu hỏi định nghĩa, định danh chỉ cần vài câu; so sánh, quy trình, phân tích cần nhiều ngữ cảnh hơn
+     */
+    private int inputTokenBudget(QuestionType questionType) { // Phương thức lấy ngân sách token đầu vào
+        switch (questionType) {
+            case DEFINITION:
+            case WHO_WHAT:
+                return 600;
+            case COMPARISON:
+            case PROCEDURE:
+            case ANALYSIS:
+                return 1800;
+            default:
+                return 1200;
+        }
+    }
+
+    /**
+     * Số token đầu ra tối đa theo loại câu hỏi (trước đây cố định 500 cho mọi câu hỏi)
+     */
+    private int maxOutputTokens(QuestionType questionType) { // Phương thức lấy giới hạn token đầu ra
+        switch (questionType) {
+            case DEFINITION:
+            case WHO_WHAT:
+                return 256;
+            case CAUSE_EFFECT:
+            case EXAMPLES:
+            case GENERAL:
+                return 400;
+            case COMPARISON:
+            case HISTORICAL:
+            case LISTING:
+                return 512;
+            case PROCEDURE:
+            case ANALYSIS:
+                return 768;
+            default:
+                return 500;
+        }
+    }
+
+    /**
+     * Câu trả lời trích xuất trực tiếp từ ngữ cảnh, dùng khi mô hình không tạo được câu trả lời hợp lệ hoặc không kịp hạn chót
+     * Ưu tiên các quy tắc trích xuất theo loại câu hỏi của NLPService, sau đó lấy các câu đầu của ngữ cảnh
+     */
+    private String extractiveAnswer(AnswerPlan plan) {
+        extractiveFallbacks.incrementAndGet();
+
+        // 9.0: Quy tắc theo loại câu hỏi (định nghĩa, số lượng, thời gian, địa điểm...)
+        String ruleBasedAnswer = nlpService.extractAnswer(plan.question, plan.context);
+        if (ruleBasedAnswer != null) {
+            log.debug("Trả về câu trả lời trích xuất theo loại câu hỏi");
+            return limitAnswerLength(ruleBasedAnswer);
+        }
+
+        // 9.1: Nếu là câu hỏi định nghĩa và văn bản đủ ngắn, chỉ lấy câu đầu tiên
+        if (plan.definitionQuestion && plan.context.getText().length() <= 300 && !plan.context.isEmpty()) {
+            log.debug("Trả về câu đầu tiên cho câu hỏi định nghĩa");
+            return plan.context.sentence(0);
         }
+        
+        // 9.2: Trường hợp khác, trích xuất 2 câu đầu tiên từ văn bản liên quan
+        log.debug("Trích xuất 2 câu đầu tiên từ văn bản");
+        return extractFirstFewSentences(plan.context, 2);
+    }
+
+    /**
+     * Chuẩn hóa và giới hạn độ dài câu trả lời do mô hình tạo ra
+     */
+    private String finalizeGeneratedAnswer(String generatedText) {
+        // BƯỚC 10: CHUẨN HÓA CÂU TRẢ LỜI
+        // Chuẩn hóa câu trả lời bằng cách loại bỏ các phần thừa và điều chỉnh định dạng
+        String normalizedAnswer = normalizeAnswer(generatedText);
+        log.debug("Đã chuẩn hóa câu trả lời, độ dài ban đầu: {}, độ dài sau chuẩn hóa: {}", 
+                generatedText.length(), normalizedAnswer.length());
+
+        // BƯỚC 11: GIỚI HẠN ĐỘ DÀI VÀ TRẢ VỀ KẾT QUẢ CUỐI CÙNG
+        // Giới hạn độ dài câu trả lời nếu quá dài và trả về kết quả cuối cùng
+        String finalAnswer = limitAnswerLength(normalizedAnswer);
+        log.debug("Câu trả lời cuối cùng, độ dài: {} ký tự", finalAnswer.length());
+        
+        return finalAnswer;
     }
 
     /**
@@ -726,21 +1181,20 @@ public class ChatService { // Khai báo lớp dịch vụ xử lý chat - lớp
     }
 
     /**
-     * Trích xuất chỉ N câu đầu tiên từ một văn bản
+     * Trích xuất chỉ N câu đầu tiên từ ngữ cảnh (các câu đã được tách sẵn)
      */
-    private String extractFirstFewSentences(String text, int sentenceCount) {
-        if (text == null || text.isEmpty()) {
+    private String extractFirstFewSentences(SentenceIndex sentences, int sentenceCount) {
+        if (sentences == null || sentences.isEmpty()) {
             return "";
         }
 
-        String[] sentences = text.split("(?<=[.!?])\\s+");
-        if (sentences.length <= sentenceCount) {
-            return text;
+        if (sentences.size() <= sentenceCount) {
+            return sentences.getText();
         }
 
         StringBuilder result = new StringBuilder();
-        for (int i = 0; i < Math.min(sentenceCount, sentences.length); i++) {
-            result.append(sentences[i]);
+        for (int i = 0; i < sentenceCount; i++) {
+            result.append(sentences.sentence(i));
             if (i < sentenceCount - 1) {
                 result.append(" ");
             }
@@ -749,6 +1203,105 @@ public class ChatService { // Khai báo lớp dịch vụ xử lý chat - lớp
         return result.toString().trim();
     }
 
+    /**
+     * Kết quả tìm kiếm ngữ cảnh cho một câu hỏi: câu hỏi tương tự và câu tương tự
+     */
+    private static class RetrievedContext {
+        private final List<QuestionMatch> similarQuestions; // Câu hỏi tương tự đã sắp xếp theo độ tương đồng
+        private final List<String> similarSentences; // Câu tương tự từ tìm kiếm vector
+        private final String cachedAnswer; // Câu trả lời từ cache ngữ nghĩa, null nếu phải tìm kiếm
+        private final Embedding questionVector; // Vector nhúng của câu hỏi kèm mã mô hình (rỗng nếu không có)
+
+        RetrievedContext(List<QuestionMatch> similarQuestions, List<String> similarSentences) {
+            this(similarQuestions, similarSentences, null, Embedding.empty());
+        }
+
+        private RetrievedContext(List<QuestionMatch> similarQuestions, List<String> similarSentences,
+                                 String cachedAnswer, Embedding questionVector) {
+            this.similarQuestions = similarQuestions;
+            this.similarSentences = similarSentences;
+            this.cachedAnswer = cachedAnswer;
+            this.questionVector = questionVector;
+        }
+
+        static RetrievedContext cached(String answer, Embedding questionVector) {
+            return new RetrievedContext(Collections.emptyList(), Collections.emptyList(), answer, questionVector);
+        }
+
+        RetrievedContext withQuestionVector(Embedding vector) {
+            return new RetrievedContext(similarQuestions, similarSentences, cachedAnswer, vector);
+        }
+    }
+
+    /**
+     * Kế hoạch trả lời một câu hỏi: hoặc câu trả lời có ngay, hoặc prompt cần gửi đến mô hình
+     * kèm ngữ cảnh để trích xuất trực tiếp khi mô hình không trả lời được
+     */
+    private static class AnswerPlan {
+        private final String immediateAnswer; // Câu trả lời có ngay, null nếu cần gọi mô hình
+        private final String question; // Câu hỏi đã chuẩn hóa (dùng cho quy tắc trích xuất)
+        private final String prompt; // Prompt gửi đến mô hình
+        private final SentenceIndex context; // Các câu của ngữ cảnh đã ghép, dùng cho câu trả lời trích xuất
+        private final boolean definitionQuestion; // Câu hỏi định nghĩa (trích xuất câu đầu tiên)
+        private final int maxOutputTokens; // Số token đầu ra tối đa theo loại câu hỏi
+
+        AnswerPlan(String question, String prompt, SentenceIndex context, boolean definitionQuestion, int maxOutputTokens) {
+            this.immediateAnswer = null;
+            this.question = question;
+            this.prompt = prompt;
+            this.context = context;
+            this.definitionQuestion = definitionQuestion;
+            this.maxOutputTokens = maxOutputTokens;
+        }
+
+        private AnswerPlan(String immediateAnswer) {
+            this.immediateAnswer = immediateAnswer;
+            this.question = "";
+            this.prompt = null;
+            this.context = SentenceIndex.empty();
+            this.definitionQuestion = false;
+            this.maxOutputTokens = 0;
+        }
+
+        static AnswerPlan immediate(String answer) {
+            return new AnswerPlan(answer);
+        }
+    }
+
+    /**
+     * Câu trả lời cho câu hỏi kèm cờ cho biết đó là câu trả lời trích xuất thay cho mô hình (không được lưu lại)
+     */
+    private static class GeneratedAnswer {
+        private final String text; // Nội dung câu trả lời
+        private final boolean extractive; // true nếu mô hình lỗi hoặc không kịp hạn chót
+
+        private GeneratedAnswer(String text, boolean extractive) {
+            this.text = text;
+            this.extractive = extractive;
+        }
+
+        static GeneratedAnswer generated(String text) {
+            return new GeneratedAnswer(text, false);
+        }
+
+        static GeneratedAnswer extractive(String text) {
+            return new GeneratedAnswer(text, true);
+        }
+    }
+
+    /**
+     * Câu hỏi đã lưu kèm vector nhúng đã tính sẵn của nó
+     */
+    private static class StoredQuestion {
+        private final Question question; // Câu hỏi và câu trả lời đã lưu
+        private final Embedding vector; // Vector nhúng của nội dung câu hỏi
+
+        StoredQuestion(Question question, Embedding vector) {
+            this.question = question;
+            this.vector = vector;
+        }
+    }
+
     /**
      * Lớp nội bộ để biểu diễn một câu hỏi phù hợp với điểm tương đồng của nó
      * Dùng để lưu trữ câu hỏi và điểm tương đồng tương ứng khi tìm kiếm câu hỏi tương tự
@@ -1023,16 +1576,23 @@ public class ChatService { // Khai báo lớp dịch vụ xử lý chat - lớp
      * 
      * @param question Câu hỏi của người dùng
      * @param questionType Loại câu hỏi đã được phát hiện bởi phương thức detectQuestionType
+     * @param context Ngữ cảnh đã ghép trong ngân sách token (ContextPacker)
      * @return Chuỗi prompt hoàn chỉnh để gửi đến AI
      */
-    private String generatePromptByQuestionType(String question, QuestionType questionType) {
+    private String generatePromptByQuestionType(String question, QuestionType questionType, String context) {
         // Ghi log loại câu hỏi đang xử lý để phục vụ việc gỡ lỗi
         log.info("Đang tạo prompt cho loại câu hỏi: {}", questionType);
 
-        // Khởi tạo prompt với phần mở đầu chung - yêu cầu câu trả lời tự nhiên và dễ hiểu
-        StringBuilder prompt = new StringBuilder("Trả lời câu hỏi dưới đây một cách tự nhiên, dễ hiểu và súc tích:\n\n");
+        // Khởi tạo prompt với phần mở đầu chung - yêu cầu câu trả lời tự nhiên, dễ hiểu và chỉ dựa trên thông tin tham khảo
+        StringBuilder prompt = new StringBuilder("Trả lời câu hỏi dưới đây một cách tự nhiên, dễ hiểu và súc tích, chỉ dựa trên thông tin tham khảo:\n\n");
+
+        // Thêm ngữ cảnh đã ghép để mô hình trả lời theo tài liệu thay vì kiến thức chung
+        prompt.append("Thông tin tham khảo:\n");
+        prompt.append(context);
+        prompt.append("\n\n");
         
         // Thêm câu hỏi của người dùng vào prompt
+        prompt.append("Câu hỏi: ");
         prompt.append(question);
         prompt.append("\n\n");
 
@@ -1130,6 +1690,7 @@ public class ChatService { // Khai báo lớp dịch vụ xử lý chat - lớp
     public void clearResponseCache() { // Phương thức xóa bộ nhớ đệm câu trả lời
         int cacheSize = responseCache.size(); // Lấy kích thước bộ nhớ đệm hiện tại
         responseCache.clear(); // Xóa toàn bộ bộ nhớ đệm
+        semanticAnswerCache.clear(); // Xóa cả cache ngữ nghĩa
         log.info("Đã xóa {} câu trả lời khỏi cache", cacheSize); // Ghi log số lượng câu trả lời đã xóa
     }
 }
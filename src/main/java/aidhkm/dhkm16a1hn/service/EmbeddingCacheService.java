@@ -0,0 +1,173 @@
+package aidhkm.dhkm16a1hn.service;
+
+import aidhkm.dhkm16a1hn.model.CachedEmbedding;
+import aidhkm.dhkm16a1hn.repository.EmbeddingCacheRepository;
+import aidhkm.dhkm16a1hn.util.HashUtil;
+import aidhkm.dhkm16a1hn.util.VectorUtil;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import jakarta.annotation.PostConstruct;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * Cache vector nhúng hai tầng, định địa chỉ theo nội dung
+ * Tầng bộ nhớ (Caffeine) đứng trước bảng embedding_cache trong PostgreSQL, nên vector đã tính
+ * vẫn được dùng lại sau khi khởi động lại ứng dụng (tải lại tài liệu, tái tạo vector, câu hỏi lặp lại)
+ */
+@Service
+public class EmbeddingCacheService {
+
+    private static final Logger logger = Logger.getLogger(EmbeddingCacheService.class.getName());
+
+    @Value("${app.embedding-cache.memory-size:20000}")
+    private long memorySize;
+
+    @Autowired
+    private EmbeddingCacheRepository embeddingCacheRepository;
+
+    private Cache<String, float[]> memoryCache;
+
+    private final AtomicLong memoryHits = new AtomicLong();
+    private final AtomicLong databaseHits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong writes = new AtomicLong();
+
+    @PostConstruct
+    public void init() {
+        memoryCache = Caffeine.newBuilder()
+                .maximumSize(memorySize)
+                .build();
+    }
+
+    /**
+     * Tạo khóa cache: SHA-256 của mô hình, kích thước và văn bản đã chuẩn hóa
+     */
+    public String cacheKey(String modelId, int dimension, String normalizedText) {
+        return HashUtil.sha256Hex(modelId + "|" + dimension + "|" + normalizedText);
+    }
+
+    /**
+     * Lấy vector theo khóa chỉ từ tầng bộ nhớ (không truy cập cơ sở dữ liệu, an toàn trên event loop)
+     * @return Vector nhúng hoặc null nếu không có trong bộ nhớ
+     */
+    public float[] getFromMemory(String key) {
+        float[] vector = memoryCache.getIfPresent(key);
+        if (vector != null) {
+            memoryHits.incrementAndGet();
+        }
+        return vector;
+    }
+
+    /**
+     * Lấy vector theo khóa, tìm trong bộ nhớ trước rồi đến cơ sở dữ liệu
+     * Truy vấn cơ sở dữ liệu chặn luồng; từ pipeline Reactor hãy gọi trên boundedElastic
+     * @return Vector nhúng hoặc null nếu chưa có
+     */
+    public float[] get(String key) {
+        float[] vector = memoryCache.getIfPresent(key);
+        if (vector != null) {
+            memoryHits.incrementAndGet();
+            return vector;
+        }
+        try {
+            vector = embeddingCacheRepository.findById(key).map(CachedEmbedding::getVectorData).orElse(null);
+        } catch (Exception e) {
+            logger.warning("Không thể đọc cache vector nhúng từ cơ sở dữ liệu: " + e.getMessage());
+        }
+        if (vector != null) {
+            databaseHits.incrementAndGet();
+            memoryCache.put(key, vector);
+        } else {
+            misses.incrementAndGet();
+        }
+        return vector;
+    }
+
+    /**
+     * Lấy nhiều vector cùng lúc, các khóa không có trong bộ nhớ được tra cứu bằng một truy vấn
+     * @return Map từ khóa đến vector, chỉ chứa các khóa đã tìm thấy
+     */
+    public Map<String, float[]> getAll(Collection<String> keys) {
+        Map<String, float[]> found = new HashMap<>();
+        List<String> missing = new ArrayList<>();
+        for (String key : keys) {
+            float[] vector = memoryCache.getIfPresent(key);
+            if (vector != null) {
+                found.put(key, vector);
+            } else {
+                missing.add(key);
+            }
+        }
+        memoryHits.addAndGet(found.size());
+
+        if (!missing.isEmpty()) {
+            try {
+                for (CachedEmbedding cached : embeddingCacheRepository.findAllById(missing)) {
+                    if (cached.getVectorData() != null) {
+                        found.put(cached.getCacheKey(), cached.getVectorData());
+                        memoryCache.put(cached.getCacheKey(), cached.getVectorData());
+                        databaseHits.incrementAndGet();
+                    }
+                }
+            } catch (Exception e) {
+                logger.warning("Không thể đọc cache vector nhúng từ cơ sở dữ liệu: " + e.getMessage());
+            }
+            misses.addAndGet(keys.size() - found.size());
+        }
+        return found;
+    }
+
+    /**
+     * Lưu vector vào cả hai tầng; lỗi ghi cơ sở dữ liệu chỉ được ghi log
+     */
+    public void put(String key, String modelId, float[] vector) {
+        if (vector == null || vector.length == 0) {
+            return;
+        }
+        memoryCache.put(key, vector);
+        try {
+            writes.addAndGet(embeddingCacheRepository.insertIfAbsent(key, modelId, vector.length,
+                    VectorUtil.toPGArrayLiteral(vector)));
+        } catch (Exception e) {
+            logger.warning("Không thể lưu cache vector nhúng vào cơ sở dữ liệu: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Xóa tầng bộ nhớ (dữ liệu trong cơ sở dữ liệu được giữ nguyên)
+     */
+    public void clearMemory() {
+        memoryCache.invalidateAll();
+    }
+
+    /**
+     * Thống kê tỉ lệ trúng cache theo từng tầng
+     */
+    public Map<String, Object> getStatistics() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        long lookups = memoryHits.get() + databaseHits.get() + misses.get();
+        stats.put("memoryEntries", memoryCache.estimatedSize());
+        stats.put("memoryHits", memoryHits.get());
+        stats.put("databaseHits", databaseHits.get());
+        stats.put("misses", misses.get());
+        stats.put("hitRate", lookups == 0 ? 0.0 : Math.round((memoryHits.get() + databaseHits.get()) * 10000.0 / lookups) / 10000.0);
+        stats.put("databaseWrites", writes.get());
+        try {
+            stats.put("databaseEntries", embeddingCacheRepository.count());
+        } catch (Exception e) {
+            logger.warning("Không thể đếm cache vector nhúng: " + e.getMessage());
+        }
+        return stats;
+    }
+}
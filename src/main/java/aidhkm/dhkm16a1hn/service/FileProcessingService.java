@@ -1,7 +1,9 @@
 package aidhkm.dhkm16a1hn.service;
 
+import aidhkm.dhkm16a1hn.embedding.Embedding;
 import aidhkm.dhkm16a1hn.model.Document;
 import aidhkm.dhkm16a1hn.repository.DocumentRepository;
+import aidhkm.dhkm16a1hn.util.SentenceIndex;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 
@@ -58,20 +60,26 @@ public class FileProcessingService {
             // Tạo danh sách embedding vectors để lưu hàng loạt
             List<aidhkm.dhkm16a1hn.model.EmbeddingVector> batchVectors = new java.util.ArrayList<>();
             
-            // Tạo embedding cho từng đoạn
+            // Tạo embedding cho tất cả đoạn theo lô (nhiều đoạn trong mỗi yêu cầu API)
+            List<String> nonEmptySegments = new java.util.ArrayList<>();
             for (String segment : segments) {
-                if (segment.trim().isEmpty()) {
-                    continue;
+                if (!segment.trim().isEmpty()) {
+                    nonEmptySegments.add(segment);
                 }
-                
-                // Tạo embedding vector
-                float[] embedding = vectorService.createEmbedding(segment);
-                if (embedding != null) {
+            }
+            List<Embedding> embeddings = vectorService.createEmbeddings(nonEmptySegments);
+            
+            for (int i = 0; i < nonEmptySegments.size(); i++) {
+                String segment = nonEmptySegments.get(i);
+                Embedding embedding = embeddings.get(i);
+                if (!embedding.isEmpty()) {
                     // Chuẩn bị entity để lưu batch
                     aidhkm.dhkm16a1hn.model.EmbeddingVector embeddingVector = new aidhkm.dhkm16a1hn.model.EmbeddingVector();
                     embeddingVector.setDocumentId(docId);
                     embeddingVector.setSegment(segment);
-                    embeddingVector.setVectorData(embedding);
+                    embeddingVector.setSentenceBounds(SentenceIndex.computeBounds(segment)); // Tách câu một lần khi nạp
+                    embeddingVector.setVectorData(embedding.getVector());
+                    embeddingVector.setModelId(embedding.getModelId()); // Mã mô hình do nguồn tạo vector gắn vào
                     batchVectors.add(embeddingVector);
                     segmentCount++;
                 }
@@ -0,0 +1,116 @@
+package aidhkm.dhkm16a1hn.service;
+
+import aidhkm.dhkm16a1hn.index.VectorIndexSnapshot;
+import aidhkm.dhkm16a1hn.index.VectorPartition;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * Service nén chỉ mục vector chạy nền
+ * Theo dõi tỉ lệ tombstone của từng phân vùng, xây dựng lại các phân vùng có quá nhiều ô đã xóa
+ * ngoài luồng xử lý yêu cầu và hoán đổi chúng vào ảnh chụp chỉ mục một cách nguyên tử
+ */
+@Service
+public class IndexCompactionService {
+
+    private static final Logger logger = Logger.getLogger(IndexCompactionService.class.getName());
+
+    @Value("${app.index.compaction.tombstone-ratio:0.2}")
+    private double tombstoneRatioThreshold;
+
+    @Value("${app.index.compaction.min-tombstones:1}")
+    private int minTombstones;
+
+    @Autowired
+    private VectorService vectorService;
+
+    private final AtomicLong compactedPartitions = new AtomicLong();
+    private final AtomicLong reclaimedSlots = new AtomicLong();
+    private final AtomicLong skippedSwaps = new AtomicLong();
+    private volatile long lastRunMillis = 0;
+
+    /**
+     * Chạy định kỳ để nén các phân vùng có tỉ lệ tombstone vượt ngưỡng
+     * Phân vùng bị thay đổi trong lúc nén sẽ được bỏ qua và xử lý lại ở lần chạy sau
+     */
+    @Scheduled(fixedDelayString = "${app.index.compaction.interval-ms:30000}",
+               initialDelayString = "${app.index.compaction.interval-ms:30000}")
+    public void compactIndex() {
+        lastRunMillis = System.currentTimeMillis();
+        VectorIndexSnapshot snapshot = vectorService.currentIndexSnapshot();
+        if (snapshot == null) {
+            return;
+        }
+
+        for (Map.Entry<String, VectorPartition> entry : snapshot.getPartitions().entrySet()) {
+            VectorPartition partition = entry.getValue();
+            if (!needsCompaction(partition)) {
+                continue;
+            }
+
+            long start = System.currentTimeMillis();
+            VectorPartition compacted = partition.compact();
+            if (vectorService.replacePartition(entry.getKey(), partition, compacted)) {
+                compactedPartitions.incrementAndGet();
+                reclaimedSlots.addAndGet(partition.getTombstoneCount());
+                logger.info("Đã nén phân vùng " + entry.getKey() + ": " + partition.size() + " -> " +
+                           compacted.size() + " ô trong " + (System.currentTimeMillis() - start) + "ms");
+            } else {
+                skippedSwaps.incrementAndGet();
+                logger.info("Phân vùng " + entry.getKey() + " đã thay đổi trong lúc nén, sẽ thử lại ở lần chạy sau");
+            }
+        }
+    }
+
+    private boolean needsCompaction(VectorPartition partition) {
+        if (partition.getTombstoneCount() < Math.max(1, minTombstones)) {
+            return false;
+        }
+        return partition.liveSize() == 0 || partition.tombstoneRatio() >= tombstoneRatioThreshold;
+    }
+
+    /**
+     * Trả về thống kê về các phân vùng chỉ mục và tác vụ nén
+     * @return Map chứa các thông tin thống kê
+     */
+    public Map<String, Object> getStatistics() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        VectorIndexSnapshot snapshot = vectorService.currentIndexSnapshot();
+
+        List<Map<String, Object>> partitions = new ArrayList<>();
+        if (snapshot != null) {
+            for (Map.Entry<String, VectorPartition> entry : snapshot.getPartitions().entrySet()) {
+                VectorPartition partition = entry.getValue();
+                Map<String, Object> info = new HashMap<>();
+                info.put("key", entry.getKey());
+                info.put("modelId", partition.getModelId());
+                info.put("dimension", partition.getDimension());
+                info.put("slots", partition.size());
+                info.put("live", partition.liveSize());
+                info.put("tombstones", partition.getTombstoneCount());
+                info.put("tombstoneRatio", Math.round(partition.tombstoneRatio() * 1000) / 1000.0);
+                info.put("memoryBytes", partition.estimateMemoryBytes());
+                partitions.add(info);
+            }
+            stats.put("snapshotVersion", snapshot.getVersion());
+        }
+
+        stats.put("partitions", partitions);
+        stats.put("tombstoneRatioThreshold", tombstoneRatioThreshold);
+        stats.put("compactedPartitions", compactedPartitions.get());
+        stats.put("reclaimedSlots", reclaimedSlots.get());
+        stats.put("skippedSwaps", skippedSwaps.get());
+        stats.put("lastRunMillis", lastRunMillis);
+        return stats;
+    }
+}
@@ -1,8 +1,11 @@
 package aidhkm.dhkm16a1hn.service; // Khai báo package chứa lớp dịch vụ NLP
 
+import aidhkm.dhkm16a1hn.embedding.Embedding; // Import vector nhúng kèm mã mô hình
+import aidhkm.dhkm16a1hn.generation.GenerationRouter; // Import bộ định tuyến giữa các nguồn sinh văn bản
 import aidhkm.dhkm16a1hn.model.Document; // Import model Document để làm việc với dữ liệu tài liệu
 import aidhkm.dhkm16a1hn.model.EmbeddingVector; // Import model EmbeddingVector để làm việc với vector nhúng
 import aidhkm.dhkm16a1hn.repository.EmbeddingRepository; // Import repository để thao tác với cơ sở dữ liệu vector nhúng
+import aidhkm.dhkm16a1hn.util.SentenceIndex; // Import chỉ mục câu tính sẵn của ngữ cảnh
 import org.springframework.beans.factory.annotation.Autowired; // Import annotation để tiêm phụ thuộc tự động
 import org.springframework.stereotype.Service; // Import annotation để đánh dấu lớp là một dịch vụ
 import java.util.ArrayList; // Import ArrayList để xử lý danh sách động
@@ -12,7 +15,6 @@ import org.springframework.transaction.annotation.Transactional; // Import annot
 import java.util.Arrays; // Import Arrays để làm việc với mảng
 import org.springframework.beans.factory.annotation.Value; // Import annotation để đọc giá trị từ file cấu hình
 import java.util.regex.Pattern; // Import Pattern để làm việc với biểu thức chính quy
-import java.util.concurrent.TimeUnit; // Import TimeUnit để làm việc với đơn vị thời gian
 
 /**
  * Dịch vụ xử lý ngôn ngữ tự nhiên (NLP)
@@ -25,7 +27,7 @@ public class NLPService { // Khai báo lớp dịch vụ xử lý ngôn ngữ t
     private static final Logger logger = Logger.getLogger(NLPService.class.getName()); // Khởi tạo Logger để ghi log hoạt động của lớp
     
     @Autowired // Tiêm phụ thuộc tự động từ Spring container
-    private VertexAIService vertexAIService; // Dịch vụ giao tiếp với Vertex AI để tạo câu trả lời
+    private GenerationRouter generationRouter; // Bộ định tuyến tới nguồn sinh văn bản (Vertex AI, Ollama...) để tạo câu trả lời
     
     // Ngưỡng độ tương đồng tối thiểu để coi là câu trả lời hợp lệ
     @Value("${app.similarity.threshold:0.75}") // Đọc giá trị từ file cấu hình, giá trị mặc định là 0.75
@@ -138,7 +140,7 @@ public class NLPService { // Khai báo lớp dịch vụ xử lý ngôn ngữ t
                 context // Chèn ngữ cảnh vào prompt
             );
             
-            String answer = vertexAIService.generateText(prompt); // Gọi dịch vụ Vertex AI để tạo câu trả lời
+            String answer = generationRouter.generateText(prompt); // Gọi nguồn sinh văn bản nhanh nhất hiện tại để tạo câu trả lời
             
             // Cache câu trả lời để sử dụng trong tương lai
             if (answer != null && !answer.isEmpty()) { // Kiểm tra nếu câu trả lời không rỗng
@@ -153,7 +155,47 @@ public class NLPService { // Khai báo lớp dịch vụ xử lý ngôn ngữ t
             return "Xin lỗi, tôi không thể tạo câu trả lời lúc này."; // Trả về thông báo lỗi thân thiện với người dùng
         }
     }
-    
+
+    /**
+     * Tạo câu trả lời trích xuất từ ngữ cảnh bằng các quy tắc theo loại câu hỏi, không gọi mô hình ngôn ngữ
+     * Dùng làm câu trả lời dự phòng khi mô hình không kịp trả lời trong hạn chót của yêu cầu
+     *
+     * @param question Câu hỏi đã chuẩn hóa
+     * @param context Ngữ cảnh để trích xuất câu trả lời
+     * @return Câu trả lời trích xuất, hoặc null nếu các quy tắc không tìm được câu cụ thể (chỉ còn trả về toàn bộ ngữ cảnh)
+     */
+    public String extractAnswer(String question, String context) { // Phương thức tạo câu trả lời trích xuất
+        return extractAnswer(question, SentenceIndex.build(context)); // Tách câu tại chỗ cho ngữ cảnh chưa có chỉ mục câu
+    }
+
+    /**
+     * Tạo câu trả lời trích xuất từ các câu đã tách và chuẩn hóa sẵn (không tách lại ngữ cảnh cho mỗi câu hỏi)
+     *
+     * @param question Câu hỏi đã chuẩn hóa
+     * @param context Chỉ mục câu của ngữ cảnh
+     * @return Câu trả lời trích xuất, hoặc null nếu các quy tắc không tìm được câu cụ thể
+     */
+    public String extractAnswer(String question, SentenceIndex context) { // Phương thức tạo câu trả lời trích xuất
+        if (question == null || context == null || context.isEmpty()) { // Không có ngữ cảnh thì không có gì để trích xuất
+            return null;
+        }
+        try {
+            String lowerQuestion = question.toLowerCase(); // Các quy tắc so khớp trên chữ thường
+            QuestionType questionType = analyzeQuestionType(lowerQuestion); // Xác định loại câu hỏi
+            if (questionType == QuestionType.GENERAL) { // Câu hỏi chung: không có quy tắc trích xuất riêng
+                return null;
+            }
+            String answer = generateAnswerByType(lowerQuestion, context, questionType); // Áp dụng quy tắc của loại câu hỏi
+            if (answer == null || answer.trim().isEmpty() || answer.equals(context.getText())) { // Quy tắc không tìm được câu nào, đã rơi về toàn bộ ngữ cảnh
+                return null;
+            }
+            return answer.trim(); // Trả về câu trả lời trích xuất
+        } catch (Exception e) { // Bắt ngoại lệ nếu có lỗi
+            logger.warning("Error extracting answer: " + e.getMessage()); // Ghi log cảnh báo
+            return null;
+        }
+    }
+
     /**
      * Enum cho các loại câu hỏi
      * Phân loại câu hỏi để tạo câu trả lời phù hợp với ngữ cảnh và nhu cầu người dùng
@@ -207,7 +249,7 @@ public class NLPService { // Khai báo lớp dịch vụ xử lý ngôn ngữ t
      * @param questionType Loại câu hỏi đã được phân tích
      * @return Câu trả lời phù hợp với loại câu hỏi
      */
-    private String generateAnswerByType(String question, String context, QuestionType questionType) { // Phương thức tạo câu trả lời dựa trên loại câu hỏi
+    private String generateAnswerByType(String question, SentenceIndex context, QuestionType questionType) { // Phương thức tạo câu trả lời dựa trên loại câu hỏi
         switch (questionType) { // Kiểm tra loại câu hỏi
             case DEFINITION: // Trường hợp câu hỏi định nghĩa
                 return generateDefinitionAnswer(question, context); // Gọi phương thức tạo câu trả lời cho câu hỏi định nghĩa
@@ -238,7 +280,7 @@ public class NLPService { // Khai báo lớp dịch vụ xử lý ngôn ngữ t
      * @param context Ngữ cảnh chứa thông tin để tạo câu trả lời
      * @return Câu trả lời mô tả khái niệm được hỏi
      */
-    private String generateDefinitionAnswer(String question, String context) { // Phương thức tạo câu trả lời cho câu hỏi định nghĩa
+    private String generateDefinitionAnswer(String question, SentenceIndex context) { // Phương thức tạo câu trả lời cho câu hỏi định nghĩa
         // Trích xuất đối tượng cần định nghĩa
         String subject = extractSubjectBeforePhrase(question, Arrays.asList("là gì", "định nghĩa", "khái niệm")); // Trích xuất chủ đề từ câu hỏi
         
@@ -246,32 +288,31 @@ public class NLPService { // Khai báo lớp dịch vụ xử lý ngôn ngữ t
             return generateGeneralAnswer(question, context); // Chuyển sang tạo câu trả lời chung nếu không xác định được chủ đề
         }
         
-        // Tìm câu chứa đối tượng và từ định nghĩa
-        String[] sentences = context.split("[.!?]"); // Tách ngữ cảnh thành các câu riêng biệt
+        // Tìm câu chứa đối tượng và từ định nghĩa // Tách ngữ cảnh thành các câu riêng biệt
         StringBuilder answer = new StringBuilder(); // Khởi tạo StringBuilder để xây dựng câu trả lời
         
         boolean foundDefinition = false; // Biến đánh dấu đã tìm thấy định nghĩa chưa
-        for (String sentence : sentences) { // Duyệt qua từng câu trong ngữ cảnh
-            sentence = sentence.trim(); // Loại bỏ khoảng trắng thừa
-            String sentenceLower = sentence.toLowerCase(); // Chuyển câu thành chữ thường để dễ tìm kiếm
+        for (int i = 0; i < context.size(); i++) { // Duyệt qua từng câu trong ngữ cảnh (đã tách sẵn khi nạp tài liệu)
+            String sentence = context.sentence(i); // Câu gốc
+            String sentenceLower = context.normalizedSentence(i); // Dạng chữ thường đã tính sẵn
             
             if (sentenceLower.contains(subject)) { // Kiểm tra nếu câu chứa chủ đề cần định nghĩa
                 if (sentenceLower.contains(" là ") || sentenceLower.contains("được gọi") || 
                     sentenceLower.contains("định nghĩa") || sentenceLower.contains("khái niệm")) { // Kiểm tra nếu câu chứa từ khóa định nghĩa
-                    answer.append(capitalizeFirstLetter(sentence)).append(". "); // Thêm câu vào câu trả lời với chữ cái đầu viết hoa
+                    appendSentence(answer, sentence); // Thêm câu vào câu trả lời với chữ cái đầu viết hoa
                     foundDefinition = true; // Đánh dấu đã tìm thấy định nghĩa
                 } else if (!foundDefinition) { // Nếu chưa tìm thấy định nghĩa
-                    answer.append(capitalizeFirstLetter(sentence)).append(". "); // Thêm câu chứa chủ đề vào câu trả lời
+                    appendSentence(answer, sentence); // Thêm câu chứa chủ đề vào câu trả lời
                 }
             }
         }
         
         // Nếu không tìm thấy câu định nghĩa cụ thể, sử dụng tất cả các câu có chứa đối tượng
         if (answer.length() == 0) { // Kiểm tra nếu chưa có câu trả lời
-            for (String sentence : sentences) { // Duyệt lại từng câu trong ngữ cảnh
-                sentence = sentence.trim(); // Loại bỏ khoảng trắng thừa
-                if (sentence.toLowerCase().contains(subject)) { // Kiểm tra nếu câu chứa chủ đề
-                    answer.append(capitalizeFirstLetter(sentence)).append(". "); // Thêm câu vào câu trả lời
+            for (int i = 0; i < context.size(); i++) { // Duyệt lại từng câu trong ngữ cảnh
+                String sentence = context.sentence(i); // Câu gốc
+                if (context.normalizedSentence(i).contains(subject)) { // Kiểm tra nếu câu chứa chủ đề
+                    appendSentence(answer, sentence); // Thêm câu vào câu trả lời
                 }
             }
         }
@@ -287,7 +328,7 @@ public class NLPService { // Khai báo lớp dịch vụ xử lý ngôn ngữ t
     /**
      * Tạo câu trả lời cho câu hỏi lý do
      */
-    private String generateReasonAnswer(String question, String context) {
+    private String generateReasonAnswer(String question, SentenceIndex context) {
         // Trích xuất đối tượng cần giải thích
         String subject = extractSubjectAfterPhrase(question, Arrays.asList("tại sao", "vì sao", "lý do", "nguyên nhân"));
         
@@ -296,32 +337,31 @@ public class NLPService { // Khai báo lớp dịch vụ xử lý ngôn ngữ t
         }
         
         // Tìm câu chứa đối tượng và từ khóa lý do
-        String[] sentences = context.split("[.!?]");
         StringBuilder answer = new StringBuilder();
         
         boolean foundReason = false;
-        for (String sentence : sentences) {
-            sentence = sentence.trim();
-            String sentenceLower = sentence.toLowerCase();
+        for (int i = 0; i < context.size(); i++) {
+            String sentence = context.sentence(i);
+            String sentenceLower = context.normalizedSentence(i);
             
             if (sentenceLower.contains(subject)) {
                 if (sentenceLower.contains("vì ") || sentenceLower.contains("bởi ") || 
                     sentenceLower.contains("do ") || sentenceLower.contains("nguyên nhân") || 
                     sentenceLower.contains("lý do")) {
-                    answer.append(capitalizeFirstLetter(sentence)).append(". ");
+                    appendSentence(answer, sentence);
                     foundReason = true;
                 } else if (!foundReason) {
-                    answer.append(capitalizeFirstLetter(sentence)).append(". ");
+                    appendSentence(answer, sentence);
                 }
             }
         }
         
         // Nếu không tìm thấy câu lý do cụ thể, sử dụng tất cả các câu có chứa đối tượng
         if (answer.length() == 0) {
-            for (String sentence : sentences) {
-                sentence = sentence.trim();
-                if (sentence.toLowerCase().contains(subject)) {
-                    answer.append(capitalizeFirstLetter(sentence)).append(". ");
+            for (int i = 0; i < context.size(); i++) {
+                String sentence = context.sentence(i);
+                if (context.normalizedSentence(i).contains(subject)) {
+                    appendSentence(answer, sentence);
                 }
             }
         }
@@ -337,7 +377,7 @@ public class NLPService { // Khai báo lớp dịch vụ xử lý ngôn ngữ t
     /**
      * Tạo câu trả lời cho câu hỏi phương pháp
      */
-    private String generateMethodAnswer(String question, String context) {
+    private String generateMethodAnswer(String question, SentenceIndex context) {
         // Trích xuất đối tượng cần hướng dẫn
         String subject = extractSubjectAfterPhrase(question, Arrays.asList("làm sao", "làm thế nào", "cách"));
         
@@ -346,32 +386,31 @@ public class NLPService { // Khai báo lớp dịch vụ xử lý ngôn ngữ t
         }
         
         // Tìm câu chứa đối tượng và từ khóa phương pháp
-        String[] sentences = context.split("[.!?]");
         StringBuilder answer = new StringBuilder();
         
         boolean foundMethod = false;
-        for (String sentence : sentences) {
-            sentence = sentence.trim();
-            String sentenceLower = sentence.toLowerCase();
+        for (int i = 0; i < context.size(); i++) {
+            String sentence = context.sentence(i);
+            String sentenceLower = context.normalizedSentence(i);
             
             if (sentenceLower.contains(subject)) {
                 if (sentenceLower.contains("bằng cách") || sentenceLower.contains("thông qua") || 
                     sentenceLower.contains("bước") || sentenceLower.contains("quy trình") || 
                     sentenceLower.contains("thực hiện")) {
-                    answer.append(capitalizeFirstLetter(sentence)).append(". ");
+                    appendSentence(answer, sentence);
                     foundMethod = true;
                 } else if (!foundMethod) {
-                    answer.append(capitalizeFirstLetter(sentence)).append(". ");
+                    appendSentence(answer, sentence);
                 }
             }
         }
         
         // Nếu không tìm thấy câu phương pháp cụ thể, sử dụng tất cả các câu có chứa đối tượng
         if (answer.length() == 0) {
-            for (String sentence : sentences) {
-                sentence = sentence.trim();
-                if (sentence.toLowerCase().contains(subject)) {
-                    answer.append(capitalizeFirstLetter(sentence)).append(". ");
+            for (int i = 0; i < context.size(); i++) {
+                String sentence = context.sentence(i);
+                if (context.normalizedSentence(i).contains(subject)) {
+                    appendSentence(answer, sentence);
                 }
             }
         }
@@ -387,7 +426,7 @@ public class NLPService { // Khai báo lớp dịch vụ xử lý ngôn ngữ t
     /**
      * Tạo câu trả lời cho câu hỏi kết hợp/ăn kèm
      */
-    private String generateCombinationAnswer(String question, String context) {
+    private String generateCombinationAnswer(String question, SentenceIndex context) {
         // Trích xuất đối tượng cần tìm kết hợp
         String subject = extractSubjectBeforePhrase(question, Arrays.asList("ăn kèm", "dùng với", "kết hợp"));
         
@@ -396,32 +435,31 @@ public class NLPService { // Khai báo lớp dịch vụ xử lý ngôn ngữ t
         }
         
         // Tìm câu chứa đối tượng và từ khóa kết hợp
-        String[] sentences = context.split("[.!?]");
         StringBuilder answer = new StringBuilder();
         
         boolean foundCombination = false;
-        for (String sentence : sentences) {
-            sentence = sentence.trim();
-            String sentenceLower = sentence.toLowerCase();
+        for (int i = 0; i < context.size(); i++) {
+            String sentence = context.sentence(i);
+            String sentenceLower = context.normalizedSentence(i);
             
             if (sentenceLower.contains(subject)) {
                 if (sentenceLower.contains("kèm") || sentenceLower.contains("với") || 
                     sentenceLower.contains("cùng") || sentenceLower.contains("kết hợp") || 
                     sentenceLower.contains("ăn")) {
-                    answer.append(capitalizeFirstLetter(sentence)).append(". ");
+                    appendSentence(answer, sentence);
                     foundCombination = true;
                 } else if (!foundCombination) {
-                    answer.append(capitalizeFirstLetter(sentence)).append(". ");
+                    appendSentence(answer, sentence);
                 }
             }
         }
         
         // Nếu không tìm thấy câu kết hợp cụ thể, sử dụng tất cả các câu có chứa đối tượng
         if (answer.length() == 0) {
-            for (String sentence : sentences) {
-                sentence = sentence.trim();
-                if (sentence.toLowerCase().contains(subject)) {
-                    answer.append(capitalizeFirstLetter(sentence)).append(". ");
+            for (int i = 0; i < context.size(); i++) {
+                String sentence = context.sentence(i);
+                if (context.normalizedSentence(i).contains(subject)) {
+                    appendSentence(answer, sentence);
                 }
             }
         }
@@ -442,16 +480,15 @@ public class NLPService { // Khai báo lớp dịch vụ xử lý ngôn ngữ t
     /**
      * Tạo câu trả lời cho câu hỏi số lượng
      */
-    private String generateQuantityAnswer(String question, String context) {
+    private String generateQuantityAnswer(String question, SentenceIndex context) {
         // Tìm câu chứa số và đơn vị
-        String[] sentences = context.split("[.!?]");
         StringBuilder answer = new StringBuilder();
         
-        for (String sentence : sentences) {
-            sentence = sentence.trim();
+        for (int i = 0; i < context.size(); i++) {
+            String sentence = context.sentence(i);
             // Tìm câu chứa số
-            if (sentence.matches(".*\\d+.*")) {
-                answer.append(capitalizeFirstLetter(sentence)).append(". ");
+            if (containsDigit(sentence)) {
+                appendSentence(answer, sentence);
             }
         }
         
@@ -466,19 +503,18 @@ public class NLPService { // Khai báo lớp dịch vụ xử lý ngôn ngữ t
     /**
      * Tạo câu trả lời cho câu hỏi thời gian
      */
-    private String generateTimeAnswer(String question, String context) {
+    private String generateTimeAnswer(String question, SentenceIndex context) {
         // Tìm câu chứa từ khóa thời gian
         String[] timeKeywords = {"giờ", "phút", "giây", "ngày", "tháng", "năm", "sáng", "trưa", "chiều", "tối", "khi"};
-        String[] sentences = context.split("[.!?]");
         StringBuilder answer = new StringBuilder();
         
-        for (String sentence : sentences) {
-            sentence = sentence.trim();
-            String sentenceLower = sentence.toLowerCase();
+        for (int i = 0; i < context.size(); i++) {
+            String sentence = context.sentence(i);
+            String sentenceLower = context.normalizedSentence(i);
             
             for (String keyword : timeKeywords) {
                 if (sentenceLower.contains(keyword)) {
-                    answer.append(capitalizeFirstLetter(sentence)).append(". ");
+                    appendSentence(answer, sentence);
                     break;
                 }
             }
@@ -495,19 +531,18 @@ public class NLPService { // Khai báo lớp dịch vụ xử lý ngôn ngữ t
     /**
      * Tạo câu trả lời cho câu hỏi địa điểm
      */
-    private String generateLocationAnswer(String question, String context) {
+    private String generateLocationAnswer(String question, SentenceIndex context) {
         // Tìm câu chứa từ khóa địa điểm
         String[] locationKeywords = {"tại", "ở", "trong", "ngoài", "trên", "dưới", "đến", "từ", "quốc gia", "thành phố", "làng", "xã", "huyện", "tỉnh"};
-        String[] sentences = context.split("[.!?]");
         StringBuilder answer = new StringBuilder();
         
-        for (String sentence : sentences) {
-            sentence = sentence.trim();
-            String sentenceLower = sentence.toLowerCase();
+        for (int i = 0; i < context.size(); i++) {
+            String sentence = context.sentence(i);
+            String sentenceLower = context.normalizedSentence(i);
             
             for (String keyword : locationKeywords) {
                 if (sentenceLower.contains(keyword)) {
-                    answer.append(capitalizeFirstLetter(sentence)).append(". ");
+                    appendSentence(answer, sentence);
                     break;
                 }
             }
@@ -524,15 +559,39 @@ public class NLPService { // Khai báo lớp dịch vụ xử lý ngôn ngữ t
     /**
      * Tạo câu trả lời chung cho các câu hỏi không thuộc loại cụ thể
      */
-    private String generateGeneralAnswer(String question, String context) {
+    private String generateGeneralAnswer(String question, SentenceIndex context) {
         if (context.isEmpty()) {
             return generateAnswerWithoutContext(question);
         }
         
         // Sử dụng toàn bộ ngữ cảnh
-        return context;
+        return context.getText();
     }
     
+    /**
+     * Thêm một câu vào câu trả lời: viết hoa chữ cái đầu và kết thúc bằng một dấu chấm
+     * (câu trong chỉ mục câu giữ nguyên dấu câu cuối nên được bỏ trước khi thêm)
+     */
+    private void appendSentence(StringBuilder answer, String sentence) { // Phương thức thêm câu vào câu trả lời
+        int end = sentence.length(); // Vị trí kết thúc sau khi bỏ dấu câu cuối
+        while (end > 0 && (sentence.charAt(end - 1) == '.' || sentence.charAt(end - 1) == '!' || sentence.charAt(end - 1) == '?')) {
+            end--;
+        }
+        answer.append(capitalizeFirstLetter(sentence.substring(0, end))).append(". "); // Thêm câu đã định dạng
+    }
+
+    /**
+     * Kiểm tra câu có chứa chữ số không (thay cho so khớp biểu thức chính quy trên từng câu)
+     */
+    private boolean containsDigit(String sentence) { // Phương thức kiểm tra chữ số
+        for (int i = 0; i < sentence.length(); i++) { // Duyệt từng ký tự
+            if (Character.isDigit(sentence.charAt(i))) { // Tìm thấy chữ số
+                return true;
+            }
+        }
+        return false;
+    }
+
     /**
      * Tạo câu trả lời khi không có ngữ cảnh
      */
@@ -686,20 +745,15 @@ public class NLPService { // Khai báo lớp dịch vụ xử lý ngôn ngữ t
                     List<String> segments = segmentText(content); // Phân đoạn nội dung thành các đoạn nhỏ hơn
                     logger.info("Tài liệu " + documentId + " được phân thành " + segments.size() + " đoạn"); // Ghi log thông tin số đoạn
                     
-                    // Tạo vector nhúng cho từng đoạn
+                    // Tạo vector nhúng cho tất cả đoạn theo lô, thay cho gọi API từng đoạn kèm tạm dừng
+                    List<Embedding> embeddings = vectorService.createEmbeddings(segments); // Kết quả giữ đúng thứ tự các đoạn
                     for (int i = 0; i < segments.size(); i++) { // Duyệt qua từng đoạn
                         String segment = segments.get(i); // Lấy nội dung đoạn
+                        Embedding embedding = embeddings.get(i); // Vector nhúng tương ứng kèm mã mô hình
                         
-                        // Tạo vector nhúng cho đoạn văn bản
-                        float[] embedding = vectorService.createEmbedding(segment); // Tạo vector nhúng mới
-                        
-                        if (embedding != null) { // Kiểm tra nếu vector được tạo thành công
-                            // Lưu vector nhúng vào cơ sở dữ liệu
-                            EmbeddingVector vector = new EmbeddingVector();
-                            vector.setDocumentId(documentId);
-                            vector.setSegment(segment);
-                            vector.setVectorData(embedding);
-                            embeddingRepository.save(vector);
+                        if (!embedding.isEmpty()) { // Kiểm tra nếu vector được tạo thành công
+                            // Lưu vector nhúng vào cơ sở dữ liệu (bỏ qua đoạn trùng lặp theo segment_hash)
+                            vectorService.saveEmbeddingVector(segment, embedding, documentId);
                             
                             totalVectorsCreated++; // Tăng số lượng vector đã tạo
                             
@@ -709,16 +763,6 @@ public class NLPService { // Khai báo lớp dịch vụ xử lý ngôn ngữ t
                                     processedDocuments + "/" + totalDocuments); // Ghi log tiến trình
                             }
                         }
-                        
-                        // Tạm dừng giữa các lần tạo vector để tránh quá tải API
-                        if (i < segments.size() - 1) { // Nếu không phải đoạn cuối cùng
-                            try {
-                                TimeUnit.MILLISECONDS.sleep(50); // Tạm dừng 50ms giữa các lần tạo vector
-                            } catch (InterruptedException e) { // Bắt ngoại lệ nếu bị gián đoạn
-                                Thread.currentThread().interrupt(); // Đánh dấu luồng hiện tại bị gián đoạn
-                                logger.warning("Quá trình tạo vector bị gián đoạn: " + e.getMessage()); // Ghi log cảnh báo
-                            }
-                        }
                     }
                     
                     processedDocuments++; // Tăng số lượng tài liệu đã xử lý
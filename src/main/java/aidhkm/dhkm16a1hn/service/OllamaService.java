@@ -1,36 +1,192 @@
 package aidhkm.dhkm16a1hn.service;
 
-import org.springframework.http.HttpEntity;
-import org.springframework.http.HttpHeaders;
+import aidhkm.dhkm16a1hn.generation.TextGenerator;
+import aidhkm.dhkm16a1hn.resilience.CallNotPermittedException;
+import aidhkm.dhkm16a1hn.resilience.CircuitBreaker;
+import com.fasterxml.jackson.databind.JsonNode;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.http.MediaType;
 import org.springframework.stereotype.Service;
-import org.springframework.web.client.RestTemplate;
+import org.springframework.web.reactive.function.client.WebClient;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
 
-import java.util.HashMap;
+import java.time.Duration;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
 
+/**
+ * Sinh văn bản bằng mô hình cục bộ qua Ollama (/api/generate), bỏ được vòng gọi WAN khi triển khai tại chỗ
+ * Dùng WebClient với connection pool keep-alive riêng; chế độ streaming đọc từng dòng NDJSON ngay khi Ollama
+ * sinh ra token. Mô hình được giữ trong bộ nhớ giữa các yêu cầu bằng tham số keep_alive.
+ * Lời gọi đi qua circuit breaker riêng để Ollama gặp sự cố không làm chậm các yêu cầu sau
+ */
 @Service
-public class OllamaService {
-    
-    private final String diemCuoiOllama = "http://localhost:11434/api/generate";
-    private final RestTemplate restTemplate = new RestTemplate();
-    
-    public String generateResponse(String prompt) {
-        HttpHeaders headers = new HttpHeaders();
-        headers.setContentType(MediaType.APPLICATION_JSON);
-        
-        Map<String, Object> request = new HashMap<>();
-        request.put("model", "mistral"); // hoặc llama2 hoặc mô hình bạn đã cài đặt
-        request.put("prompt", prompt);
-        
-        HttpEntity<Map<String, Object>> entity = new HttpEntity<>(request, headers);
-        
+public class OllamaService implements TextGenerator {
+
+    private static final Logger logger = Logger.getLogger(OllamaService.class.getName());
+
+    @Value("${ollama.base-url:http://localhost:11434}")
+    private String baseUrl;
+
+    @Value("${ollama.model:mistral}")
+    private String model;
+
+    @Value("${ollama.keep-alive:30m}")
+    private String keepAlive;
+
+    @Value("${ollama.temperature:0.1}")
+    private double temperature;
+
+    // Giới hạn trên số token sinh ra, áp dụng cùng giới hạn theo loại câu hỏi của phía gọi
+    @Value("${ollama.num-predict:1024}")
+    private int numPredict;
+
+    // Thời gian chờ tối đa cho toàn bộ câu trả lời (không streaming) hoặc giữa hai token liên tiếp (streaming)
+    @Value("${ollama.timeout-ms:120000}")
+    private long timeoutMs;
+
+    @Autowired
+    @Qualifier("ollamaWebClient")
+    private WebClient webClient;
+
+    @Autowired
+    @Qualifier("ollamaCircuitBreaker")
+    private CircuitBreaker circuitBreaker;
+
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final AtomicLong generatedTokens = new AtomicLong();
+
+    @Override
+    public String getName() {
+        return "ollama";
+    }
+
+    /**
+     * Tạo văn bản và chờ kết quả
+     * @return Văn bản được tạo, hoặc GENERATION_FAILED_MESSAGE nếu Ollama lỗi (không trả thông báo lỗi như một câu trả lời)
+     */
+    @Override
+    public String generateText(String prompt, int maxOutputTokens) {
         try {
-            Map<String, Object> response = restTemplate.postForObject(diemCuoiOllama, entity, Map.class);
-            return (String) response.get("response");
+            String generatedText = generateTextAsync(prompt, maxOutputTokens).block();
+            return generatedText != null ? generatedText : GENERATION_FAILED_MESSAGE;
+        } catch (CallNotPermittedException e) {
+            logger.warning("Bỏ qua tạo văn bản bằng Ollama: " + e.getMessage());
+            return GENERATION_FAILED_MESSAGE;
         } catch (Exception e) {
-            e.printStackTrace();
-            return "Không thể kết nối với mô hình LLM cục bộ: " + e.getMessage();
+            logger.severe("Lỗi khi tạo văn bản bằng Ollama (" + model + "): " + e.getMessage());
+            return GENERATION_FAILED_MESSAGE;
         }
     }
-} 
\ No newline at end of file
+
+    @Override
+    public Mono<String> generateTextAsync(String prompt, int maxOutputTokens) {
+        return circuitBreaker.execute(Mono.defer(() -> {
+                    requests.incrementAndGet();
+                    long startTime = System.currentTimeMillis();
+                    return webClient.post()
+                            .uri(baseUrl + "/api/generate")
+                            .accept(MediaType.APPLICATION_JSON)
+                            .bodyValue(buildRequest(prompt, maxOutputTokens, false))
+                            .retrieve()
+                            .bodyToMono(JsonNode.class)
+                            .timeout(Duration.ofMillis(timeoutMs))
+                            .flatMap(response -> {
+                                if (response.has("error")) {
+                                    return Mono.error(new IllegalStateException("Ollama: " + response.path("error").asText()));
+                                }
+                                recordCompletion(response, startTime);
+                                String text = response.path("response").asText("").trim();
+                                return text.isEmpty() ? Mono.<String>empty() : Mono.just(text);
+                            });
+                }))
+                .doOnError(error -> failures.incrementAndGet());
+    }
+
+    /**
+     * Tạo văn bản theo luồng: Ollama trả về NDJSON, mỗi dòng một đối tượng {"response": "...", "done": false},
+     * được giải mã từng dòng ngay khi tới (không chờ toàn bộ phản hồi)
+     */
+    @Override
+    public Flux<String> streamGenerateText(String prompt, int maxOutputTokens) {
+        return circuitBreaker.executeMany(Flux.defer(() -> {
+                    requests.incrementAndGet();
+                    long startTime = System.currentTimeMillis();
+                    return webClient.post()
+                            .uri(baseUrl + "/api/generate")
+                            .accept(MediaType.APPLICATION_NDJSON)
+                            .bodyValue(buildRequest(prompt, maxOutputTokens, true))
+                            .retrieve()
+                            .bodyToFlux(JsonNode.class)
+                            .timeout(Duration.ofMillis(timeoutMs))
+                            .<String>handle((line, sink) -> {
+                                if (line.has("error")) {
+                                    sink.error(new IllegalStateException("Ollama: " + line.path("error").asText()));
+                                    return;
+                                }
+                                if (line.path("done").asBoolean(false)) {
+                                    recordCompletion(line, startTime);
+                                }
+                                String chunk = line.path("response").asText("");
+                                if (!chunk.isEmpty()) {
+                                    sink.next(chunk);
+                                }
+                            });
+                }))
+                .doOnError(error -> failures.incrementAndGet());
+    }
+
+    @Override
+    public boolean isGenerationHealthy() {
+        return circuitBreaker.getState() == CircuitBreaker.State.CLOSED;
+    }
+
+    private Map<String, Object> buildRequest(String prompt, int maxOutputTokens, boolean stream) {
+        Map<String, Object> options = new LinkedHashMap<>();
+        options.put("temperature", temperature);
+        options.put("num_predict", Math.min(numPredict, maxOutputTokens));
+
+        Map<String, Object> request = new LinkedHashMap<>();
+        request.put("model", model);
+        request.put("prompt", prompt);
+        request.put("stream", stream);
+        request.put("keep_alive", keepAlive);
+        request.put("options", options);
+        return request;
+    }
+
+    /**
+     * Ghi nhận thống kê từ dòng cuối (done=true): số token sinh ra và tốc độ sinh do Ollama báo về
+     */
+    private void recordCompletion(JsonNode response, long startTime) {
+        long evalCount = response.path("eval_count").asLong(0);
+        long evalDurationNanos = response.path("eval_duration").asLong(0);
+        generatedTokens.addAndGet(evalCount);
+        logger.info("Ollama (" + model + ") tạo " + evalCount + " token trong " + (System.currentTimeMillis() - startTime) + "ms" +
+                   (evalDurationNanos > 0 ? String.format(" (%.1f token/s)", evalCount * 1e9 / evalDurationNanos) : ""));
+    }
+
+    public String getModel() {
+        return model;
+    }
+
+    /**
+     * Thống kê lời gọi Ollama: số yêu cầu, số lỗi, số token đã sinh và trạng thái circuit breaker
+     */
+    public Map<String, Object> getStatistics() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("baseUrl", baseUrl);
+        stats.put("model", model);
+        stats.put("requests", requests.get());
+        stats.put("failures", failures.get());
+        stats.put("generatedTokens", generatedTokens.get());
+        stats.put("circuitBreaker", circuitBreaker.getStatistics());
+        return stats;
+    }
+}
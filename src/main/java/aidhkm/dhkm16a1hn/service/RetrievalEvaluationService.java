@@ -0,0 +1,293 @@
+package aidhkm.dhkm16a1hn.service;
+
+import aidhkm.dhkm16a1hn.embedding.Embedding;
+import aidhkm.dhkm16a1hn.index.IvfIndex;
+import aidhkm.dhkm16a1hn.index.VectorIndexSnapshot;
+import aidhkm.dhkm16a1hn.index.VectorPartition;
+import aidhkm.dhkm16a1hn.model.ChatHistory;
+import aidhkm.dhkm16a1hn.model.Question;
+import aidhkm.dhkm16a1hn.repository.ChatHistoryRepository;
+import aidhkm.dhkm16a1hn.repository.QuestionRepository;
+import aidhkm.dhkm16a1hn.util.VectorUtil;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.domain.Sort;
+import org.springframework.stereotype.Service;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.logging.Logger;
+
+/**
+ * Service đánh giá chất lượng truy xuất của các cấu hình chỉ mục vector
+ * Dùng các câu hỏi đã lưu (bảng questions và chat_history) làm tập truy vấn, tính top-k chính xác
+ * bằng cách so sánh với toàn bộ vector làm ground truth, sau đó đo recall@k, độ trễ p50/p99
+ * và bộ nhớ của từng cấu hình (quét phân vùng, IVF với các giá trị nprobe khác nhau)
+ */
+@Service
+public class RetrievalEvaluationService {
+
+    private static final Logger logger = Logger.getLogger(RetrievalEvaluationService.class.getName());
+    private static final int[] IVF_NPROBES = {1, 2, 4, 8};
+    private static final int KMEANS_ITERATIONS = 10;
+    private static final long KMEANS_SEED = 42L;
+
+    @Autowired
+    private QuestionRepository questionRepository;
+
+    @Autowired
+    private ChatHistoryRepository chatHistoryRepository;
+
+    @Autowired
+    private VectorService vectorService;
+
+    private volatile Map<String, Object> lastReport;
+
+    /**
+     * Chạy đánh giá trên tập câu hỏi lịch sử
+     *
+     * @param k Số kết quả top-k dùng để tính recall (lớn hơn 0)
+     * @param maxQueries Số truy vấn tối đa lấy từ lịch sử (lớn hơn 0)
+     * @return Báo cáo dạng Map (cũng được ghi ra log dưới dạng bảng)
+     * @throws IllegalArgumentException nếu k hoặc maxQueries nhỏ hơn 1
+     */
+    public Map<String, Object> evaluate(int k, int maxQueries) {
+        if (k < 1 || maxQueries < 1) {
+            throw new IllegalArgumentException("k và maxQueries phải lớn hơn 0 (k=" + k + ", maxQueries=" + maxQueries + ")");
+        }
+        long startTime = System.currentTimeMillis();
+        List<String> queries = loadQueries(maxQueries);
+        VectorIndexSnapshot snapshot = vectorService.getIndexSnapshot();
+
+        // Nhóm truy vấn theo phân vùng khớp với mô hình của vector truy vấn
+        Map<String, List<float[]>> queriesByPartition = new LinkedHashMap<>();
+        int skipped = 0;
+        for (String query : queries) {
+            Embedding embedding = vectorService.createEmbedding(query);
+            if (embedding.isEmpty()) {
+                skipped++;
+                continue;
+            }
+            String key = VectorIndexSnapshot.keyOf(embedding.getModelId(), embedding.getDimension());
+            VectorPartition partition = snapshot.getPartitions().get(key);
+            if (partition == null || partition.liveSize() == 0) {
+                skipped++;
+                continue;
+            }
+            queriesByPartition.computeIfAbsent(key, x -> new ArrayList<>()).add(embedding.getVector());
+        }
+
+        Map<String, ConfigResult> results = new LinkedHashMap<>();
+        for (Map.Entry<String, List<float[]>> entry : queriesByPartition.entrySet()) {
+            evaluatePartition(snapshot.getPartitions().get(entry.getKey()), entry.getValue(), k, results);
+        }
+
+        List<Map<String, Object>> configurations = new ArrayList<>();
+        for (ConfigResult result : results.values()) {
+            configurations.add(result.toMap());
+        }
+
+        Map<String, Object> report = new LinkedHashMap<>();
+        report.put("k", k);
+        report.put("queryCount", queries.size() - skipped);
+        report.put("skippedQueries", skipped);
+        report.put("partitionsEvaluated", new ArrayList<>(queriesByPartition.keySet()));
+        report.put("configurations", configurations);
+        report.put("durationMs", System.currentTimeMillis() - startTime);
+        report.put("evaluatedAt", System.currentTimeMillis());
+
+        lastReport = report;
+        logReport(report, results.values());
+        return report;
+    }
+
+    /**
+     * Báo cáo của lần đánh giá gần nhất, null nếu chưa chạy lần nào
+     */
+    public Map<String, Object> getLastReport() {
+        return lastReport;
+    }
+
+    private void evaluatePartition(VectorPartition partition, List<float[]> queries, int k,
+                                   Map<String, ConfigResult> results) {
+        // Lấy các ô còn sống của phân vùng
+        List<Integer> liveSlots = new ArrayList<>();
+        for (int slot = 0; slot < partition.size(); slot++) {
+            if (!partition.isDeleted(slot)) {
+                liveSlots.add(slot);
+            }
+        }
+        float[][] normalized = new float[liveSlots.size()][];
+        for (int i = 0; i < liveSlots.size(); i++) {
+            normalized[i] = partition.normalizedVector(liveSlots.get(i));
+        }
+
+        // Ground truth: quét toàn bộ bằng cosine similarity trên dữ liệu gốc
+        List<Set<Integer>> groundTruth = new ArrayList<>();
+        for (float[] query : queries) {
+            groundTruth.add(exactTopK(partition, liveSlots, query, k));
+        }
+
+        // Cấu hình 1: quét phân vùng (engine đang dùng trong production)
+        ConfigResult scan = results.computeIfAbsent("partition-scan", ConfigResult::new);
+        scan.memoryBytes += partition.estimateMemoryBytes();
+        for (int q = 0; q < queries.size(); q++) {
+            long start = System.nanoTime();
+            List<VectorPartition.Hit> hits = partition.search(queries.get(q), k, -1.0f);
+            long elapsed = System.nanoTime() - start;
+            Set<Integer> found = new HashSet<>();
+            for (VectorPartition.Hit hit : hits) {
+                found.add(hit.getSlot());
+            }
+            scan.record(elapsed, recall(found, groundTruth.get(q)));
+        }
+
+        // Cấu hình 2..n: IVF với nlist = sqrt(n) và các giá trị nprobe khác nhau
+        int nlist = Math.max(1, (int) Math.round(Math.sqrt(liveSlots.size())));
+        long buildStart = System.currentTimeMillis();
+        IvfIndex ivf = IvfIndex.build(normalized, nlist, KMEANS_ITERATIONS, KMEANS_SEED);
+        long buildMillis = System.currentTimeMillis() - buildStart;
+
+        for (int nprobe : IVF_NPROBES) {
+            ConfigResult config = results.computeIfAbsent("ivf(nlist=sqrt(n),nprobe=" + nprobe + ")", ConfigResult::new);
+            config.memoryBytes += partition.estimateMemoryBytes() + ivf.estimateMemoryBytes();
+            config.buildMillis += buildMillis;
+            for (int q = 0; q < queries.size(); q++) {
+                float[] query = VectorUtil.normalize(queries.get(q));
+                long start = System.nanoTime();
+                List<IvfIndex.Neighbor> neighbors = ivf.search(query, k, nprobe);
+                long elapsed = System.nanoTime() - start;
+                Set<Integer> found = new HashSet<>();
+                for (IvfIndex.Neighbor neighbor : neighbors) {
+                    found.add(liveSlots.get(neighbor.getId()));
+                }
+                config.record(elapsed, recall(found, groundTruth.get(q)));
+            }
+        }
+    }
+
+    private Set<Integer> exactTopK(VectorPartition partition, List<Integer> liveSlots, float[] query, int k) {
+        PriorityQueue<float[]> heap = new PriorityQueue<>(k + 1, (a, b) -> Float.compare(a[1], b[1]));
+        for (int slot : liveSlots) {
+            float score = VectorUtil.cosineSimilarity(query, partition.get(slot).getVectorData());
+            if (heap.size() < k) {
+                heap.add(new float[]{slot, score});
+            } else if (score > heap.peek()[1]) {
+                heap.poll();
+                heap.add(new float[]{slot, score});
+            }
+        }
+        Set<Integer> result = new HashSet<>();
+        for (float[] entry : heap) {
+            result.add((int) entry[0]);
+        }
+        return result;
+    }
+
+    private double recall(Set<Integer> found, Set<Integer> truth) {
+        if (truth.isEmpty()) {
+            return 1.0;
+        }
+        int hits = 0;
+        for (Integer slot : truth) {
+            if (found.contains(slot)) {
+                hits++;
+            }
+        }
+        return (double) hits / truth.size();
+    }
+
+    /**
+     * Lấy tối đa maxQueries câu hỏi khác nhau, ưu tiên bảng questions rồi đến chat_history
+     * Mỗi bảng chỉ đọc một trang gồm các bản ghi mới nhất (LIMIT maxQueries), không tải cả bảng lịch sử
+     */
+    private List<String> loadQueries(int maxQueries) {
+        Set<String> queries = new LinkedHashSet<>();
+        PageRequest newest = PageRequest.of(0, maxQueries, Sort.by(Sort.Direction.DESC, "id"));
+        for (Question question : questionRepository.findAll(newest)) {
+            addQuery(queries, question.getQuestionText(), maxQueries);
+        }
+        if (queries.size() < maxQueries) {
+            for (ChatHistory chat : chatHistoryRepository.findAll(newest)) {
+                addQuery(queries, chat.getQuestion(), maxQueries);
+            }
+        }
+        return new ArrayList<>(queries);
+    }
+
+    private void addQuery(Set<String> queries, String text, int maxQueries) {
+        if (text != null && !text.trim().isEmpty() && queries.size() < maxQueries) {
+            queries.add(text.trim());
+        }
+    }
+
+    private void logReport(Map<String, Object> report, Iterable<ConfigResult> results) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("Báo cáo đánh giá truy xuất (k=").append(report.get("k"))
+          .append(", truy vấn=").append(report.get("queryCount"))
+          .append(", bỏ qua=").append(report.get("skippedQueries")).append(")\n");
+        sb.append(String.format("%-36s %10s %10s %10s %14s%n", "cấu hình", "recall@k", "p50(ms)", "p99(ms)", "bộ nhớ(KB)"));
+        for (ConfigResult result : results) {
+            sb.append(String.format("%-36s %10.4f %10.3f %10.3f %14d%n", result.name, result.meanRecall(),
+                    result.percentileMillis(0.50), result.percentileMillis(0.99), result.memoryBytes / 1024));
+        }
+        logger.info(sb.toString());
+    }
+
+    /**
+     * Kết quả tích lũy của một cấu hình chỉ mục trên tất cả phân vùng
+     */
+    private static class ConfigResult {
+        private final String name;
+        private long[] latencies = new long[64];
+        private int count = 0;
+        private double recallSum = 0;
+        private long memoryBytes = 0;
+        private long buildMillis = 0;
+
+        ConfigResult(String name) {
+            this.name = name;
+        }
+
+        void record(long latencyNanos, double recall) {
+            if (count == latencies.length) {
+                latencies = Arrays.copyOf(latencies, count * 2);
+            }
+            latencies[count++] = latencyNanos;
+            recallSum += recall;
+        }
+
+        double meanRecall() {
+            return count == 0 ? 0 : recallSum / count;
+        }
+
+        double percentileMillis(double p) {
+            if (count == 0) {
+                return 0;
+            }
+            long[] sorted = Arrays.copyOf(latencies, count);
+            Arrays.sort(sorted);
+            int index = Math.min(count - 1, Math.max(0, (int) Math.ceil(p * count) - 1));
+            return sorted[index] / 1_000_000.0;
+        }
+
+        Map<String, Object> toMap() {
+            Map<String, Object> map = new LinkedHashMap<>();
+            map.put("name", name);
+            map.put("queries", count);
+            map.put("recallAtK", Math.round(meanRecall() * 10000) / 10000.0);
+            map.put("p50Ms", Math.round(percentileMillis(0.50) * 1000) / 1000.0);
+            map.put("p99Ms", Math.round(percentileMillis(0.99) * 1000) / 1000.0);
+            map.put("memoryBytes", memoryBytes);
+            map.put("buildMs", buildMillis);
+            return map;
+        }
+    }
+}
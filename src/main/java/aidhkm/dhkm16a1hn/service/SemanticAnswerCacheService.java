@@ -0,0 +1,367 @@
+package aidhkm.dhkm16a1hn.service;
+
+import aidhkm.dhkm16a1hn.embedding.Embedding;
+import aidhkm.dhkm16a1hn.index.IvfIndex;
+import aidhkm.dhkm16a1hn.util.VectorUtil;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * Cache câu trả lời theo ngữ nghĩa của câu hỏi
+ * Mỗi mục lưu (vector câu hỏi, câu trả lời, thế hệ tài liệu). Câu hỏi mới có vector nằm trong bán kính
+ * tương đồng của một câu hỏi đã trả lời (ví dụ "phở là gì" và "phở là món gì") dùng lại câu trả lời đó
+ * thay vì gọi mô hình ngôn ngữ. Các mục được tìm bằng chỉ mục IVF, xây dựng lại ngoài luồng xử lý yêu cầu;
+ * các mục mới chưa vào chỉ mục được quét tuần tự. Mục thuộc thế hệ tài liệu cũ (đã có tài liệu được thêm
+ * hoặc xóa) không bao giờ được trả về. Mỗi mô hình nhúng có tập mục và chỉ mục riêng, nên vector của mô hình
+ * khác không làm mất các mục đã có; vector dự phòng (không mang ngữ nghĩa) không được tra cứu hay lưu
+ */
+@Service
+public class SemanticAnswerCacheService {
+
+    private static final Logger logger = Logger.getLogger(SemanticAnswerCacheService.class.getName());
+
+    // Số ứng viên lấy từ chỉ mục IVF trước khi kiểm tra thế hệ và hạn sử dụng
+    private static final int CANDIDATES = 4;
+
+    @Value("${app.semantic-cache.enabled:true}")
+    private boolean enabled;
+
+    // Độ tương đồng cosine tối thiểu để coi hai câu hỏi là cùng một câu hỏi
+    @Value("${app.semantic-cache.similarity-threshold:0.95}")
+    private float similarityThreshold;
+
+    @Value("${app.semantic-cache.max-entries:2000}")
+    private int maxEntries;
+
+    @Value("${app.semantic-cache.ttl-minutes:1440}")
+    private long ttlMinutes;
+
+    @Value("${app.semantic-cache.nprobe:4}")
+    private int nprobe;
+
+    // Số mục mới chưa vào chỉ mục cần có trước khi xây dựng lại chỉ mục
+    @Value("${app.semantic-cache.rebuild-threshold:64}")
+    private int rebuildThreshold;
+
+    @Autowired
+    private VectorService vectorService;
+
+    private final Object lock = new Object();
+    // Các mục theo mã mô hình nhúng (được bảo vệ bởi lock)
+    private final Map<String, ModelEntries> models = new HashMap<>();
+    // Thế hệ tài liệu của các mục đang giữ (được bảo vệ bởi lock)
+    private long epoch = -1;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong stores = new AtomicLong();
+    private final AtomicLong invalidations = new AtomicLong();
+    private final AtomicLong rebuilds = new AtomicLong();
+    private final AtomicLong fallbackSkips = new AtomicLong();
+
+    /**
+     * Tìm câu trả lời đã lưu cho câu hỏi gần nghĩa nhất
+     *
+     * @param questionVector Vector nhúng của câu hỏi đã chuẩn hóa, kèm mã mô hình
+     * @return Câu trả lời đã lưu, hoặc null nếu không có câu hỏi nào trong bán kính tương đồng
+     */
+    public String lookup(Embedding questionVector) {
+        if (!enabled || questionVector == null || questionVector.isEmpty()) {
+            return null;
+        }
+        if (questionVector.isFallback()) { // Vector dự phòng dựa trên hash: độ tương đồng không có nghĩa
+            fallbackSkips.incrementAndGet();
+            return null;
+        }
+        float[] query = VectorUtil.normalize(questionVector.getVector());
+        long currentEpoch = vectorService.getDocumentEpoch();
+
+        IndexedEntries snapshot;
+        List<Entry> tail;
+        synchronized (lock) {
+            resetIfStale(currentEpoch);
+            ModelEntries model = models.get(questionVector.getModelId());
+            if (model == null) {
+                misses.incrementAndGet();
+                return null;
+            }
+            snapshot = model.indexed;
+            tail = new ArrayList<>(model.pending);
+        }
+
+        long now = System.currentTimeMillis();
+        Entry best = null;
+        float bestScore = similarityThreshold;
+        if (snapshot.ivf != null && snapshot.dimension == query.length) {
+            for (IvfIndex.Neighbor neighbor : snapshot.ivf.search(query, CANDIDATES, nprobe)) {
+                Entry entry = snapshot.entries[neighbor.getId()];
+                if (neighbor.getScore() >= bestScore && isUsable(entry, currentEpoch, now)) {
+                    best = entry;
+                    bestScore = neighbor.getScore();
+                }
+            }
+        }
+        for (Entry entry : tail) {
+            if (entry.vector.length != query.length || !isUsable(entry, currentEpoch, now)) {
+                continue;
+            }
+            float score = dot(entry.vector, query);
+            if (score >= bestScore) {
+                best = entry;
+                bestScore = score;
+            }
+        }
+
+        if (best == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        best.lastUsedMillis = now;
+        hits.incrementAndGet();
+        logger.fine("Trúng cache ngữ nghĩa (" + bestScore + "): '" + best.question + "'");
+        return best.answer;
+    }
+
+    /**
+     * Lưu câu trả lời cho câu hỏi, gắn với thế hệ tài liệu hiện tại
+     *
+     * @param question Câu hỏi đã chuẩn hóa
+     * @param questionVector Vector nhúng của câu hỏi, kèm mã mô hình
+     * @param answer Câu trả lời hợp lệ (không phải câu trả lời dự phòng)
+     */
+    public void put(String question, Embedding questionVector, String answer) {
+        if (!enabled || questionVector == null || questionVector.isEmpty() || answer == null || answer.isEmpty()) {
+            return;
+        }
+        if (questionVector.isFallback()) { // Không lưu mục mà câu hỏi gần nghĩa thật sự sẽ không bao giờ tìm thấy
+            fallbackSkips.incrementAndGet();
+            return;
+        }
+        long currentEpoch = vectorService.getDocumentEpoch();
+        Entry entry = new Entry(question, VectorUtil.normalize(questionVector.getVector()), answer, currentEpoch);
+        synchronized (lock) {
+            resetIfStale(currentEpoch);
+            List<Entry> pending = models.computeIfAbsent(questionVector.getModelId(), id -> new ModelEntries()).pending;
+            pending.removeIf(existing -> existing.question.equals(question));
+            pending.add(entry);
+            // Chỉ mục chưa kịp xây dựng lại: bỏ mục cũ nhất để giới hạn thời gian quét tuần tự
+            while (pending.size() > maxEntries) {
+                pending.remove(0);
+            }
+        }
+        stores.incrementAndGet();
+    }
+
+    /**
+     * Xây dựng lại chỉ mục IVF của từng mô hình có đủ mục mới: gộp mục cũ còn dùng được với mục mới,
+     * giữ lại tối đa maxEntries mục được dùng gần nhất
+     */
+    @Scheduled(fixedDelayString = "${app.semantic-cache.rebuild-interval-ms:10000}",
+               initialDelayString = "${app.semantic-cache.rebuild-interval-ms:10000}")
+    public void rebuildIndex() {
+        List<String> modelIds;
+        synchronized (lock) {
+            modelIds = new ArrayList<>(models.keySet());
+        }
+        for (String modelId : modelIds) {
+            rebuildIndex(modelId);
+        }
+    }
+
+    private void rebuildIndex(String modelId) {
+        List<Entry> live = new ArrayList<>();
+        List<Entry> consumed;
+        long buildEpoch;
+        ModelEntries model;
+        synchronized (lock) {
+            model = models.get(modelId);
+            if (model == null || (model.pending.size() < rebuildThreshold
+                    && !(model.pending.size() > 0 && model.indexed.ivf == null))) {
+                return;
+            }
+            long now = System.currentTimeMillis();
+            for (Entry entry : model.indexed.entries) {
+                if (isUsable(entry, epoch, now)) {
+                    live.add(entry);
+                }
+            }
+            live.addAll(model.pending);
+            consumed = new ArrayList<>(model.pending);
+            buildEpoch = epoch;
+        }
+
+        // Loại câu hỏi trùng (giữ mục mới nhất) và các mục ít được dùng nhất khi vượt giới hạn
+        Map<String, Entry> unique = new LinkedHashMap<>();
+        for (Entry entry : live) {
+            unique.remove(entry.question);
+            unique.put(entry.question, entry);
+        }
+        List<Entry> kept = new ArrayList<>(unique.values());
+        if (kept.size() > maxEntries) {
+            kept.sort((a, b) -> Long.compare(b.lastUsedMillis, a.lastUsedMillis));
+            kept = new ArrayList<>(kept.subList(0, maxEntries));
+        }
+        if (kept.isEmpty()) {
+            return;
+        }
+        int dimension = kept.get(0).vector.length;
+        kept.removeIf(entry -> entry.vector.length != dimension);
+
+        float[][] vectors = new float[kept.size()][];
+        for (int i = 0; i < vectors.length; i++) {
+            vectors[i] = kept.get(i).vector;
+        }
+        int nlist = Math.max(1, (int) Math.sqrt(vectors.length));
+        IvfIndex ivf = IvfIndex.build(vectors, nlist, 5, 42L);
+
+        synchronized (lock) {
+            if (epoch != buildEpoch || models.get(modelId) != model) {
+                return; // Tài liệu đã thay đổi (hoặc cache đã bị xóa) trong lúc xây dựng, các mục vừa gom đã cũ
+            }
+            model.indexed = new IndexedEntries(kept.toArray(new Entry[0]), ivf, dimension);
+            model.pending.removeAll(consumed); // Entry không định nghĩa equals nên chỉ xóa đúng các mục đã gom
+        }
+        rebuilds.incrementAndGet();
+        logger.info("Đã xây dựng lại chỉ mục cache ngữ nghĩa của mô hình " + modelId + ": " + kept.size() +
+                   " câu hỏi, " + nlist + " cụm");
+    }
+
+    /**
+     * Bỏ toàn bộ mục của mọi mô hình khi thế hệ tài liệu thay đổi
+     * Chỉ được gọi khi đang giữ lock
+     */
+    private void resetIfStale(long currentEpoch) {
+        if (currentEpoch == epoch) {
+            return;
+        }
+        int entryCount = countEntries();
+        if (epoch >= 0 && entryCount > 0) {
+            invalidations.incrementAndGet();
+            logger.info("Tài liệu đã thay đổi, xóa " + entryCount + " câu trả lời trong cache ngữ nghĩa");
+        }
+        models.clear();
+        epoch = currentEpoch;
+    }
+
+    /**
+     * Tổng số mục của mọi mô hình; chỉ được gọi khi đang giữ lock
+     */
+    private int countEntries() {
+        int count = 0;
+        for (ModelEntries model : models.values()) {
+            count += model.indexed.entries.length + model.pending.size();
+        }
+        return count;
+    }
+
+    private boolean isUsable(Entry entry, long currentEpoch, long now) {
+        return entry.epoch == currentEpoch && now - entry.createdAtMillis < ttlMinutes * 60_000L;
+    }
+
+    private static float dot(float[] a, float[] b) {
+        float sum = 0.0f;
+        for (int i = 0; i < a.length; i++) {
+            sum += a[i] * b[i];
+        }
+        return sum;
+    }
+
+    /**
+     * Xóa toàn bộ cache ngữ nghĩa
+     */
+    public void clear() {
+        synchronized (lock) {
+            models.clear();
+            epoch = -1; // Lần xây dựng chỉ mục đang chạy (nếu có) sẽ không công bố các mục cũ
+        }
+    }
+
+    /**
+     * Thống kê cache ngữ nghĩa: số mục, tỉ lệ trúng, số lần xóa do tài liệu thay đổi
+     */
+    public Map<String, Object> getStatistics() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        long lookups = hits.get() + misses.get();
+        synchronized (lock) {
+            int indexedEntries = 0;
+            int clusters = 0;
+            int pendingEntries = 0;
+            for (ModelEntries model : models.values()) {
+                indexedEntries += model.indexed.entries.length;
+                clusters += model.indexed.ivf == null ? 0 : model.indexed.ivf.getClusterCount();
+                pendingEntries += model.pending.size();
+            }
+            stats.put("enabled", enabled);
+            stats.put("similarityThreshold", similarityThreshold);
+            stats.put("models", new ArrayList<>(models.keySet()));
+            stats.put("indexedEntries", indexedEntries);
+            stats.put("clusters", clusters);
+            stats.put("pendingEntries", pendingEntries);
+            stats.put("documentEpoch", epoch);
+        }
+        stats.put("hits", hits.get());
+        stats.put("misses", misses.get());
+        stats.put("hitRate", lookups == 0 ? 0.0 : Math.round(hits.get() * 10000.0 / lookups) / 10000.0);
+        stats.put("stores", stores.get());
+        stats.put("invalidations", invalidations.get());
+        stats.put("rebuilds", rebuilds.get());
+        stats.put("fallbackSkips", fallbackSkips.get());
+        return stats;
+    }
+
+    /**
+     * Một câu hỏi đã trả lời: vector đã chuẩn hóa, câu trả lời và thế hệ tài liệu lúc trả lời
+     */
+    private static final class Entry {
+        private final String question;
+        private final float[] vector;
+        private final String answer;
+        private final long epoch;
+        private final long createdAtMillis;
+        private volatile long lastUsedMillis;
+
+        Entry(String question, float[] vector, String answer, long epoch) {
+            this.question = question;
+            this.vector = vector;
+            this.answer = answer;
+            this.epoch = epoch;
+            this.createdAtMillis = System.currentTimeMillis();
+            this.lastUsedMillis = createdAtMillis;
+        }
+    }
+
+    /**
+     * Các mục của một mô hình nhúng: ảnh chụp đã vào chỉ mục và các mục mới (cả hai được thay/sửa khi giữ lock)
+     */
+    private static final class ModelEntries {
+        private IndexedEntries indexed = IndexedEntries.EMPTY;
+        private final List<Entry> pending = new ArrayList<>();
+    }
+
+    /**
+     * Các mục đã vào chỉ mục IVF; id trong chỉ mục là vị trí trong mảng entries
+     */
+    private static final class IndexedEntries {
+        private static final IndexedEntries EMPTY = new IndexedEntries(new Entry[0], null, 0);
+
+        private final Entry[] entries;
+        private final IvfIndex ivf;
+        private final int dimension;
+
+        IndexedEntries(Entry[] entries, IvfIndex ivf, int dimension) {
+            this.entries = entries;
+            this.ivf = ivf;
+            this.dimension = dimension;
+        }
+    }
+}
@@ -1,5 +1,6 @@
 package aidhkm.dhkm16a1hn.service; // Khai báo package chứa lớp dịch vụ
 
+import aidhkm.dhkm16a1hn.embedding.Embedding; // Import vector nhúng kèm mã mô hình
 import aidhkm.dhkm16a1hn.model.Document; // Import model Document để làm việc với dữ liệu tài liệu
 import aidhkm.dhkm16a1hn.model.EmbeddingVector; // Import model EmbeddingVector để làm việc với vector nhúng
 import aidhkm.dhkm16a1hn.model.Question; // Import model Question để làm việc với dữ liệu câu hỏi
@@ -8,6 +9,7 @@ import aidhkm.dhkm16a1hn.repository.DocumentRepository; // Import repository đ
 import aidhkm.dhkm16a1hn.repository.EmbeddingRepository; // Import repository để thao tác với cơ sở dữ liệu vector nhúng
 import aidhkm.dhkm16a1hn.repository.QuestionRepository; // Import repository để thao tác với cơ sở dữ liệu câu hỏi
 import aidhkm.dhkm16a1hn.repository.ChatHistoryRepository; // Import repository để thao tác với cơ sở dữ liệu lịch sử trò chuyện
+import aidhkm.dhkm16a1hn.util.SentenceIndex; // Import chỉ mục câu của đoạn văn
 import org.springframework.beans.factory.annotation.Autowired; // Import annotation để tiêm phụ thuộc tự động
 import org.springframework.stereotype.Service; // Import annotation để đánh dấu lớp là một dịch vụ
 import org.springframework.transaction.annotation.Transactional; // Import annotation để quản lý giao dịch
@@ -25,7 +27,7 @@ import java.util.stream.Collectors; // Import để làm việc với luồng d
 @Service // Đánh dấu lớp này là một dịch vụ Spring để Spring container quản lý
 public class TrainingService { // Khai báo lớp dịch vụ huấn luyện
     private static final Logger logger = Logger.getLogger(TrainingService.class.getName()); // Khởi tạo Logger để ghi log hoạt động của lớp
-    private static final int BATCH_SIZE = 10; // Kích thước batch khi xử lý vector nhúng, giới hạn số lượng vector xử lý cùng lúc
+    private static final int BATCH_SIZE = 100; // Kích thước batch khi xử lý vector nhúng, mỗi batch được gửi lên Vertex AI theo lô nhiều instance
     private static final int MAX_SEGMENTS_PER_DOCUMENT = 1000; // Giới hạn số segment tối đa cho mỗi tài liệu để tránh quá tải hệ thống
 
     @Autowired private DocumentRepository documentRepository; // Repository để truy vấn và lưu trữ tài liệu
@@ -196,18 +198,25 @@ public class TrainingService { // Khai báo lớp dịch vụ huấn luyện
     private void createVectorsForBatch(Long documentId, List<String> segments) { // Phương thức tạo vector cho một lô đoạn
         List<EmbeddingVector> batchVectors = new ArrayList<>(); // Khởi tạo danh sách để lưu các vector nhúng trong lô
         
-        for (String segment : segments) { // Duyệt qua từng đoạn văn bản trong lô
-            float[] vector = vectorService.createEmbedding(segment); // Tạo vector nhúng cho đoạn văn bản
+        List<Embedding> vectors = vectorService.createEmbeddings(segments); // Tạo vector nhúng cho cả lô, kết quả giữ đúng thứ tự
+        for (int i = 0; i < segments.size(); i++) { // Duyệt qua từng đoạn văn bản trong lô
+            String segment = segments.get(i); // Lấy đoạn văn bản
+            Embedding vector = vectors.get(i); // Vector nhúng tương ứng với đoạn văn bản, kèm mã mô hình
+            if (vector.isEmpty()) { // Bỏ qua đoạn rỗng
+                continue;
+            }
             EmbeddingVector embeddingVector = new EmbeddingVector(); // Khởi tạo đối tượng lưu trữ vector nhúng
             embeddingVector.setDocumentId(documentId); // Đặt ID tài liệu cho vector nhúng
             embeddingVector.setSegment(segment); // Đặt nội dung đoạn văn bản
-            embeddingVector.setVectorData(vector); // Đặt dữ liệu vector nhúng
+            embeddingVector.setSentenceBounds(SentenceIndex.computeBounds(segment)); // Tính ranh giới câu một lần khi nạp, dùng lại khi trả lời
+            embeddingVector.setVectorData(vector.getVector()); // Đặt dữ liệu vector nhúng
+            embeddingVector.setModelId(vector.getModelId()); // Lưu mã mô hình do nguồn tạo vector gắn vào
             batchVectors.add(embeddingVector); // Thêm vector nhúng vào danh sách
         }
         
         // Lưu tất cả vector cùng một lúc thay vì từng cái một
         if (!batchVectors.isEmpty()) { // Kiểm tra nếu danh sách vector không rỗng
-            embeddingRepository.saveAll(batchVectors); // Lưu tất cả vector vào cơ sở dữ liệu
+            vectorService.saveEmbeddingVectors(batchVectors); // Lưu tất cả vector vào cơ sở dữ liệu, bỏ qua đoạn trùng lặp
             logger.info("Saved batch of " + batchVectors.size() + " vectors for document ID: " + documentId); // Ghi log thành công
         }
         
@@ -246,9 +255,8 @@ public class TrainingService { // Khai báo lớp dịch vụ huấn luyện
             List<EmbeddingVector> vectors = embeddingRepository.findByDocumentId(documentId); // Lấy danh sách vector liên quan đến tài liệu
             embeddingRepository.deleteAll(vectors); // Xóa tất cả vector nhúng
             
-            // Vô hiệu hóa cache sau khi xóa các vector
-            vectorService.invalidateVectorsCache(); // Xóa cache vector để đảm bảo dữ liệu mới nhất được sử dụng
-            logger.info("Vector cache invalidated after deleting document vectors"); // Ghi log thông tin xóa cache
+            // Đánh dấu xóa các vector khỏi chỉ mục, không cần tải lại toàn bộ
+            vectorService.removeDocumentFromIndex(documentId); // Các ô đã xóa sẽ được thu hồi bởi tác vụ nén chỉ mục chạy nền
 
             // Xóa các câu hỏi
             List<Question> questions = questionRepository.findByDocumentId(documentId); // Lấy danh sách câu hỏi liên quan đến tài liệu
@@ -1,9 +1,16 @@
 package aidhkm.dhkm16a1hn.service; // Khai báo package chứa lớp dịch vụ
 
+import aidhkm.dhkm16a1hn.embedding.Embedding; // Import vector nhúng kèm mã mô hình
+import aidhkm.dhkm16a1hn.embedding.EmbeddingProvider; // Import nguồn vector nhúng
+import aidhkm.dhkm16a1hn.embedding.EmbeddingProviderRegistry; // Import registry chọn nguồn vector nhúng theo cấu hình
+import aidhkm.dhkm16a1hn.index.VectorIndexSnapshot; // Import ảnh chụp chỉ mục vector phân vùng theo mô hình
+import aidhkm.dhkm16a1hn.index.VectorPartition; // Import phân vùng chỉ mục vector
 import aidhkm.dhkm16a1hn.model.Document; // Import model Document để làm việc với dữ liệu tài liệu
 import aidhkm.dhkm16a1hn.model.EmbeddingVector; // Import model EmbeddingVector để làm việc với vector nhúng
 import aidhkm.dhkm16a1hn.repository.DocumentRepository; // Import repository để thao tác với cơ sở dữ liệu tài liệu
 import aidhkm.dhkm16a1hn.repository.EmbeddingRepository; // Import repository để thao tác với cơ sở dữ liệu vector nhúng
+import aidhkm.dhkm16a1hn.util.HashUtil; // Import tiện ích tính hash nội dung đoạn văn
+import aidhkm.dhkm16a1hn.util.SentenceIndex; // Import chỉ mục câu của đoạn văn
 import aidhkm.dhkm16a1hn.util.VectorUtil; // Import tiện ích để xử lý vector
 import org.springframework.beans.factory.annotation.Autowired; // Import annotation để tiêm phụ thuộc tự động
 import org.springframework.data.domain.PageRequest; // Import lớp để phân trang kết quả truy vấn
@@ -13,6 +20,10 @@ import org.springframework.transaction.annotation.Transactional; // Import annot
 
 import java.util.*; // Import các lớp tiện ích của Java
 import java.util.concurrent.ConcurrentHashMap; // Import lớp HashMap an toàn với đa luồng
+import java.util.concurrent.atomic.AtomicLong; // Import bộ đếm nguyên tử cho phiên bản dữ liệu
+import java.util.concurrent.atomic.AtomicReference; // Import tham chiếu nguyên tử để công bố ảnh chụp chỉ mục
+import java.util.concurrent.locks.ReentrantLock; // Import khóa để chỉ một luồng xây dựng lại chỉ mục
+import java.util.function.Predicate; // Import điều kiện lọc vector bị xóa
 import java.util.logging.Logger; // Import Logger để ghi log
 import java.util.stream.Collectors; // Import để làm việc với luồng dữ liệu
 import java.time.LocalDateTime; // Import lớp để làm việc với ngày giờ
@@ -28,27 +39,25 @@ import javax.annotation.PostConstruct; // Import annotation để đánh dấu p
 @Service // Đánh dấu lớp này là một dịch vụ Spring để Spring container quản lý
 public class VectorService { // Khai báo lớp dịch vụ xử lý vector
     private static final Logger logger = Logger.getLogger(VectorService.class.getName()); // Khởi tạo Logger để ghi log hoạt động của lớp
-    private static final int CACHE_SIZE = 1000; // Kích thước tối đa của cache lưu trữ vector nhúng
     private static final float SIMILARITY_THRESHOLD = 0.20f; // Ngưỡng độ tương đồng tối thiểu để lọc kết quả tìm kiếm
     private static final int TOP_K = 3; // Số lượng kết quả tối đa trả về khi tìm kiếm
 
-    // Sử dụng LinkedHashMap cho embeddingCache với access-order để implement LRU cache
-    private final Map<String, float[]> embeddingCache = new LinkedHashMap<String, float[]>(CACHE_SIZE, 0.75f, true) { // Cache theo cơ chế LRU (Least Recently Used)
-        @Override
-        protected boolean removeEldestEntry(Map.Entry<String, float[]> eldest) { // Ghi đè phương thức để kiểm tra khi nào cần loại bỏ phần tử cũ nhất
-            return size() > CACHE_SIZE; // Loại bỏ phần tử cũ nhất khi kích thước vượt quá giới hạn
-        }
-    };
     private final Map<String, List<EmbeddingVector>> documentVectorsCache = new ConcurrentHashMap<>(); // Cache lưu trữ vector theo ID tài liệu, an toàn với đa luồng
     
-    // Cache cho danh sách vectors
-    private List<EmbeddingVector> vectorsCache = null; // Cache lưu trữ tất cả vector trong hệ thống
-    private LocalDateTime lastVectorsCacheUpdate = null; // Thời điểm cập nhật cache gần nhất
+    // Ảnh chụp chỉ mục vector bất biến (phân vùng theo mô hình, kích thước), được công bố qua AtomicReference
+    private final AtomicReference<VectorIndexSnapshot> indexSnapshot = new AtomicReference<>(); // Luồng đọc không bao giờ phải khóa
+    private final AtomicLong indexVersion = new AtomicLong(); // Phiên bản dữ liệu, tăng mỗi khi có ghi/xóa vector
+    private final AtomicLong documentEpoch = new AtomicLong(); // Thế hệ nội dung tài liệu, tăng mỗi khi có ghi/xóa vector (kể cả xóa tăng dần)
+    private final ReentrantLock indexBuildLock = new ReentrantLock(); // Đảm bảo chỉ một luồng xây dựng lại chỉ mục tại một thời điểm
+    // Nhật ký xóa tăng dần: ảnh chụp xây dựng lại từ database áp dụng lại các thao tác xóa đến sau lúc nó bắt đầu đọc
+    private final Object indexPublishLock = new Object(); // Khóa ngắn giữa công bố ảnh chụp mới và ghi tombstone
+    private final List<PendingDelete> pendingDeletes = new ArrayList<>(); // Các thao tác xóa có thể chưa có trong lần đọc database đang chạy
+    private long deleteSequence; // Số thứ tự thao tác xóa, được bảo vệ bởi indexPublishLock
     private static final long VECTORS_CACHE_EXPIRY_SECONDS = 60; // Cache hết hạn sau 1 phút (60 giây)
 
     @Autowired private EmbeddingRepository embeddingRepository; // Repository để truy vấn và lưu trữ vector nhúng
     @Autowired private DocumentRepository documentRepository; // Repository để truy vấn và lưu trữ tài liệu
-    @Autowired private VertexAIService vertexAIService; // Dịch vụ tương tác với Vertex AI để tạo vector nhúng
+    @Autowired private EmbeddingProviderRegistry embeddingProviders; // Nguồn vector nhúng đang dùng (Vertex AI, cục bộ, kiểm thử)
 
     /**
      * Lấy tất cả vectors từ database, có cache để tránh gọi database nhiều lần
@@ -58,122 +67,239 @@ public class VectorService { // Khai báo lớp dịch vụ xử lý vector
      * @return Danh sách tất cả các vector nhúng đã lưu trữ
      */
     private List<EmbeddingVector> getAllVectors() { // Phương thức lấy tất cả vector nhúng
-        // Kiểm tra xem cache có tồn tại và chưa hết hạn không
-        if (vectorsCache != null && lastVectorsCacheUpdate != null) { // Kiểm tra nếu cache đã được khởi tạo
-            LocalDateTime now = LocalDateTime.now(); // Lấy thời gian hiện tại
-            long secondsSinceLastUpdate = java.time.Duration.between(lastVectorsCacheUpdate, now).getSeconds(); // Tính thời gian đã trôi qua kể từ lần cập nhật cuối
-            
-            // Nếu cache chưa hết hạn, sử dụng cache
-            if (secondsSinceLastUpdate < VECTORS_CACHE_EXPIRY_SECONDS) { // Kiểm tra nếu cache chưa hết hạn
-                logger.info("Using vectors cache (" + vectorsCache.size() + " vectors, updated " + 
-                           secondsSinceLastUpdate + " seconds ago)"); // Ghi log thông tin sử dụng cache
-                return vectorsCache; // Trả về danh sách vector từ cache
+        return getIndexSnapshot().getVectors(); // Danh sách vector được giữ trong ảnh chụp chỉ mục
+    }
+    
+    /**
+     * Lấy ảnh chụp chỉ mục vector (phân vùng theo mô hình và kích thước)
+     * Khi ảnh chụp đã cũ, chỉ một luồng được xây dựng lại, các luồng khác tiếp tục dùng ảnh chụp cũ
+     * thay vì cùng gọi findAll(). Chỉ lần tải đầu tiên (chưa có ảnh chụp nào) mới phải chờ
+     * 
+     * @return Ảnh chụp chỉ mục hiện tại
+     */
+    VectorIndexSnapshot getIndexSnapshot() { // Phương thức lấy chỉ mục vector
+        VectorIndexSnapshot current = indexSnapshot.get(); // Đọc không khóa
+        if (current != null && isFresh(current)) { // Ảnh chụp còn mới
+            return current;
+        }
+        
+        if (current != null) { // Đã có ảnh chụp cũ
+            if (indexBuildLock.tryLock()) { // Chỉ luồng giành được khóa mới xây dựng lại
+                try {
+                    VectorIndexSnapshot latest = indexSnapshot.get(); // Luồng khác có thể vừa công bố phiên bản mới
+                    return isFresh(latest) ? latest : rebuildIndexSnapshot();
+                } finally {
+                    indexBuildLock.unlock();
+                }
             }
+            return current; // Luồng khác đang xây dựng, dùng tạm ảnh chụp cũ
         }
         
-        // Nếu cache không tồn tại hoặc đã hết hạn, lấy lại từ database
+        indexBuildLock.lock(); // Lần tải đầu tiên: chờ một luồng duy nhất xây dựng
+        try {
+            VectorIndexSnapshot latest = indexSnapshot.get();
+            return latest != null ? latest : rebuildIndexSnapshot();
+        } finally {
+            indexBuildLock.unlock();
+        }
+    }
+    
+    /**
+     * Kiểm tra ảnh chụp còn khớp với phiên bản dữ liệu và chưa hết hạn
+     */
+    private boolean isFresh(VectorIndexSnapshot snapshot) { // Phương thức kiểm tra độ mới của ảnh chụp
+        return snapshot != null
+                && snapshot.getVersion() == indexVersion.get()
+                && System.currentTimeMillis() - snapshot.getCreatedAtMillis() < VECTORS_CACHE_EXPIRY_SECONDS * 1000;
+    }
+    
+    /**
+     * Đọc lại tất cả vector từ database, xây dựng ảnh chụp mới và công bố nó
+     * Chỉ được gọi khi đang giữ indexBuildLock
+     */
+    private VectorIndexSnapshot rebuildIndexSnapshot() { // Phương thức xây dựng lại chỉ mục
+        long version = indexVersion.get(); // Ghi nhận phiên bản trước khi đọc, ghi mới trong lúc đọc sẽ làm ảnh chụp này cũ
+        long deleteMark; // Các thao tác xóa sau mốc này có thể chưa có trong kết quả đọc database
+        synchronized (indexPublishLock) {
+            deleteMark = deleteSequence;
+        }
         List<EmbeddingVector> allVectors = embeddingRepository.findAll(); // Truy vấn tất cả vector từ cơ sở dữ liệu
-        vectorsCache = allVectors; // Cập nhật cache với dữ liệu mới
-        lastVectorsCacheUpdate = LocalDateTime.now(); // Cập nhật thời gian cập nhật cache
-        logger.info("Updated vectors cache with " + allVectors.size() + " vectors from database"); // Ghi log thông tin cập nhật cache
-        
-        return allVectors; // Trả về danh sách vector đã cập nhật
+        VectorIndexSnapshot snapshot = VectorIndexSnapshot.build(allVectors, this::modelIdOf, version); // Xây dựng các phân vùng chỉ mục theo mã mô hình đã lưu
+        synchronized (indexPublishLock) { // Công bố và ghi tombstone không xen kẽ nhau
+            for (PendingDelete pending : pendingDeletes) { // Áp dụng lại thao tác xóa đến trong lúc đọc để vector đã xóa không quay lại chỉ mục
+                if (pending.sequence > deleteMark) {
+                    snapshot = snapshot.withDeleted(pending.deleted);
+                }
+            }
+            pendingDeletes.clear(); // Mọi thao tác xóa đã có trong kết quả đọc hoặc đã được áp dụng lại
+            indexSnapshot.set(snapshot); // Công bố nguyên tử cho các luồng đọc
+        }
+        logger.info("Updated vector index with " + allVectors.size() + " vectors in " +
+                   snapshot.getPartitions().size() + " partitions " + snapshot.getPartitions().keySet()); // Ghi log thông tin cập nhật cache
+        return snapshot;
     }
     
     /**
-     * Xóa cache vectors để buộc cập nhật lại từ database trong lần gọi tiếp theo
-     * Phương thức này được gọi khi có thay đổi dữ liệu vector (thêm, sửa, xóa)
-     * để đảm bảo dữ liệu cache luôn được cập nhật
+     * Đánh dấu xóa (tombstone) các vector khỏi chỉ mục hiện tại mà không tải lại toàn bộ từ database
+     * Các ô chết được thu hồi dần bởi IndexCompactionService
+     * 
+     * @param deleted Điều kiện xác định vector đã bị xóa
      */
-    public void invalidateVectorsCache() { // Phương thức xóa cache vector
-        vectorsCache = null; // Đặt cache thành null để buộc phải tải lại từ cơ sở dữ liệu
-        lastVectorsCacheUpdate = null; // Đặt thời gian cập nhật thành null
-        logger.info("Vectors cache invalidated"); // Ghi log thông tin xóa cache
+    public void removeFromIndex(Predicate<EmbeddingVector> deleted) { // Phương thức xóa tăng dần khỏi chỉ mục
+        documentEpoch.incrementAndGet(); // Câu trả lời dựa trên vector đã xóa không còn hợp lệ
+        synchronized (indexPublishLock) { // Lần xây dựng lại đang chạy không thể công bố đè lên tombstone này
+            pendingDeletes.add(new PendingDelete(++deleteSequence, deleted)); // Lần xây dựng lại đã đọc database trước thao tác xóa sẽ áp dụng lại
+            indexSnapshot.updateAndGet(snapshot -> snapshot == null ? null : snapshot.withDeleted(deleted)); // Công bố ảnh chụp mới có tombstone
+        }
     }
-
+    
     /**
-     * Tạo vector nhúng cho văn bản đã cho
-     * Phương thức này sẽ xử lý vấn đề kích thước vector và vô hiệu hóa cache
-     * nếu phát hiện vector đã lưu trữ không khớp với mô hình hiện tại
+     * Đánh dấu xóa tất cả vector của một tài liệu khỏi chỉ mục
      * 
-     * @param text Văn bản cần tạo vector nhúng
-     * @return Vector nhúng đã được tạo
+     * @param documentId ID của tài liệu đã bị xóa
      */
-    public float[] createEmbedding(String text) { // Phương thức tạo vector nhúng cho văn bản
-        if (text == null || text.trim().isEmpty()) { // Kiểm tra nếu văn bản rỗng hoặc null
-            return new float[0]; // Trả về vector rỗng
+    public void removeDocumentFromIndex(Long documentId) { // Phương thức xóa vector của tài liệu khỏi chỉ mục
+        removeFromIndex(vector -> Objects.equals(vector.getDocumentId(), documentId));
+        logger.info("Đã đánh dấu xóa các vector của tài liệu " + documentId + " khỏi chỉ mục");
+    }
+    
+    /**
+     * Ảnh chụp chỉ mục hiện đang được công bố (có thể null nếu chưa tải), dùng cho tác vụ nền
+     */
+    VectorIndexSnapshot currentIndexSnapshot() { // Phương thức đọc ảnh chụp hiện tại, không tải lại
+        return indexSnapshot.get();
+    }
+    
+    /**
+     * Thay thế nguyên tử một phân vùng trong ảnh chụp hiện tại
+     * Chỉ thành công nếu phân vùng vẫn là expected, tức là không có luồng nào thay đổi nó trong lúc nén
+     * 
+     * @return true nếu đã công bố ảnh chụp mới
+     */
+    boolean replacePartition(String key, VectorPartition expected, VectorPartition replacement) { // Phương thức hoán đổi phân vùng
+        VectorIndexSnapshot current = indexSnapshot.get();
+        if (current == null) {
+            return false;
         }
-        
-        // Kiểm tra xem có vector nhúng trong cache không
-        String key = text.trim().toLowerCase(); // Chuẩn hóa văn bản làm khóa cache (chữ thường và loại bỏ khoảng trắng thừa)
-        if (embeddingCache.containsKey(key)) { // Kiểm tra nếu vector đã có trong cache
-            float[] cached = embeddingCache.get(key); // Lấy vector từ cache
-            
-            // Nếu là kích thước cũ, vô hiệu hóa và tạo lại
-            if (cached.length != 768 && vertexAIService.getEmbeddingModelName().contains("text-embedding-005")) { // Kiểm tra nếu kích thước vector không khớp với mô hình
-                logger.warning("Vector nhúng trong cache có kích thước không chính xác - dự kiến 768, nhưng có " + 
-                              cached.length + ". Đang xóa cache và tạo lại."); // Ghi log cảnh báo
-                embeddingCache.remove(key); // Xóa vector không hợp lệ khỏi cache
-                vertexAIService.clearEmbeddingCache(); // Xóa cache bên trong dịch vụ Vertex AI
-            } else {
-                return cached; // Trả về vector đã lưu trong cache
-            }
+        VectorIndexSnapshot replaced = current.withPartitionReplaced(key, expected, replacement);
+        return replaced != null && indexSnapshot.compareAndSet(current, replaced);
+    }
+    
+    /**
+     * Mã mô hình đã lưu cùng vector; bản ghi cũ chưa được gắn nhãn (trước khi chạy backfillModelTags) được đoán theo kích thước
+     * 
+     * @param vector Vector nhúng đã lưu
+     * @return Mã mô hình dùng để chọn phân vùng chỉ mục
+     */
+    private String modelIdOf(EmbeddingVector vector) { // Phương thức đọc mã mô hình của vector đã lưu
+        return vector.getModelId() != null ? vector.getModelId() : embeddingProviders.guessLegacyModelId(vector.getVectorData());
+    }
+    
+    /**
+     * Tìm kiếm trong phân vùng chỉ mục khớp với mô hình và kích thước của vector truy vấn
+     * Các phân vùng khác không được quét nên không còn so sánh giữa các vector khác mô hình hoặc khác kích thước
+     * 
+     * @param query Vector truy vấn kèm mã mô hình đã tạo ra nó
+     * @param limit Số kết quả tối đa
+     * @param minScore Ngưỡng độ tương đồng tối thiểu
+     * @return Danh sách vector kèm điểm số, sắp xếp giảm dần
+     */
+    private List<ScoredVector> searchIndex(Embedding query, int limit, float minScore) { // Phương thức tìm kiếm theo phân vùng
+        float[] queryVector = query.getVector();
+        VectorPartition partition = getIndexSnapshot().partition(query.getModelId(), queryVector.length); // Chọn phân vùng khớp với mô hình của truy vấn
+        if (partition == null) { // Không có vector nào cùng mô hình
+            logger.info("Không có phân vùng chỉ mục cho mô hình " + query.getModelId() + " (" + queryVector.length + " chiều)");
+            return new ArrayList<>();
         }
         
-        // Lấy vector nhúng từ VertexAIService
-        float[] embedding = vertexAIService.createEmbedding(text); // Gọi dịch vụ Vertex AI để tạo vector nhúng
-        
-        // Lưu kết quả vào cache nếu hợp lệ
-        if (embedding != null && embedding.length > 0) { // Kiểm tra nếu vector được tạo thành công
-            embeddingCache.put(key, embedding); // Lưu vector vào cache
+        List<ScoredVector> results = new ArrayList<>(); // Chuyển kết quả phân vùng sang ScoredVector
+        for (VectorPartition.Hit hit : partition.search(queryVector, limit, minScore)) {
+            results.add(new ScoredVector(hit.getVector(), hit.getScore()));
         }
-        
-        return embedding; // Trả về vector nhúng đã tạo
+        return results;
+    }
+    
+    /**
+     * Đánh dấu chỉ mục vector đã cũ để lần đọc tiếp theo xây dựng lại từ database
+     * Phương thức này được gọi khi có thay đổi dữ liệu vector (thêm, sửa, xóa).
+     * Ảnh chụp hiện tại vẫn được giữ lại để các luồng đọc không phải chờ trong lúc xây dựng lại
+     */
+    public void invalidateVectorsCache() { // Phương thức xóa cache vector
+        long version = indexVersion.incrementAndGet(); // Tăng phiên bản dữ liệu, ảnh chụp hiện tại trở thành cũ
+        documentEpoch.incrementAndGet(); // Các câu trả lời đã lưu theo thế hệ cũ không còn được dùng lại
+        logger.info("Vectors cache invalidated (version " + version + ")"); // Ghi log thông tin xóa cache
     }
 
     /**
-     * Phương pháp dự phòng để tạo vector khi API thất bại
-     * Tạo vector nhúng đơn giản dựa trên tần suất từ trong văn bản
-     * khi không thể sử dụng dịch vụ Vertex AI
+     * Chỉ mục câu của một đoạn văn trả về từ tìm kiếm
+     * Đoạn văn có trong chỉ mục vector dùng ranh giới câu đã lưu khi nạp tài liệu (chỉ cắt chuỗi, không tách lại);
+     * đoạn không tìm thấy (ví dụ chỉ mục vừa được xây dựng lại) được tách câu tại chỗ
      * 
-     * @param text Văn bản cần tạo vector nhúng
-     * @return Vector nhúng đơn giản dựa trên tần suất từ
+     * @param segment Nội dung đoạn văn (không có tiền tố điểm số)
+     * @return Chỉ mục câu của đoạn văn
      */
-    private float[] createFallbackEmbedding(String text) { // Phương thức tạo vector dự phòng
-        try {
-            text = normalizeText(text); // Chuẩn hóa văn bản đầu vào
-            float[] vector = new float[300]; // Khởi tạo vector với kích thước 300
-            Arrays.stream(text.split("\\s+")) // Tách văn bản thành các từ dựa trên khoảng trắng
-                .filter(word -> !word.isEmpty()) // Lọc bỏ các từ rỗng
-                .forEach(word -> { // Xử lý từng từ
-                    int hash = Math.abs(word.hashCode()); // Tính giá trị băm của từ
-                    int index = hash % 300; // Tính chỉ số dựa trên giá trị băm (giới hạn trong phạm vi 0-299)
-                    vector[index]++; // Tăng giá trị tại chỉ số tương ứng với từ
-                });
-            return normalizeVector(vector); // Chuẩn hóa vector trước khi trả về
-        } catch (Exception e) { // Bắt ngoại lệ nếu có lỗi
-            logger.severe("Error creating fallback embedding: " + e.getMessage()); // Ghi log lỗi
-            return createRandomVector(300); // Tạo vector ngẫu nhiên nếu xảy ra lỗi
-        }
+    public SentenceIndex sentenceIndexOf(String segment) { // Phương thức tra cứu chỉ mục câu của đoạn văn
+        VectorIndexSnapshot snapshot = indexSnapshot.get(); // Đọc không khóa, không kích hoạt xây dựng lại
+        EmbeddingVector vector = snapshot != null ? snapshot.findBySegment(segment) : null;
+        return vector != null ? vector.getSentenceIndex() : SentenceIndex.build(segment);
     }
 
     /**
-     * Tạo vector ngẫu nhiên với kích thước cho trước
-     * Vector ngẫu nhiên được sử dụng khi không thể tạo vector
-     * bằng phương pháp thông thường hoặc dự phòng
+     * Thế hệ nội dung tài liệu hiện tại
+     * Tăng mỗi khi vector được thêm, tái tạo hoặc xóa, dùng để nhận biết câu trả lời đã lưu trong cache đã cũ
      * 
-     * @param dimension Kích thước của vector cần tạo
-     * @return Vector ngẫu nhiên đã được chuẩn hóa
+     * @return Thế hệ tài liệu hiện tại
      */
-    private float[] createRandomVector(int dimension) { // Phương thức tạo vector ngẫu nhiên
-        float[] vector = new float[dimension]; // Khởi tạo vector với kích thước cho trước
-        Random random = new Random(); // Khởi tạo đối tượng Random để tạo số ngẫu nhiên
+    public long getDocumentEpoch() { // Phương thức đọc thế hệ tài liệu
+        return documentEpoch.get();
+    }
 
-        for (int i = 0; i < dimension; i++) { // Duyệt qua từng phần tử của vector
-            vector[i] = random.nextFloat() * 2 - 1; // Gán giá trị ngẫu nhiên trong khoảng -1 đến 1
+    /**
+     * Tạo vector nhúng cho văn bản đã cho
+     * Vector được lấy từ cache bền vững (EmbeddingCacheService) nếu đã tính trước đó,
+     * kể cả qua các lần khởi động lại ứng dụng
+     * 
+     * @param text Văn bản cần tạo vector nhúng
+     * @return Vector nhúng kèm mã mô hình do nguồn tạo ra gắn vào
+     */
+    public Embedding createEmbedding(String text) { // Phương thức tạo vector nhúng cho văn bản
+        if (text == null || text.trim().isEmpty()) { // Kiểm tra nếu văn bản rỗng hoặc null
+            return Embedding.empty(); // Trả về vector rỗng
         }
+        return embeddingProviders.embed(text); // Nguồn đang dùng (Vertex AI tự kiểm tra cache theo nội dung trước khi gọi API)
+    }
 
-        return normalizeVector(vector); // Chuẩn hóa vector trước khi trả về
+    /**
+     * Tạo vector nhúng cho nhiều văn bản cùng lúc
+     * Văn bản chưa có trong cache được gửi lên Vertex AI theo lô nhiều instance mỗi yêu cầu,
+     * thay vì một yêu cầu cho mỗi đoạn văn bản
+     * 
+     * @param texts Danh sách văn bản cần tạo vector nhúng
+     * @return Danh sách vector nhúng kèm mã mô hình theo đúng thứ tự đầu vào
+     */
+    public List<Embedding> createEmbeddings(List<String> texts) { // Phương thức tạo vector nhúng theo lô
+        List<Embedding> results = new ArrayList<>(Collections.nCopies(texts.size(), (Embedding) null)); // Danh sách kết quả giữ đúng thứ tự
+        List<Integer> nonEmptyIndexes = new ArrayList<>(); // Vị trí các văn bản không rỗng
+        List<String> nonEmptyTexts = new ArrayList<>(); // Các văn bản cần tạo vector
+        
+        for (int i = 0; i < texts.size(); i++) { // Tách các văn bản rỗng
+            String text = texts.get(i);
+            if (text == null || text.trim().isEmpty()) { // Văn bản rỗng
+                results.set(i, Embedding.empty());
+            } else {
+                nonEmptyIndexes.add(i);
+                nonEmptyTexts.add(text);
+            }
+        }
+        
+        if (!nonEmptyTexts.isEmpty()) { // Nguồn đang dùng xử lý cả lô (Vertex AI tra cứu cache và chỉ gọi API cho văn bản chưa có)
+            List<Embedding> embeddings = embeddingProviders.embedBatch(nonEmptyTexts);
+            for (int j = 0; j < nonEmptyTexts.size(); j++) {
+                results.set(nonEmptyIndexes.get(j), embeddings.get(j));
+            }
+        }
+        
+        return results; // Trả về danh sách vector nhúng
     }
 
     /**
@@ -201,59 +327,25 @@ public class VectorService { // Khai báo lớp dịch vụ xử lý vector
         return text; // Trả về văn bản đã chuẩn hóa
     }
 
-    /**
-     * Chuẩn hóa vector để có độ dài bằng 1 (đơn vị hóa)
-     * Quá trình này giúp các vector có thể so sánh với nhau
-     * dễ dàng hơn bằng phép đo cosine similarity
-     * 
-     * @param vector Vector cần chuẩn hóa
-     * @return Vector đã được chuẩn hóa
-     */
-    private float[] normalizeVector(float[] vector) { // Phương thức chuẩn hóa vector
-        float magnitude = 0.0f; // Khởi tạo biến lưu độ lớn của vector
-        for (float v : vector) { // Duyệt qua từng phần tử của vector
-            magnitude += v * v; // Cộng dồn bình phương của mỗi phần tử
-        }
-        magnitude = (float) Math.sqrt(magnitude); // Tính căn bậc hai để có độ lớn của vector
-
-        if (magnitude > 0) { // Kiểm tra nếu độ lớn khác 0
-            for (int i = 0; i < vector.length; i++) { // Duyệt qua từng phần tử của vector
-                vector[i] /= magnitude; // Chia mỗi phần tử cho độ lớn để chuẩn hóa
-            }
-        }
-        return vector; // Trả về vector đã chuẩn hóa
-    }
-
     /**
      * Tìm thông tin liên quan nhất dựa trên vector nhúng của câu hỏi
      * Phương thức này tìm kiếm các đoạn văn bản có độ tương đồng cao nhất
      * với vector nhúng của câu hỏi, giúp cung cấp thông tin phù hợp
      * để trả lời câu hỏi của người dùng
      * 
-     * @param questionVector Vector nhúng của câu hỏi
+     * @param questionVector Vector nhúng của câu hỏi kèm mã mô hình
      * @return Danh sách các đoạn văn bản liên quan nhất
      */
-    public List<String> findMostRelevantInfo(float[] questionVector) { // Phương thức tìm thông tin liên quan nhất
+    public List<String> findMostRelevantInfo(Embedding questionVector) { // Phương thức tìm thông tin liên quan nhất
         try {
             logger.info("Tìm kiếm thông tin liên quan nhất cho vector câu hỏi"); // Ghi log thông tin bắt đầu tìm kiếm
 
-            List<EmbeddingVector> allVectors = getAllVectors(); // Lấy tất cả vector nhúng từ cơ sở dữ liệu (hoặc từ cache)
-            if (allVectors.isEmpty()) { // Kiểm tra nếu không có vector nào
-                logger.info("Không tìm thấy vector nhúng nào trong cơ sở dữ liệu"); // Ghi log thông tin không tìm thấy vector
+            if (questionVector == null || questionVector.isEmpty()) { // Kiểm tra nếu vector câu hỏi rỗng
                 return new ArrayList<>(); // Trả về danh sách rỗng
             }
 
-            // Tìm top 5 vector có độ tương đồng cao nhất
-            List<ScoredVector> scoredVectors = new ArrayList<>(); // Khởi tạo danh sách để lưu vector kèm điểm số
-            for (EmbeddingVector vector : allVectors) { // Duyệt qua tất cả vector
-                float similarity = VectorUtil.cosineSimilarity(questionVector, vector.getVectorData()); // Tính độ tương đồng cosine
-                if (similarity > SIMILARITY_THRESHOLD) { // Kiểm tra nếu độ tương đồng vượt ngưỡng
-                    scoredVectors.add(new ScoredVector(vector, similarity)); // Thêm vector và điểm số vào danh sách
-                }
-            }
-
-            // Sắp xếp theo độ tương đồng giảm dần
-            scoredVectors.sort((v1, v2) -> Float.compare(v2.getScore(), v1.getScore())); // Sắp xếp danh sách vector theo điểm số giảm dần
+            // Tìm top 5 vector có độ tương đồng cao nhất trong phân vùng cùng mô hình
+            List<ScoredVector> scoredVectors = searchIndex(questionVector, 5, SIMILARITY_THRESHOLD); // Đã sắp xếp theo điểm số giảm dần
 
             // Lấy top 5 kết quả
             List<String> results = new ArrayList<>(); // Khởi tạo danh sách kết quả
@@ -308,23 +400,38 @@ public class VectorService { // Khai báo lớp dịch vụ xử lý vector
         }
     }
 
+    /**
+     * Một thao tác xóa tăng dần kèm số thứ tự, để lần xây dựng lại chỉ mục biết thao tác nào cần áp dụng lại
+     */
+    private static final class PendingDelete { // Lớp nội bộ lưu điều kiện xóa
+        private final long sequence; // Số thứ tự của thao tác xóa
+        private final Predicate<EmbeddingVector> deleted; // Điều kiện xác định vector đã bị xóa
+
+        PendingDelete(long sequence, Predicate<EmbeddingVector> deleted) {
+            this.sequence = sequence;
+            this.deleted = deleted;
+        }
+    }
+
     /**
      * Lưu đoạn văn bản và vector embedding vào database
      * Phương thức này lưu trữ một đoạn văn bản và vector nhúng tương ứng
      * vào cơ sở dữ liệu, với kiểm tra để tránh lưu trùng lặp
      * 
      * @param segment Đoạn văn bản cần lưu trữ
-     * @param vectorData Vector nhúng tương ứng với đoạn văn bản
+     * @param embedding Vector nhúng tương ứng với đoạn văn bản, mã mô hình được lưu nguyên như nguồn đã gắn
      * @param documentId ID của tài liệu chứa đoạn văn bản
      * @return true nếu lưu thành công, false nếu thất bại
      */
     @Transactional
-    public boolean saveEmbeddingVector(String segment, float[] vectorData, Long documentId) {
+    public boolean saveEmbeddingVector(String segment, Embedding embedding, Long documentId) {
         try {
-            if (segment == null || segment.trim().isEmpty() || vectorData == null || vectorData.length == 0) {
+            if (segment == null || segment.trim().isEmpty() || embedding == null || embedding.isEmpty()
+                    || embedding.getModelId() == null) {
                 logger.warning("Dữ liệu đầu vào không hợp lệ cho saveEmbeddingVector");
                 return false;
             }
+            float[] vectorData = embedding.getVector();
 
             // Giới hạn độ dài đoạn văn bản
             String segmentToStore = segment;
@@ -332,21 +439,21 @@ public class VectorService { // Khai báo lớp dịch vụ xử lý vector
                 segmentToStore = segmentToStore.substring(0, 5000);
             }
 
-            // Kiểm tra xem vector đã tồn tại chưa
-            List<EmbeddingVector> existingVectors = embeddingRepository.findBySegment(segmentToStore);
-            if (!existingVectors.isEmpty()) {
+            // Kiểm tra trùng lặp bằng hash nội dung (dùng unique index thay vì so sánh cột TEXT)
+            String segmentHash = HashUtil.sha256Hex(segmentToStore);
+            if (embeddingRepository.existsBySegmentHash(segmentHash)) {
                 logger.info("Vector đã tồn tại cho đoạn văn bản này, bỏ qua việc lưu");
                 return true;
             }
 
-            // Tạo entity mới
-            EmbeddingVector embeddingVector = new EmbeddingVector();
-            embeddingVector.setSegment(segmentToStore);
-            embeddingVector.setVectorData(vectorData);
-            embeddingVector.setDocumentId(documentId);
-
-            // Lưu vào database
-            embeddingRepository.save(embeddingVector);
+            // Chèn có điều kiện: nếu luồng khác vừa lưu cùng đoạn văn, unique index sẽ bỏ qua bản ghi này
+            int inserted = embeddingRepository.insertIfAbsent(documentId, segmentToStore, segmentHash,
+                    VectorUtil.toPGArrayLiteral(vectorData), embedding.getModelId(), vectorData.length,
+                    VectorUtil.toPGArrayLiteral(SentenceIndex.computeBounds(segmentToStore)));
+            if (inserted == 0) {
+                logger.info("Vector đã được lưu bởi tiến trình khác, bỏ qua việc lưu");
+                return true;
+            }
             
             // Vô hiệu hóa cache khi có sự thay đổi dữ liệu
             invalidateVectorsCache();
@@ -360,6 +467,83 @@ public class VectorService { // Khai báo lớp dịch vụ xử lý vector
         }
     }
 
+    /**
+     * Bổ sung segment_hash cho các vector được lưu trước khi có cột này
+     * Các bản ghi trùng nội dung với bản ghi đã có hash sẽ bị xóa để unique index luôn hợp lệ
+     * 
+     * @return Số lượng vector đã được cập nhật hash
+     */
+    @Transactional
+    public int backfillSegmentHashes() {
+        try {
+            List<EmbeddingVector> missing = embeddingRepository.findBySegmentHashIsNull();
+            if (missing.isEmpty()) {
+                return 0;
+            }
+
+            Set<String> knownHashes = new HashSet<>(embeddingRepository.findAllSegmentHashes());
+            List<EmbeddingVector> updated = new ArrayList<>();
+            List<EmbeddingVector> duplicates = new ArrayList<>();
+
+            for (EmbeddingVector vector : missing) {
+                if (vector.getSegment() == null) {
+                    continue;
+                }
+                String hash = HashUtil.sha256Hex(vector.getSegment());
+                if (knownHashes.add(hash)) {
+                    vector.setSegmentHash(hash);
+                    updated.add(vector);
+                } else {
+                    duplicates.add(vector);
+                }
+            }
+
+            if (!duplicates.isEmpty()) {
+                embeddingRepository.deleteAll(duplicates);
+                logger.info("Đã xóa " + duplicates.size() + " vector trùng lặp nội dung khi bổ sung segment_hash");
+            }
+            embeddingRepository.saveAll(updated);
+            invalidateVectorsCache();
+
+            logger.info("Đã bổ sung segment_hash cho " + updated.size() + " vector");
+            return updated.size();
+        } catch (Exception e) {
+            logger.severe("Lỗi khi bổ sung segment_hash: " + e.getMessage());
+            return 0;
+        }
+    }
+
+    /**
+     * Gắn mã mô hình và kích thước cho các vector được lưu trước khi có hai cột này
+     * 
+     * @return Số lượng vector đã được gắn nhãn
+     */
+    @Transactional
+    public int backfillModelTags() {
+        try {
+            List<EmbeddingVector> untagged = embeddingRepository.findByModelIdIsNull();
+            List<EmbeddingVector> updated = new ArrayList<>();
+            for (EmbeddingVector vector : untagged) {
+                float[] data = vector.getVectorData();
+                if (data == null || data.length == 0) {
+                    continue;
+                }
+                vector.setModelId(embeddingProviders.guessLegacyModelId(data)); // Dữ liệu cũ không lưu mô hình, chỉ còn kích thước để đoán
+                vector.setDimension(data.length);
+                updated.add(vector);
+            }
+            if (!updated.isEmpty()) {
+                embeddingRepository.saveAll(updated);
+                invalidateVectorsCache();
+                logger.info("Đã gắn mã mô hình và kích thước cho " + updated.size() + " vector");
+            }
+            return updated.size();
+        } catch (Exception e) {
+            logger.severe("Lỗi khi gắn mã mô hình cho vector: " + e.getMessage());
+            return 0;
+        }
+    }
+
     /**
      * Xóa tất cả vector embedding bị treo (không có tài liệu tương ứng)
      * @return Số lượng vector đã xóa
@@ -391,8 +575,11 @@ public class VectorService { // Khai báo lớp dịch vụ xử lý vector
             if (!orphanedVectors.isEmpty()) {
                 embeddingRepository.deleteAll(orphanedVectors);
                 
-                // Vô hiệu hóa cache khi có sự thay đổi dữ liệu
-                invalidateVectorsCache();
+                // Đánh dấu xóa khỏi chỉ mục thay vì tải lại toàn bộ
+                Set<Long> orphanedIds = orphanedVectors.stream()
+                        .map(EmbeddingVector::getId)
+                        .collect(Collectors.toSet());
+                removeFromIndex(vector -> orphanedIds.contains(vector.getId()));
                 
                 logger.info("Đã xóa thành công " + orphanedVectors.size() + " vector embeddings bị treo");
                 return orphanedVectors.size();
@@ -441,23 +628,40 @@ public class VectorService { // Khai báo lớp dịch vụ xử lý vector
      * @return Danh sách các câu tương tự
      */
     public List<String> searchSimilarSentences(String question, int limit) {
+        // Kiểm tra xem câu hỏi có phải là câu ngắn đơn giản không (như "ok", "được rồi", "thank you")
+        if (isShortConversationalPhrase(question)) {
+            logger.info("Phát hiện cụm từ hội thoại ngắn, bỏ qua tìm kiếm vector");
+            return new ArrayList<>();
+        }
+
+        // Tạo vector embedding cho câu hỏi
+        long embedStartTime = System.currentTimeMillis();
+        Embedding questionVector = createEmbedding(question);
+        logger.info("Thời gian tạo vector nhúng: " + (System.currentTimeMillis() - embedStartTime) + "ms");
+        return searchSimilarSentences(question, questionVector, limit);
+    }
+
+    /**
+     * Tìm kiếm các câu tương tự với câu hỏi bằng vector đã có của câu hỏi
+     * Dùng khi phía gọi đã tạo vector (ví dụ cho cache ngữ nghĩa), để không gọi lại mô hình nhúng
+     * 
+     * @param question Câu hỏi cần tìm kiếm (dùng cho tìm kiếm theo từ khóa khi không có kết quả)
+     * @param questionVector Vector nhúng của câu hỏi kèm mã mô hình
+     * @param limit Số lượng câu tương tự cần trả về
+     * @return Danh sách các câu tương tự
+     */
+    public List<String> searchSimilarSentences(String question, Embedding questionVector, int limit) {
         long startTime = System.currentTimeMillis();
         try {
             logger.info("Tìm kiếm các câu tương tự với: " + question);
 
-            // Kiểm tra xem câu hỏi có phải là câu ngắn đơn giản không (như "ok", "được rồi", "thank you")
-            if (question.length() < 15 && question.split("\\s+").length < 3) {
+            if (isShortConversationalPhrase(question)) {
                 logger.info("Phát hiện cụm từ hội thoại ngắn, bỏ qua tìm kiếm vector");
                 return new ArrayList<>();
             }
 
-            // Tạo vector embedding cho câu hỏi
-            long embedStartTime = System.currentTimeMillis();
-            float[] questionVector = vertexAIService.createEmbedding(question);
-            logger.info("Thời gian tạo vector nhúng: " + (System.currentTimeMillis() - embedStartTime) + "ms");
-
             // Kiểm tra nếu vector rỗng (có thể do lỗi API)
-            if (questionVector == null || questionVector.length == 0) {
+            if (questionVector == null || questionVector.isEmpty()) {
                 logger.warning("Không thể tạo vector nhúng cho câu hỏi: " + question);
                 // Sử dụng tìm kiếm dựa trên từ khóa khi không thể tạo vector nhúng
                 return keywordBasedSearch(question, limit);
@@ -466,46 +670,15 @@ public class VectorService { // Khai báo lớp dịch vụ xử lý vector
             // Thiết lập ngưỡng tương đồng tối thiểu cao hơn
             final float MIN_SIMILARITY = 0.25f;
 
-            // Lấy tất cả vector từ database
-            List<EmbeddingVector> allVectors = getAllVectors();
-            if (allVectors.isEmpty()) {
-                logger.info("Không tìm thấy vector nhúng nào trong cơ sở dữ liệu");
-                return new ArrayList<>();
-            }
-
-            logger.info("Tìm thấy " + allVectors.size() + " vector trong cơ sở dữ liệu");
-
-            // Tạo danh sách các vector có điểm tương đồng
-            List<ScoredVector> scoredVectors = new ArrayList<>();
-
-            // Tính toán điểm tương đồng cho từng vector
-            for (EmbeddingVector vector : allVectors) {
-                float similarity = VectorUtil.cosineSimilarity(questionVector, vector.getVectorData());
-
-                // In ra log để debug
-                logger.info("Vector cho đoạn [" + vector.getSegment().substring(0, Math.min(30, vector.getSegment().length()))
-                    + "...] có độ tương đồng: " + similarity);
-
-                // Chỉ thêm vào vector có điểm tương đồng cao hơn ngưỡng
-                if (similarity >= MIN_SIMILARITY) {
-                    scoredVectors.add(new ScoredVector(vector, similarity));
-                }
-            }
+            // Chỉ quét phân vùng chỉ mục cùng mô hình và kích thước với vector câu hỏi
+            List<ScoredVector> topResults = searchIndex(questionVector, limit, MIN_SIMILARITY);
 
             // Nếu không tìm thấy câu tương tự nào vượt ngưỡng, thử tìm kiếm dựa trên từ khóa
-            if (scoredVectors.isEmpty()) {
+            if (topResults.isEmpty()) {
                 logger.warning("Không tìm thấy câu nào có độ tương đồng trên ngưỡng (" + MIN_SIMILARITY + ") cho: " + question);
                 return keywordBasedSearch(question, limit);
             }
 
-            // Sắp xếp theo độ tương đồng giảm dần
-            scoredVectors.sort((v1, v2) -> Float.compare(v2.getScore(), v1.getScore()));
-
-            // Lấy top k kết quả
-            List<ScoredVector> topResults = scoredVectors.stream()
-                    .limit(limit)
-                    .collect(Collectors.toList());
-
             // In ra các điểm tương đồng để debug
             for (int i = 0; i < topResults.size(); i++) {
                 ScoredVector sv = topResults.get(i);
@@ -528,16 +701,23 @@ public class VectorService { // Khai báo lớp dịch vụ xử lý vector
         }
     }
 
+    /**
+     * Câu ngắn kiểu hội thoại ("ok", "được rồi", "thank you") không cần tìm kiếm
+     */
+    private boolean isShortConversationalPhrase(String question) {
+        return question.length() < 15 && question.split("\\s+").length < 3;
+    }
+
     /**
      * Tìm kiếm dựa trên từ khóa khi không thể sử dụng vector nhúng
      * Phương thức này sử dụng tìm kiếm đơn giản dựa trên sự xuất hiện
-     * của các từ khóa trong đoạn văn bản
+     * của các từ khóa trong đoạn văn bản; không gọi mô hình nhúng nên dùng được cả khi mô hình chậm
      * 
      * @param question Câu hỏi cần tìm kiếm
      * @param limit Số lượng kết quả tối đa
      * @return Danh sách các đoạn văn bản tương tự
      */
-    private List<String> keywordBasedSearch(String question, int limit) {
+    public List<String> keywordBasedSearch(String question, int limit) {
         logger.info("Thực hiện tìm kiếm dựa trên từ khóa cho: " + question);
 
         try {
@@ -607,13 +787,41 @@ public class VectorService { // Khai báo lớp dịch vụ xử lý vector
                 return false;
             }
 
-            // Lưu tất cả vectors cùng một lúc
-            embeddingRepository.saveAll(vectors);
+            // Lưu từng vector bằng INSERT ... ON CONFLICT DO NOTHING để lô không bị hủy
+            // khi có đoạn văn trùng lặp (trong lô hoặc đã có trong cơ sở dữ liệu)
+            int insertedCount = 0;
+            for (EmbeddingVector vector : vectors) {
+                String segment = vector.getSegment();
+                if (segment == null || segment.trim().isEmpty()
+                        || vector.getVectorData() == null || vector.getVectorData().length == 0) {
+                    continue;
+                }
+                int[] sentenceBounds = vector.getSentenceBounds(); // Ranh giới câu tính khi nạp tài liệu
+                if (segment.length() > 5000) {
+                    segment = segment.substring(0, 5000);
+                    sentenceBounds = null; // Đoạn bị cắt: ranh giới cũ không còn đúng
+                }
+                if (sentenceBounds == null) {
+                    sentenceBounds = SentenceIndex.computeBounds(segment);
+                }
+                if (vector.getModelId() == null) { // Không đoán mô hình theo kích thước: người gọi phải gắn mã từ Embedding
+                    logger.warning("Bỏ qua vector không có mã mô hình cho đoạn: " + segment.substring(0, Math.min(30, segment.length())) + "...");
+                    continue;
+                }
+                float[] data = vector.getVectorData();
+                String modelId = vector.getModelId();
+                insertedCount += embeddingRepository.insertIfAbsent(vector.getDocumentId(), segment,
+                        HashUtil.sha256Hex(segment), VectorUtil.toPGArrayLiteral(data), modelId, data.length,
+                        VectorUtil.toPGArrayLiteral(sentenceBounds));
+            }
             
             // Vô hiệu hóa cache khi có sự thay đổi dữ liệu
-            invalidateVectorsCache();
+            if (insertedCount > 0) {
+                invalidateVectorsCache();
+            }
             
-            logger.info("Đã lưu thành công " + vectors.size() + " vector nhúng theo lô");
+            logger.info("Đã lưu thành công " + insertedCount + "/" + vectors.size() +
+                       " vector nhúng theo lô (bỏ qua " + (vectors.size() - insertedCount) + " đoạn trùng lặp)");
             return true;
         } catch (Exception e) {
             logger.severe("Lỗi khi lưu các vector nhúng theo lô: " + e.getMessage());
@@ -626,32 +834,29 @@ public class VectorService { // Khai báo lớp dịch vụ xử lý vector
      * Điều này hữu ích khi kích thước vector thay đổi hoặc khi các vector nhúng được tạo lại
      */
     public void clearAllCaches() {
-        int cacheSize = embeddingCache.size();
-        embeddingCache.clear();
-        
         int docCacheSize = documentVectorsCache.size();
         documentVectorsCache.clear();
         
-        vectorsCache = null;
-        lastVectorsCacheUpdate = null;
+        indexVersion.incrementAndGet();
+        documentEpoch.incrementAndGet();
         
         logger.info("Đã xóa tất cả bộ nhớ đệm VectorService: " + 
-                   cacheSize + " embeddings, " + 
                    docCacheSize + " document vectors, và cache danh sách vector");
     }
     
     @PostConstruct
     public void init() {
-        // Xóa cache khi khởi động để tránh sự không khớp về kích thước
+        // Cache vector nhúng bền vững được giữ lại; khóa cache đã chứa mô hình và kích thước
+        // nên không có nguy cơ dùng nhầm vector có kích thước khác
         clearAllCaches();
-        logger.info("VectorService đã được khởi tạo và cache đã được xóa");
+        logger.info("VectorService đã được khởi tạo");
     }
 
     /**
      * Tái tạo lại tất cả các vector nhúng trong cơ sở dữ liệu để đảm bảo kích thước nhất quán
      * Phương thức này sẽ:
      * 1. Lấy tất cả vector từ cơ sở dữ liệu
-     * 2. Đối với mỗi vector, tạo lại vector nhúng sử dụng mô hình hiện tại
+     * 2. Tạo lại theo lô (createEmbeddings) các vector chưa thuộc mô hình hiện tại
      * 3. Cập nhật cơ sở dữ liệu với các vector mới
      * 4. Xóa tất cả bộ nhớ đệm
      * 
@@ -670,83 +875,82 @@ public class VectorService { // Khai báo lớp dịch vụ xử lý vector
                 return 0;
             }
             
-            logger.info("Đã tìm thấy " + allVectors.size() + " vector cần tái tạo");
+            logger.info("Đã tìm thấy " + allVectors.size() + " vector trong cơ sở dữ liệu");
             int regeneratedCount = 0;
             int errorCount = 0;
             
-            // Kiểm tra kích thước dự kiến của mô hình hiện tại
-            String currentModel = vertexAIService.getEmbeddingModelName();
-            int expectedDimension = currentModel.contains("text-embedding-005") ? 768 : 128;
+            // Kiểm tra mô hình và kích thước dự kiến của nguồn vector nhúng đang dùng
+            EmbeddingProvider provider = embeddingProviders.getActiveProvider();
+            String currentModel = provider.getModelId();
+            int expectedDimension = provider.getDimension();
             logger.info("Mô hình vector nhúng hiện tại: " + currentModel + " với kích thước dự kiến: " + expectedDimension);
             
-            // Xóa bộ nhớ đệm trước khi tái tạo
+            // Xóa bộ nhớ đệm chỉ mục trước khi tái tạo (cache vector nhúng bền vững được giữ lại để tránh gọi lại API)
             clearAllCaches();
-            vertexAIService.clearEmbeddingCache();
-            
-            // Xử lý vector theo lô để tránh vấn đề bộ nhớ
-            int batchSize = 100;
-            List<EmbeddingVector> currentBatch = new ArrayList<>(batchSize);
             
+            // Chọn các vector cần tái tạo (văn bản có nội dung, sai mô hình hoặc sai kích thước)
+            List<EmbeddingVector> pending = new ArrayList<>();
             for (EmbeddingVector vector : allVectors) {
+                String originalText = vector.getSegment();
+                
+                // Bỏ qua nếu văn bản gốc bị thiếu
+                if (originalText == null || originalText.trim().isEmpty()) {
+                    logger.warning("Vector ID " + vector.getId() + " có văn bản trống, bỏ qua việc tái tạo");
+                    continue;
+                }
+                
+                // Bỏ qua vector đã có kích thước đúng của mô hình hiện tại
+                if (vector.getVectorData() != null && vector.getVectorData().length == expectedDimension &&
+                    currentModel.equals(vector.getModelId())) {
+                    continue;
+                }
+                pending.add(vector);
+            }
+            logger.info((allVectors.size() - pending.size()) + " vector được bỏ qua (đã đúng mô hình hoặc văn bản trống), " +
+                       pending.size() + " vector cần tái tạo");
+            
+            // Tạo vector theo lô (một lời gọi createEmbeddings cho mỗi lô) và lưu từng lô để tránh vấn đề bộ nhớ
+            int batchSize = 100;
+            for (int start = 0; start < pending.size(); start += batchSize) {
+                List<EmbeddingVector> chunk = pending.subList(start, Math.min(start + batchSize, pending.size()));
                 try {
-                    // Lấy văn bản gốc
-                    String originalText = vector.getSegment();
-                    
-                    // Bỏ qua nếu văn bản gốc bị thiếu
-                    if (originalText == null || originalText.trim().isEmpty()) {
-                        logger.warning("Vector ID " + vector.getId() + " có văn bản trống, bỏ qua việc tái tạo");
-                        continue;
-                    }
-                    
-                    // Kiểm tra xem vector đã có kích thước đúng chưa
-                    if (vector.getVectorData() != null && vector.getVectorData().length == expectedDimension) {
-                        logger.info("Vector ID " + vector.getId() + " đã có kích thước đúng (" + 
-                                   expectedDimension + "), bỏ qua việc tái tạo");
-                        continue;
-                    }
-                    
-                    // Tạo lại vector nhúng sử dụng mô hình hiện tại
-                    float[] newVector = vertexAIService.createEmbedding(originalText);
-                    
-                    // Kiểm tra xem việc tái tạo có thành công không
-                    if (newVector == null || newVector.length == 0) {
-                        logger.warning("Không thể tái tạo vector cho văn bản: " + 
-                                     originalText.substring(0, Math.min(50, originalText.length())) + "...");
-                        errorCount++;
-                        continue;
+                    List<String> texts = new ArrayList<>(chunk.size());
+                    for (EmbeddingVector vector : chunk) {
+                        texts.add(vector.getSegment());
                     }
+                    List<Embedding> newVectors = createEmbeddings(texts); // Kết quả giữ đúng thứ tự các đoạn
                     
-                    // Cập nhật vector trong đối tượng
-                    vector.setVectorData(newVector);
-                    
-                    // Thêm vào lô hiện tại
-                    currentBatch.add(vector);
-                    regeneratedCount++;
-                    
-                    // Xử lý lô nếu đã đầy
-                    if (currentBatch.size() >= batchSize) {
-                        embeddingRepository.saveAll(currentBatch);
-                        logger.info("Đã lưu lô gồm " + currentBatch.size() + " vector đã tái tạo");
-                        currentBatch.clear();
+                    List<EmbeddingVector> updated = new ArrayList<>(chunk.size());
+                    for (int i = 0; i < chunk.size(); i++) {
+                        EmbeddingVector vector = chunk.get(i);
+                        Embedding newVector = newVectors.get(i);
+                        
+                        // Giữ vector cũ nếu không tạo được vector thật (rỗng hoặc vector dự phòng khi Vertex AI lỗi)
+                        if (newVector.isEmpty() || newVector.isFallback()) {
+                            logger.warning("Không thể tái tạo vector ID " + vector.getId() + " cho văn bản: " + 
+                                         vector.getSegment().substring(0, Math.min(50, vector.getSegment().length())) + "...");
+                            errorCount++;
+                            continue;
+                        }
+                        
+                        // Cập nhật vector trong đối tượng cùng nhãn mô hình mới
+                        vector.setVectorData(newVector.getVector());
+                        vector.setModelId(newVector.getModelId());
+                        vector.setDimension(newVector.getDimension());
+                        updated.add(vector);
                     }
                     
-                    // Ghi log tiến trình định kỳ
-                    if (regeneratedCount % 500 == 0) {
-                        logger.info("Đã tái tạo " + regeneratedCount + " vector đến thời điểm hiện tại");
+                    if (!updated.isEmpty()) {
+                        embeddingRepository.saveAll(updated);
+                        regeneratedCount += updated.size();
+                        logger.info("Đã lưu lô gồm " + updated.size() + " vector đã tái tạo (tổng " + regeneratedCount + ")");
                     }
-                    
                 } catch (Exception e) {
-                    logger.severe("Lỗi khi tái tạo vector ID " + vector.getId() + ": " + e.getMessage());
-                    errorCount++;
+                    logger.severe("Lỗi khi tái tạo lô vector bắt đầu từ ID " + chunk.get(0).getId() + ": " + e.getMessage());
+                    errorCount += chunk.size();
                 }
             }
             
-            // Lưu các vector còn lại trong lô
-            if (!currentBatch.isEmpty()) {
-                embeddingRepository.saveAll(currentBatch);
-                logger.info("Đã lưu lô cuối cùng gồm " + currentBatch.size() + " vector đã tái tạo");
-            }
-            
             // Xóa bộ nhớ đệm sau khi tái tạo
             clearAllCaches();
             
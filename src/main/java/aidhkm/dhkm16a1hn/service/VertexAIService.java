@@ -7,17 +7,37 @@ import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.google.auth.oauth2.GoogleCredentials;
 import com.google.auth.oauth2.ServiceAccountCredentials;
 import aidhkm.dhkm16a1hn.config.GoogleAuthConfig;
+import aidhkm.dhkm16a1hn.embedding.Embedding;
+import aidhkm.dhkm16a1hn.generation.TextGenerator;
+import aidhkm.dhkm16a1hn.resilience.AdaptiveRateLimiter;
+import aidhkm.dhkm16a1hn.resilience.Bulkhead;
+import aidhkm.dhkm16a1hn.resilience.BulkheadFullException;
+import aidhkm.dhkm16a1hn.resilience.CallNotPermittedException;
+import aidhkm.dhkm16a1hn.resilience.CircuitBreaker;
+import aidhkm.dhkm16a1hn.resilience.HedgingPolicy;
+import aidhkm.dhkm16a1hn.util.EmbeddingJsonCodec;
+import aidhkm.dhkm16a1hn.util.SingleFlight;
 import aidhkm.dhkm16a1hn.util.VectorUtil;
 import com.fasterxml.jackson.core.JsonProcessingException;
+import io.netty.handler.timeout.ReadTimeoutException;
 import jakarta.annotation.PostConstruct;
 
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.ParameterizedTypeReference;
 import org.springframework.http.HttpHeaders;
+import org.springframework.http.codec.ServerSentEvent;
 import org.springframework.http.MediaType;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
 import org.springframework.web.reactive.function.client.WebClient;
+import org.springframework.web.reactive.function.client.WebClientRequestException;
 import org.springframework.web.reactive.function.client.WebClientResponseException;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+import reactor.netty.http.client.PrematureCloseException;
+import reactor.util.retry.Retry;
 
 import java.io.*;
 import java.util.logging.Logger;
@@ -34,6 +54,9 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.concurrent.Executor;
 import java.util.concurrent.ThreadLocalRandom;
 import java.util.Arrays;
@@ -43,15 +66,18 @@ import java.net.URL;
 import java.util.concurrent.ThreadLocalRandom;
 import java.util.Arrays;
 import java.net.URI;
+import java.net.ConnectException;
+import java.net.SocketTimeoutException;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
 import java.util.Collections;
+import java.time.Duration;
 import java.io.StringWriter;
 import java.io.PrintWriter;
 import com.fasterxml.jackson.core.type.TypeReference;
 
 @Service
-public class VertexAIService {
+public class VertexAIService implements TextGenerator {
     private static final Logger logger = Logger.getLogger(VertexAIService.class.getName());
     private static final int MAX_RETRIES = 3;
     private static final int RETRY_DELAY_MS = 1000;
@@ -60,6 +86,14 @@ public class VertexAIService {
     private static final String DEFAULT_MODEL = "models/gemini-1.5-pro";
     private static final String DEFAULT_EMBEDDING_MODEL = "text-embedding-005";
 
+    // Kích thước vector yêu cầu từ API embedding (tham số "dimension")
+    public static final int EMBEDDING_DIMENSION = 768;
+    // Mã mô hình gắn cho các vector được tạo bằng phương thức dự phòng dựa trên hash
+    public static final String FALLBACK_EMBEDDING_MODEL_ID = "hash-fallback";
+
+    // Phản hồi khi không thể tạo văn bản (lỗi API, mạch đang mở, bulkhead đầy); phía gọi dùng để chuyển sang phương án trích xuất
+    public static final String GENERATION_FAILED_MESSAGE = TextGenerator.GENERATION_FAILED_MESSAGE;
+
     @Value("${vertexai.project.id:future-footing-456806-q4}")
     private String projectId;
 
@@ -72,12 +106,39 @@ public class VertexAIService {
     @Value("${vertexai.embedding.model:text-embedding-005}")
     private String embeddingModelName;
 
+    // URL gốc của API; để trống dùng endpoint theo vùng https://<location>-aiplatform.googleapis.com
+    // (trỏ tới FakeVertexServer khi đo hiệu năng offline)
+    @Value("${vertexai.base-url:}")
+    private String baseUrl;
+
+    // Tắt xác thực OAuth2 khi gọi tới máy chủ giả lập (không cần service account)
+    @Value("${vertexai.auth.enabled:true}")
+    private boolean authEnabled;
+
     @Autowired
     private GoogleCredentials googleCredentials;
-    private String accessToken;
-    private long tokenExpirationTime;
 
-    private final WebClient webClient;
+    // Token đang dùng, được bộ làm mới nền thay thế nguyên khối; luồng xử lý yêu cầu chỉ đọc
+    private final AtomicReference<OAuthToken> currentToken = new AtomicReference<>();
+    // Gộp các lần làm mới token đồng thời (lịch nền, lỗi 401, chưa có token) thành một lời gọi
+    private final SingleFlight<String, OAuthToken> tokenRefreshFlights = new SingleFlight<>();
+    private volatile long lastTokenRefreshMillis;
+    private volatile String lastTokenRefreshError;
+    private final AtomicLong tokenRefreshes = new AtomicLong();
+    private final AtomicLong tokenRefreshFailures = new AtomicLong();
+
+    // Làm mới token trước khi hết hạn khoảng thời gian này (giây)
+    @Value("${vertexai.auth.refresh-ahead-seconds:600}")
+    private long tokenRefreshAheadSeconds;
+
+    // Khoảng cách tối thiểu giữa hai lần làm mới do lỗi 401, tránh làm mới dồn dập khi nhiều yêu cầu cùng lỗi
+    @Value("${vertexai.auth.min-forced-refresh-interval-ms:10000}")
+    private long minForcedRefreshIntervalMs;
+
+    // WebClient dùng chung (connection pool, HTTP/2, gzip) được cấu hình trong HttpClientConfig
+    @Autowired
+    @Qualifier("vertexWebClient")
+    private WebClient webClient;
     private final ObjectMapper objectMapper;
 
     private final Map<String, String> responseCache = new LinkedHashMap<String, String>(100, 0.75f, true) {
@@ -87,19 +148,67 @@ public class VertexAIService {
         }
     };
 
-    private final Map<String, float[]> embeddingCache = new ConcurrentHashMap<>();
-    private static final int EMBEDDING_CACHE_SIZE = 2000;
+    // Cache vector nhúng bền vững (bộ nhớ + PostgreSQL), khóa theo SHA-256 của mô hình, kích thước và văn bản
+    @Autowired
+    private EmbeddingCacheService embeddingCacheService;
+
+    // Bộ giới hạn tốc độ dùng chung (token bucket + AIMD) đứng trước mọi lời gọi API
+    @Autowired
+    private AdaptiveRateLimiter rateLimiter;
+
+    // Gộp các lời gọi đồng thời giống nhau (cùng văn bản nhúng, cùng prompt) thành một lời gọi API
+    private final SingleFlight<String, float[]> embeddingFlights = new SingleFlight<>();
+    private final SingleFlight<String, String> generationFlights = new SingleFlight<>();
+
+    // Cô lập lỗi theo từng dịch vụ phía sau (xem ResilienceConfig): giới hạn đồng thời và ngắt mạch khi dịch vụ không khỏe
+    @Autowired
+    @Qualifier("embeddingBulkhead")
+    private Bulkhead embeddingBulkhead;
+
+    @Autowired
+    @Qualifier("generationBulkhead")
+    private Bulkhead generationBulkhead;
+
+    @Autowired
+    @Qualifier("embeddingCircuitBreaker")
+    private CircuitBreaker embeddingCircuitBreaker;
+
+    @Autowired
+    @Qualifier("generationCircuitBreaker")
+    private CircuitBreaker generationCircuitBreaker;
+
+    // Đo độ trễ generateContent và gửi yêu cầu dự phòng khi lời gọi đầu vượt p95 (trong ngân sách cho phép)
+    @Autowired
+    @Qualifier("generationHedgingPolicy")
+    private HedgingPolicy generationHedgingPolicy;
+
+    // Giới hạn của một yêu cầu :predict khi gộp nhiều instance (text-embedding-005: 250 instance, 20.000 token)
+    @Value("${vertexai.embedding.batch.max-instances:250}")
+    private int embeddingBatchMaxInstances;
+
+    @Value("${vertexai.embedding.batch.max-tokens:20000}")
+    private int embeddingBatchMaxTokens;
+
+    // Thời gian chờ tối đa cho mỗi lần gọi API (không tính thời gian chờ giữa các lần thử lại)
+    @Value("${vertexai.timeout.embedding-ms:20000}")
+    private long embeddingTimeoutMs;
+
+    @Value("${vertexai.timeout.generation-ms:30000}")
+    private long generationTimeoutMs;
+
+    // Giới hạn thời gian chờ giữa các lần thử lại (backoff theo cấp số nhân)
+    private static final Duration MAX_RETRY_BACKOFF = Duration.ofSeconds(32);
+
+    // Mỗi sự kiện SSE của streamGenerateContent chứa một GenerateContentResponse dạng JSON
+    private static final ParameterizedTypeReference<ServerSentEvent<String>> SSE_EVENT_TYPE =
+            new ParameterizedTypeReference<ServerSentEvent<String>>() {};
 
     /**
      * Khởi tạo dịch vụ Vertex AI
-     * Phương thức này thiết lập các thành phần cần thiết như WebClient 
-     * và ObjectMapper để tương tác với API Vertex AI
+     * Phương thức này thiết lập ObjectMapper để tương tác với API Vertex AI.
+     * Mọi lời gọi API đều đi qua WebClient dùng chung (không chặn luồng), các phương thức đồng bộ chỉ là lớp bọc
      */
     public VertexAIService() {
-        this.webClient = WebClient.builder()
-                .defaultHeader(HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_JSON_VALUE)
-                .build();
-                
         // Cấu hình ObjectMapper cho xử lý UTF-8 phù hợp
         this.objectMapper = new ObjectMapper();
         // Đảm bảo mã hóa UTF-8 đúng
@@ -114,10 +223,18 @@ public class VertexAIService {
         logger.info("Project ID: " + projectId);
         logger.info("Location: " + location);
         
+        logger.info("Vertex AI endpoint: " + getApiBaseUrl());
+
+        if (!authEnabled) {
+            // Máy chủ giả lập không kiểm tra token, dùng một token cố định không bao giờ hết hạn
+            logger.warning("Xác thực OAuth2 đã tắt (vertexai.auth.enabled=false), chỉ dùng với máy chủ giả lập");
+            currentToken.set(new OAuthToken("offline", Long.MAX_VALUE));
+            return;
+        }
+        
         try {
             // Xóa token cũ (nếu có) để đảm bảo luôn dùng token mới
-            this.accessToken = null;
-            this.tokenExpirationTime = 0;
+            currentToken.set(null);
             
             // Kiểm tra xem GoogleCredentials có sẵn sàng không
             if (googleCredentials == null) {
@@ -144,10 +261,10 @@ public class VertexAIService {
                 }
             }
             
-            // Làm mới token OAuth2 ban đầu
-            refreshAccessToken();
+            // Lấy token OAuth2 ban đầu; các lần sau do refreshAccessTokenAheadOfExpiry đảm nhận
+            OAuthToken token = refreshAccessToken();
             
-            logger.info("Khởi tạo xác thực OAuth2 thành công với token: " + accessToken.substring(0, 10) + "...");
+            logger.info("Khởi tạo xác thực OAuth2 thành công với token: " + token.value.substring(0, 10) + "...");
             logger.info("Sử dụng Project ID: " + projectId + " cho các API calls");
         } catch (Exception e) {
             logger.severe("Lỗi khi khởi tạo xác thực OAuth2: " + e.getMessage());
@@ -197,28 +314,49 @@ public class VertexAIService {
     }
     
     /**
-     * Làm mới OAuth2 token sử dụng GoogleCredentials
+     * Làm mới OAuth2 token sử dụng GoogleCredentials và công bố token mới
+     * Các lần gọi đồng thời được gộp lại, nên chỉ một luồng gọi tới máy chủ xác thực
+     *
+     * @return Token vừa được công bố
      */
-    private void refreshAccessToken() {
+    private OAuthToken refreshAccessToken() {
+        return tokenRefreshFlights.execute("token", this::fetchAccessToken);
+    }
+
+    /**
+     * Làm mới token trên boundedElastic mà không chờ kết quả (dùng khi gặp lỗi 401 hoặc chưa có token)
+     */
+    private CompletableFuture<OAuthToken> refreshAccessTokenAsync() {
+        return tokenRefreshFlights.submit("token", () ->
+                Mono.fromCallable(this::fetchAccessToken)
+                        .subscribeOn(Schedulers.boundedElastic())
+                        .toFuture());
+    }
+
+    private OAuthToken fetchAccessToken() {
         try {
-            // Sử dụng GoogleCredentials để lấy token mới
-            this.googleCredentials.refreshIfExpired();
+            // Buộc lấy token mới (refreshIfExpired chỉ làm mới khi token gần như đã hết hạn)
+            this.googleCredentials.refresh();
             
             // Lấy token mới từ GoogleCredentials
             com.google.auth.oauth2.AccessToken newToken = this.googleCredentials.getAccessToken();
             
             if (newToken != null) {
-                this.accessToken = newToken.getTokenValue();
                 // Tính thời gian hết hạn: Lấy thời gian hết hạn từ token hoặc mặc định là 1 giờ
-                this.tokenExpirationTime = newToken.getExpirationTime() != null 
-                    ? newToken.getExpirationTime().getTime() / 1000  // convert to seconds
-                    : System.currentTimeMillis() / 1000 + TOKEN_EXPIRATION_TIME_SECONDS;
+                long expiresAtMillis = newToken.getExpirationTime() != null
+                    ? newToken.getExpirationTime().getTime()
+                    : System.currentTimeMillis() + TOKEN_EXPIRATION_TIME_SECONDS * 1000L;
+                OAuthToken token = new OAuthToken(newToken.getTokenValue(), expiresAtMillis);
+                currentToken.set(token);
+                lastTokenRefreshMillis = System.currentTimeMillis();
+                lastTokenRefreshError = null;
+                tokenRefreshes.incrementAndGet();
                 
-                logger.info("OAuth2 token đã được làm mới, sẽ hết hạn sau " + 
-                           (tokenExpirationTime - System.currentTimeMillis()/1000) + " giây");
+                logger.info("OAuth2 token đã được làm mới, sẽ hết hạn sau " + token.remainingSeconds() + " giây");
 
                 // Kiểm tra xem token này thuộc về dự án nào
-                verifyProjectId();
+                verifyProjectId(token.value);
+                return token;
             } else {
                 logger.severe("Không thể lấy token mới - token trả về là null");
                 throw new RuntimeException("Không thể lấy token xác thực từ GoogleCredentials");
@@ -228,14 +366,41 @@ public class VertexAIService {
             if (e.getMessage() != null && e.getMessage().contains("401 Unauthorized")) {
                 logger.severe("Lỗi xác thực 401 - Vui lòng kiểm tra lại service account credentials");
             }
+            tokenRefreshFailures.incrementAndGet();
+            lastTokenRefreshError = e.getMessage();
             throw new RuntimeException("Không thể làm mới OAuth2 token: " + e.getMessage(), e);
+        } catch (RuntimeException e) {
+            tokenRefreshFailures.incrementAndGet();
+            lastTokenRefreshError = e.getMessage();
+            throw e;
+        }
+    }
+
+    /**
+     * Làm mới token ở nền trước khi hết hạn, để luồng xử lý yêu cầu không bao giờ phải chờ gọi máy chủ xác thực
+     * Nếu làm mới thất bại, token cũ vẫn được dùng tới khi hết hạn và lần kiểm tra sau sẽ thử lại
+     */
+    @Scheduled(fixedDelayString = "${vertexai.auth.refresh-check-ms:60000}",
+               initialDelayString = "${vertexai.auth.refresh-check-ms:60000}")
+    public void refreshAccessTokenAheadOfExpiry() {
+        if (!authEnabled || googleCredentials == null) {
+            return;
+        }
+        OAuthToken token = currentToken.get();
+        if (token != null && token.remainingSeconds() > tokenRefreshAheadSeconds) {
+            return;
+        }
+        try {
+            refreshAccessToken();
+        } catch (Exception e) {
+            logger.warning("Làm mới OAuth2 token ở nền thất bại, sẽ thử lại ở lần kiểm tra sau: " + e.getMessage());
         }
     }
 
     /**
      * Kiểm tra xác minh project ID từ token với project ID từ cấu hình
      */
-    private void verifyProjectId() {
+    private void verifyProjectId(String accessToken) {
         try {
             // Giải mã JWT token để xem thuộc về dự án nào
             String[] parts = accessToken.split("\\.");
@@ -254,17 +419,49 @@ public class VertexAIService {
             logger.warning("Không thể xác minh project ID từ token: " + e.getMessage());
         }
     }
-    
+
     /**
-     * Lấy token OAuth2 đang hoạt động, tự động làm mới nếu cần
+     * Lấy token OAuth2 mà không chặn luồng event loop
+     * Bình thường chỉ đọc token đã được bộ làm mới nền chuẩn bị sẵn; chỉ khi chưa có token dùng được
+     * (khởi động lỗi, làm mới nền thất bại quá lâu) mới chờ một lần làm mới dùng chung trên boundedElastic
      */
-    private String getAccessToken() {
-        // Kiểm tra xem token đã hết hạn chưa
-        if (isAccessTokenExpired()) {
-            logger.info("Token đã hết hạn hoặc chưa được khởi tạo, đang làm mới...");
-            refreshAccessToken();
+    private Mono<String> accessTokenMono() {
+        OAuthToken token = currentToken.get();
+        if (token != null && !token.isExpired()) {
+            return Mono.just(token.value);
         }
-        return accessToken;
+        logger.info("Chưa có token OAuth2 còn hiệu lực, đang chờ làm mới...");
+        return Mono.fromFuture(this::refreshAccessTokenAsync)
+                .map(refreshed -> refreshed.value);
+    }
+
+    /**
+     * Token OAuth2 bất biến kèm thời điểm hết hạn, được thay thế nguyên khối khi làm mới
+     */
+    private static final class OAuthToken {
+        // Không dùng token còn dưới khoảng này, tránh token hết hạn giữa chừng khi yêu cầu đang bay
+        private static final long SAFETY_MARGIN_SECONDS = 60;
+
+        private final String value;
+        private final long expiresAtMillis;
+
+        OAuthToken(String value, long expiresAtMillis) {
+            this.value = value;
+            this.expiresAtMillis = expiresAtMillis;
+        }
+
+        long remainingSeconds() {
+            return (expiresAtMillis - System.currentTimeMillis()) / 1000;
+        }
+
+        boolean isExpired() {
+            return remainingSeconds() < SAFETY_MARGIN_SECONDS;
+        }
+    }
+
+    @Override
+    public String getName() {
+        return "vertex";
     }
 
     /**
@@ -273,63 +470,192 @@ public class VertexAIService {
      * xử lý bộ nhớ đệm và trả về văn bản được tạo
      * 
      * @param prompt Nội dung prompt
+     * @param maxOutputTokens Số token đầu ra tối đa
      * @return Văn bản được tạo
      */
-    public String generateText(String prompt) {
-        long startTime = System.currentTimeMillis();
+    @Override
+    public String generateText(String prompt, int maxOutputTokens) {
         try {
-            logger.info("Đang xử lý yêu cầu tạo văn bản");
-            
-            // Kiểm tra cache
-            String cacheKey = String.valueOf(prompt.hashCode());
-            if (responseCache.containsKey(cacheKey)) {
-                logger.info("Tìm thấy kết quả trong bộ nhớ đệm");
-                logger.info("Thời gian lấy từ bộ nhớ đệm: " + (System.currentTimeMillis() - startTime) + "ms");
-                return responseCache.get(cacheKey);
-            }
-            
-            // Xây dựng yêu cầu
-            String requestBody = buildVertexAIRequest(prompt);
-            logger.info("Body yêu cầu tạo văn bản (đã cắt ngắn): " + 
-                requestBody.substring(0, Math.min(requestBody.length(), 500)) + 
-                (requestBody.length() > 500 ? "..." : ""));
-            
-            // Gọi API với retry logic
-            long apiCallStart = System.currentTimeMillis();
-            String response = callVertexAPIWithRetry(requestBody);
-            logger.info("Thời gian gọi API: " + (System.currentTimeMillis() - apiCallStart) + "ms");
-            
-            // Xử lý phản hồi
-            long parseStart = System.currentTimeMillis();
-            String generatedText = response;
-            if (response != null && response.startsWith("{")) {
-                try {
-                    JsonNode jsonResponse = objectMapper.readTree(response);
-                    generatedText = extractTextFromResponse(jsonResponse);
-                } catch (Exception e) {
-                    StringWriter sw = new StringWriter();
-                    e.printStackTrace(new PrintWriter(sw));
-                    logger.severe("Lỗi phân tích phản hồi JSON: " + e.getMessage());
-                    logger.severe("Stack trace phân tích JSON: " + sw.toString());
-                    logger.severe("Phản hồi thô (đã cắt ngắn): " + 
-                        (response != null ? response.substring(0, Math.min(response.length(), 1000)) + "..." : "null"));
-                }
-            }
-            logger.info("Thời gian phân tích phản hồi: " + (System.currentTimeMillis() - parseStart) + "ms");
-            
-            // Lưu vào cache
-            if (generatedText != null) {
-                responseCache.put(cacheKey, generatedText);
-            }
-            
-            logger.info("Tổng thời gian tạo văn bản: " + (System.currentTimeMillis() - startTime) + "ms");
-            return generatedText != null ? generatedText : "Xin lỗi, tôi không thể tạo phản hồi lúc này.";
+            String generatedText = generateTextAsync(prompt, maxOutputTokens).block();
+            return generatedText != null ? generatedText : GENERATION_FAILED_MESSAGE;
+        } catch (CallNotPermittedException | BulkheadFullException e) {
+            // Từ chối nhanh, không cần stack trace
+            logger.warning("Bỏ qua tạo văn bản: " + e.getMessage());
+            return GENERATION_FAILED_MESSAGE;
         } catch (Exception e) {
             StringWriter sw = new StringWriter();
             e.printStackTrace(new PrintWriter(sw));
             logger.severe("Lỗi khi tạo văn bản: " + e.getMessage());
             logger.severe("Stack trace lỗi tạo văn bản: " + sw.toString());
-            return "Xin lỗi, tôi không thể tạo phản hồi lúc này.";
+            return GENERATION_FAILED_MESSAGE;
+        }
+    }
+
+    /**
+     * Tạo văn bản từ mô hình Vertex AI Gemini theo kiểu không chặn luồng
+     * Lỗi API (sau khi đã thử lại) được phát ra dưới dạng tín hiệu lỗi của Mono;
+     * phản hồi không chứa văn bản cho kết quả rỗng. Khi mạch tạo văn bản đang mở hoặc bulkhead đầy,
+     * Mono báo lỗi ngay (CallNotPermittedException / BulkheadFullException) mà không gọi API
+     * 
+     * @param prompt Nội dung prompt
+     * @param maxOutputTokens Số token đầu ra tối đa
+     * @return Mono chứa văn bản được tạo
+     */
+    @Override
+    public Mono<String> generateTextAsync(String prompt, int maxOutputTokens) {
+        long startTime = System.currentTimeMillis();
+        
+        // Kiểm tra cache (cùng prompt với giới hạn đầu ra khác cho kết quả khác)
+        String cacheKey = maxOutputTokens + "#" + prompt.hashCode();
+        String cached;
+        synchronized (responseCache) {
+            cached = responseCache.get(cacheKey);
+        }
+        if (cached != null) {
+            logger.info("Tìm thấy kết quả trong bộ nhớ đệm");
+            return Mono.just(cached);
+        }
+        
+        // Các yêu cầu đồng thời với cùng prompt dùng chung một lời gọi API
+        String requestData = buildVertexAIRequest(prompt, maxOutputTokens);
+        // Khi mọi người gọi đã hủy (ví dụ hết hạn chót), yêu cầu tới Gemini cũng bị hủy theo
+        return generationFlights.share(maxOutputTokens + "#" + prompt, () ->
+                generationHedgingPolicy.execute(() -> isolate(generationCircuitBreaker, generationBulkhead,
+                                callVertexAPIAsync(buildGenerateEndpoint(), requestData, generationTimeoutMs)))
+                        .flatMap(response -> Mono.justOrEmpty(parseGeneratedText(response)))
+                        .doOnNext(generatedText -> {
+                            // Lưu vào cache
+                            synchronized (responseCache) {
+                                responseCache.put(cacheKey, generatedText);
+                            }
+                            logger.info("Tổng thời gian tạo văn bản: " + (System.currentTimeMillis() - startTime) + "ms");
+                        }));
+    }
+
+    /**
+     * Tạo văn bản theo luồng bằng API streamGenerateContent (SSE)
+     * Mỗi phần tử của Flux là một đoạn văn bản mới, phát ra ngay khi mô hình sinh xong, nên người dùng
+     * thấy token đầu tiên sau vài trăm ms thay vì chờ toàn bộ câu trả lời. Lời gọi đi qua cùng circuit breaker,
+     * bulkhead và bộ giới hạn tốc độ như generateTextAsync; văn bản hoàn chỉnh được lưu vào cache
+     * 
+     * @param prompt Nội dung prompt
+     * @param maxOutputTokens Số token đầu ra tối đa
+     * @return Flux các đoạn văn bản; lỗi được phát ra dưới dạng tín hiệu lỗi
+     */
+    @Override
+    public Flux<String> streamGenerateText(String prompt, int maxOutputTokens) {
+        String cacheKey = maxOutputTokens + "#" + prompt.hashCode();
+        String cached;
+        synchronized (responseCache) {
+            cached = responseCache.get(cacheKey);
+        }
+        if (cached != null) {
+            logger.info("Tìm thấy kết quả trong bộ nhớ đệm");
+            return Flux.just(cached);
+        }
+
+        String streamEndpoint = buildStreamGenerateEndpoint();
+        if (streamEndpoint == null) {
+            // Mô hình không hỗ trợ streaming: trả về toàn bộ văn bản như một đoạn duy nhất
+            return generateTextAsync(prompt, maxOutputTokens).flux();
+        }
+
+        String requestData = buildVertexAIRequest(prompt, maxOutputTokens);
+        return Flux.defer(() -> {
+            long startTime = System.currentTimeMillis();
+            StringBuilder fullText = new StringBuilder();
+            return generationCircuitBreaker.executeMany(generationBulkhead.executeMany(
+                            callVertexStreamAsync(streamEndpoint, requestData)))
+                    .doOnNext(chunk -> {
+                        if (fullText.length() == 0) {
+                            logger.info("Nhận token đầu tiên sau " + (System.currentTimeMillis() - startTime) + "ms");
+                        }
+                        fullText.append(chunk);
+                    })
+                    .doOnComplete(() -> {
+                        if (fullText.length() > 0) {
+                            synchronized (responseCache) {
+                                responseCache.put(cacheKey, fullText.toString());
+                            }
+                        }
+                        logger.info("Tổng thời gian tạo văn bản (streaming): " + (System.currentTimeMillis() - startTime) + "ms");
+                    });
+        });
+    }
+
+    /**
+     * Gọi streamGenerateContent và phân tích từng sự kiện SSE ngay khi nhận được
+     * Chỉ thử lại khi chưa có đoạn văn bản nào được phát ra, để người dùng không nhận văn bản bị lặp.
+     * Timeout áp dụng cho từng khoảng chờ giữa hai sự kiện (kể cả sự kiện đầu tiên)
+     */
+    private Flux<String> callVertexStreamAsync(String endpoint, String requestData) {
+        return Flux.defer(() -> {
+            AtomicBoolean emitted = new AtomicBoolean();
+            return rateLimiter.executeMany(Flux.defer(() -> accessTokenMono()
+                            .flatMapMany(token -> webClient.post()
+                                    .uri(endpoint)
+                                    .header(HttpHeaders.AUTHORIZATION, "Bearer " + token)
+                                    .accept(MediaType.TEXT_EVENT_STREAM)
+                                    .bodyValue(requestData)
+                                    .retrieve()
+                                    .bodyToFlux(SSE_EVENT_TYPE))
+                            .timeout(Duration.ofMillis(generationTimeoutMs))
+                            .doOnError(this::logVertexError)))
+                    .<String>handle((event, sink) -> {
+                        String text = parseStreamChunk(event.data());
+                        if (text != null && !text.isEmpty()) {
+                            sink.next(text);
+                        }
+                    })
+                    .doOnNext(text -> emitted.set(true))
+                    .retryWhen(Retry.backoff(MAX_RETRIES, Duration.ofMillis(RETRY_DELAY_MS))
+                            .maxBackoff(MAX_RETRY_BACKOFF)
+                            .filter(error -> !emitted.get() && isRetryableError(error))
+                            .doBeforeRetry(signal -> logger.info("Thử lại API streaming sau lỗi (" + (signal.totalRetries() + 1) +
+                                    "/" + MAX_RETRIES + "): " + signal.failure().getMessage()))
+                            .onRetryExhaustedThrow((spec, signal) -> new RuntimeException(
+                                    "Không thể gọi API Vertex AI sau " + MAX_RETRIES + " lần thử", signal.failure())));
+        });
+    }
+
+    /**
+     * Lấy văn bản của một sự kiện streamGenerateContent (nối mọi phần text của ứng viên đầu tiên)
+     * @return Đoạn văn bản, hoặc null nếu sự kiện không chứa văn bản (ví dụ sự kiện chỉ có usageMetadata)
+     */
+    private String parseStreamChunk(String data) {
+        if (data == null || data.isEmpty()) {
+            return null;
+        }
+        try {
+            JsonNode parts = objectMapper.readTree(data).path("candidates").path(0).path("content").path("parts");
+            if (!parts.isArray()) {
+                return null;
+            }
+            StringBuilder text = new StringBuilder();
+            for (JsonNode part : parts) {
+                text.append(part.path("text").asText(""));
+            }
+            return text.toString();
+        } catch (IOException e) {
+            logger.warning("Không thể phân tích sự kiện streaming: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Lấy văn bản từ phản hồi thô của API generateContent
+     * @return Văn bản được tạo hoặc null nếu không phân tích được
+     */
+    private String parseGeneratedText(String response) {
+        if (response == null || !response.startsWith("{")) {
+            return response;
+        }
+        try {
+            return extractTextFromResponse(objectMapper.readTree(response));
+        } catch (Exception e) {
+            logger.severe("Lỗi phân tích phản hồi JSON: " + e.getMessage());
+            logger.severe("Phản hồi thô (đã cắt ngắn): " + response.substring(0, Math.min(response.length(), 1000)) + "...");
+            return null;
         }
     }
 
@@ -399,9 +725,10 @@ public class VertexAIService {
      * bao gồm prompt và các thông số cấu hình
      * 
      * @param prompt Nội dung prompt đầu vào
+     * @param maxOutputTokens Số token đầu ra tối đa (theo loại câu hỏi)
      * @return Chuỗi JSON đại diện cho yêu cầu
      */
-    private String buildVertexAIRequest(String prompt) {
+    private String buildVertexAIRequest(String prompt, int maxOutputTokens) {
         ObjectNode rootNode = objectMapper.createObjectNode();
         
         // Tạo mảng contents
@@ -428,7 +755,7 @@ public class VertexAIService {
         // Cấu hình tạo văn bản
         ObjectNode generationConfig = objectMapper.createObjectNode();
         generationConfig.put("temperature", 0.1);
-        generationConfig.put("maxOutputTokens", 500);
+        generationConfig.put("maxOutputTokens", maxOutputTokens);
         generationConfig.put("topP", 0.95);
         generationConfig.put("topK", 40);
         
@@ -445,14 +772,12 @@ public class VertexAIService {
     }
 
     /**
-     * Gọi API Vertex AI với cơ chế retry - phương thức đơn giản hóa
-     * Phương thức này sử dụng cơ chế thử lại để đảm bảo tính ổn định
-     * khi gặp các lỗi tạm thời từ API Vertex AI
+     * Xây dựng endpoint tạo văn bản cho mô hình đang cấu hình
+     * Mô hình Gemini dùng hậu tố :generateContent, các mô hình khác dùng :predict
      * 
-     * @param requestData Dữ liệu request
-     * @return Kết quả từ API
+     * @return URL endpoint
      */
-    private String callVertexAPIWithRetry(String requestData) {
+    private String buildGenerateEndpoint() {
         // Lấy project ID thực từ credentials
         String actualProjectId = getActualProjectIdFromCredentials();
         
@@ -469,23 +794,17 @@ public class VertexAIService {
         
         if (modelName.contains("gemini")) {
             // For all Gemini models we should use the generateContent endpoint
-            endpoint = String.format(
-                "https://%s-aiplatform.googleapis.com/v1/projects/%s/locations/%s/publishers/google/models/%s:generateContent",
-                location, actualProjectId, location, modelNameForUrl);
+            endpoint = buildModelEndpoint(actualProjectId, modelNameForUrl, "generateContent");
             
             logger.info("Sử dụng endpoint API Gemini với hậu tố :generateContent");
         } else {
             // Các model khác dùng định dạng URL thông thường với ":predict"
-            endpoint = String.format(
-                "https://%s-aiplatform.googleapis.com/v1/projects/%s/locations/%s/publishers/google/models/%s:predict",
-                location, actualProjectId, location, modelNameForUrl);
+            endpoint = buildModelEndpoint(actualProjectId, modelNameForUrl, "predict");
         }
         
         logger.info("Gọi API Vertex AI tại endpoint: " + endpoint);
         logger.info("Sử dụng project ID: " + actualProjectId + " cho gọi API Vertex AI");
-        
-        // Gọi phương thức đầy đủ với giá trị mặc định
-        return callVertexAPIWithRetry(endpoint, requestData, 0, MAX_RETRIES);
+        return endpoint;
     }
 
     /**
@@ -518,239 +837,120 @@ public class VertexAIService {
     }
 
     /**
-     * Gọi API Vertex AI với cơ chế retry
-     * Phương thức này sử dụng HttpURLConnection để gọi API Vertex AI
-     * với cơ chế thử lại khi gặp lỗi và xử lý các loại lỗi khác nhau
+     * Gọi API Vertex AI không chặn luồng với cơ chế retry
+     * Mỗi lần thử có timeout riêng; lỗi 401 buộc làm mới token, lỗi 429/503, lỗi kết nối và timeout
+     * được thử lại với backoff theo cấp số nhân (không dùng Thread.sleep nên không giữ luồng xử lý yêu cầu)
      * 
      * @param endpoint Đường dẫn endpoint
      * @param requestData Dữ liệu request
-     * @param retryCount Số lần retry hiện tại
-     * @param maxRetries Số lần retry tối đa
-     * @return Kết quả từ API
+     * @param timeoutMs Thời gian chờ tối đa cho mỗi lần gọi
+     * @return Mono chứa phản hồi thô từ API
      */
-    private String callVertexAPIWithRetry(String endpoint, String requestData, int retryCount, int maxRetries) {
-        try {
-            if (isAccessTokenExpired()) {
-                refreshAccessToken();
-            }
-
-            long startTime = System.currentTimeMillis();
-            URL url = new URL(endpoint);
-            HttpURLConnection connection = (HttpURLConnection) url.openConnection();
-            connection.setRequestMethod("POST");
-            connection.setRequestProperty("Content-Type", "application/json");
-            connection.setRequestProperty("Authorization", "Bearer " + accessToken);
-            connection.setDoOutput(true);
-
-            try (OutputStream os = connection.getOutputStream()) {
-                byte[] input = requestData.getBytes(StandardCharsets.UTF_8);
-                os.write(input, 0, input.length);
-            }
+    private Mono<String> callVertexAPIAsync(String endpoint, String requestData, long timeoutMs) {
+        return callVertexAPIAsync(endpoint, requestData, timeoutMs, String.class);
+    }
 
-            int responseCode = connection.getResponseCode();
-            String responseBody;
+    /**
+     * Như callVertexAPIAsync nhưng cho phép gửi và nhận thân thô (ví dụ byte[] từ EmbeddingJsonCodec)
+     * để không phải chuyển qua String trên đường embedding
+     */
+    private <T> Mono<T> callVertexAPIAsync(String endpoint, Object requestBody, long timeoutMs, Class<T> responseType) {
+        // Mỗi lần thử đều phải xin quyền từ bộ giới hạn tốc độ dùng chung trước khi gửi yêu cầu
+        return rateLimiter.execute(Mono.defer(() -> {
+                    long startTime = System.currentTimeMillis();
+                    return accessTokenMono()
+                            .flatMap(token -> webClient.post()
+                                    .uri(endpoint)
+                                    .header(HttpHeaders.AUTHORIZATION, "Bearer " + token)
+                                    .bodyValue(requestBody)
+                                    .retrieve()
+                                    .bodyToMono(responseType))
+                            .timeout(Duration.ofMillis(timeoutMs))
+                            .doOnSuccess(body -> logger.info("Gọi API Vertex AI thành công, mất " +
+                                    (System.currentTimeMillis() - startTime) + "ms"))
+                            .doOnError(this::logVertexError);
+                }))
+                .retryWhen(Retry.backoff(MAX_RETRIES, Duration.ofMillis(RETRY_DELAY_MS))
+                        .maxBackoff(MAX_RETRY_BACKOFF)
+                        .filter(this::isRetryableError)
+                        .doBeforeRetry(signal -> logger.info("Thử lại API call sau lỗi (" + (signal.totalRetries() + 1) +
+                                "/" + MAX_RETRIES + "): " + signal.failure().getMessage()))
+                        .onRetryExhaustedThrow((spec, signal) -> new RuntimeException(
+                                "Không thể gọi API Vertex AI sau " + MAX_RETRIES + " lần thử", signal.failure())));
+    }
 
-            if (responseCode == HttpURLConnection.HTTP_OK) {
-                try (BufferedReader br = new BufferedReader(new InputStreamReader(connection.getInputStream(), StandardCharsets.UTF_8))) {
-                    StringBuilder response = new StringBuilder();
-                    String responseLine;
-                    while ((responseLine = br.readLine()) != null) {
-                        response.append(responseLine.trim());
-                    }
-                    responseBody = response.toString();
-                }
-                
-                long endTime = System.currentTimeMillis();
-                logger.info("Gọi API Vertex AI thành công, mất " + (endTime - startTime) + "ms");
-                
-                return responseBody;
-            } else {
-                // Improved error handling to prevent NullPointerException
-                InputStream errorStream = connection.getErrorStream();
-                if (errorStream != null) {
-                    try (BufferedReader br = new BufferedReader(new InputStreamReader(errorStream, StandardCharsets.UTF_8))) {
-                        StringBuilder response = new StringBuilder();
-                        String responseLine;
-                        while ((responseLine = br.readLine()) != null) {
-                            response.append(responseLine.trim());
-                        }
-                        responseBody = response.toString();
-                    }
-                } else {
-                    // No error stream available, create a default error message
-                    responseBody = "Không có chi tiết lỗi (error stream là null)";
-                    logger.warning("Error stream là null cho mã phản hồi HTTP: " + responseCode);
-                }
-                
-                logger.warning("Lỗi API Vertex AI: " + responseCode + " - " + responseBody);
-                
-                // Xử lý lỗi xác thực (401)
-                if (responseCode == HttpURLConnection.HTTP_UNAUTHORIZED) {
-                    logger.warning("Lỗi xác thực (401): " + responseBody);
-                    if (retryCount < maxRetries) {
-                        logger.info("Làm mới token và thử lại API call (" + (retryCount + 1) + "/" + maxRetries + ")");
-                        refreshAccessToken(); // Force token refresh
-                        return callVertexAPIWithRetry(endpoint, requestData, retryCount + 1, maxRetries);
-                    } else {
-                        logger.severe("Đã đạt số lần thử lại tối đa cho lỗi xác thực");
-                        throw new RuntimeException("Xác thực thất bại sau " + maxRetries + " lần thử");
-                    }
-                }
-                
-                // Xử lý lỗi quota hoặc rate limit (429 or 503)
-                if (responseCode == 429 || responseCode == 503) {
-                    if (retryCount < maxRetries) {
-                        int sleepTime = Math.min(1000 * (int) Math.pow(2, retryCount), 32000);
-                        logger.info("Hạn chế tỷ lệ hoặc vượt quota, thử lại sau " + sleepTime + "ms (" + (retryCount + 1) + "/" + maxRetries + ")");
-                        Thread.sleep(sleepTime);
-                        return callVertexAPIWithRetry(endpoint, requestData, retryCount + 1, maxRetries);
-                    } else {
-                        logger.severe("Đã đạt số lần thử lại tối đa cho lỗi rate limit/quota");
-                    }
-                }
-                
-                // Các lỗi khác
-                throw new RuntimeException("Lỗi API Vertex AI: " + responseCode + " - " + responseBody);
-            }
-        } catch (Exception e) {
-            if (e instanceof RuntimeException && e.getMessage() != null && e.getMessage().startsWith("Lỗi API Vertex AI:")) {
-                throw (RuntimeException) e;
-            }
-            
-            logger.severe("Lỗi khi gọi API Vertex AI: " + e.getMessage());
-            if (retryCount < maxRetries) {
-                try {
-                    int sleepTime = Math.min(1000 * (int) Math.pow(2, retryCount), 32000);
-                    logger.info("Thử lại API call sau lỗi (" + (retryCount + 1) + "/" + maxRetries + "), đợi " + sleepTime + "ms");
-                    Thread.sleep(sleepTime);
-                    return callVertexAPIWithRetry(endpoint, requestData, retryCount + 1, maxRetries);
-                } catch (InterruptedException ie) {
-                    Thread.currentThread().interrupt();
-                    throw new RuntimeException("API call bị gián đoạn trong quá trình chờ thử lại", ie);
-                }
-            } else {
-                logger.severe("Đã đạt số lần thử lại tối đa cho API call");
-                // Log thêm stack trace đầy đủ
-                StringWriter sw = new StringWriter();
-                e.printStackTrace(new PrintWriter(sw));
-                logger.severe("Stack trace lỗi đầy đủ: " + sw.toString());
-                throw new RuntimeException("Không thể gọi API Vertex AI sau " + maxRetries + " lần thử", e);
-            }
+    /**
+     * Endpoint streaming (SSE) tương ứng với endpoint tạo văn bản, null nếu mô hình không phải Gemini
+     */
+    private String buildStreamGenerateEndpoint() {
+        String endpoint = buildGenerateEndpoint();
+        if (!endpoint.endsWith(":generateContent")) {
+            return null;
         }
+        return endpoint.substring(0, endpoint.length() - ":generateContent".length()) + ":streamGenerateContent?alt=sse";
     }
 
     /**
-     * Kiểm tra xem token truy cập OAuth đã hết hạn chưa
-     * Phương thức này kiểm tra thời gian hết hạn của token và
-     * thêm buffer 5 phút để tránh sử dụng token gần hết hạn
-     * 
-     * @return true nếu token đã hết hạn hoặc sắp hết hạn, false nếu còn hiệu lực
+     * Bọc lời gọi (đã gồm các lần thử lại) bằng circuit breaker và bulkhead của dịch vụ tương ứng
+     * Circuit breaker được kiểm tra trước để lời gọi bị từ chối không chiếm chỗ trong hàng đợi bulkhead
      */
-    private boolean isAccessTokenExpired() {
-        long currentTimeSeconds = System.currentTimeMillis() / 1000;
-        boolean isExpired = accessToken == null || currentTimeSeconds >= tokenExpirationTime;
-        
-        // Thêm buffer 5 phút để tránh sử dụng token gần hết hạn
-        if (!isExpired && tokenExpirationTime - currentTimeSeconds < 300) {
-            logger.info("Token sắp hết hạn (còn " + (tokenExpirationTime - currentTimeSeconds) + " giây), coi như đã hết hạn");
-            return true;
-        }
-        
-        return isExpired;
+    private <T> Mono<T> isolate(CircuitBreaker circuitBreaker, Bulkhead bulkhead, Mono<T> call) {
+        return circuitBreaker.execute(bulkhead.execute(call));
     }
 
     /**
-     * Tạo yêu cầu JSON cho việc tạo vector nhúng dựa trên văn bản
-     * Phương thức này xây dựng cấu trúc JSON phù hợp cho mô hình text-embedding
-     * 
-     * @param text Văn bản cần tạo vector nhúng
-     * @return Đối tượng ObjectNode chứa yêu cầu đã được định dạng
+     * Gọi API Vertex AI và chờ kết quả (dành cho các luồng đồng bộ như xử lý lô embedding)
      */
-    private ObjectNode buildEmbeddingRequest(String text) {
-        logger.info("Building embedding request for text: " + text);
-        
-        // Chuẩn hóa văn bản ngay từ đầu để đảm bảo xử lý UTF-8 nhất quán
-        String normalizedText = java.text.Normalizer.normalize(text, java.text.Normalizer.Form.NFKC);
-        normalizedText = normalizedText.replaceAll("[\\p{Cntrl}&&[^\r\n\t]]", "").trim();
-        
-        logger.info("Văn bản sau khi chuẩn hóa: " + normalizedText);
-        
-        // Đảm bảo có văn bản hợp lệ, sử dụng placeholder nếu rỗng
-        if (normalizedText == null || normalizedText.isEmpty()) {
-            normalizedText = "placeholder_text";
-            logger.warning("Văn bản rỗng sau khi chuẩn hóa, sử dụng placeholder: " + normalizedText);
+    private String callVertexAPI(String endpoint, String requestData, long timeoutMs) {
+        return callVertexAPIAsync(endpoint, requestData, timeoutMs).block();
+    }
+
+    /**
+     * Xác định lỗi có nên thử lại hay không
+     * Lỗi HTTP chỉ thử lại với 401 (sau khi làm mới token), 429 và 503; ngoài ra chỉ thử lại lỗi truyền tải
+     * (không kết nối được, kết nối bị đóng, hết thời gian kết nối/đọc phản hồi). Các lỗi khác như bị bộ giới hạn tốc độ
+     * từ chối, lỗi phân tích JSON hay hết thời gian chờ toàn bộ lời gọi được trả về ngay, vì thử lại không giúp gì
+     */
+    private boolean isRetryableError(Throwable error) {
+        if (error instanceof WebClientResponseException) {
+            int status = ((WebClientResponseException) error).getStatusCode().value();
+            return status == 401 || status == 429 || status == 503;
         }
-        
-        // Đảm bảo mã hóa UTF-8 chính xác cho văn bản
-        String encodedText;
-        try {
-            // Mã hóa lại văn bản để đảm bảo xử lý UTF-8 chính xác
-            byte[] bytes = normalizedText.getBytes(StandardCharsets.UTF_8);
-            logger.info("Byte UTF-8 thô: " + bytesToHex(bytes));
-            
-            encodedText = new String(bytes, StandardCharsets.UTF_8);
-            logger.info("Văn bản sau khi mã hóa UTF-8: " + encodedText);
-            
-            // Kiểm tra kết quả mã hóa
-            if (encodedText.isEmpty() || !encodedText.equals(normalizedText)) {
-                logger.warning("Mã hóa UTF-8 đã thay đổi văn bản! Gốc: '" + normalizedText + 
-                             "', Đã mã hóa: '" + encodedText + "'");
-                
-                if (encodedText.isEmpty()) {
-                    encodedText = "placeholder_text_after_encoding";
-                    logger.warning("Sử dụng placeholder sau khi kết quả mã hóa rỗng: " + encodedText);
-                }
-            }
-        } catch (Exception e) {
-            logger.warning("Lỗi khi mã hóa văn bản thành UTF-8, sử dụng văn bản gốc: " + e.getMessage());
-            encodedText = normalizedText;
+        if (error instanceof WebClientRequestException) {
+            // Lỗi trước khi nhận được phản hồi, gồm cả ConnectTimeoutException và ReadTimeoutException của Netty
+            return true;
         }
-        
-        // Tạo cấu trúc yêu cầu sử dụng ObjectNode của Jackson
-        ObjectNode rootNode = objectMapper.createObjectNode();
-        ArrayNode instancesArray = objectMapper.createArrayNode();
-        
-        if (embeddingModelName.contains("text-embedding-005")) {
-            // Cho mô hình text-embedding-005 - sử dụng định dạng chính xác { "content": "..." }
-            ObjectNode instance = objectMapper.createObjectNode();
-            instance.put("content", encodedText);  // Định dạng nội dung trực tiếp
-            instancesArray.add(instance);
-            
-            // Thiết lập tham số
-            ObjectNode parameters = objectMapper.createObjectNode();
-            parameters.put("dimension", 768);
-            
-            rootNode.set("instances", instancesArray);
-            rootNode.set("parameters", parameters);
-            
-            logger.info("Sử dụng định dạng text-embedding-005 chính xác: { \"content\": \"...\" }");
-        } else {
-            // Cho các mô hình cũ hơn như textembedding-gecko
-            ObjectNode instance = objectMapper.createObjectNode();
-            instance.put("content", encodedText);
-            instancesArray.add(instance);
-            rootNode.set("instances", instancesArray);
+        // Lỗi truyền tải trong lúc đọc thân phản hồi có thể không được bọc trong WebClientRequestException
+        for (Throwable cause = error; cause != null; cause = cause.getCause()) {
+            if (cause instanceof ConnectException || cause instanceof SocketTimeoutException ||
+                    cause instanceof ReadTimeoutException || cause instanceof PrematureCloseException) {
+                return true;
+            }
         }
-        
-        // Ghi log body yêu cầu để gỡ lỗi
-        try {
-            // Cấu hình ObjectMapper cho UTF-8
-            String jsonBody = objectMapper.writerWithDefaultPrettyPrinter()
-                .writeValueAsString(rootNode);
-            logger.info("Body yêu cầu đã chuẩn bị:\n" + jsonBody);
-            
-            // Xác thực cấu trúc JSON (chỉ để gỡ lỗi)
-            if (jsonBody.contains("\"content\":\"" + encodedText + "\"")) {
-                logger.info("✓ KIỂM TRA ĐỊNH DẠNG ĐẠT: JSON chứa văn bản tiếng Việt dự kiến được mã hóa chính xác");
-            } else {
-                logger.warning("✗ KIỂM TRA ĐỊNH DẠNG THẤT BẠI: JSON không chứa văn bản dự kiến: " + encodedText);
-                logger.warning("Nội dung JSON: " + jsonBody);
+        return false;
+    }
+
+    private void logVertexError(Throwable error) {
+        if (error instanceof WebClientResponseException) {
+            WebClientResponseException responseError = (WebClientResponseException) error;
+            int status = responseError.getStatusCode().value();
+            logger.warning("Lỗi API Vertex AI: " + status + " - " + responseError.getResponseBodyAsString());
+            if (status == 401) {
+                // Làm mới token ở nền; lần thử tiếp theo (sau thời gian chờ retry) sẽ đọc token mới
+                if (authEnabled && System.currentTimeMillis() - lastTokenRefreshMillis >= minForcedRefreshIntervalMs) {
+                    logger.warning("Lỗi xác thực (401), đang làm mới token ở nền trước lần thử tiếp theo");
+                    refreshAccessTokenAsync();
+                }
             }
-        } catch (Exception e) {
-            logger.severe("Lỗi chuyển đổi body yêu cầu thành JSON: " + e.getMessage());
+            Duration retryAfter = AdaptiveRateLimiter.parseRetryAfter(
+                    responseError.getHeaders().getFirst(HttpHeaders.RETRY_AFTER));
+            if (status == 429 || (status == 503 && retryAfter != null)) {
+                // Báo cho bộ giới hạn để giảm giới hạn đồng thời và tạm dừng theo Retry-After
+                rateLimiter.onThrottled(retryAfter);
+            }
+        } else {
+            logger.severe("Lỗi khi gọi API Vertex AI: " + error.getMessage());
         }
-        
-        return rootNode;
     }
 
     /**
@@ -759,290 +959,251 @@ public class VertexAIService {
      * phù hợp cho việc so sánh ngữ nghĩa
      * 
      * @param text Văn bản đầu vào
-     * @return Vector embedding
+     * @return Vector embedding kèm mã mô hình (FALLBACK_EMBEDDING_MODEL_ID nếu là vector dự phòng)
      */
-    public float[] createEmbedding(String text) {
-        // Xử lý đầu vào null ngay lập tức
-        if (text == null) {
-            logger.warning("Không thể tạo embedding cho văn bản null - sử dụng phương thức dự phòng");
-            return createFallbackEmbedding("placeholder text");
+    public Embedding createEmbedding(String text) {
+        return createEmbeddingAsync(text).block();
+    }
+
+    /**
+     * Tạo embedding vector từ văn bản theo kiểu không chặn luồng
+     * Lỗi API (sau khi đã thử lại) được thay bằng embedding dự phòng nên Mono luôn có giá trị
+     * 
+     * @param text Văn bản đầu vào
+     * @return Mono chứa vector embedding kèm mã mô hình
+     */
+    public Mono<Embedding> createEmbeddingAsync(String text) {
+        String preparedText = prepareEmbeddingText(text);
+        if (preparedText == null) {
+            logger.warning("Văn bản rỗng hoặc null - sử dụng phương thức dự phòng");
+            return Mono.just(fallbackEmbedding("placeholder text"));
         }
         
-        // Chuẩn hóa văn bản và xử lý mã hóa UTF-8 ngay lập tức
-        String normalizedText = java.text.Normalizer.normalize(text, java.text.Normalizer.Form.NFKC);
-        // Loại bỏ các ký tự điều khiển ngoại trừ xuống dòng và tab
-        normalizedText = normalizedText.replaceAll("[\\p{Cntrl}&&[^\r\n\t]]", "").trim();
-        
-        // Kiểm tra xem văn bản có trống sau khi chuẩn hóa không
-        if (normalizedText.isEmpty()) {
-            logger.warning("Văn bản trống sau khi chuẩn hóa - sử dụng phương thức dự phòng");
-            return createFallbackEmbedding("placeholder text");
+        // Kiểm tra tầng bộ nhớ của cache ngay, không truy cập cơ sở dữ liệu
+        String cacheKey = embeddingCacheKey(preparedText);
+        float[] cachedVector = embeddingCacheService.getFromMemory(cacheKey);
+        if (cachedVector != null) {
+            return Mono.just(new Embedding(cachedVector, embeddingModelName));
         }
         
-        // Đảm bảo mã hóa UTF-8 chính xác
-        String finalText;
-        try {
-            byte[] bytes = normalizedText.getBytes(StandardCharsets.UTF_8);
-            // Ghi lại các byte thô để gỡ lỗi
-            logger.info("Raw UTF-8 bytes: " + bytesToHex(bytes));
-            
-            finalText = new String(bytes, StandardCharsets.UTF_8);
-            if (finalText.isEmpty()) {
-                logger.warning("Văn bản trống sau khi mã hóa UTF-8 - sử dụng phương thức dự phòng");
-                return createFallbackEmbedding("placeholder text");
+        // Tầng cơ sở dữ liệu (JDBC chặn luồng) được đọc trên boundedElastic khi có người đăng ký,
+        // không phải trên luồng đang lắp pipeline (có thể là event loop của Reactor)
+        return Mono.fromCallable(() -> embeddingCacheService.get(cacheKey))
+                .subscribeOn(Schedulers.boundedElastic())
+                // Các yêu cầu đồng thời với cùng văn bản dùng chung một lời gọi API
+                .switchIfEmpty(Mono.fromFuture(() -> embeddingFlights.submit(cacheKey, () ->
+                        callEmbeddingBatchAsync(Collections.singletonList(preparedText))
+                                .map(embeddings -> embeddings.get(0))
+                                // Ghi cache (có truy cập cơ sở dữ liệu) ngoài luồng event loop
+                                .publishOn(Schedulers.boundedElastic())
+                                .doOnNext(embedding -> embeddingCacheService.put(cacheKey, embeddingModelName, embedding))
+                                .toFuture())))
+                // Khóa cache chứa mô hình nên vector lấy từ cache hay từ API đều thuộc mô hình hiện tại
+                .map(vector -> new Embedding(vector, embeddingModelName))
+                .onErrorResume(e -> {
+                    logger.severe("Lỗi khi tạo embedding, sử dụng phương thức dự phòng: " + e.getMessage());
+                    return Mono.just(fallbackEmbedding(preparedText));
+                });
+    }
+
+    /**
+     * Tạo vector nhúng cho nhiều văn bản, gộp nhiều instance vào mỗi yêu cầu :predict
+     * Phương thức chặn luồng (đọc cache từ cơ sở dữ liệu và chờ API), dành cho luồng xử lý tài liệu, không gọi từ event loop.
+     * Các lô được đóng gói theo giới hạn số instance và số token ước lượng của một yêu cầu.
+     * Lô thất bại được chia đôi và thử lại; văn bản đơn lẻ vẫn lỗi sẽ dùng embedding dự phòng.
+     * Kết quả luôn có cùng thứ tự và số lượng với danh sách đầu vào
+     * 
+     * @param texts Danh sách văn bản đầu vào
+     * @return Danh sách vector nhúng kèm mã mô hình tương ứng với từng văn bản
+     */
+    public List<Embedding> createEmbeddings(List<String> texts) {
+        List<Embedding> results = new ArrayList<>(Collections.nCopies(texts.size(), (Embedding) null));
+        List<Integer> pendingIndexes = new ArrayList<>();
+        List<String> pendingTexts = new ArrayList<>();
+
+        // Tra cứu cache cho cả danh sách bằng một lần truy vấn
+        List<String> preparedTexts = new ArrayList<>(texts.size());
+        List<String> keys = new ArrayList<>();
+        for (String text : texts) {
+            String prepared = prepareEmbeddingText(text);
+            preparedTexts.add(prepared);
+            if (prepared != null) {
+                keys.add(embeddingCacheKey(prepared));
             }
-            logger.info("Văn bản sau khi chuẩn hóa và mã hóa UTF-8: " + finalText);
-        } catch (Exception e) {
-            logger.severe("Lỗi trong quá trình mã hóa UTF-8: " + e.getMessage());
-            return createFallbackEmbedding("placeholder text");
         }
-        
-        // Giới hạn độ dài văn bản cho giới hạn API
-        if (finalText.length() > 2048) {
-            finalText = finalText.substring(0, 2048);
-            logger.info("Văn bản được cắt ngắn còn 2048 ký tự");
+        Map<String, float[]> cachedVectors = embeddingCacheService.getAll(keys);
+
+        for (int i = 0; i < texts.size(); i++) {
+            String prepared = preparedTexts.get(i);
+            if (prepared == null) {
+                results.set(i, fallbackEmbedding("placeholder text"));
+                continue;
+            }
+            float[] cached = cachedVectors.get(embeddingCacheKey(prepared));
+            if (cached != null) {
+                results.set(i, new Embedding(cached, embeddingModelName));
+                continue;
+            }
+            pendingIndexes.add(i);
+            pendingTexts.add(prepared);
         }
-        
-        // Xóa cache nếu nó có thể chứa kích thước không nhất quán
-        if (embeddingCache.size() > 0) {
-            // Kiểm tra kích thước của vector đầu tiên trong cache
-            float[] sampleVector = embeddingCache.values().iterator().next();
-            int expectedDimension = embeddingModelName.contains("text-embedding-005") ? 768 : 128;
-            
-            if (sampleVector.length != expectedDimension) {
-                logger.warning("Đang xóa cache embedding do thay đổi kích thước - cũ: " + sampleVector.length + 
-                              ", dự kiến: " + expectedDimension);
-                embeddingCache.clear();
+
+        long startTime = System.currentTimeMillis();
+        int requestCount = 0;
+        int start = 0;
+        while (start < pendingTexts.size()) {
+            // Đóng gói lô theo giới hạn số instance và số token
+            int end = start;
+            int tokens = 0;
+            while (end < pendingTexts.size() && end - start < embeddingBatchMaxInstances) {
+                int estimated = estimateEmbeddingTokens(pendingTexts.get(end));
+                if (end > start && tokens + estimated > embeddingBatchMaxTokens) {
+                    break;
+                }
+                tokens += estimated;
+                end++;
             }
+
+            List<String> batch = pendingTexts.subList(start, end);
+            List<Embedding> embeddings = embedBatchWithSplit(batch);
+            requestCount++;
+            for (int j = 0; j < batch.size(); j++) {
+                Embedding embedding = embeddings.get(j);
+                results.set(pendingIndexes.get(start + j), embedding);
+                cacheEmbedding(embeddingCacheKey(batch.get(j)), embedding);
+            }
+            start = end;
         }
-        
-        // Tạo cache key từ text đã chuẩn hóa
-        String cacheKey = finalText.trim().toLowerCase().hashCode() + "";
-        
-        // Kiểm tra cache trước khi gọi API
-        if (embeddingCache.containsKey(cacheKey)) {
-            float[] cachedVector = embeddingCache.get(cacheKey);
-            logger.info("Sử dụng embedding từ cache cho văn bản: " + finalText.substring(0, Math.min(30, finalText.length())) + 
-                       "... (kích thước: " + cachedVector.length + ")");
-            return cachedVector;
+
+        if (!pendingTexts.isEmpty()) {
+            logger.info("Đã tạo " + pendingTexts.size() + " vector nhúng qua " + requestCount + " lô trong " +
+                       (System.currentTimeMillis() - startTime) + "ms (" + (texts.size() - pendingTexts.size()) + " lấy từ cache)");
         }
-        
+        return results;
+    }
+
+    /**
+     * Gửi một lô lên API, nếu thất bại thì chia đôi và thử lại từng nửa
+     */
+    private List<Embedding> embedBatchWithSplit(List<String> batch) {
         try {
-            long startTime = System.currentTimeMillis();
-            
-            // Chuẩn bị request body
-            logger.info("Đang chuẩn bị yêu cầu với mô hình: " + embeddingModelName);
-            ObjectNode requestNode = buildEmbeddingRequest(finalText);
-            
-            // Luôn sử dụng project ID từ cấu hình
-            String actualProjectId = projectId;
-            
-            // Xác định URL endpoint cho text-embedding-005
-            String apiUrl = String.format(
-                "https://%s-aiplatform.googleapis.com/v1/projects/%s/locations/%s/publishers/google/models/%s:predict",
-                location, actualProjectId, location, embeddingModelName);
-            
-            logger.info("Đang gọi API embedding với URL: " + apiUrl);
-            
-            // Kiểm tra URL API
-            logger.info("KIỂM TRA URL API: " + 
-                        (apiUrl.contains("publishers/google/models/" + embeddingModelName + ":predict") ? 
-                         "✓ OK - URL chứa đường dẫn mô hình chính xác" : 
-                         "✗ LỖI - URL không chứa đường dẫn mô hình chính xác"));
-            
-            // Lấy token OAuth2 hiện tại
-            String token = getAccessToken();
-            if (token == null || token.isEmpty()) {
-                logger.severe("Không thể lấy token OAuth2");
-                throw new RuntimeException("Không có token OAuth2 hợp lệ");
+            List<Embedding> embeddings = new ArrayList<>(batch.size());
+            for (float[] vector : callEmbeddingBatch(batch)) {
+                embeddings.add(new Embedding(vector, embeddingModelName));
             }
-            logger.info("Đã lấy token OAuth2");
-            
-            // Gọi API sử dụng HttpURLConnection thay vì WebClient
-            URL url = new URL(apiUrl);
-            HttpURLConnection connection = (HttpURLConnection) url.openConnection();
-            connection.setRequestMethod("POST");
-            connection.setRequestProperty("Content-Type", "application/json; charset=UTF-8");
-            connection.setRequestProperty("Accept", "application/json");
-            connection.setRequestProperty("Authorization", "Bearer " + token);
-            connection.setDoOutput(true);
-            connection.setConnectTimeout(20000); // 20 giây timeout
-            connection.setReadTimeout(20000);
-
-            // Chuyển đổi ObjectNode thành chuỗi JSON với mã hóa UTF-8 rõ ràng
-            String jsonRequest;
-            try {
-                // Sử dụng định dạng đẹp để dễ nhìn khi gỡ lỗi
-                jsonRequest = objectMapper.writerWithDefaultPrettyPrinter().writeValueAsString(requestNode);
-                logger.info("Yêu cầu JSON cuối cùng với định dạng đẹp:\n" + jsonRequest);
-            } catch (Exception e) {
-                logger.severe("Lỗi khi chuyển đổi request thành JSON: " + e.getMessage());
-                throw new RuntimeException("Không thể chuyển đổi request", e);
+            return embeddings;
+        } catch (CallNotPermittedException | BulkheadFullException e) {
+            // Dịch vụ đang bị ngắt mạch hoặc quá tải: chia nhỏ lô cũng không giúp được, dùng dự phòng cho cả lô
+            logger.warning("Bỏ qua lô embedding gồm " + batch.size() + " instance, sử dụng phương thức dự phòng: " + e.getMessage());
+            List<Embedding> fallbacks = new ArrayList<>(batch.size());
+            for (String text : batch) {
+                fallbacks.add(fallbackEmbedding(text));
             }
-            
-            // Ghi lại chi tiết request để gỡ lỗi
-            byte[] requestBytes = jsonRequest.getBytes(StandardCharsets.UTF_8);
-            logger.info("Đang gửi yêu cầu (độ dài=" + requestBytes.length + " byte)");
-            
-            // Ghi lại toàn bộ chi tiết request để gỡ lỗi
-            logger.info("CHI TIẾT YÊU CẦU ĐẦY ĐỦ:");
-            logger.info("URL: " + apiUrl);
-            logger.info("Phương thức: POST");
-            logger.info("Headers:");
-            logger.info("  Content-Type: application/json; charset=UTF-8");
-            logger.info("  Accept: application/json");
-            logger.info("  Authorization: Bearer " + token.substring(0, 10) + "...");
-            logger.info("Body (UTF-8):\n" + jsonRequest);
-            
-            // Ghi nội dung request với mã hóa UTF-8
-            try (OutputStream os = connection.getOutputStream()) {
-                os.write(requestBytes);
-                os.flush();
+            return fallbacks;
+        } catch (Exception e) {
+            if (batch.size() == 1) {
+                logger.warning("Không thể tạo embedding cho văn bản, sử dụng phương thức dự phòng: " + e.getMessage());
+                return Collections.singletonList(fallbackEmbedding(batch.get(0)));
             }
+            int middle = batch.size() / 2;
+            logger.warning("Lô embedding gồm " + batch.size() + " instance thất bại (" + e.getMessage() + "), chia đôi và thử lại");
+            List<Embedding> combined = new ArrayList<>(embedBatchWithSplit(batch.subList(0, middle)));
+            combined.addAll(embedBatchWithSplit(batch.subList(middle, batch.size())));
+            return combined;
+        }
+    }
 
-            int statusCode = connection.getResponseCode();
-            logger.info("Mã trạng thái phản hồi API: " + statusCode);
-            
-            String responseBody;
-            
-            // Đọc response
-            if (statusCode == HttpURLConnection.HTTP_OK) {
-                try (BufferedReader reader = new BufferedReader(
-                        new InputStreamReader(connection.getInputStream(), StandardCharsets.UTF_8))) {
-                    StringBuilder response = new StringBuilder();
-                    String line;
-                    while ((line = reader.readLine()) != null) {
-                        response.append(line);
-                    }
-                    responseBody = response.toString();
-                }
-                logger.info("Phản hồi API thành công: " + responseBody.substring(0, Math.min(100, responseBody.length())) + "...");
-            } else {
-                // Đọc error response
-                try (BufferedReader reader = new BufferedReader(
-                         new InputStreamReader(
-                             connection.getErrorStream() != null ? connection.getErrorStream() : new ByteArrayInputStream(new byte[0]), 
-                             StandardCharsets.UTF_8))) {
-                    StringBuilder response = new StringBuilder();
-                    String line;
-                    while ((line = reader.readLine()) != null) {
-                        response.append(line);
-                    }
-                    responseBody = response.toString();
-                }
-                logger.severe("Trạng thái lỗi API: " + statusCode);
-                logger.severe("Phản hồi lỗi API: " + responseBody);
-                
-                // Phân tích lỗi chi tiết và log thông tin request gây lỗi
-                try {
-                    JsonNode errorNode = objectMapper.readTree(responseBody);
-                    if (errorNode.has("error") && errorNode.get("error").has("message")) {
-                        String errorMessage = errorNode.get("error").get("message").asText();
-                        logger.severe("Thông báo lỗi API: " + errorMessage);
-                        
-                        // Log the request that caused the error for debugging
-                        logger.severe("Yêu cầu gây ra lỗi: " + jsonRequest);
-                        
-                        if (errorMessage.contains("format") || errorMessage.contains("schema")) {
-                            logger.severe("Có vẻ là LỖI ĐỊNH DẠNG. Kiểm tra cấu trúc JSON.");
-                        } else if (errorMessage.contains("empty") || errorMessage.contains("content")) {
-                            logger.severe("Có vẻ là LỖI NỘI DUNG. Kiểm tra văn bản tiếng Việt có được mã hóa đúng không.");
-                        } else if (errorMessage.contains("unauthorized") || errorMessage.contains("permission")) {
-                            logger.severe("Có vẻ là LỖI XÁC THỰC. Kiểm tra thông tin đăng nhập của bạn.");
-                        }
-                    }
-                } catch (Exception e) {
-                    logger.warning("Không thể phân tích JSON phản hồi lỗi: " + e.getMessage());
-                }
-                
-                throw new RuntimeException("Lỗi khi gọi API: " + statusCode + " - " + responseBody);
-            }
+    /**
+     * Gọi :predict với nhiều instance và đọc kết quả theo đúng thứ tự instance
+     */
+    private List<float[]> callEmbeddingBatch(List<String> batch) {
+        return callEmbeddingBatchAsync(batch).block();
+    }
 
-            long endTime = System.currentTimeMillis();
-            logger.info("Thời gian gọi API embedding: " + (endTime - startTime) + "ms");
+    private Mono<List<float[]>> callEmbeddingBatchAsync(List<String> batch) {
+        Integer dimension = embeddingModelName.contains("text-embedding-005") ? EMBEDDING_DIMENSION : null;
+        return Mono.fromCallable(() -> EmbeddingJsonCodec.writeRequest(batch, dimension))
+                .flatMap(body -> isolate(embeddingCircuitBreaker, embeddingBulkhead,
+                        callVertexAPIAsync(buildEmbeddingEndpoint(), body, embeddingTimeoutMs, byte[].class)))
+                .flatMap(response -> Mono.fromCallable(() ->
+                        EmbeddingJsonCodec.readPredictions(response, batch.size(), EMBEDDING_DIMENSION)));
+    }
 
-            // Xử lý response JSON
-            if (responseBody != null && !responseBody.isEmpty()) {
-                logger.info("Đã nhận phản hồi: " + responseBody.substring(0, Math.min(100, responseBody.length())) + "...");
-                
-                ObjectMapper mapper = new ObjectMapper();
-                JsonNode rootNode = mapper.readTree(responseBody);
-                
-                if (rootNode.has("predictions") && rootNode.get("predictions").size() > 0) {
-                    JsonNode prediction = rootNode.get("predictions").get(0);
-                    
-                    // Định dạng phản hồi cho text-embedding-005
-                    if (prediction.has("embeddings") && prediction.get("embeddings").has("values")) {
-                        // Định dạng cho text-embedding-005
-                        JsonNode valuesNode = prediction.get("embeddings").get("values");
-                        float[] embedding = new float[valuesNode.size()];
-                        
-                        for (int i = 0; i < embedding.length; i++) {
-                            embedding[i] = (float) valuesNode.get(i).asDouble();
-                        }
-                        
-                        // Thêm kết quả vào cache
-                        synchronized(embeddingCache) {
-                            if (embeddingCache.size() >= EMBEDDING_CACHE_SIZE) {
-                                String oldestKey = embeddingCache.keySet().iterator().next();
-                                embeddingCache.remove(oldestKey);
-                            }
-                            embeddingCache.put(cacheKey, embedding);
-                        }
+    /**
+     * Chuẩn hóa văn bản trước khi tạo embedding (NFKC, bỏ ký tự điều khiển, cắt còn 2048 ký tự)
+     * @return Văn bản đã chuẩn hóa hoặc null nếu rỗng
+     */
+    private String prepareEmbeddingText(String text) {
+        if (text == null) {
+            return null;
+        }
+        String normalized = java.text.Normalizer.normalize(text, java.text.Normalizer.Form.NFKC);
+        normalized = normalized.replaceAll("[\\p{Cntrl}&&[^\r\n\t]]", "").trim();
+        if (normalized.isEmpty()) {
+            return null;
+        }
+        return normalized.length() > 2048 ? normalized.substring(0, 2048) : normalized;
+    }
 
-                        logger.info("Đã tạo thành công vector nhúng với " + embedding.length + " chiều sử dụng định dạng embeddings.values");
-                        return embedding;
-                    }
-                    else if (prediction.has("values")) {
-                        // Format trực tiếp "values" cho các model khác
-                        JsonNode valuesNode = prediction.get("values");
-                        float[] embedding = new float[valuesNode.size()];
+    /**
+     * Ước lượng số token của văn bản (bảo thủ với tiếng Việt có dấu: khoảng 2 ký tự mỗi token)
+     */
+    private int estimateEmbeddingTokens(String text) {
+        return text.length() / 2 + 1;
+    }
 
-                        for (int i = 0; i < embedding.length; i++) {
-                            embedding[i] = (float) valuesNode.get(i).asDouble();
-                        }
-                        
-                        // Thêm kết quả vào cache
-                        synchronized(embeddingCache) {
-                            if (embeddingCache.size() >= EMBEDDING_CACHE_SIZE) {
-                                String oldestKey = embeddingCache.keySet().iterator().next();
-                                embeddingCache.remove(oldestKey);
-                            }
-                            embeddingCache.put(cacheKey, embedding);
-                        }
-                        
-                        logger.info("Đã tạo thành công vector nhúng với " + embedding.length + " chiều sử dụng định dạng values");
-                        return embedding;
-                    }
-                    // In ra cấu trúc JSON response để debug
-                    logger.warning("Cấu trúc JSON phản hồi không mong đợi: " + prediction.toString());
-                } else {
-                    logger.warning("Thiếu predictions trong phản hồi - kiểm tra phản hồi đầy đủ: " + responseBody);
-                }
-                
-                logger.warning("Định dạng phản hồi không hợp lệ từ API embedding: " + responseBody);
-            } else {
-                logger.warning("Nhận phản hồi null hoặc rỗng từ API embedding");
-            }
+    /**
+     * Khóa cache theo nội dung: mô hình, kích thước yêu cầu và văn bản đã chuẩn hóa
+     */
+    private String embeddingCacheKey(String preparedText) {
+        return embeddingCacheService.cacheKey(embeddingModelName, EMBEDDING_DIMENSION, preparedText);
+    }
 
-            // Nếu không thành công, sử dụng embedding đơn giản
-            logger.warning("Không thể tạo embedding qua API, sử dụng phương thức dự phòng");
-            return createFallbackEmbedding(finalText);
-            
-        } catch (Exception e) {
-            logger.severe("Lỗi khi tạo embedding: " + e.getMessage());
-            if (e.getCause() != null) {
-                logger.severe("Nguyên nhân gốc: " + e.getCause().getMessage());
-            }
-            // Ghi traceback đầy đủ vào log
-            StringWriter sw = new StringWriter();
-            e.printStackTrace(new PrintWriter(sw));
-            logger.severe("Stack trace: " + sw.toString());
-            
-            return createFallbackEmbedding(finalText);
+    /**
+     * Chỉ lưu vector thật từ API, không lưu vector dự phòng
+     */
+    private void cacheEmbedding(String cacheKey, Embedding embedding) {
+        if (!embedding.isFallback()) {
+            embeddingCacheService.put(cacheKey, embedding.getModelId(), embedding.getVector());
         }
     }
 
+    /**
+     * Vector dự phòng dựa trên hash, gắn mã mô hình dự phòng để không bị lẫn với vector của API
+     */
+    private Embedding fallbackEmbedding(String text) {
+        return new Embedding(createFallbackEmbedding(text), FALLBACK_EMBEDDING_MODEL_ID);
+    }
+
+    private String buildEmbeddingEndpoint() {
+        return buildModelEndpoint(projectId, embeddingModelName, "predict");
+    }
+
+    /**
+     * URL gốc của API Vertex AI (vertexai.base-url hoặc endpoint theo vùng)
+     */
+    public String getApiBaseUrl() {
+        if (baseUrl == null || baseUrl.isBlank()) {
+            return "https://" + location + "-aiplatform.googleapis.com";
+        }
+        return baseUrl.endsWith("/") ? baseUrl.substring(0, baseUrl.length() - 1) : baseUrl;
+    }
+
+    /**
+     * Endpoint của một mô hình thuộc publisher google
+     *
+     * @param model Tên mô hình (không có tiền tố "models/")
+     * @param method Phương thức API, ví dụ "predict" hoặc "generateContent"
+     */
+    public String buildModelEndpoint(String model, String method) {
+        return buildModelEndpoint(projectId, model, method);
+    }
+
+    private String buildModelEndpoint(String project, String model, String method) {
+        return String.format("%s/v1/projects/%s/locations/%s/publishers/google/models/%s:%s",
+                getApiBaseUrl(), project, location, model, method);
+    }
+
     /**
      * Phương thức tạo embedding dự phòng khi API không khả dụng
      * @param text Văn bản cần tạo embedding
@@ -1126,32 +1287,80 @@ public class VertexAIService {
      * @return Token truy cập OAuth hiện tại
      */
     public String getCurrentAccessToken() {
-        return accessToken;
+        OAuthToken token = currentToken.get();
+        return token != null ? token.value : null;
     }
 
     /**
-     * Chuyển đổi mảng byte thành chuỗi hex
-     * Hữu ích cho việc gỡ lỗi khi làm việc với mã hóa UTF-8
-     * 
-     * @param bytes Mảng byte cần chuyển đổi
-     * @return Chuỗi hex tương ứng với mảng byte
+     * Thống kê bộ làm mới token OAuth2 nền (thời gian còn lại, số lần làm mới, lỗi gần nhất)
      */
-    private String bytesToHex(byte[] bytes) {
-        StringBuilder sb = new StringBuilder();
-        for (byte b : bytes) {
-            sb.append(String.format("%02x", b));
-        }
-        return sb.toString();
+    public Map<String, Object> getTokenStatistics() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        OAuthToken token = currentToken.get();
+        stats.put("hasToken", token != null);
+        stats.put("expiresInSeconds", token != null ? token.remainingSeconds() : -1);
+        stats.put("refreshAheadSeconds", tokenRefreshAheadSeconds);
+        stats.put("lastRefreshMillis", lastTokenRefreshMillis);
+        stats.put("refreshes", tokenRefreshes.get());
+        stats.put("refreshFailures", tokenRefreshFailures.get());
+        stats.put("lastRefreshError", lastTokenRefreshError);
+        return stats;
     }
 
     /**
-     * Xóa bộ nhớ đệm vector nhúng để đảm bảo kích thước nhất quán
-     * Hữu ích khi chuyển đổi giữa các mô hình có kích thước vector khác nhau
+     * Thống kê gộp lời gọi đồng thời (single-flight) cho embedding và tạo văn bản
+     */
+    public Map<String, Object> getSingleFlightStatistics() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("embedding", embeddingFlights.getStatistics());
+        stats.put("generation", generationFlights.getStatistics());
+        return stats;
+    }
+
+    /**
+     * Thống kê bulkhead và circuit breaker của từng dịch vụ phía sau
+     */
+    public Map<String, Object> getResilienceStatistics() {
+        Map<String, Object> embedding = new LinkedHashMap<>();
+        embedding.put("circuitBreaker", embeddingCircuitBreaker.getStatistics());
+        embedding.put("bulkhead", embeddingBulkhead.getStatistics());
+        Map<String, Object> generation = new LinkedHashMap<>();
+        generation.put("circuitBreaker", generationCircuitBreaker.getStatistics());
+        generation.put("bulkhead", generationBulkhead.getStatistics());
+
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("embedding", embedding);
+        stats.put("generation", generation);
+        stats.put("auth", getTokenStatistics());
+        return stats;
+    }
+
+    /**
+     * Thống kê độ trễ generateContent (p50/p95/p99) và hoạt động hedging
+     */
+    public Map<String, Object> getGenerationStatistics() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("latency", generationHedgingPolicy.getLatencyTracker().getStatistics());
+        stats.put("hedging", generationHedgingPolicy.getStatistics());
+        return stats;
+    }
+
+    /**
+     * Kiểm tra dịch vụ tạo văn bản có đang khỏe không (mạch đóng)
+     * Câu trả lời tạo trong lúc mạch không đóng là câu trả lời dự phòng, không nên lưu lâu dài
+     */
+    @Override
+    public boolean isGenerationHealthy() {
+        return generationCircuitBreaker.getState() == CircuitBreaker.State.CLOSED;
+    }
+
+    /**
+     * Xóa tầng bộ nhớ của cache vector nhúng
+     * Dữ liệu bền vững không cần xóa khi đổi mô hình vì khóa cache đã chứa mô hình và kích thước
      */
     public void clearEmbeddingCache() {
-        int size = embeddingCache.size();
-        embeddingCache.clear();
-        logger.info("Đã xóa bộ nhớ đệm vector nhúng (" + size + " phần tử)");
+        embeddingCacheService.clearMemory();
+        logger.info("Đã xóa tầng bộ nhớ của cache vector nhúng");
     }
 
     /**
@@ -1164,28 +1373,17 @@ public class VertexAIService {
      * @return Văn bản được tạo từ Vertex AI hoặc null nếu quá thời gian
      */
     public String generateTextWithTimeout(String prompt, int timeoutSeconds) {
-        // Tạo CompletableFuture để gọi API bất đồng bộ
-        CompletableFuture<String> future = CompletableFuture.supplyAsync(() -> {
-            try {
-                return generateText(prompt);
-            } catch (Exception e) {
-                logger.severe("Error generating text with Vertex AI: " + e.getMessage());
-                e.printStackTrace();
-                return null;
-            }
-        });
-        
         try {
-            // Chờ với timeout
-            return future.get(timeoutSeconds, TimeUnit.SECONDS);
-        } catch (java.util.concurrent.TimeoutException e) {
-            logger.warning("Vertex AI request timed out after " + timeoutSeconds + " seconds");
-            future.cancel(true); // Hủy task nếu đang chạy
-            return null;
-        } catch (InterruptedException | ExecutionException e) {
-            logger.severe("Error while waiting for Vertex AI response: " + e.getMessage());
-            e.printStackTrace();
-            return null;
+            return generateTextAsync(prompt)
+                    .timeout(Duration.ofSeconds(timeoutSeconds))
+                    .onErrorResume(java.util.concurrent.TimeoutException.class, e -> {
+                        logger.warning("Vertex AI request timed out after " + timeoutSeconds + " seconds");
+                        return Mono.empty();
+                    })
+                    .block();
+        } catch (Exception e) {
+            logger.severe("Error generating text with Vertex AI: " + e.getMessage());
+            return GENERATION_FAILED_MESSAGE;
         }
     }
 
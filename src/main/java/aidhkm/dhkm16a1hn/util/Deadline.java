@@ -0,0 +1,58 @@
+package aidhkm.dhkm16a1hn.util;
+
+/**
+ * Hạn chót của một yêu cầu: thời điểm tuyệt đối mà câu trả lời phải được trả về
+ * Mỗi bước xử lý lấy thời gian chờ từ phần còn lại của hạn chót (có giới hạn riêng cho từng bước),
+ * nên tổng thời gian của yêu cầu không vượt quá ngân sách ban đầu dù bước nào chậm
+ */
+public final class Deadline {
+
+    private final long startMillis;
+    private final long deadlineMillis;
+
+    private Deadline(long startMillis, long budgetMillis) {
+        this.startMillis = startMillis;
+        this.deadlineMillis = startMillis + Math.max(0, budgetMillis);
+    }
+
+    /**
+     * Tạo hạn chót tính từ thời điểm hiện tại
+     * @param budgetMillis Tổng thời gian cho phép của yêu cầu
+     */
+    public static Deadline after(long budgetMillis) {
+        return new Deadline(System.currentTimeMillis(), budgetMillis);
+    }
+
+    /**
+     * Tạo hạn chót tính từ thời điểm bắt đầu đã ghi nhận trước đó
+     */
+    public static Deadline startingAt(long startMillis, long budgetMillis) {
+        return new Deadline(startMillis, budgetMillis);
+    }
+
+    /**
+     * Thời gian còn lại tới hạn chót (không âm)
+     */
+    public long remainingMillis() {
+        return Math.max(0, deadlineMillis - System.currentTimeMillis());
+    }
+
+    /**
+     * Thời gian chờ cho một bước: phần còn lại trừ phần dành cho các bước sau, không vượt quá giới hạn của bước
+     *
+     * @param stageCapMillis Thời gian tối đa của bước
+     * @param reserveMillis Thời gian giữ lại cho các bước sau (ví dụ tạo câu trả lời trích xuất)
+     * @return Thời gian chờ của bước, 0 nếu không còn ngân sách
+     */
+    public long budgetFor(long stageCapMillis, long reserveMillis) {
+        return Math.max(0, Math.min(stageCapMillis, remainingMillis() - reserveMillis));
+    }
+
+    public boolean isExpired() {
+        return remainingMillis() == 0;
+    }
+
+    public long elapsedMillis() {
+        return System.currentTimeMillis() - startMillis;
+    }
+}
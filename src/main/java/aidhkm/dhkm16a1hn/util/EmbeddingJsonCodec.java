@@ -0,0 +1,139 @@
+package aidhkm.dhkm16a1hn.util;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Mã hóa yêu cầu và giải mã phản hồi API embedding (:predict) bằng Jackson streaming
+ * Yêu cầu được ghi thẳng thành byte JSON gọn; phản hồi được đọc từng token, giá trị
+ * predictions[*].embeddings.values được ghi trực tiếp vào float[] cấp phát sẵn mà không dựng cây JsonNode
+ */
+public final class EmbeddingJsonCodec {
+
+    // JsonFactory an toàn khi dùng đồng thời và tái sử dụng bộ đệm nội bộ giữa các lần gọi
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+    private EmbeddingJsonCodec() {
+    }
+
+    /**
+     * Ghi yêu cầu {"instances":[{"content":...}],"parameters":{"dimension":...}} thành byte UTF-8
+     *
+     * @param texts Các văn bản cần tạo embedding
+     * @param dimension Kích thước vector yêu cầu, null nếu mô hình không hỗ trợ tham số này
+     * @return Nội dung yêu cầu dạng byte
+     */
+    public static byte[] writeRequest(List<String> texts, Integer dimension) throws IOException {
+        int estimatedSize = 64;
+        for (String text : texts) {
+            estimatedSize += text.length() * 2 + 16;
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream(estimatedSize);
+        try (JsonGenerator generator = JSON_FACTORY.createGenerator(out, JsonEncoding.UTF8)) {
+            generator.writeStartObject();
+            generator.writeArrayFieldStart("instances");
+            for (String text : texts) {
+                generator.writeStartObject();
+                generator.writeStringField("content", text);
+                generator.writeEndObject();
+            }
+            generator.writeEndArray();
+            if (dimension != null) {
+                generator.writeObjectFieldStart("parameters");
+                generator.writeNumberField("dimension", dimension);
+                generator.writeEndObject();
+            }
+            generator.writeEndObject();
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Đọc các vector từ phản hồi :predict
+     *
+     * @param body Nội dung phản hồi
+     * @param expectedCount Số instance đã gửi
+     * @param expectedDimension Kích thước vector dự kiến (dùng để cấp phát sẵn mảng)
+     * @return Danh sách vector theo đúng thứ tự instance
+     */
+    public static List<float[]> readPredictions(byte[] body, int expectedCount, int expectedDimension) throws IOException {
+        List<float[]> embeddings = null;
+        try (JsonParser parser = JSON_FACTORY.createParser(body)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new IOException("Phản hồi embedding không phải đối tượng JSON");
+            }
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.getCurrentName();
+                JsonToken value = parser.nextToken();
+                if ("predictions".equals(field) && value == JsonToken.START_ARRAY) {
+                    embeddings = new ArrayList<>(expectedCount);
+                    while (parser.nextToken() == JsonToken.START_OBJECT) {
+                        embeddings.add(readPrediction(parser, expectedDimension));
+                    }
+                } else {
+                    parser.skipChildren();
+                }
+            }
+        }
+
+        int actualCount = embeddings == null ? 0 : embeddings.size();
+        if (actualCount != expectedCount) {
+            throw new IllegalStateException("Số predictions (" + actualCount + ") không khớp số instance (" + expectedCount + ")");
+        }
+        return embeddings;
+    }
+
+    /**
+     * Đọc một prediction (con trỏ đang ở START_OBJECT), nhận cả dạng embeddings.values và values
+     */
+    private static float[] readPrediction(JsonParser parser, int expectedDimension) throws IOException {
+        float[] values = null;
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.getCurrentName();
+            JsonToken value = parser.nextToken();
+            if ("embeddings".equals(field) && value == JsonToken.START_OBJECT) {
+                while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                    String innerField = parser.getCurrentName();
+                    JsonToken innerValue = parser.nextToken();
+                    if ("values".equals(innerField) && innerValue == JsonToken.START_ARRAY) {
+                        values = readValues(parser, expectedDimension);
+                    } else {
+                        parser.skipChildren();
+                    }
+                }
+            } else if ("values".equals(field) && value == JsonToken.START_ARRAY && values == null) {
+                values = readValues(parser, expectedDimension);
+            } else {
+                parser.skipChildren();
+            }
+        }
+        if (values == null || values.length == 0) {
+            throw new IllegalStateException("Prediction không chứa embeddings.values");
+        }
+        return values;
+    }
+
+    /**
+     * Đọc mảng số (con trỏ đang ở START_ARRAY) vào float[]; mảng chỉ được cấp phát lại khi kích thước khác dự kiến
+     */
+    private static float[] readValues(JsonParser parser, int expectedDimension) throws IOException {
+        float[] values = new float[Math.max(16, expectedDimension)];
+        int size = 0;
+        while (parser.nextToken() != JsonToken.END_ARRAY) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = parser.getFloatValue();
+        }
+        return size == values.length ? values : Arrays.copyOf(values, size);
+    }
+}
@@ -0,0 +1,39 @@
+package aidhkm.dhkm16a1hn.util;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+public class HashUtil {
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    /**
+     * Tính SHA-256 của chuỗi (UTF-8) và trả về dạng hex 64 ký tự
+     */
+    public static String sha256Hex(String text) {
+        if (text == null) {
+            return null;
+        }
+        return sha256Hex(text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Tính SHA-256 của mảng byte và trả về dạng hex 64 ký tự
+     */
+    public static String sha256Hex(byte[] data) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            byte[] hash = digest.digest(data);
+            char[] out = new char[hash.length * 2];
+            for (int i = 0; i < hash.length; i++) {
+                out[i * 2] = HEX[(hash[i] >> 4) & 0x0F];
+                out[i * 2 + 1] = HEX[hash[i] & 0x0F];
+            }
+            return new String(out);
+        } catch (NoSuchAlgorithmException e) {
+            // SHA-256 luôn có sẵn trên mọi JVM chuẩn
+            throw new IllegalStateException("Không tìm thấy thuật toán SHA-256", e);
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package aidhkm.dhkm16a1hn.util;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Lưu độ trễ của N lời gọi gần nhất (bộ đệm vòng) và tính các phân vị
+ * Mảng đã sắp xếp được tính lại khi có đủ mẫu mới, nên đọc phân vị trên đường nóng gần như không tốn chi phí
+ */
+public class LatencyTracker {
+
+    // Số mẫu mới tối thiểu trước khi sắp xếp lại
+    private static final int RESORT_INTERVAL = 16;
+
+    private final long[] samples;
+    private int nextIndex;
+    private int count;
+    private long totalRecorded;
+    private long[] sorted = new long[0];
+    private int sinceSort;
+
+    /**
+     * @param windowSize Số mẫu gần nhất được giữ lại
+     */
+    public LatencyTracker(int windowSize) {
+        this.samples = new long[Math.max(1, windowSize)];
+    }
+
+    /**
+     * Ghi nhận độ trễ của một lời gọi
+     */
+    public synchronized void record(long millis) {
+        samples[nextIndex] = millis;
+        nextIndex = (nextIndex + 1) % samples.length;
+        if (count < samples.length) {
+            count++;
+        }
+        totalRecorded++;
+        sinceSort++;
+    }
+
+    /**
+     * Phân vị độ trễ trên cửa sổ hiện tại
+     *
+     * @param quantile Giá trị trong khoảng (0, 1], ví dụ 0.95
+     * @return Độ trễ (ms) hoặc -1 nếu chưa có mẫu nào
+     */
+    public synchronized long percentile(double quantile) {
+        if (count == 0) {
+            return -1;
+        }
+        if (sorted.length != count || sinceSort >= RESORT_INTERVAL) {
+            sorted = Arrays.copyOf(samples, count);
+            Arrays.sort(sorted);
+            sinceSort = 0;
+        }
+        int index = (int) Math.ceil(quantile * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+    }
+
+    public synchronized int getSampleCount() {
+        return count;
+    }
+
+    /**
+     * Thống kê độ trễ (p50, p95, p99, lớn nhất) trên cửa sổ hiện tại
+     */
+    public synchronized Map<String, Object> getStatistics() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("samples", count);
+        stats.put("totalRecorded", totalRecorded);
+        stats.put("p50Ms", percentile(0.50));
+        stats.put("p95Ms", percentile(0.95));
+        stats.put("p99Ms", percentile(0.99));
+        stats.put("maxMs", percentile(1.0));
+        return stats;
+    }
+}
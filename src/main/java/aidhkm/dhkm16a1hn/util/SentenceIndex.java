@@ -0,0 +1,184 @@
+package aidhkm.dhkm16a1hn.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Chỉ mục câu của một đoạn văn bản: các câu và dạng chuẩn hóa (chữ thường, danh sách từ) của từng câu
+ * Ranh giới câu được tính một lần khi nạp tài liệu và lưu cùng đoạn văn dưới dạng mảng vị trí [đầu, cuối) liên tiếp;
+ * khi trả lời câu hỏi, các câu chỉ cần cắt theo vị trí đã lưu thay vì tách lại bằng biểu thức chính quy.
+ * Đối tượng không bị sửa sau khi tạo nên có thể dùng chung giữa các luồng
+ */
+public final class SentenceIndex {
+
+    private static final SentenceIndex EMPTY = new SentenceIndex("", new String[0], new String[0]);
+
+    private final String text;
+    private final String[] sentences;
+    private final String[] normalized;
+    private final String[][] words;
+
+    private SentenceIndex(String text, String[] sentences, String[] normalized) {
+        this.text = text;
+        this.sentences = sentences;
+        this.normalized = normalized;
+        this.words = new String[sentences.length][];
+        for (int i = 0; i < sentences.length; i++) {
+            words[i] = splitWords(normalized[i]);
+        }
+    }
+
+    /**
+     * Tính ranh giới câu của văn bản: câu kết thúc tại dấu . ! ? theo sau là khoảng trắng, hoặc tại dấu xuống dòng.
+     * Khoảng trắng đầu và cuối mỗi câu bị bỏ, câu rỗng bị bỏ qua
+     *
+     * @return Mảng vị trí [đầu0, cuối0, đầu1, cuối1, ...] trong văn bản
+     */
+    public static int[] computeBounds(String text) {
+        if (text == null || text.isEmpty()) {
+            return new int[0];
+        }
+        List<Integer> bounds = new ArrayList<>();
+        int start = 0;
+        int length = text.length();
+        for (int i = 0; i < length; i++) {
+            char c = text.charAt(i);
+            boolean boundary = c == '\n'
+                    || ((c == '.' || c == '!' || c == '?') && (i + 1 == length || Character.isWhitespace(text.charAt(i + 1))));
+            if (boundary) {
+                addTrimmed(text, start, c == '\n' ? i : i + 1, bounds);
+                start = i + 1;
+            }
+        }
+        addTrimmed(text, start, length, bounds);
+
+        int[] result = new int[bounds.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = bounds.get(i);
+        }
+        return result;
+    }
+
+    /**
+     * Tạo chỉ mục câu từ văn bản và ranh giới đã lưu
+     * Ranh giới không hợp lệ (thiếu, hoặc không khớp với văn bản) được tính lại
+     */
+    public static SentenceIndex fromBounds(String text, int[] bounds) {
+        if (text == null || text.isEmpty()) {
+            return EMPTY;
+        }
+        if (!isValid(bounds, text.length())) {
+            bounds = computeBounds(text);
+        }
+        int count = bounds.length / 2;
+        String[] sentences = new String[count];
+        String[] normalized = new String[count];
+        for (int i = 0; i < count; i++) {
+            sentences[i] = text.substring(bounds[2 * i], bounds[2 * i + 1]);
+            normalized[i] = sentences[i].toLowerCase();
+        }
+        return new SentenceIndex(text, sentences, normalized);
+    }
+
+    /**
+     * Tính ranh giới câu và tạo chỉ mục cho văn bản chưa có ranh giới lưu sẵn
+     */
+    public static SentenceIndex build(String text) {
+        return fromBounds(text, null);
+    }
+
+    /**
+     * Tạo chỉ mục từ các câu đã tách và đã chuẩn hóa sẵn (ví dụ các câu được chọn từ nhiều đoạn)
+     *
+     * @param text Văn bản ghép từ các câu
+     * @param sentences Các câu theo thứ tự trong văn bản
+     * @param normalized Dạng chữ thường của từng câu
+     */
+    public static SentenceIndex ofSentences(String text, List<String> sentences, List<String> normalized) {
+        return new SentenceIndex(text, sentences.toArray(new String[0]), normalized.toArray(new String[0]));
+    }
+
+    public static SentenceIndex empty() {
+        return EMPTY;
+    }
+
+    private static void addTrimmed(String text, int start, int end, List<Integer> bounds) {
+        while (start < end && Character.isWhitespace(text.charAt(start))) {
+            start++;
+        }
+        while (end > start && Character.isWhitespace(text.charAt(end - 1))) {
+            end--;
+        }
+        if (end > start) {
+            bounds.add(start);
+            bounds.add(end);
+        }
+    }
+
+    private static boolean isValid(int[] bounds, int length) {
+        if (bounds == null || bounds.length % 2 != 0) {
+            return false;
+        }
+        int previous = 0;
+        for (int bound : bounds) {
+            if (bound < previous || bound > length) {
+                return false;
+            }
+            previous = bound;
+        }
+        return true;
+    }
+
+    private static String[] splitWords(String normalizedSentence) {
+        List<String> words = new ArrayList<>();
+        int start = -1;
+        for (int i = 0; i <= normalizedSentence.length(); i++) {
+            boolean wordChar = i < normalizedSentence.length() && Character.isLetterOrDigit(normalizedSentence.charAt(i));
+            if (wordChar && start < 0) {
+                start = i;
+            } else if (!wordChar && start >= 0) {
+                words.add(normalizedSentence.substring(start, i));
+                start = -1;
+            }
+        }
+        return words.toArray(new String[0]);
+    }
+
+    /**
+     * Văn bản gốc của chỉ mục
+     */
+    public String getText() {
+        return text;
+    }
+
+    public int size() {
+        return sentences.length;
+    }
+
+    public boolean isEmpty() {
+        return sentences.length == 0;
+    }
+
+    /**
+     * Câu thứ i (giữ nguyên chữ hoa và dấu câu cuối)
+     */
+    public String sentence(int i) {
+        return sentences[i];
+    }
+
+    /**
+     * Câu thứ i ở dạng chữ thường
+     */
+    public String normalizedSentence(int i) {
+        return normalized[i];
+    }
+
+    /**
+     * Các từ (chữ thường, bỏ dấu câu) của câu thứ i
+     */
+    public List<String> words(int i) {
+        return Collections.unmodifiableList(Arrays.asList(words[i]));
+    }
+}
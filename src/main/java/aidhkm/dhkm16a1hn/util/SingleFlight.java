@@ -0,0 +1,158 @@
+package aidhkm.dhkm16a1hn.util;
+
+import reactor.core.publisher.Mono;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
+
+/**
+ * Gộp các lời gọi đồng thời có cùng khóa thành một lời gọi duy nhất
+ * Luồng đầu tiên (leader) thực hiện lời gọi, các luồng đến sau trong lúc lời gọi còn đang chạy
+ * dùng chung CompletableFuture của leader thay vì gọi lại dịch vụ phía sau.
+ * Khóa được gỡ khỏi bảng ngay khi lời gọi kết thúc, nên kết quả không bị giữ lại như cache.
+ *
+ * @param <K> Kiểu khóa
+ * @param <V> Kiểu kết quả
+ */
+public class SingleFlight<K, V> {
+
+    private final ConcurrentHashMap<K, CompletableFuture<V>> inFlight = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<K, Mono<V>> sharedFlights = new ConcurrentHashMap<>();
+    private final AtomicLong leaders = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+
+    /**
+     * Thực hiện lời gọi đồng bộ, hoặc chờ lời gọi cùng khóa đang chạy
+     *
+     * @param key Khóa gộp
+     * @param call Lời gọi thực tế, chỉ chạy trên luồng leader
+     * @return Kết quả của lời gọi
+     */
+    public V execute(K key, Supplier<V> call) {
+        CompletableFuture<V> flight = new CompletableFuture<>();
+        CompletableFuture<V> existing = inFlight.putIfAbsent(key, flight);
+        if (existing != null) {
+            coalesced.incrementAndGet();
+            return await(existing);
+        }
+
+        leaders.incrementAndGet();
+        try {
+            V value = call.get();
+            inFlight.remove(key, flight);
+            flight.complete(value);
+            return value;
+        } catch (RuntimeException | Error e) {
+            inFlight.remove(key, flight);
+            flight.completeExceptionally(e);
+            throw e;
+        }
+    }
+
+    /**
+     * Thực hiện lời gọi bất đồng bộ, hoặc dùng chung lời gọi cùng khóa đang chạy
+     * Mỗi người gọi nhận một bản sao của future, nên việc hủy của một người gọi không ảnh hưởng người khác
+     *
+     * @param key Khóa gộp
+     * @param call Hàm khởi tạo lời gọi bất đồng bộ, chỉ chạy cho leader
+     * @return Future chứa kết quả
+     */
+    public CompletableFuture<V> submit(K key, Supplier<CompletableFuture<V>> call) {
+        CompletableFuture<V> flight = new CompletableFuture<>();
+        CompletableFuture<V> existing = inFlight.putIfAbsent(key, flight);
+        if (existing != null) {
+            coalesced.incrementAndGet();
+            return existing.copy();
+        }
+
+        leaders.incrementAndGet();
+        CompletableFuture<V> upstream;
+        try {
+            upstream = call.get();
+        } catch (RuntimeException | Error e) {
+            upstream = CompletableFuture.failedFuture(e);
+        }
+        upstream.whenComplete((value, error) -> {
+            inFlight.remove(key, flight);
+            if (error != null) {
+                flight.completeExceptionally(error);
+            } else {
+                flight.complete(value);
+            }
+        });
+        return flight.copy();
+    }
+
+    /**
+     * Như submit nhưng giữ nguyên lời gọi trong Reactor thay vì chuyển qua CompletableFuture
+     * Lời gọi chỉ bắt đầu khi có người đăng ký và được dùng chung theo số người đăng ký: một người gọi hủy
+     * (ví dụ do timeout) không ảnh hưởng người khác, nhưng khi người cuối cùng hủy thì lời gọi phía sau
+     * (yêu cầu HTTP, lượt thử lại, chỗ trong bulkhead và bộ giới hạn tốc độ) cũng bị hủy theo
+     *
+     * @param key Khóa gộp
+     * @param call Hàm khởi tạo lời gọi, chỉ chạy cho leader
+     * @return Mono chứa kết quả
+     */
+    public Mono<V> share(K key, Supplier<Mono<V>> call) {
+        return Mono.defer(() -> {
+            Mono<V> existing = sharedFlights.get(key);
+            if (existing != null) {
+                coalesced.incrementAndGet();
+                return existing;
+            }
+
+            AtomicReference<Mono<V>> self = new AtomicReference<>();
+            Mono<V> flight = Mono.defer(call)
+                    // Gỡ khóa khi lời gọi kết thúc, lỗi, hoặc bị hủy vì không còn ai chờ
+                    .doFinally(signal -> sharedFlights.remove(key, self.get()))
+                    .flux()
+                    .publish()
+                    .refCount()
+                    .singleOrEmpty();
+            self.set(flight);
+            existing = sharedFlights.putIfAbsent(key, flight);
+            if (existing != null) {
+                coalesced.incrementAndGet();
+                return existing;
+            }
+            leaders.incrementAndGet();
+            return flight;
+        });
+    }
+
+    private V await(CompletableFuture<V> flight) {
+        try {
+            return flight.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Bị gián đoạn khi chờ lời gọi đang chạy", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new CompletionException(cause);
+        }
+    }
+
+    /**
+     * Thống kê số lời gọi thực tế và số lời gọi đã được gộp
+     */
+    public Map<String, Object> getStatistics() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("inFlight", inFlight.size() + sharedFlights.size());
+        stats.put("upstreamCalls", leaders.get());
+        stats.put("coalescedCalls", coalesced.get());
+        return stats;
+    }
+}
@@ -26,6 +26,34 @@ public class VectorUtil {
         return pgObject;
     }
     
+    /**
+     * Chuyển đổi float[] thành literal mảng PostgreSQL dạng {a,b,c} để dùng trong native query
+     */
+    public static String toPGArrayLiteral(float[] vector) {
+        StringBuilder sb = new StringBuilder(vector.length * 12 + 2);
+        sb.append('{');
+        for (int i = 0; i < vector.length; i++) {
+            if (i > 0) sb.append(',');
+            sb.append(vector[i]);
+        }
+        sb.append('}');
+        return sb.toString();
+    }
+    
+    /**
+     * Chuyển mảng số nguyên (ví dụ ranh giới câu) sang literal mảng PostgreSQL "{a,b,c}"
+     */
+    public static String toPGArrayLiteral(int[] values) {
+        StringBuilder sb = new StringBuilder(values.length * 5 + 2);
+        sb.append('{');
+        for (int i = 0; i < values.length; i++) {
+            if (i > 0) sb.append(',');
+            sb.append(values[i]);
+        }
+        sb.append('}');
+        return sb.toString();
+    }
+    
     /**
      * Tính cosine similarity giữa hai vector
      * @return giá trị từ -1 đến 1, với 1 là hoàn toàn giống nhau
@@ -0,0 +1,106 @@
+package aidhkm.dhkm16a1hn.resilience;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+import reactor.core.Disposable;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
+
+import java.time.Duration;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class AdaptiveRateLimiterTest {
+
+	private AdaptiveRateLimiter limiter;
+
+	@BeforeEach
+	void setUp() {
+		limiter = new AdaptiveRateLimiter();
+		ReflectionTestUtils.setField(limiter, "requestsPerMinute", 6_000_000.0);
+		ReflectionTestUtils.setField(limiter, "burst", 1_000_000);
+		ReflectionTestUtils.setField(limiter, "minConcurrency", 1);
+		ReflectionTestUtils.setField(limiter, "maxConcurrency", 1);
+		ReflectionTestUtils.setField(limiter, "maxQueue", 100);
+		limiter.init();
+	}
+
+	@Test
+	void releasesSlotWhenCallCompletes() {
+		assertEquals("ok", limiter.execute(Mono.just("ok")).block(Duration.ofSeconds(5)));
+		assertEquals(0, inFlight());
+	}
+
+	@Test
+	void releasesSlotWhenRunningCallIsCancelled() {
+		Disposable running = limiter.execute(Mono.never()).subscribe();
+		assertEquals(1, inFlight());
+
+		running.dispose();
+		assertEquals(0, inFlight());
+		assertEquals("ok", limiter.execute(Mono.just("ok")).block(Duration.ofSeconds(5)));
+	}
+
+	@Test
+	void cancelledWaiterDoesNotHoldSlot() {
+		Sinks.One<String> holder = Sinks.one();
+		Disposable running = limiter.execute(holder.asMono()).subscribe();
+		Disposable queued = limiter.execute(Mono.never()).subscribe();
+		assertEquals(1, queueDepth());
+
+		queued.dispose();
+		holder.tryEmitValue("done");
+		assertEquals(0, inFlight());
+		assertEquals(0, queueDepth());
+		running.dispose();
+	}
+
+	@Test
+	void cancellationRacingWithGrantDoesNotLeakSlot() throws Exception {
+		// Hủy yêu cầu đang chờ cùng lúc với lần release cấp quyền cho nó; dù tín hiệu hủy đến trước,
+		// sau, hay giữa lúc cấp quyền và lúc lời gọi được đăng ký, chỗ phải được trả lại
+		for (int i = 0; i < 2_000; i++) {
+			Sinks.One<String> holder = Sinks.one();
+			Disposable running = limiter.execute(holder.asMono()).subscribe();
+			Disposable queued = limiter.execute(Mono.never()).subscribe();
+
+			CyclicBarrier start = new CyclicBarrier(2);
+			CountDownLatch done = new CountDownLatch(1);
+			Thread canceller = new Thread(() -> {
+				await(start);
+				queued.dispose();
+				done.countDown();
+			});
+			canceller.start();
+			await(start);
+			holder.tryEmitValue("done");
+			assertTrue(done.await(5, TimeUnit.SECONDS));
+			canceller.join();
+			running.dispose();
+
+			assertEquals(0, inFlight(), "Chỗ bị rò rỉ ở lần lặp " + i);
+		}
+		assertEquals("ok", limiter.execute(Mono.just("ok")).block(Duration.ofSeconds(5)));
+	}
+
+	private int inFlight() {
+		return (Integer) limiter.getStatistics().get("inFlight");
+	}
+
+	private int queueDepth() {
+		return (Integer) limiter.getStatistics().get("queueDepth");
+	}
+
+	private static void await(CyclicBarrier barrier) {
+		try {
+			barrier.await(5, TimeUnit.SECONDS);
+		} catch (Exception e) {
+			throw new IllegalStateException(e);
+		}
+	}
+}
@@ -0,0 +1,126 @@
+package aidhkm.dhkm16a1hn.resilience;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import reactor.core.Disposable;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
+
+import java.time.Duration;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class BulkheadTest {
+
+	private Bulkhead bulkhead;
+
+	@BeforeEach
+	void setUp() {
+		bulkhead = new Bulkhead("test", 1, 100, Duration.ZERO);
+	}
+
+	@Test
+	void releasesSlotWhenCallCompletes() {
+		assertEquals("ok", bulkhead.execute(Mono.just("ok")).block(Duration.ofSeconds(5)));
+		assertEquals(0, inFlight());
+	}
+
+	@Test
+	void releasesSlotWhenRunningCallIsCancelled() {
+		Disposable running = bulkhead.execute(Mono.never()).subscribe();
+		assertEquals(1, inFlight());
+
+		running.dispose();
+		assertEquals(0, inFlight());
+		assertEquals("ok", bulkhead.execute(Mono.just("ok")).block(Duration.ofSeconds(5)));
+	}
+
+	@Test
+	void rejectsWhenQueueIsFull() {
+		Bulkhead small = new Bulkhead("small", 1, 1, Duration.ZERO);
+		Disposable running = small.execute(Mono.never()).subscribe();
+		Disposable queued = small.execute(Mono.never()).subscribe();
+
+		assertThrows(BulkheadFullException.class, () -> small.execute(Mono.just("ok")).block(Duration.ofSeconds(5)));
+		queued.dispose();
+		running.dispose();
+		assertEquals(0, (Integer) small.getStatistics().get("inFlight"));
+	}
+
+	@Test
+	void waiterTimesOutWithoutHoldingSlot() {
+		Bulkhead timed = new Bulkhead("timed", 1, 10, Duration.ofMillis(50));
+		Sinks.One<String> holder = Sinks.one();
+		Disposable running = timed.execute(holder.asMono()).subscribe();
+
+		assertThrows(BulkheadFullException.class, () -> timed.execute(Mono.just("late")).block(Duration.ofSeconds(5)));
+		holder.tryEmitValue("done");
+		assertEquals(0, (Integer) timed.getStatistics().get("inFlight"));
+		assertEquals(0, (Integer) timed.getStatistics().get("queueDepth"));
+		assertEquals(1L, timed.getStatistics().get("timedOut"));
+		running.dispose();
+	}
+
+	@Test
+	void cancelledWaiterDoesNotHoldSlot() {
+		Sinks.One<String> holder = Sinks.one();
+		Disposable running = bulkhead.execute(holder.asMono()).subscribe();
+		Disposable queued = bulkhead.execute(Mono.never()).subscribe();
+		assertEquals(1, queueDepth());
+
+		queued.dispose();
+		holder.tryEmitValue("done");
+		assertEquals(0, inFlight());
+		assertEquals(0, queueDepth());
+		running.dispose();
+	}
+
+	@Test
+	void cancellationRacingWithGrantDoesNotLeakSlot() throws Exception {
+		// Hủy lời gọi đang chờ cùng lúc với lần release cấp chỗ cho nó; dù tín hiệu hủy đến trước,
+		// sau, hay giữa lúc cấp chỗ và lúc lời gọi được đăng ký, chỗ phải được trả lại
+		for (int i = 0; i < 2_000; i++) {
+			Sinks.One<String> holder = Sinks.one();
+			Disposable running = bulkhead.execute(holder.asMono()).subscribe();
+			Disposable queued = bulkhead.execute(Mono.never()).subscribe();
+
+			CyclicBarrier start = new CyclicBarrier(2);
+			CountDownLatch done = new CountDownLatch(1);
+			Thread canceller = new Thread(() -> {
+				await(start);
+				queued.dispose();
+				done.countDown();
+			});
+			canceller.start();
+			await(start);
+			holder.tryEmitValue("done");
+			assertTrue(done.await(5, TimeUnit.SECONDS));
+			canceller.join();
+			running.dispose();
+
+			assertEquals(0, inFlight(), "Chỗ bị rò rỉ ở lần lặp " + i);
+		}
+		assertEquals("ok", bulkhead.execute(Mono.just("ok")).block(Duration.ofSeconds(5)));
+	}
+
+	private int inFlight() {
+		return (Integer) bulkhead.getStatistics().get("inFlight");
+	}
+
+	private int queueDepth() {
+		return (Integer) bulkhead.getStatistics().get("queueDepth");
+	}
+
+	private static void await(CyclicBarrier barrier) {
+		try {
+			barrier.await(5, TimeUnit.SECONDS);
+		} catch (Exception e) {
+			throw new IllegalStateException(e);
+		}
+	}
+}
@@ -0,0 +1,91 @@
+package aidhkm.dhkm16a1hn.resilience;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import reactor.core.Disposable;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class CircuitBreakerTest {
+
+	private CircuitBreaker breaker;
+
+	@BeforeEach
+	void setUp() {
+		breaker = new CircuitBreaker("test", 4, 4, 50.0, Duration.ofSeconds(10), Duration.ofMillis(100), 1,
+				error -> !(error instanceof IllegalArgumentException));
+	}
+
+	@Test
+	void opensWhenFailureRateReachesThreshold() {
+		succeed();
+		succeed();
+		fail();
+		assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+
+		fail();
+		assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+		assertThrows(CallNotPermittedException.class, () -> breaker.execute(Mono.just("ok")).block(Duration.ofSeconds(5)));
+	}
+
+	@Test
+	void ignoresErrorsNotRecordedAsFailures() {
+		for (int i = 0; i < 4; i++) {
+			assertThrows(IllegalArgumentException.class,
+					() -> breaker.execute(Mono.error(new IllegalArgumentException("bad input"))).block(Duration.ofSeconds(5)));
+		}
+		assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+	}
+
+	@Test
+	void closesAfterSuccessfulProbe() throws Exception {
+		open();
+		Thread.sleep(150);
+
+		succeed();
+		assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+	}
+
+	@Test
+	void reopensAfterFailedProbe() throws Exception {
+		open();
+		Thread.sleep(150);
+
+		fail();
+		assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+	}
+
+	@Test
+	void cancelledProbeReturnsItsPermit() throws Exception {
+		open();
+		Thread.sleep(150);
+
+		Disposable probe = breaker.execute(Mono.never()).subscribe();
+		assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+		assertThrows(CallNotPermittedException.class, () -> breaker.execute(Mono.just("ok")).block(Duration.ofSeconds(5)));
+
+		probe.dispose();
+		succeed();
+		assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+	}
+
+	private void open() {
+		for (int i = 0; i < 4; i++) {
+			fail();
+		}
+		assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+	}
+
+	private void succeed() {
+		assertEquals("ok", breaker.execute(Mono.just("ok")).block(Duration.ofSeconds(5)));
+	}
+
+	private void fail() {
+		assertThrows(IllegalStateException.class,
+				() -> breaker.execute(Mono.error(new IllegalStateException("backend down"))).block(Duration.ofSeconds(5)));
+	}
+}
@@ -0,0 +1,69 @@
+package aidhkm.dhkm16a1hn.resilience;
+
+import org.junit.jupiter.api.Test;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class HedgingPolicyTest {
+
+	@Test
+	void hedgesWhenPrimaryIsSlow() {
+		HedgingPolicy policy = new HedgingPolicy("test", true, 0.95, 1.0, 0, Duration.ofMillis(20), 100);
+		AtomicInteger attempts = new AtomicInteger();
+
+		String result = policy.execute(() -> attempts.incrementAndGet() == 1 ? Mono.<String>never() : Mono.just("hedge"))
+				.block(Duration.ofSeconds(5));
+
+		assertEquals("hedge", result);
+		assertEquals(2, attempts.get());
+		assertEquals(1L, policy.getStatistics().get("hedgedRequests"));
+		assertEquals(1L, policy.getStatistics().get("hedgeWins"));
+	}
+
+	@Test
+	void doesNotHedgeWhenDisabled() {
+		HedgingPolicy policy = new HedgingPolicy("test", false, 0.95, 1.0, 0, Duration.ofMillis(20), 100);
+		AtomicInteger attempts = new AtomicInteger();
+
+		String result = policy.execute(() -> {
+			attempts.incrementAndGet();
+			return Mono.delay(Duration.ofMillis(100)).thenReturn("primary");
+		}).block(Duration.ofSeconds(5));
+
+		assertEquals("primary", result);
+		assertEquals(1, attempts.get());
+	}
+
+	@Test
+	void doesNotHedgeWithoutBudget() {
+		HedgingPolicy policy = new HedgingPolicy("test", true, 0.95, 0.0, 0, Duration.ofMillis(20), 100);
+		AtomicInteger attempts = new AtomicInteger();
+
+		String result = policy.execute(() -> {
+			attempts.incrementAndGet();
+			return Mono.delay(Duration.ofMillis(100)).thenReturn("primary");
+		}).block(Duration.ofSeconds(5));
+
+		assertEquals("primary", result);
+		assertEquals(1, attempts.get());
+		assertEquals(1L, policy.getStatistics().get("budgetDenied"));
+	}
+
+	@Test
+	void primaryFailureBeforeHedgeDelayIsNotRetried() {
+		HedgingPolicy policy = new HedgingPolicy("test", true, 0.95, 1.0, 0, Duration.ofMillis(200), 100);
+		AtomicInteger attempts = new AtomicInteger();
+
+		assertThrows(IllegalStateException.class, () -> policy.execute(() -> {
+			attempts.incrementAndGet();
+			return Mono.<String>error(new IllegalStateException("backend down"));
+		}).block(Duration.ofSeconds(5)));
+		assertEquals(1, attempts.get());
+		assertEquals(0L, policy.getStatistics().get("hedgedRequests"));
+	}
+}
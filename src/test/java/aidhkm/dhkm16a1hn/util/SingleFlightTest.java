@@ -0,0 +1,112 @@
+package aidhkm.dhkm16a1hn.util;
+
+import org.junit.jupiter.api.Test;
+import reactor.core.Disposable;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
+
+import java.time.Duration;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class SingleFlightTest {
+
+	private final SingleFlight<String, String> singleFlight = new SingleFlight<>();
+
+	@Test
+	void concurrentCallersShareOneCall() throws Exception {
+		AtomicInteger calls = new AtomicInteger();
+		CountDownLatch started = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+		AtomicReference<String> leaderResult = new AtomicReference<>();
+		AtomicReference<String> followerResult = new AtomicReference<>();
+
+		Thread leader = new Thread(() -> leaderResult.set(singleFlight.execute("key", () -> {
+			calls.incrementAndGet();
+			started.countDown();
+			await(release);
+			return "value";
+		})));
+		leader.start();
+		assertTrue(started.await(5, TimeUnit.SECONDS));
+
+		Thread follower = new Thread(() -> followerResult.set(singleFlight.execute("key", () -> {
+			calls.incrementAndGet();
+			return "other";
+		})));
+		follower.start();
+		while (coalesced() == 0) {
+			Thread.sleep(1);
+		}
+		release.countDown();
+		leader.join(5000);
+		follower.join(5000);
+
+		assertEquals(1, calls.get());
+		assertEquals("value", leaderResult.get());
+		assertEquals("value", followerResult.get());
+		assertEquals(0, inFlight());
+	}
+
+	@Test
+	void sharedSubscribersUseOneUpstreamCall() {
+		AtomicInteger calls = new AtomicInteger();
+		Sinks.One<String> upstream = Sinks.one();
+		AtomicReference<String> first = new AtomicReference<>();
+		AtomicReference<String> second = new AtomicReference<>();
+
+		singleFlight.share("key", () -> {
+			calls.incrementAndGet();
+			return upstream.asMono();
+		}).subscribe(first::set);
+		singleFlight.share("key", () -> {
+			calls.incrementAndGet();
+			return Mono.just("other");
+		}).subscribe(second::set);
+		upstream.tryEmitValue("value");
+
+		assertEquals(1, calls.get());
+		assertEquals("value", first.get());
+		assertEquals("value", second.get());
+		assertEquals(0, inFlight());
+	}
+
+	@Test
+	void upstreamIsCancelledOnlyWhenLastSubscriberCancels() {
+		AtomicBoolean cancelled = new AtomicBoolean();
+		Mono<String> upstream = Mono.<String>never().doOnCancel(() -> cancelled.set(true));
+
+		Disposable first = singleFlight.share("key", () -> upstream).subscribe();
+		Disposable second = singleFlight.share("key", () -> upstream).subscribe();
+
+		first.dispose();
+		assertFalse(cancelled.get());
+		second.dispose();
+		assertTrue(cancelled.get());
+		assertEquals(0, inFlight());
+		assertEquals("fresh", singleFlight.share("key", () -> Mono.just("fresh")).block(Duration.ofSeconds(5)));
+	}
+
+	private long coalesced() {
+		return (Long) singleFlight.getStatistics().get("coalescedCalls");
+	}
+
+	private int inFlight() {
+		return (Integer) singleFlight.getStatistics().get("inFlight");
+	}
+
+	private static void await(CountDownLatch latch) {
+		try {
+			latch.await(5, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+}